@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.benchmarks;
+
+import com.yahoo.gondola.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Scanner;
+
+/**
+ * The config of a benchmark: benchmark.conf, followed by the settings of the benchmark.
+ * The file locks and the logs of the file and h2 storages are kept in a new temporary directory, which is deleted by
+ * close(), so that every trial starts with empty logs.
+ */
+public class BenchmarkConfig {
+
+    public final File dir;
+    public final Config config;
+
+    /**
+     * @param overrides HOCON settings that override the ones in benchmark.conf.
+     */
+    public BenchmarkConfig(String overrides) throws IOException {
+        dir = Files.createTempDirectory("gondola-benchmark").toFile();
+        StringBuilder conf = new StringBuilder(readResource("benchmark.conf"));
+        conf.append(String.format("gondola.file_lock_dir = \"%s\"%n", dir));
+        conf.append(String.format("storage.file.dir = \"%s/log-$hostId\"%n", dir));
+        conf.append(String.format("storage.h2.url = \"jdbc:h2:%s/db-$hostId\"%n", dir));
+        conf.append(overrides).append('\n');
+
+        File file = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(conf.toString());
+        }
+        config = new Config(file);
+        deleteFakeStorageFiles();
+    }
+
+    public void close() {
+        config.stop();
+        deleteFakeStorageFiles();
+        delete(dir);
+    }
+
+    /**
+     * FakeStorage keeps its state in a fixed location, which would otherwise carry the terms and indexes of one trial
+     * into the next.
+     */
+    void deleteFakeStorageFiles() {
+        for (String hostId : config.getHostIds()) {
+            new File("/tmp/gondola-" + hostId + ".dat").delete();
+        }
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    static String readResource(String name) throws IOException {
+        try (InputStream in = BenchmarkConfig.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException(name + " not found");
+            }
+            return new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line. Unless the options say otherwise, the results are also written
+ * as JSON to jmh-result.json, so that runs can be compared by tools.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.addAll(Arrays.asList("-rf", "json"));
+        }
+        if (!options.contains("-rff")) {
+            options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.benchmarks;
+
+import com.yahoo.gondola.Command;
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Role;
+import com.yahoo.gondola.Shard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits commands on the leader of a three-member shard, whose members run in this process and are connected by
+ * the memory network. FakeStorage is used so that the replication path, rather than the storage, is measured.
+ * <p>
+ * MemoryChannel keeps its streams in static maps, so only one shard can run in a process. JMH runs each benchmark
+ * in its own fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitBenchmark {
+
+    static final String SHARD_ID = "shard1";
+
+    @Param({"100"})
+    int commandSize;
+
+    BenchmarkConfig benchmarkConfig;
+    List<Gondola> gondolas = new ArrayList<>();
+    Shard leader;
+    byte[] command;
+
+    @Setup
+    public void setUp() throws Exception {
+        benchmarkConfig = new BenchmarkConfig("");
+        Config config = benchmarkConfig.config;
+        for (String hostId : config.getHostIds()) {
+            gondolas.add(new Gondola(config, hostId));
+        }
+        for (Gondola gondola : gondolas) {
+            gondola.start();
+        }
+
+        leader = gondolas.get(0).getShard(SHARD_ID);
+        leader.forceLeader(60000);
+        if (leader.getLocalRole() != Role.LEADER) {
+            throw new IllegalStateException("The shard did not elect a leader");
+        }
+
+        command = new byte[commandSize];
+        new Random(0).nextBytes(command);
+    }
+
+    @TearDown
+    public void tearDown() {
+        gondolas.forEach(Gondola::stop);
+        benchmarkConfig.close();
+    }
+
+    @Benchmark
+    public int commit() throws Exception {
+        return commitCommand();
+    }
+
+    /**
+     * With many clients, the leader can batch their commands.
+     */
+    @Benchmark
+    @Threads(16)
+    public int commitConcurrent() throws Exception {
+        return commitCommand();
+    }
+
+    int commitCommand() throws Exception {
+        Command c = leader.checkoutCommand();
+        try {
+            c.commit(command, 0, command.length);
+            return c.getIndex();
+        } finally {
+            c.release();
+        }
+    }
+}
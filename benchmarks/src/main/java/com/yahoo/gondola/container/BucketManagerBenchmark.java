@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container;
+
+import com.google.common.collect.Range;
+import com.yahoo.gondola.benchmarks.BenchmarkConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of finding the shard of a bucket, which the routing filter does for every request, with the buckets
+ * spread evenly over the given number of shards.
+ * This is in the container package because BucketManager is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BucketManagerBenchmark {
+
+    static final int BUCKETS = 1024;
+
+    @Param({"1", "16", "64"})
+    int shards;
+
+    BenchmarkConfig benchmarkConfig;
+    BucketManager bucketManager;
+
+    // Random buckets, and ranges of 8 buckets within a shard, looked up in turn
+    int[] bucketIds = new int[4096];
+    List<Range<Integer>> ranges = new ArrayList<>();
+    int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        int bucketsPerShard = BUCKETS / shards;
+        StringBuilder conf = new StringBuilder("gondola.shards = [\n");
+        for (int i = 0; i < shards; i++) {
+            conf.append(String.format("  { shardId = shard%d, bucketMap = \"%d-%d\",%n"
+                                      + "    hosts = [ {hostId: A, memberId: %d} ] }%n",
+                                      i, i * bucketsPerShard, (i + 1) * bucketsPerShard - 1, 100 + i));
+        }
+        conf.append("]\n");
+        benchmarkConfig = new BenchmarkConfig(conf.toString());
+        bucketManager = new BucketManager(benchmarkConfig.config);
+
+        Random random = new Random(0);
+        for (int i = 0; i < bucketIds.length; i++) {
+            bucketIds[i] = random.nextInt(BUCKETS);
+            int start = random.nextInt(shards) * bucketsPerShard + random.nextInt(bucketsPerShard - 8);
+            ranges.add(Range.closed(start, start + 7));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        benchmarkConfig.close();
+    }
+
+    @Benchmark
+    public BucketManager.ShardState lookupBucket() {
+        next = (next + 1) & (bucketIds.length - 1);
+        return bucketManager.lookupBucketTable(bucketIds[next]);
+    }
+
+    @Benchmark
+    public BucketManager.ShardState lookupRange() {
+        next = (next + 1) & (ranges.size() - 1);
+        return bucketManager.lookupBucketTable(ranges.get(next));
+    }
+}
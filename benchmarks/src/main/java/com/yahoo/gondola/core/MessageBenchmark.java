@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.benchmarks.BenchmarkConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of encoding an AppendEntry request, alone and as a batch, and of parsing a received batch.
+ * This is in the core package because Message.parse() is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"16", "128", "1000"})
+    int commandSize;
+
+    // The number of commands in a batch, if they fit in a message
+    @Param({"16"})
+    int batchSize;
+
+    BenchmarkConfig benchmarkConfig;
+    MessagePool pool;
+    byte[] command;
+    Rid prevRid = new Rid();
+    Message received;
+
+    @Setup
+    public void setUp() throws Exception {
+        benchmarkConfig = new BenchmarkConfig("");
+        Message.initConfig(benchmarkConfig.config);
+        pool = new MessagePool(benchmarkConfig.config, new Stats());
+
+        command = new byte[commandSize];
+        new Random(0).nextBytes(command);
+        prevRid.set(1, 100);
+
+        received = pool.checkout();
+        appendEntryBatch(received);
+    }
+
+    @TearDown
+    public void tearDown() {
+        received.release();
+        benchmarkConfig.close();
+    }
+
+    @Benchmark
+    public int appendEntryRequest() {
+        Message message = pool.checkout();
+        message.appendEntryRequest(81, 1, prevRid, 99, 1, command, 0, commandSize);
+        int size = message.size();
+        message.release();
+        return size;
+    }
+
+    @Benchmark
+    public int appendEntryBatch() {
+        Message message = pool.checkout();
+        int size = appendEntryBatch(message);
+        message.release();
+        return size;
+    }
+
+    @Benchmark
+    public int parse() {
+        received.parse();
+        return received.numCommands();
+    }
+
+    int appendEntryBatch(Message message) {
+        message.appendEntryRequest(81, 1, prevRid, 99, 1, command, 0, commandSize);
+        while (message.numCommands() < batchSize && message.canBatch(commandSize)) {
+            message.appendEntryBatch(command, 0, commandSize);
+        }
+        return message.size();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.benchmarks.BenchmarkConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of checking a message out of the pool and releasing it back, with a buffer of the given size, from one
+ * thread and from several threads sharing the pool.
+ * This is in the core package because Message.ensureCapacity() is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePoolBenchmark {
+
+    // The size of the buffer the message is grown to, as when a command of that size is written into it
+    @Param({"0", "1024", "4096"})
+    int bufferSize;
+
+    BenchmarkConfig benchmarkConfig;
+    MessagePool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        benchmarkConfig = new BenchmarkConfig("");
+        Message.initConfig(benchmarkConfig.config);
+        pool = new MessagePool(benchmarkConfig.config, new Stats());
+    }
+
+    @TearDown
+    public void tearDown() {
+        benchmarkConfig.close();
+    }
+
+    @Benchmark
+    public Message checkoutRelease() {
+        return checkoutAndRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Message checkoutReleaseContended() {
+        return checkoutAndRelease();
+    }
+
+    Message checkoutAndRelease() {
+        Message message = pool.checkout();
+        message.ensureCapacity(bufferSize, 0);
+        message.release();
+        return message;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.benchmarks.BenchmarkConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rate at which the save queue writes AppendEntry messages into each of the storage implementations.
+ * <p>
+ * The save queue belongs to the member of a one-member shard whose Gondola instance is not started, so that nothing
+ * but the save queue's workers uses the storage. Each invocation adds a run of messages with contiguous indexes and
+ * waits until the saved index has reached the last one. This is in the core package because the save queue of a
+ * member is not public.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveQueueBenchmark {
+
+    static final int MEMBER_ID = 81;
+
+    // The number of messages added before waiting for them to be saved
+    static final int MESSAGES = 64;
+
+    @Param({"storage.fake", "storage.file", "storage.h2", "storage.cache"})
+    String storage;
+
+    @Param({"1", "16"})
+    int commandsPerMessage;
+
+    @Param({"100"})
+    int commandSize;
+
+    BenchmarkConfig benchmarkConfig;
+    Gondola gondola;
+    CoreMember cmember;
+    SaveQueue saveQueue;
+    MessagePool pool;
+    byte[] command;
+    Rid prevRid = new Rid();
+    Rid savedRid = new Rid();
+
+    @Setup
+    public void setUp() throws Exception {
+        benchmarkConfig = new BenchmarkConfig(String.format(
+            "gondola.shards = [ { shardId = shard1, hosts = [ {hostId: A, memberId: %d} ] } ]%n"
+            + "storage.impl = %s%n", MEMBER_ID, storage));
+        gondola = new Gondola(benchmarkConfig.config, "A");
+        gondola.getStorage().start();
+        cmember = gondola.getCoreMember(MEMBER_ID);
+        saveQueue = cmember.saveQueue;
+        pool = gondola.getMessagePool();
+        saveQueue.start();
+        saveQueue.getLatest(prevRid);
+
+        command = new byte[commandSize];
+        new Random(0).nextBytes(command);
+    }
+
+    /**
+     * The save queue tells the member about every saved index, but the member's main loop is not running.
+     */
+    @TearDown(Level.Iteration)
+    public void clearActions() {
+        cmember.actionQueue.queue.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cmember.stop();
+        gondola.getStorage().stop();
+        benchmarkConfig.close();
+    }
+
+    /**
+     * Each operation is one message saved.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int save() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = pool.checkout();
+            message.appendEntryRequest(MEMBER_ID, 1, prevRid, 0, 1, command, 0, commandSize);
+            for (int c = 1; c < commandsPerMessage; c++) {
+                message.appendEntryBatch(command, 0, commandSize);
+            }
+            saveQueue.add(message);
+            message.release();
+            prevRid.set(1, prevRid.index + commandsPerMessage);
+        }
+
+        // A storage error leaves the saved index behind
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        do {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for index " + prevRid.index + " to be saved");
+            }
+            Thread.yield();
+            saveQueue.getLatest(savedRid);
+        } while (savedRid.index < prevRid.index);
+        return savedRid.index;
+    }
+}
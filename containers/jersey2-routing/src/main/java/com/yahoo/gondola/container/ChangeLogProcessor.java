@@ -11,14 +11,23 @@ import com.yahoo.gondola.Command;
 import com.yahoo.gondola.Gondola;
 import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.SnapshotHandler;
+import com.yahoo.gondola.Subscription;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The type Change log processor.
@@ -40,45 +49,122 @@ public class ChangeLogProcessor {
     public ChangeLogProcessor(Gondola gondola, Map<String, RoutingService> services) {
         this.gondola = gondola;
         this.services = services;
+        services.values().forEach(service -> service.changeLogProcessor = this);
         gondola.getConfig().getShardIds(gondola.getHostId()).forEach(this::createThread);
     }
 
+    // The maximum number of commands waiting in all the apply lanes of a shard. Each one is a pooled command that is
+    // checked out until it has been applied, so this is kept well below gondola.command_pool_warn_threshold.
+    static final int MAX_PENDING_COMMANDS = 256;
+
     /**
      * The type Change log processor thread.
+     * <p>
+     * If the routing service provides a partition key extractor, the commands are not applied by this thread but
+     * handed to one of the apply lanes, chosen by the partition key. Each lane applies its commands in index order,
+     * so the commands with the same key are applied in order while the lanes run in parallel.
      */
     class ChangeLogProcessorThread extends Thread {
 
-        int appliedIndex = 0;
+        // The index of the last command applied or, with apply lanes, handed to a lane
+        volatile int appliedIndex = 0;
         private int retryCount = 0;
         private Shard shard;
         private String shardId;
         private String hostId;
         private int memberId;
         private ChangeLogConsumer changeLogConsumer;
+        private SnapshotHandler snapshotHandler;
+        private PartitionKeyExtractor partitionKeyExtractor;
+        private int snapshotInterval;
+        private Timer timer;
         boolean reset = false;
 
+        // Empty unless the commands are applied in parallel
+        private final List<ApplyLane> lanes = new ArrayList<>();
+
+        // A permit is held for each command waiting in the lanes
+        private final Semaphore pendingPermits = new Semaphore(MAX_PENDING_COMMANDS);
+
+        // The read lock is held while applying commands and the write lock while saving or restoring snapshots.
+        // Snapshots received from the leader are restored on a gondola thread.
+        private final ReentrantReadWriteLock applyLock = new ReentrantReadWriteLock();
+
+        // Notified when commands have been applied while readers are waiting in awaitAppliedIndex()
+        private final Object appliedMonitor = new Object();
+        private final AtomicInteger appliedWaiters = new AtomicInteger();
+
         public ChangeLogProcessorThread(String shardId) {
             setName("ChangeLogProcessor");
             this.shardId = shardId;
             this.hostId = gondola.getHostId();
-            this.memberId = gondola.getShard(shardId).getLocalMember().getMemberId();
+            this.shard = gondola.getShard(shardId);
+            this.memberId = shard.getLocalMember().getMemberId();
             this.changeLogConsumer = services.get(shardId).provideChangeLogConsumer();
+            this.snapshotHandler = services.get(shardId).provideSnapshotHandler();
+            this.partitionKeyExtractor = services.get(shardId).providePartitionKeyExtractor();
+            gondola.getConfig().registerForUpdates(
+                config -> snapshotInterval = config.getInt("gondola.snapshot.interval"));
+            int laneCount = gondola.getConfig().getInt("gondola.apply_lanes");
+            if (partitionKeyExtractor != null && laneCount > 1) {
+                for (int i = 0; i < laneCount; i++) {
+                    lanes.add(new ApplyLane(i));
+                }
+            }
+            if (snapshotHandler != null) {
+                shard.setSnapshotHandler(new SnapshotHandler() {
+                    @Override
+                    public void save(OutputStream out) throws Exception {
+                        snapshotHandler.save(out);
+                    }
+
+                    @Override
+                    public void restore(int index, InputStream in) throws Exception {
+                        applyLock.writeLock().lock();
+                        try {
+                            snapshotHandler.restore(index, in);
+                            lanes.forEach(ApplyLane::clear);
+                            appliedIndex = index;
+                        } finally {
+                            applyLock.writeLock().unlock();
+                        }
+                        applied();
+                    }
+                });
+            }
         }
 
         public void run() {
-            Command command;
-            shard = gondola.getShard(shardId);
-            Timer timer
-                = GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("ChangeLogProcessor");
+            timer = GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("ChangeLogProcessor");
+            restoreSnapshot();
+            Subscription subscription;
+            try {
+                subscription = shard.subscribe(appliedIndex + 1);
+            } catch (InterruptedException e) {
+                logger.warn("[{}-{}] ChangeLogProcessor interrupted, exit..", hostId, memberId);
+                return;
+            }
+            lanes.forEach(Thread::start);
+            try {
+                process(subscription);
+            } finally {
+                com.yahoo.gondola.core.Utils.stopThreads(new ArrayList<>(lanes));
+                lanes.forEach(ApplyLane::clear);
+                subscription.close();
+            }
+        }
+
+        private void process(Subscription subscription) {
             while (true) {
                 try {
-                    command = shard.getCommittedCommand(appliedIndex + 1, 1000);
-                    if (changeLogConsumer != null) {
-                        Timer.Context time = timer.time();
-                        changeLogConsumer.applyLog(shardId, command);
-                        time.close();
+                    // Follow the applied index, which moves when a snapshot is restored or on reset
+                    subscription.seek(appliedIndex + 1);
+                    if (lanes.isEmpty()) {
+                        applyNext(subscription);
+                    } else {
+                        dispatchNext(subscription);
                     }
-                    appliedIndex++;
+                    saveSnapshot();
                 } catch (GondolaException e) {
                     logger.info("[{}-{}] Error while get gondola command, appliedIndex={}, error={}",
                                 hostId, memberId, appliedIndex, e.getMessage());
@@ -115,17 +201,258 @@ public class ChangeLogProcessor {
             }
         }
 
+        /**
+         * Applies the next command on this thread.
+         */
+        private void applyNext(Subscription subscription)
+            throws InterruptedException, GondolaException, TimeoutException {
+            Command command = subscription.next(1000);
+            applyLock.readLock().lock();
+            try {
+                // Skip the command if a snapshot was restored while it was being fetched
+                if (command.getIndex() == appliedIndex + 1) {
+                    apply(command);
+                    appliedIndex++;
+                }
+            } finally {
+                applyLock.readLock().unlock();
+            }
+            applied();
+        }
+
+        /**
+         * Hands the next command to the lane of its partition key.
+         */
+        private void dispatchNext(Subscription subscription)
+            throws InterruptedException, GondolaException, TimeoutException {
+            // Wait outside the lock, since the lanes need the lock to make room
+            pendingPermits.acquire();
+            Command command = shard.checkoutCommand();
+            try {
+                subscription.next(1000, command);
+                Object key = partitionKeyExtractor.getPartitionKey(shardId, command);
+                ApplyLane lane = lanes.get(key == null ? 0 : Math.floorMod(key.hashCode(), lanes.size()));
+                applyLock.readLock().lock();
+                try {
+                    // Skip the command if a snapshot was restored while it was being fetched
+                    if (command.getIndex() == appliedIndex + 1) {
+                        lane.add(command);
+                        command = null;
+                        appliedIndex++;
+                    }
+                } finally {
+                    applyLock.readLock().unlock();
+                }
+            } finally {
+                if (command != null) {
+                    release(command);
+                }
+            }
+        }
+
+        /**
+         * Releases a command that was checked out by dispatchNext(), making room for another one.
+         */
+        private void release(Command command) {
+            command.release();
+            pendingPermits.release();
+        }
+
+        private void apply(Command command) {
+            if (changeLogConsumer != null) {
+                Timer.Context time = timer.time();
+                changeLogConsumer.applyLog(shardId, command);
+                time.close();
+            }
+        }
+
+        /**
+         * Returns the index up to which all the commands have been applied.
+         */
+        int getAppliedIndex() {
+            // Read the dispatched index before the lanes, which have received all the commands up to it
+            int index = appliedIndex;
+            for (ApplyLane lane : lanes) {
+                index = Math.min(index, lane.getPendingIndex() - 1);
+            }
+            return index;
+        }
+
+        /**
+         * Wakes up the readers waiting for the applied index to advance.
+         */
+        void applied() {
+            if (appliedWaiters.get() > 0) {
+                synchronized (appliedMonitor) {
+                    appliedMonitor.notifyAll();
+                }
+            }
+        }
+
+        void awaitAppliedIndex(int index, int timeout) throws InterruptedException, TimeoutException {
+            long endTs = timeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+            appliedWaiters.incrementAndGet();
+            try {
+                synchronized (appliedMonitor) {
+                    while (getAppliedIndex() < index) {
+                        long waitMs = endTs - System.currentTimeMillis();
+                        if (waitMs <= 0) {
+                            throw new TimeoutException(String.format(
+                                "Timeout (%d ms) waiting for index %d to be applied", timeout, index));
+                        }
+                        appliedMonitor.wait(timeout < 0 ? 0 : waitMs);
+                    }
+                }
+            } finally {
+                appliedWaiters.decrementAndGet();
+            }
+        }
+
         private boolean handleInterrupt() {
             if (reset) {
                 logger.info("[{}-{}] ChangeLogProcessor reset appliedIndex to 0", hostId, memberId);
                 reset = false;
-                appliedIndex = 0;
+                applyLock.writeLock().lock();
+                try {
+                    lanes.forEach(ApplyLane::clear);
+                    appliedIndex = 0;
+                } finally {
+                    applyLock.writeLock().unlock();
+                }
+                restoreSnapshot();
                 return false;
             } else {
                 logger.warn("[{}-{}] ChangeLogProcessor interrupted, exit..", hostId, memberId);
                 return true;
             }
         }
+
+        /**
+         * Saves a snapshot once snapshotInterval commands have been applied since the last one.
+         */
+        private void saveSnapshot() throws InterruptedException {
+            if (snapshotHandler == null || snapshotInterval <= 0
+                || appliedIndex - shard.getSnapshotIndex() < snapshotInterval) {
+                return;
+            }
+
+            // The state must include every command up to the snapshot index, and no other
+            for (ApplyLane lane : lanes) {
+                lane.awaitIdle();
+            }
+            applyLock.writeLock().lock();
+            try {
+                shard.saveSnapshot(appliedIndex);
+            } catch (GondolaException e) {
+                logger.warn("[{}-{}] Failed to save snapshot at appliedIndex={}, error={}",
+                            hostId, memberId, appliedIndex, e.getMessage());
+            } finally {
+                applyLock.writeLock().unlock();
+            }
+        }
+
+        private void restoreSnapshot() {
+            if (snapshotHandler == null) {
+                return;
+            }
+            try {
+                shard.restoreSnapshot();
+            } catch (GondolaException e) {
+                logger.error(String.format("[%s-%d] Failed to restore snapshot", hostId, memberId), e);
+            }
+        }
+
+        /**
+         * Applies, in index order, the commands handed to it by the change log processor thread.
+         */
+        class ApplyLane extends Thread {
+            // The commands waiting to be applied. The head is the command being applied.
+            // Protected by this object's monitor.
+            private final ArrayDeque<Command> queue = new ArrayDeque<>();
+
+            ApplyLane(int id) {
+                setName("ChangeLogApplier-" + shardId + "-" + id);
+                setDaemon(true);
+            }
+
+            public void run() {
+                int failures = 0;
+                while (true) {
+                    try {
+                        awaitCommand();
+                        applyLock.readLock().lock();
+                        try {
+                            Command command;
+                            synchronized (this) {
+                                // The queue is cleared if a snapshot was restored while waiting for the lock
+                                command = queue.peek();
+                            }
+                            if (command != null) {
+                                apply(command);
+                                synchronized (this) {
+                                    queue.poll();
+                                    notifyAll();
+                                }
+                                release(command);
+                                applied();
+                            }
+                        } finally {
+                            applyLock.readLock().unlock();
+                        }
+                        failures = 0;
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Throwable e) {
+                        logger.error(e.getMessage(), e);
+                        if (++failures == 3) {
+                            logger.error("[{}-{}] Max retry count reached in {}, exit..", hostId, memberId, getName());
+                            return;
+                        }
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e1) {
+                            return;
+                        }
+                    }
+                }
+            }
+
+            synchronized void add(Command command) {
+                queue.add(command);
+                notifyAll();
+            }
+
+            synchronized void awaitCommand() throws InterruptedException {
+                while (queue.isEmpty()) {
+                    wait();
+                }
+            }
+
+            synchronized void awaitIdle() throws InterruptedException {
+                while (!queue.isEmpty()) {
+                    wait();
+                }
+            }
+
+            /**
+             * Returns the index of the oldest command that has not been applied yet.
+             *
+             * @return Integer.MAX_VALUE if all the commands have been applied.
+             */
+            synchronized int getPendingIndex() {
+                Command command = queue.peek();
+                return command == null ? Integer.MAX_VALUE : command.getIndex();
+            }
+
+            /**
+             * Discards the commands that have not been applied. Must be called while holding the write lock.
+             */
+            synchronized void clear() {
+                queue.forEach(ChangeLogProcessorThread.this::release);
+                queue.clear();
+                notifyAll();
+            }
+        }
     }
 
     private void createThread(String shardId) {
@@ -140,7 +467,20 @@ public class ChangeLogProcessor {
      * @return the applied index
      */
     public int getAppliedIndex(String shardId) {
-        return threads.get(shardId).appliedIndex;
+        return threads.get(shardId).getAppliedIndex();
+    }
+
+    /**
+     * Blocks until the commands up to index have been applied.
+     *
+     * @param shardId the shard id
+     * @param index   the index
+     * @param timeout in milliseconds. -1 means there is no timeout.
+     * @throws TimeoutException if the commands have not been applied within the timeout
+     */
+    public void awaitAppliedIndex(String shardId, int index, int timeout)
+        throws InterruptedException, TimeoutException {
+        threads.get(shardId).awaitAppliedIndex(index, timeout);
     }
 
     /**
@@ -171,4 +511,19 @@ public class ChangeLogProcessor {
 
         void applyLog(String shardId, Command command);
     }
+
+    /**
+     * Partition key extractor functional interface. Commands with equal partition keys are applied in log order;
+     * commands with different keys can be applied concurrently.
+     */
+    @FunctionalInterface
+    public interface PartitionKeyExtractor {
+
+        /**
+         * Returns the partition key of the command.
+         *
+         * @return null to apply the command in the first lane
+         */
+        Object getPartitionKey(String shardId, Command command);
+    }
 }
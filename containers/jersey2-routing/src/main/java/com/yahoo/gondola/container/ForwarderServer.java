@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.container.client.ForwarderProtocol;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.SecurityContext;
+
+/**
+ * Accepts the requests forwarded by the PipelinedProxyClient of the other hosts and processes them in this
+ * container's Jersey application, as if they had been received over HTTP.
+ * <p>
+ * The requests are processed by a bounded pool of threads. When the pool and its queue are full, the connection's
+ * reader processes the request itself and stops reading, which pushes back on the sender through TCP.
+ */
+public class ForwarderServer implements ContainerLifecycleListener {
+
+    private static Logger logger = LoggerFactory.getLogger(ForwarderServer.class);
+
+    private final Gondola gondola;
+    private final InetSocketAddress address;
+    private final String myAppUri;
+    private ApplicationHandler handler;
+    private ServerSocket serverSocket;
+    private ThreadPoolExecutor executor;
+    private final List<Socket> sockets = new ArrayList<>();
+    private volatile boolean running;
+
+    // Config variables
+    private final int threads;
+    private final int headerTableSize;
+
+    ForwarderServer(Gondola gondola) {
+        this.gondola = gondola;
+        Config config = gondola.getConfig();
+        address = Utils.getForwarderAddress(config, gondola.getHostId());
+        myAppUri = Utils.getAppUri(config, gondola.getHostId());
+        threads = config.getInt("gondola.forwarder.threads");
+        headerTableSize = config.getInt("gondola.forwarder.header_table_size");
+    }
+
+    /**
+     * Returns true if this host accepts forwarded requests.
+     */
+    boolean isEnabled() {
+        return address != null;
+    }
+
+    @Override
+    public void onStartup(Container container) {
+        handler = container.getApplicationHandler();
+        try {
+            start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start the forwarder on " + address, e);
+        }
+    }
+
+    @Override
+    public void onReload(Container container) {
+        handler = container.getApplicationHandler();
+    }
+
+    @Override
+    public void onShutdown(Container container) {
+        stop();
+    }
+
+    void start() throws IOException {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(threads * 4),
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+        serverSocket = new ServerSocket(address.getPort());
+        running = true;
+        Thread acceptor = new Thread(this::accept, "ForwarderAcceptor-" + gondola.getHostId());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("[{}] Accepting forwarded requests on port {}", gondola.getHostId(), address.getPort());
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+                sockets.clear();
+            }
+        } catch (IOException e) {
+            logger.warn("[{}] Error while stopping the forwarder: {}", gondola.getHostId(), e.getMessage());
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                Thread reader = new Thread(() -> serve(socket), "ForwarderServer-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("[{}] Failed to accept forwarder connection: {}", gondola.getHostId(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the requests on the connection until it is closed.
+     */
+    private void serve(Socket socket) {
+        try {
+            ForwarderProtocol.Decoder decoder = new ForwarderProtocol.Decoder(
+                new DataInputStream(new BufferedInputStream(socket.getInputStream())), headerTableSize);
+            ForwarderProtocol.Encoder encoder = new ForwarderProtocol.Encoder(
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), headerTableSize);
+            while (running) {
+                ForwarderProtocol.Frame frame = decoder.read();
+                if (frame.type != ForwarderProtocol.TYPE_REQUEST) {
+                    throw new IOException("Expected a request but got frame type " + frame.type);
+                }
+                executor.execute(() -> process(frame, encoder, socket));
+            }
+        } catch (IOException e) {
+            if (running) {
+                logger.info("[{}] Forwarder connection from {} closed: {}",
+                            gondola.getHostId(), socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        } finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * Processes the request in the application and writes the response on the connection.
+     */
+    private void process(ForwarderProtocol.Frame frame, ForwarderProtocol.Encoder encoder, Socket socket) {
+        int status;
+        List<String[]> headers = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            URI baseUri = URI.create(myAppUri + frame.basePath);
+            ContainerRequest request = new ContainerRequest(baseUri, baseUri.resolve(frame.path), frame.method,
+                                                            SECURITY_CONTEXT, new MapPropertiesDelegate());
+            for (String[] header : frame.headers) {
+                request.header(header[0], header[1]);
+            }
+            request.setEntityStream(new ByteArrayInputStream(frame.body));
+
+            ContainerResponse response = handler.apply(request, body).get();
+            status = response.getStatus();
+            for (Map.Entry<String, List<String>> e : response.getStringHeaders().entrySet()) {
+                for (String value : e.getValue()) {
+                    headers.add(new String[] {e.getKey(), value});
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("[{}] Failed to process forwarded request {} {}: {}",
+                        gondola.getHostId(), frame.method, frame.path, e.getMessage());
+            status = 500;
+            headers.clear();
+            body.reset();
+        }
+
+        try {
+            synchronized (encoder) {
+                encoder.writeResponse(frame.streamId, status, headers, body.toByteArray());
+                encoder.flush();
+            }
+        } catch (IOException e) {
+            close(socket);
+        }
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Could not close forwarder connection", e);
+        }
+        synchronized (sockets) {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Forwarded requests are from other containers of the cluster, not from an authenticated user.
+     */
+    private static final SecurityContext SECURITY_CONTEXT = new SecurityContext() {
+        @Override
+        public Principal getUserPrincipal() {
+            return null;
+        }
+
+        @Override
+        public boolean isUserInRole(String role) {
+            return false;
+        }
+
+        @Override
+        public boolean isSecure() {
+            return false;
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return null;
+        }
+    };
+}
@@ -136,6 +136,13 @@ public class GondolaApplication {
 
             initShardManagerServer(routingFilter);
 
+            // Accept requests forwarded by the other hosts once the application has started
+            ForwarderServer forwarderServer = new ForwarderServer(gondola);
+            if (forwarderServer.isEnabled()) {
+                application.register(forwarderServer);
+                routingFilter.registerShutdownFunction(forwarderServer::stop);
+            }
+
             // register dependency injection.
             application.register(new AbstractBinder() {
                 @Override
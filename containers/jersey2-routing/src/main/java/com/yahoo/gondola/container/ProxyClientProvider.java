@@ -8,6 +8,7 @@ package com.yahoo.gondola.container;
 
 import com.yahoo.gondola.Config;
 import com.yahoo.gondola.container.client.ApacheHttpComponentProxyClient;
+import com.yahoo.gondola.container.client.PipelinedProxyClient;
 import com.yahoo.gondola.container.client.ProxyClient;
 
 /**
@@ -15,6 +16,10 @@ import com.yahoo.gondola.container.client.ProxyClient;
  */
 public class ProxyClientProvider {
     ProxyClient getProxyClient(Config config) {
-        return new ApacheHttpComponentProxyClient();
+        ProxyClient httpClient = new ApacheHttpComponentProxyClient(config);
+        if (PipelinedProxyClient.isConfigured(config)) {
+            return new PipelinedProxyClient(config, httpClient);
+        }
+        return httpClient;
     }
 }
@@ -18,6 +18,7 @@ import com.yahoo.gondola.container.spi.RoutingHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -90,6 +91,9 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
     private Map<String, String> serviceUris = new HashMap<>();
 
     private boolean tracing = false;
+
+    // Read-only requests are served by a follower that is at most this many commands behind. -1 disables it.
+    private int followerReadMaxLag = -1;
     private String myAppUri;
     private BucketManager bucketManager;
 
@@ -105,6 +109,7 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
 
     private Timer forwardTimer;
     private Timer processTimer;
+    private Timer followerReadTimer;
     private Timer errorTimer;
 
     /**
@@ -138,6 +143,8 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
             GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("RoutingFilter.forward");
         processTimer =
             GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("RoutingFilter.process");
+        followerReadTimer =
+            GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("RoutingFilter.followerRead");
         errorTimer = GondolaApplication.MyMetricsServletContextListener.METRIC_REGISTRY.timer("RoutingFilter.error");
     }
 
@@ -150,7 +157,10 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
     }
 
     private void loadConfig() {
-        gondola.getConfig().registerForUpdates(config -> tracing = config.getBoolean("tracing.router"));
+        gondola.getConfig().registerForUpdates(config -> {
+            tracing = config.getBoolean("tracing.router");
+            followerReadMaxLag = config.getInt("gondola.follower_read_max_lag");
+        });
     }
 
     private void watchGondolaEvent() {
@@ -299,6 +309,12 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
             return;
         }
 
+        if (isFollowerReadable(request, shardId)) {
+            trace("Processing this read-only request on a follower");
+            request.setProperty("timer", followerReadTimer.time());
+            return;
+        }
+
         // redirect the request to leader
         proxyRequestToLeader(request, shardId);
         request.setProperty("timer", forwardTimer.time());
@@ -321,6 +337,30 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
         return null;
     }
 
+    /**
+     * Returns true if the request only reads and the local follower has applied the commands up to within
+     * gondola.follower_read_max_lag of the commit index it learned from the leader's heartbeats. A follower that
+     * stops hearing from the leader loses track of the leader, so the lag is never measured against a stale index
+     * for longer than the election timeout.
+     */
+    private boolean isFollowerReadable(ContainerRequestContext request, String shardId) {
+        int maxLag = followerReadMaxLag;
+        if (maxLag < 0 || !routingHelper.isReadOnly(request)) {
+            return false;
+        }
+        Shard shard = gondola.getShard(shardId);
+        Member leader = shard.getLeader();
+        if (leader == null || leader.isLocal()) {
+            return false;
+        }
+        int lag = shard.getCommitIndex() - changeLogProcessor.getAppliedIndex(shardId);
+        if (lag > maxLag) {
+            trace("Follower of shard={} is {} commands behind, forwarding read to the leader", shardId, lag);
+            return false;
+        }
+        return true;
+    }
+
     private boolean isWhiteList(ContainerRequestContext request) {
         return whiteList.matcher(request.getUriInfo().getPath()).matches();
     }
@@ -549,17 +589,22 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
         Response proxiedResponse = proxyClient.proxyRequest(request, appUri);
 
         try {
+            // The entity is the body of the proxied response, which is streamed to the requester
+            Object entity = proxiedResponse.getEntity();
+
             // Remote server is not able to serve the request.
             if (proxiedResponse.getHeaderString(X_GONDOLA_ERROR) != null) {
+                if (entity instanceof Closeable) {
+                    ((Closeable) entity).close();
+                }
                 return false;
             }
 
-            String entity = getResponseEntity(proxiedResponse);
-
             // Proxied response successful, response the data to the requester.
             request.abortWith(Response
                                   .status(proxiedResponse.getStatus())
                                   .entity(entity)
+                                  .type(proxiedResponse.getMediaType())
                                   .header(X_GONDOLA_LEADER_ADDRESS, appUri)
                                   .build());
 
@@ -571,11 +616,6 @@ public class RoutingFilter implements ContainerRequestFilter, ContainerResponseF
         }
     }
 
-
-    private String getResponseEntity(Response proxiedResponse) {
-        return proxiedResponse.getEntity() != null ? proxiedResponse.getEntity().toString() : "";
-    }
-
     private void appendForwardedByHeader(ContainerRequestContext request) {
         List<String> forwardedBy = request.getHeaders().get(X_FORWARDED_BY);
 
@@ -12,9 +12,12 @@ import com.yahoo.gondola.Gondola;
 import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.RoleChangeEvent;
 import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.SnapshotHandler;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 /**
@@ -30,6 +33,9 @@ public abstract class RoutingService {
     private List<Consumer<RoleChangeEvent>> eventCallbacks = new ArrayList<>();
     private Timer commitTimer;
 
+    // Set by the change log processor that applies this service's commands
+    ChangeLogProcessor changeLogProcessor;
+
 
     // TODO: use dependency injection to hide gondola instance from user app.
     public RoutingService(Gondola gondola, String shardId) {
@@ -56,6 +62,29 @@ public abstract class RoutingService {
      */
     public abstract ChangeLogProcessor.ChangeLogConsumer provideChangeLogConsumer();
 
+    /**
+     * Provide the snapshot handler used to save and restore the state built by the changeLog consumer.
+     * When provided, a snapshot is saved every gondola.snapshot.interval commands and the log entries it covers
+     * are deleted.
+     *
+     * @return null if the service does not support snapshots.
+     */
+    public SnapshotHandler provideSnapshotHandler() {
+        return null;
+    }
+
+    /**
+     * Provide the partition key extractor used to apply the changeLog with several threads.
+     * When provided, committed commands with the same partition key are applied in order by the same thread, and
+     * gondola.apply_lanes threads apply the commands of different keys concurrently. The changeLog consumer must
+     * then be thread-safe.
+     *
+     * @return null if the commands must all be applied in order by a single thread.
+     */
+    public ChangeLogProcessor.PartitionKeyExtractor providePartitionKeyExtractor() {
+        return null;
+    }
+
     /**
      * Called by container when the shard is ready for serving.
      */
@@ -72,9 +101,59 @@ public abstract class RoutingService {
         throws GondolaException, InterruptedException {
         Command command = shard.checkoutCommand();
         Timer.Context time = commitTimer.time();
-        command.commit(bytes, 0, bytes.length);
-        time.stop();
+        try {
+            command.commit(bytes, 0, bytes.length);
+        } finally {
+            time.stop();
+            command.release();
+        }
+    }
+
+    /**
+     * Write log without blocking the calling thread, so that a request thread is not held for the whole
+     * replication round trip.
+     *
+     * @param bytes the bytes
+     * @return a future that is completed when the bytes have been committed, or completed exceptionally with
+     *         a GondolaException if the local member is not the leader
+     * @throws InterruptedException the interrupted exception
+     */
+    public CompletableFuture<Void> writeLogAsync(byte[] bytes) throws InterruptedException {
+        Command command = shard.checkoutCommand();
+        Timer.Context time = commitTimer.time();
+        Runnable done = () -> {
+            time.stop();
+            command.release();
+        };
+        try {
+            return command.commitAsync(bytes, 0, bytes.length)
+                .whenComplete((c, e) -> done.run())
+                .thenAccept(c -> { });
+        } catch (RuntimeException e) {
+            done.run();
+            throw e;
+        }
     }
+
+    /**
+     * Blocks until the state built by the changeLog consumer includes every write committed before this call, so
+     * that a read served afterwards is linearizable. Confirming leadership takes at most a heartbeat round trip and
+     * nothing is written to the log.
+     *
+     * @param timeout in milliseconds. -1 means there is no timeout.
+     * @throws GondolaException     thrown if the local member is not the leader
+     * @throws TimeoutException     thrown if the state could not be brought up-to-date within the timeout
+     * @throws InterruptedException the interrupted exception
+     */
+    public void readBarrier(int timeout) throws GondolaException, InterruptedException, TimeoutException {
+        long startTs = System.currentTimeMillis();
+        int index = shard.readBarrier(timeout);
+        if (changeLogProcessor != null) {
+            int remaining = timeout < 0 ? -1 : (int) Math.max(0, timeout - (System.currentTimeMillis() - startTs));
+            changeLogProcessor.awaitAppliedIndex(shardId, index, remaining);
+        }
+    }
+
     /**
      * Is leader boolean.
      *
@@ -31,6 +31,7 @@ public class Utils {
 
     static final String APP_PORT = "appPort";
     static final String APP_SCHEME = "appScheme";
+    static final String FORWARD_PORT = "forwardPort";
     static ObjectMapper objectMapper;
 
     /**
@@ -123,6 +124,20 @@ public class Utils {
         return appUri;
     }
 
+    /**
+     * Returns the address on which the container of the host accepts forwarded requests.
+     *
+     * @return null if the host does not have the forwardPort attribute.
+     */
+    public static InetSocketAddress getForwarderAddress(Config config, String hostId) {
+        Map<String, String> attrs = config.getAttributesForHost(hostId);
+        if (attrs == null || !attrs.containsKey(FORWARD_PORT)) {
+            return null;
+        }
+        InetSocketAddress address = config.getAddressForHost(hostId);
+        return new InetSocketAddress(address.getHostName(), Integer.parseInt(attrs.get(FORWARD_PORT)));
+    }
+
     public static ObjectMapper getObjectMapperInstance() {
         if (objectMapper == null) {
             ObjectMapper mapper = new ObjectMapper();
@@ -6,9 +6,14 @@
 
 package com.yahoo.gondola.container.client;
 
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.container.Utils;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -16,24 +21,33 @@ import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.util.EntityUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * Proxy client implementation using Apache Http Client.
+ * <p>
+ * The response entity is not read by proxyRequest(). It is a ProxiedEntity, which copies the body to the
+ * requester as it arrives when Jersey writes the response, and then returns the connection to the pool.
  */
 public class ApacheHttpComponentProxyClient implements ProxyClient {
 
+    static final int DEFAULT_MAX_PER_ROUTE = 200;
+
     /**
      * The Httpclient.
      */
@@ -41,8 +55,27 @@ public class ApacheHttpComponentProxyClient implements ProxyClient {
 
     public ApacheHttpComponentProxyClient() {
         PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(200);
-        cm.setDefaultMaxPerRoute(200);
+        cm.setMaxTotal(DEFAULT_MAX_PER_ROUTE);
+        cm.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+        httpClient = HttpClients.custom()
+            .setConnectionManager(cm)
+            .build();
+    }
+
+    /**
+     * Creates a client with a connection pool for each of the hosts in the config, each with
+     * gondola.proxy_max_connections_per_host connections.
+     */
+    public ApacheHttpComponentProxyClient(Config config) {
+        int maxPerHost = config.getInt("gondola.proxy_max_connections_per_host");
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setDefaultMaxPerRoute(maxPerHost);
+        int total = 0;
+        for (String hostId : config.getHostIds()) {
+            cm.setMaxPerRoute(new HttpRoute(HttpHost.create(Utils.getAppUri(config, hostId))), maxPerHost);
+            total += maxPerHost;
+        }
+        cm.setMaxTotal(Math.max(total, maxPerHost));
         httpClient = HttpClients.custom()
             .setConnectionManager(cm)
             .build();
@@ -91,8 +124,7 @@ public class ApacheHttpComponentProxyClient implements ProxyClient {
         for (Map.Entry<String, List<String>> e : request.getHeaders().entrySet()) {
             for (String headerValue : e.getValue()) {
                 // TODO: Should have a safer way to treat some non-forwardable header.
-                if (e.getKey().equalsIgnoreCase("Content-Length")
-                    || e.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+                if (isHopByHop(e.getKey())) {
                     continue;
                 }
                 httpRequest.setHeader(e.getKey(), headerValue);
@@ -100,12 +132,13 @@ public class ApacheHttpComponentProxyClient implements ProxyClient {
         }
 
         if (httpRequest instanceof HttpEntityEnclosingRequest) {
+            // The body is kept as bytes since the request may be sent again to another host
             Object requestBody = request.getProperty("requestBody");
             if (requestBody == null) {
-                requestBody = IOUtils.toString(request.getEntityStream());
+                requestBody = IOUtils.toByteArray(request.getEntityStream());
                 request.setProperty("requestBody", requestBody);
             }
-            ((HttpEntityEnclosingRequest) httpRequest).setEntity(new StringEntity((String) requestBody));
+            ((HttpEntityEnclosingRequest) httpRequest).setEntity(new ByteArrayEntity((byte[]) requestBody));
         }
         proxiedResponse = httpClient.execute(httpRequest);
         return proxiedResponse;
@@ -116,11 +149,54 @@ public class ApacheHttpComponentProxyClient implements ProxyClient {
             .status(proxiedResponse.getStatusLine().getStatusCode());
 
         if (proxiedResponse.getEntity() != null) {
-            builder.entity(EntityUtils.toString(proxiedResponse.getEntity()));
+            builder.entity(new ProxiedEntity(proxiedResponse));
             for (Header header : proxiedResponse.getAllHeaders()) {
-                builder.header(header.getName(), header.getValue());
+                if (!isHopByHop(header.getName())) {
+                    builder.header(header.getName(), header.getValue());
+                }
             }
+        } else {
+            proxiedResponse.close();
         }
         return builder.build();
     }
+
+    /**
+     * Returns true for the headers that describe the connection rather than the content.
+     */
+    private static boolean isHopByHop(String name) {
+        return name.equalsIgnoreCase("Content-Length")
+            || name.equalsIgnoreCase("Transfer-Encoding")
+            || name.equalsIgnoreCase("Connection");
+    }
+
+    /**
+     * The body of a proxied response. Streams the body to the requester and then releases the connection.
+     * Must be closed if the body is not going to be written.
+     */
+    public static class ProxiedEntity implements StreamingOutput, Closeable {
+        final CloseableHttpResponse response;
+
+        ProxiedEntity(CloseableHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            try {
+                HttpEntity entity = response.getEntity();
+                try (InputStream in = entity.getContent()) {
+                    IOUtils.copy(in, output);
+                }
+                output.flush();
+            } finally {
+                response.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The framing used to forward requests between containers over a persistent connection.
+ * <p>
+ * Each request frame carries a stream id, which is echoed in the response frame, so that many requests can be in
+ * flight on one connection and their responses can arrive in any order. Frames are:
+ * <pre>
+ *   request:  type(1) streamId(4) method basePath path headers bodyLength(4) body
+ *   response: type(1) streamId(4) status(4) headers bodyLength(4) body
+ * </pre>
+ * The headers are compressed with a table of the header fields recently sent on the connection. A field that is in
+ * the table is sent as its index; any other field is sent as its name and value and added to the table. When the
+ * table is full, the new field replaces the field that was added longest ago, so that fields that vary between
+ * requests do not take the places of the repeated ones for good. The sender and the receiver each keep a copy of the
+ * table for each direction of the connection, which stay in sync because the frames are written and read in the same
+ * order and both sides add and replace the fields in that order.
+ * <p>
+ * An Encoder must only be used by the thread holding the connection's write lock, and a Decoder by the
+ * connection's reader.
+ */
+public class ForwarderProtocol {
+
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+
+    // Header fields whose value exceeds this length are never added to the table
+    static final int MAX_TABLE_VALUE_LENGTH = 256;
+
+    /**
+     * A decoded request or response frame.
+     */
+    public static class Frame {
+        public byte type;
+        public int streamId;
+        public String method;
+        public String basePath;
+        public String path;
+        public int status;
+        public List<String[]> headers = new ArrayList<>();
+        public byte[] body;
+    }
+
+    /**
+     * Writes frames, compressing the headers against the fields already sent.
+     */
+    public static class Encoder {
+        final DataOutputStream out;
+        final int tableSize;
+        // field -> its slot in the table
+        final Map<String, Integer> table = new HashMap<>();
+
+        // The field in each slot, and the slot that the next added field goes into
+        final String[] slots;
+        int next;
+
+        public Encoder(DataOutputStream out, int tableSize) {
+            this.out = out;
+            this.tableSize = tableSize;
+            slots = new String[tableSize];
+        }
+
+        public void writeRequest(int streamId, String method, String basePath, String path,
+                                 List<String[]> headers, byte[] body) throws IOException {
+            out.writeByte(TYPE_REQUEST);
+            out.writeInt(streamId);
+            out.writeUTF(method);
+            out.writeUTF(basePath);
+            out.writeUTF(path);
+            writeHeaders(headers);
+            writeBody(body);
+        }
+
+        public void writeResponse(int streamId, int status, List<String[]> headers, byte[] body) throws IOException {
+            out.writeByte(TYPE_RESPONSE);
+            out.writeInt(streamId);
+            out.writeInt(status);
+            writeHeaders(headers);
+            writeBody(body);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        void writeHeaders(List<String[]> headers) throws IOException {
+            writeVarInt(out, headers.size());
+            for (String[] header : headers) {
+                String key = header[0] + '\0' + header[1];
+                Integer slot = table.get(key);
+                if (slot != null) {
+                    writeVarInt(out, slot + 1);
+                } else {
+                    writeVarInt(out, 0);
+                    out.writeUTF(header[0]);
+                    out.writeUTF(header[1]);
+                    if (isIndexable(tableSize, header[1])) {
+                        if (slots[next] != null) {
+                            table.remove(slots[next]);
+                        }
+                        slots[next] = key;
+                        table.put(key, next);
+                        next = (next + 1) % tableSize;
+                    }
+                }
+            }
+        }
+
+        void writeBody(byte[] body) throws IOException {
+            if (body == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Reads frames written by an Encoder.
+     */
+    public static class Decoder {
+        final DataInputStream in;
+        final int tableSize;
+        final String[][] table;
+        int next;
+
+        public Decoder(DataInputStream in, int tableSize) {
+            this.in = in;
+            this.tableSize = tableSize;
+            table = new String[tableSize][];
+        }
+
+        /**
+         * Blocks until a frame has been read.
+         *
+         * @throws IOException if the connection failed or the frame is malformed.
+         */
+        public Frame read() throws IOException {
+            Frame frame = new Frame();
+            frame.type = in.readByte();
+            frame.streamId = in.readInt();
+            switch (frame.type) {
+                case TYPE_REQUEST:
+                    frame.method = in.readUTF();
+                    frame.basePath = in.readUTF();
+                    frame.path = in.readUTF();
+                    break;
+                case TYPE_RESPONSE:
+                    frame.status = in.readInt();
+                    break;
+                default:
+                    throw new IOException("Unknown frame type " + frame.type);
+            }
+            readHeaders(frame.headers);
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid body length " + length);
+            }
+            frame.body = new byte[length];
+            in.readFully(frame.body);
+            return frame;
+        }
+
+        void readHeaders(List<String[]> headers) throws IOException {
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                int index = readVarInt(in);
+                if (index > 0) {
+                    if (index > tableSize || table[index - 1] == null) {
+                        throw new IOException("Invalid header index " + index);
+                    }
+                    headers.add(table[index - 1]);
+                } else {
+                    String[] header = {in.readUTF(), in.readUTF()};
+                    if (isIndexable(tableSize, header[1])) {
+                        table[next] = header;
+                        next = (next + 1) % tableSize;
+                    }
+                    headers.add(header);
+                }
+            }
+        }
+    }
+
+    static boolean isIndexable(int tableSize, String value) {
+        return tableSize > 0 && value.length() <= MAX_TABLE_VALUE_LENGTH;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
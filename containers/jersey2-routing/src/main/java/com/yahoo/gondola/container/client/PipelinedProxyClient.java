@@ -0,0 +1,267 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container.client;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.container.Utils;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Response;
+
+/**
+ * Forwards requests to the containers of the other hosts over one persistent connection per host, using the
+ * ForwarderProtocol. Many requests can be in flight on a connection at the same time, so a forwarded request costs
+ * neither a connection from a pool nor, once its header fields have been seen on the connection, the header bytes.
+ * <p>
+ * Requests to hosts that have no forwardPort attribute are sent by the fallback client.
+ * The number of requests in flight on a connection is limited to gondola.forwarder.max_in_flight; when the limit
+ * is reached, a request waits for a response to arrive, up to gondola.forwarder.timeout.
+ */
+public class PipelinedProxyClient implements ProxyClient {
+
+    static Logger logger = LoggerFactory.getLogger(PipelinedProxyClient.class);
+
+    final ProxyClient fallback;
+
+    // app uri -> forwarder address of the host
+    final Map<String, InetSocketAddress> addresses = new HashMap<>();
+
+    // app uri -> the current connection to the host
+    final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    // app uri -> the lock held while connecting to the host, so that a host that is slow to accept does not hold up
+    // the requests to the other hosts
+    final Map<String, Object> connectLocks = new HashMap<>();
+
+    // Config variables
+    final int maxInFlight;
+    final int timeout;
+    final int headerTableSize;
+
+    public PipelinedProxyClient(Config config, ProxyClient fallback) {
+        this.fallback = fallback;
+        maxInFlight = config.getInt("gondola.forwarder.max_in_flight");
+        timeout = config.getInt("gondola.forwarder.timeout");
+        headerTableSize = config.getInt("gondola.forwarder.header_table_size");
+        for (String hostId : config.getHostIds()) {
+            InetSocketAddress address = Utils.getForwarderAddress(config, hostId);
+            if (address != null) {
+                String appUri = Utils.getAppUri(config, hostId);
+                addresses.put(appUri, address);
+                connectLocks.put(appUri, new Object());
+            }
+        }
+    }
+
+    /**
+     * Returns true if any of the hosts in the config accepts forwarded requests.
+     */
+    public static boolean isConfigured(Config config) {
+        return config.getHostIds().stream().anyMatch(h -> Utils.getForwarderAddress(config, h) != null);
+    }
+
+    @Override
+    public Response proxyRequest(ContainerRequestContext request, String baseUri) throws IOException {
+        InetSocketAddress address = addresses.get(baseUri);
+        if (address == null) {
+            return fallback.proxyRequest(request, baseUri);
+        }
+
+        // Forward the headers, except the ones that describe the connection
+        List<String[]> headers = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e : request.getHeaders().entrySet()) {
+            if (isHopByHop(e.getKey())) {
+                continue;
+            }
+            for (String headerValue : e.getValue()) {
+                headers.add(new String[] {e.getKey(), headerValue});
+            }
+        }
+
+        // The body is kept as bytes since the request may be sent again to another host
+        byte[] body = (byte[]) request.getProperty("requestBody");
+        if (body == null) {
+            body = request.getEntityStream() == null ? new byte[0] : IOUtils.toByteArray(request.getEntityStream());
+            request.setProperty("requestBody", body);
+        }
+
+        // The path is relative to the application, which is deployed at the same base path on all the hosts
+        URI base = request.getUriInfo().getBaseUri();
+        String path = base.relativize(request.getUriInfo().getRequestUri()).toString();
+
+        Connection connection = getConnection(baseUri, address);
+        ForwarderProtocol.Frame frame = connection.call(request.getMethod(), base.getRawPath(), path, headers, body);
+
+        Response.ResponseBuilder builder = Response.status(frame.status);
+        for (String[] header : frame.headers) {
+            if (!isHopByHop(header[0])) {
+                builder.header(header[0], header[1]);
+            }
+        }
+        if (frame.body.length > 0) {
+            builder.entity(frame.body);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the open connection to the host, creating it if necessary.
+     */
+    Connection getConnection(String baseUri, InetSocketAddress address) throws IOException {
+        Connection connection = connections.get(baseUri);
+        if (connection != null && !connection.closed) {
+            return connection;
+        }
+        synchronized (connectLocks.get(baseUri)) {
+            connection = connections.get(baseUri);
+            if (connection == null || connection.closed) {
+                connection = new Connection(baseUri, address);
+                connections.put(baseUri, connection);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Closes all the connections. Requests in flight fail.
+     */
+    public void close() {
+        connections.values().forEach(c -> c.close(new IOException("Client closed")));
+        connections.clear();
+    }
+
+    static boolean isHopByHop(String name) {
+        return name.equalsIgnoreCase("Content-Length")
+            || name.equalsIgnoreCase("Transfer-Encoding")
+            || name.equalsIgnoreCase("Connection");
+    }
+
+    /**
+     * A connection to the forwarder of a host. Requests are written by the calling threads, one at a time, and the
+     * responses are read by the connection's reader thread.
+     */
+    class Connection {
+        final String baseUri;
+        final Socket socket;
+        final ForwarderProtocol.Encoder encoder;
+        final ForwarderProtocol.Decoder decoder;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicInteger nextStreamId = new AtomicInteger();
+        final Map<Integer, CompletableFuture<ForwarderProtocol.Frame>> pending = new ConcurrentHashMap<>();
+        volatile boolean closed;
+
+        Connection(String baseUri, InetSocketAddress address) throws IOException {
+            this.baseUri = baseUri;
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, timeout);
+            encoder = new ForwarderProtocol.Encoder(
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), headerTableSize);
+            decoder = new ForwarderProtocol.Decoder(
+                new DataInputStream(new BufferedInputStream(socket.getInputStream())), headerTableSize);
+            Thread reader = new Thread(this::read, "ForwarderReader-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Sends the request and blocks until its response arrives.
+         */
+        ForwarderProtocol.Frame call(String method, String basePath, String path, List<String[]> headers,
+                                     byte[] body) throws IOException {
+            try {
+                if (!inFlight.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Too many requests in flight to " + baseUri);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            int streamId = nextStreamId.incrementAndGet();
+            CompletableFuture<ForwarderProtocol.Frame> future = new CompletableFuture<>();
+            pending.put(streamId, future);
+            try {
+                synchronized (encoder) {
+                    if (closed) {
+                        throw new IOException("Connection to " + baseUri + " is closed");
+                    }
+                    encoder.writeRequest(streamId, method, basePath, path, headers, body);
+                    encoder.flush();
+                }
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out waiting for the response from " + baseUri);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } finally {
+                pending.remove(streamId);
+                inFlight.release();
+            }
+        }
+
+        void read() {
+            try {
+                while (true) {
+                    ForwarderProtocol.Frame frame = decoder.read();
+                    CompletableFuture<ForwarderProtocol.Frame> future = pending.get(frame.streamId);
+                    if (future != null) {
+                        future.complete(frame);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Connection to forwarder of {} failed: {}", baseUri, e.getMessage());
+                }
+                close(e);
+            }
+        }
+
+        /**
+         * Closes the connection and fails the requests in flight. The next request opens a new connection.
+         */
+        void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Could not close connection to {}", baseUri, e);
+            }
+            pending.values().forEach(f -> f.completeExceptionally(cause));
+            connections.remove(baseUri, this);
+        }
+    }
+}
@@ -6,6 +6,7 @@
 
 package com.yahoo.gondola.container.spi;
 
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.container.ContainerRequestContext;
 
 /**
@@ -28,4 +29,15 @@ public interface RoutingHelper {
      * @return Gondola bucket Id, -1 means try to find colo affinity in routing layer
      */
     int getBucketHash(ContainerRequestContext request);
+
+    /**
+     * The callback method to tell whether the request only reads the application state. When
+     * gondola.follower_read_max_lag is set, read-only requests may be served by a follower instead of the leader.
+     *
+     * @param request the request
+     * @return true if the request does not modify the application state. By default GET and HEAD requests.
+     */
+    default boolean isReadOnly(ContainerRequestContext request) {
+        return HttpMethod.GET.equals(request.getMethod()) || HttpMethod.HEAD.equals(request.getMethod());
+    }
 }
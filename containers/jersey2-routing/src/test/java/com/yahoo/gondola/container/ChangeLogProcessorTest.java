@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container;
+
+import com.yahoo.gondola.Command;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.TestHosts;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ChangeLogProcessorTest {
+
+    TestHosts hosts;
+    ChangeLogProcessor processor;
+
+    // The indices applied for each key, in the order they were applied
+    Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        hosts = new TestHosts("gondola-change-log", 2948);
+        hosts.start(1, "gondola.apply_lanes = 4\n");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (processor != null) {
+            processor.stop();
+        }
+        hosts.stop();
+    }
+
+    @Test
+    public void testApplyLanes() throws Exception {
+        Shard leader = hosts.awaitLeader("shard1");
+        Gondola gondola = hosts.gondolas.stream().filter(g -> g.getShard("shard1") == leader).findFirst().get();
+        Map<String, RoutingService> services = new ConcurrentHashMap<>();
+        services.put("shard1", new RoutingService(gondola, "shard1") {
+            @Override
+            public ChangeLogProcessor.ChangeLogConsumer provideChangeLogConsumer() {
+                return (shardId, command) -> {
+                    String key = command.getString().split(":")[0];
+                    applied.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(command.getIndex());
+                };
+            }
+
+            @Override
+            public ChangeLogProcessor.PartitionKeyExtractor providePartitionKeyExtractor() {
+                return (shardId, command) -> command.getSize() == 0 ? null : command.getString().split(":")[0];
+            }
+
+            @Override
+            public void ready() {
+            }
+        });
+        processor = new ChangeLogProcessor(gondola, services);
+        processor.start();
+
+        Shard shard = gondola.getShard("shard1");
+        for (int i = 0; i < 200; i++) {
+            byte[] bytes = ("key" + i % 10 + ":" + i).getBytes();
+            Command command = shard.checkoutCommand();
+            command.commit(bytes, 0, bytes.length);
+            command.release();
+        }
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (processor.getAppliedIndex("shard1") < shard.getCommitIndex()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(processor.getAppliedIndex("shard1"), shard.getCommitIndex());
+
+        // Each key's commands are applied in log order
+        for (int k = 0; k < 10; k++) {
+            List<Integer> indices = applied.get("key" + k);
+            assertEquals(indices.size(), 20);
+            for (int i = 1; i < indices.size(); i++) {
+                assertTrue(indices.get(i) > indices.get(i - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.container.client.PipelinedProxyClient;
+import com.yahoo.gondola.container.client.ProxyClient;
+
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Forwards requests with a PipelinedProxyClient to a ForwarderServer running a small Jersey application.
+ */
+public class ForwarderServerTest {
+
+    // Released by the test to let the blocked requests complete
+    static CountDownLatch unblock;
+
+    // Counted down when a request starts blocking in the application
+    static CountDownLatch blocked;
+
+    Config config;
+    Gondola gondola;
+    Container container;
+    ForwarderServer server;
+    PipelinedProxyClient client;
+    String appUri;
+
+    @Path("/")
+    public static class TestResource {
+        @GET
+        @Path("delay")
+        public String delay(@QueryParam("ms") int ms) throws InterruptedException {
+            Thread.sleep(ms);
+            return "delay " + ms;
+        }
+
+        @GET
+        @Path("block")
+        public String block() throws InterruptedException {
+            blocked.countDown();
+            unblock.await();
+            return "unblocked";
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        unblock = new CountDownLatch(1);
+        blocked = new CountDownLatch(1);
+        File dir = Files.createTempDirectory("gondola-forwarder").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("gondola {\n"
+                         + "  hosts = [\n"
+                         + "    { hostId = A, hostname = \"127.0.0.1\", port = \"2958\", appScheme = http, "
+                         + "appPort = \"8090\" }\n"
+                         + "    { hostId = B, hostname = \"127.0.0.1\", port = \"2959\", appScheme = http, "
+                         + "appPort = \"8091\", forwardPort = \"2960\" }\n"
+                         + "  ]\n"
+                         + "  shards = [\n"
+                         + "    { shardId = shard1, hosts = [\n"
+                         + "      { hostId = A, memberId = 81 }\n"
+                         + "      { hostId = B, memberId = 82 }\n"
+                         + "    ] }\n"
+                         + "  ]\n"
+                         + "}\n");
+        }
+        config = new Config(confFile);
+        appUri = Utils.getAppUri(config, "B");
+
+        gondola = mock(Gondola.class);
+        when(gondola.getConfig()).thenReturn(config);
+        when(gondola.getHostId()).thenReturn("B");
+        container = mock(Container.class);
+        ApplicationHandler handler = new ApplicationHandler(new ResourceConfig(TestResource.class));
+        when(container.getApplicationHandler()).thenReturn(handler);
+        startServer();
+
+        client = new PipelinedProxyClient(config, mock(ProxyClient.class));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        unblock.countDown();
+        client.close();
+        server.stop();
+        config.stop();
+    }
+
+    void startServer() {
+        server = new ForwarderServer(gondola);
+        server.onStartup(container);
+    }
+
+    /**
+     * Returns a GET request for the path of the test application.
+     */
+    ContainerRequestContext request(String path) {
+        URI base = URI.create(appUri + "/");
+        UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getBaseUri()).thenReturn(base);
+        when(uriInfo.getRequestUri()).thenReturn(base.resolve(path));
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeaders()).thenReturn(new MultivaluedHashMap<>());
+        when(request.getProperty("requestBody")).thenReturn(new byte[0]);
+        when(request.getUriInfo()).thenReturn(uriInfo);
+        return request;
+    }
+
+    CompletableFuture<String> proxyAsync(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Response response = client.proxyRequest(request(path), appUri);
+                assertEquals(response.getStatus(), 200);
+                return new String((byte[]) response.getEntity());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * A slow request does not hold up the responses to the requests sent after it on the same connection.
+     */
+    @Test
+    public void testOutOfOrderResponses() throws Exception {
+        List<String> completed = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> slow = proxyAsync("delay?ms=1000").whenComplete((s, e) -> completed.add(s));
+        Thread.sleep(100);
+        CompletableFuture<String> fast = proxyAsync("delay?ms=0").whenComplete((s, e) -> completed.add(s));
+
+        assertEquals(fast.get(10, TimeUnit.SECONDS), "delay 0");
+        assertEquals(slow.get(10, TimeUnit.SECONDS), "delay 1000");
+        assertEquals(completed.get(0), "delay 0");
+        assertEquals(completed.get(1), "delay 1000");
+    }
+
+    /**
+     * A request in flight fails as soon as the server goes down, and the next request opens a new connection.
+     */
+    @Test
+    public void testServerDownMidStream() throws Exception {
+        assertEquals(proxyAsync("delay?ms=0").get(10, TimeUnit.SECONDS), "delay 0");
+
+        CompletableFuture<String> inFlight = proxyAsync("block");
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        server.stop();
+        try {
+            // Well before gondola.forwarder.timeout
+            inFlight.get(10, TimeUnit.SECONDS);
+            fail("The request should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getCause() instanceof IOException, e.getCause().toString());
+        }
+
+        startServer();
+        assertEquals(proxyAsync("delay?ms=0").get(10, TimeUnit.SECONDS), "delay 0");
+    }
+}
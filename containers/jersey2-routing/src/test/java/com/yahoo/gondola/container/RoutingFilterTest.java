@@ -169,6 +169,43 @@ public class RoutingFilterTest {
         assertEquals(getRoutingTable(router).get("shard1").get(0), newLeaderUri);
     }
 
+    @Test
+    public void testRouting_accept_read_on_follower_within_lag() throws Exception {
+        Whitebox.setInternalState(router, "followerReadMaxLag", 10);
+        when(shard.getLeader()).thenReturn(member);
+        when(member.isLocal()).thenReturn(false);
+        when(routingHelper.isReadOnly(any())).thenReturn(true);
+        when(shard.getCommitIndex()).thenReturn(100);
+        when(changeLogProcessor.getAppliedIndex(eq("shard1"))).thenReturn(90);
+        router.filter(request);
+        verify(request, times(0)).abortWith(any());
+        verify(proxyClient, times(0)).proxyRequest(any(), any());
+    }
+
+    @Test
+    public void testRouting_redirect_read_on_follower_behind() throws Exception {
+        Whitebox.setInternalState(router, "followerReadMaxLag", 10);
+        when(shard.getLeader()).thenReturn(member);
+        when(member.isLocal()).thenReturn(false);
+        when(routingHelper.isReadOnly(any())).thenReturn(true);
+        when(shard.getCommitIndex()).thenReturn(100);
+        when(changeLogProcessor.getAppliedIndex(eq("shard1"))).thenReturn(89);
+        when(proxyClient.proxyRequest(any(), any())).thenReturn(proxiedResponse);
+        router.filter(request);
+        verify(proxyClient, times(1)).proxyRequest(any(), any());
+    }
+
+    @Test
+    public void testRouting_redirect_write_on_follower() throws Exception {
+        Whitebox.setInternalState(router, "followerReadMaxLag", 10);
+        when(shard.getLeader()).thenReturn(member);
+        when(member.isLocal()).thenReturn(false);
+        when(routingHelper.isReadOnly(any())).thenReturn(false);
+        when(proxyClient.proxyRequest(any(), any())).thenReturn(proxiedResponse);
+        router.filter(request);
+        verify(proxyClient, times(1)).proxyRequest(any(), any());
+    }
+
     /**
      * The test will test if the request sending to another shard. (shardId = 2)
      */
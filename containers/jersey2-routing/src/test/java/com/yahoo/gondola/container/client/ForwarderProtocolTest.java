@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.container.client;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ForwarderProtocolTest {
+
+    static final List<String[]> HEADERS = Arrays.asList(
+        new String[] {"Content-Type", "application/json"},
+        new String[] {"X-Forwarded-By", "http://host1:8080"});
+
+    ByteArrayOutputStream bytes;
+    ForwarderProtocol.Encoder encoder;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        bytes = new ByteArrayOutputStream();
+        encoder = new ForwarderProtocol.Encoder(new DataOutputStream(bytes), 16);
+    }
+
+    ForwarderProtocol.Decoder decoder() {
+        return new ForwarderProtocol.Decoder(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 16);
+    }
+
+    @Test
+    public void testRequestAndResponse() throws Exception {
+        encoder.writeRequest(7, "PUT", "/app/", "entries/1?x=y", HEADERS, "value".getBytes());
+        encoder.writeResponse(7, 204, HEADERS.subList(0, 1), null);
+        encoder.flush();
+
+        ForwarderProtocol.Decoder decoder = decoder();
+        ForwarderProtocol.Frame request = decoder.read();
+        assertEquals(request.type, ForwarderProtocol.TYPE_REQUEST);
+        assertEquals(request.streamId, 7);
+        assertEquals(request.method, "PUT");
+        assertEquals(request.basePath, "/app/");
+        assertEquals(request.path, "entries/1?x=y");
+        assertEquals(request.headers.size(), 2);
+        assertEquals(request.headers.get(1), HEADERS.get(1));
+        assertEquals(new String(request.body), "value");
+
+        ForwarderProtocol.Frame response = decoder.read();
+        assertEquals(response.type, ForwarderProtocol.TYPE_RESPONSE);
+        assertEquals(response.status, 204);
+        assertEquals(response.headers.get(0), HEADERS.get(0));
+        assertEquals(response.body.length, 0);
+    }
+
+    @Test
+    public void testRepeatedHeadersAreIndexed() throws Exception {
+        encoder.writeRequest(1, "GET", "/", "a", HEADERS, null);
+        encoder.flush();
+        int first = bytes.size();
+        encoder.writeRequest(2, "GET", "/", "a", HEADERS, null);
+        encoder.flush();
+        int second = bytes.size() - first;
+        assertTrue(second < first - 40, "second=" + second + " first=" + first);
+
+        ForwarderProtocol.Decoder decoder = decoder();
+        decoder.read();
+        ForwarderProtocol.Frame frame = decoder.read();
+        assertEquals(frame.streamId, 2);
+        assertEquals(frame.headers.get(0), HEADERS.get(0));
+        assertEquals(frame.headers.get(1), HEADERS.get(1));
+    }
+
+    @Test
+    public void testFullTableReplacesOldestFields() throws Exception {
+        // Fields that differ in every request fill the table
+        encoder = new ForwarderProtocol.Encoder(new DataOutputStream(bytes), 4);
+        for (int i = 1; i <= 10; i++) {
+            encoder.writeRequest(i, "GET", "/", "a", Arrays.<String[]>asList(new String[] {"X-Request-Id", "r" + i}),
+                                 null);
+        }
+
+        // Fields that are repeated are still indexed
+        encoder.flush();
+        int start = bytes.size();
+        encoder.writeRequest(11, "GET", "/", "a", HEADERS, null);
+        encoder.flush();
+        int first = bytes.size() - start;
+        encoder.writeRequest(12, "GET", "/", "a", HEADERS, null);
+        encoder.flush();
+        int second = bytes.size() - start - first;
+        assertTrue(second < first - 40, "second=" + second + " first=" + first);
+
+        ForwarderProtocol.Decoder decoder =
+            new ForwarderProtocol.Decoder(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 4);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(decoder.read().headers.get(0)[1], "r" + i);
+        }
+        for (int i = 11; i <= 12; i++) {
+            ForwarderProtocol.Frame frame = decoder.read();
+            assertEquals(frame.streamId, i);
+            assertEquals(frame.headers.get(0), HEADERS.get(0));
+            assertEquals(frame.headers.get(1), HEADERS.get(1));
+        }
+    }
+}
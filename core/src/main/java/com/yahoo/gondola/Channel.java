@@ -87,4 +87,13 @@ public interface Channel extends Stoppable {
      */
     public OutputStream getOutputStream(OutputStream out, boolean errorOccurred)
         throws InterruptedException, EOFException;
+
+    /**
+     * Returns the wire format version that was agreed with the remote member for the current streams.
+     * If the streams are replaced after this call, the old streams will fail, so a caller that gets the version
+     * right after getting a stream never uses the wrong version for long.
+     *
+     * @return one of the Message.WIRE_VERSION* values.
+     */
+    public int getWireVersion();
 }
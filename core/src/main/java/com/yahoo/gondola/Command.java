@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -22,6 +23,9 @@ import java.util.concurrent.TimeoutException;
  * c.commit(buffer, 0, len);
  * c.release();
  * <p>
+ * Or, without blocking the calling thread:
+ * cluster.checkoutCommand().commitAsync(buffer, 0, len).thenAccept(c -> c.release());
+ * <p>
  * This object is generally not thread-safe; that is, an object of this class should not be called by multiple client
  * threads simultaneously.
  */
@@ -123,6 +127,26 @@ public class Command {
         ccmd.commit(buf, bufOffset, bufLen, timeout);
     }
 
+    /**
+     * Equivalent to commitAsync(buf, buffOffset, bufLen, -1).
+     */
+    public CompletableFuture<Command> commitAsync(byte[] buf, int bufOffset, int bufLen) {
+        return commitAsync(buf, bufOffset, bufLen, -1);
+    }
+
+    /**
+     * Starts committing the command in buffer and returns immediately. The returned future is completed with this
+     * command object once the command has been committed, or exceptionally with the exception that commit() would
+     * have thrown, such as a GondolaException if the member is not the leader or a TimeoutException.
+     * The future is completed on one of gondola's completion threads, so callbacks that block should be run
+     * on another executor. This command object must not be used or released until the future is completed.
+     *
+     * @param timeout If -1, timeout is disabled.
+     */
+    public CompletableFuture<Command> commitAsync(byte[] buf, int bufOffset, int bufLen, int timeout) {
+        return ccmd.commitAsync(buf, bufOffset, bufLen, timeout).thenApply(v -> this);
+    }
+
     /**
      * Returns this command object back to the pool.
      */
@@ -20,6 +20,12 @@ import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import javax.management.InstanceNotFoundException;
@@ -38,6 +44,8 @@ import javax.management.ObjectName;
  *   byte[] buffer = new byte[]{0, 1, 2, 3}; // some data to commit
  *   // Blocks until command has been committed
  *   command.commit(buffer, 0, buffer.length);
+ *   // Or, without blocking
+ *   command.commitAsync(buffer, 0, buffer.length).thenAccept(c -> c.release());
  * </pre>
  * Usage to get a committed command:
  * <pre>
@@ -52,6 +60,7 @@ public class Gondola implements Stoppable {
     String hostId;
     Stats stats = new Stats();
     MessagePool messagePool;
+    HeartbeatCoalescer heartbeatCoalescer;
     Clock clock;
     Network network;
     Storage storage;
@@ -77,6 +86,10 @@ public class Gondola implements Stoppable {
     // List of threads running in this class
     List<Thread> threads = new ArrayList<>();
 
+    // Asynchronous commits are completed and timed out by these threads, so that the callbacks of the clients
+    // never run on, and delay, the gondola threads.
+    ScheduledExecutorService completers;
+
     // JMX variables
     final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 
@@ -100,6 +113,7 @@ public class Gondola implements Stoppable {
             ExceptionLogger.initConfig(config);
 
             messagePool = new MessagePool(config, stats);
+            heartbeatCoalescer = new HeartbeatCoalescer(this);
             init();
         } catch (Exception e) {
             throw new GondolaException(e);
@@ -126,6 +140,7 @@ public class Gondola implements Stoppable {
 
             shards.add(shard);
             shardMap.put(shardId, shard);
+            memberMap.put(shard.cmember.getMemberId(), shard.cmember);
         }
         inited = true;
     }
@@ -149,8 +164,20 @@ public class Gondola implements Stoppable {
             for (Shard s : shards) {
                 s.start();
             }
+            heartbeatCoalescer.start();
 
             // Start local threads
+            AtomicInteger completerCount = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    config.getInt("gondola.commit_completion_threads"), r -> {
+                Thread t = new Thread(r, String.format("CommitCompleter-%s-%d",
+                        hostId, completerCount.getAndIncrement()));
+                t.setDaemon(true);
+                return t;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            completers = executor;
             threads.add(new RoleChangeNotifier());
             threads.forEach(t -> t.start());
             objectName = new ObjectName("com.yahoo.gondola." + hostId + ":type=Stats");
@@ -168,10 +195,19 @@ public class Gondola implements Stoppable {
     public boolean stop() {
         logger.info("Stopping Gondola instance for host {}...", hostId);
         boolean status = network.stop();
+        status = heartbeatCoalescer.stop() && status;
 
         // Shut down all local threads
         status = Utils.stopThreads(threads) && status;
         threads.clear();
+        if (completers != null) {
+            completers.shutdown();
+            try {
+                status = completers.awaitTermination(10, TimeUnit.SECONDS) && status;
+            } catch (InterruptedException e) {
+                status = false;
+            }
+        }
 
         // Shut down threads in all dependencies
         for (Shard shard : shards) {
@@ -179,6 +215,7 @@ public class Gondola implements Stoppable {
         }
         shards.clear();
         shardMap.clear();
+        memberMap.clear();
         status = storage.stop() && status;
         status = clock.stop() && status;
 
@@ -224,6 +261,13 @@ public class Gondola implements Stoppable {
         return shardMap.get(id);
     }
 
+    /**
+     * @return null if the member is not on this host.
+     */
+    public CoreMember getCoreMember(int memberId) {
+        return memberMap.get(memberId);
+    }
+
     public Storage getStorage() {
         return storage;
     }
@@ -246,6 +290,10 @@ public class Gondola implements Stoppable {
         return clock;
     }
 
+    public HeartbeatCoalescer getHeartbeatCoalescer() {
+        return heartbeatCoalescer;
+    }
+
     /**
      * The network is created after start() has been called.
      */
@@ -260,6 +308,19 @@ public class Gondola implements Stoppable {
         return stats;
     }
 
+    /**
+     * Runs task on one of the threads that complete asynchronous commits, after delay ms.
+     *
+     * @return null if gondola is not running.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        try {
+            return completers == null ? null : completers.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
     /**
      * The registered listener will be called when the role of local
      * members change.  A "local" member is a member assigned to this
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An optional extension of Storage for implementations that keep the log entries in buffers that can be read
+ * directly, such as memory-mapped files. When the storage implements this interface, sequential readers such as
+ * backfilling use it to copy the commands straight out of the storage's buffers instead of going through
+ * a LogEntry per index.
+ */
+public interface MappedStorage {
+    /**
+     * Called for each entry by visitLogEntries().
+     */
+    interface Visitor {
+        /**
+         * @param command a read-only buffer whose remaining bytes are the command. It is only valid during this call.
+         * @return false to stop visiting.
+         */
+        boolean visit(int term, int index, ByteBuffer command) throws GondolaException;
+    }
+
+    /**
+     * Passes the entries starting at fromIndex to the visitor in index order. Visiting stops at the first missing
+     * entry, after maxCount entries, or when the visitor returns false. The storage may hold a lock while the visitor
+     * runs, so the visitor should only copy the command.
+     *
+     * @return the number of entries for which the visitor returned true.
+     */
+    int visitLogEntries(int memberId, int fromIndex, int maxCount, Visitor visitor) throws GondolaException;
+}
@@ -225,7 +225,6 @@ public class Shard implements Stoppable {
             throw new IllegalStateException(String.format("Index %d must be > 0", index));
         }
         Command command = checkoutCommand();
-        cmember.getCommittedLogEntry(command.ccmd, index, timeout);
         try {
             cmember.getCommittedLogEntry(command.ccmd, index, timeout);
             return command;
@@ -235,10 +234,80 @@ public class Shard implements Stoppable {
         }
     }
 
+    /**
+     * Returns a subscription that returns the committed commands in index order, starting at fromIndex. Reading the
+     * log with a subscription is much cheaper than calling getCommittedCommand() for each index.
+     * The subscription should be closed when it is no longer needed.
+     *
+     * @param fromIndex must be > 0.
+     * @return non-null Subscription
+     */
+    public Subscription subscribe(int fromIndex) throws InterruptedException {
+        return new Subscription(gondola, this, cmember, fromIndex);
+    }
+
+    /**
+     * Returns an index such that the committed commands up to this index include every command committed before this
+     * call. A linearizable read can be served once the state built from the committed commands has reached this
+     * index. Only the leader can serve such reads; leadership is confirmed by a round of heartbeats, or by the read
+     * lease if raft.read_lease_period is set, and nothing is written to the log.
+     *
+     * @param timeout Returns after timeout milliseconds, even if leadership has not been confirmed yet. -1 means there
+     *                is no timeout.
+     * @return the read index, which has been committed locally.
+     * @throws GondolaException with code NOT_LEADER if the local member is not the leader.
+     */
+    public int readBarrier(int timeout) throws InterruptedException, GondolaException, TimeoutException {
+        return cmember.readIndex(timeout);
+    }
+
     /**
      * Returns commitIndex.
      */
     public int getCommitIndex() {
         return cmember.getCommitIndex();
     }
+
+    /**
+     * ******************* snapshots ******************
+     */
+
+    /**
+     * Sets the handler used to save and restore the application state. Snapshots cannot be saved or received
+     * from the leader until a handler is set.
+     *
+     * @param handler null to disable snapshots.
+     */
+    public void setSnapshotHandler(SnapshotHandler handler) {
+        cmember.getSnapshotManager().setHandler(handler);
+    }
+
+    /**
+     * Saves a snapshot of the application state using the snapshot handler and then deletes the log entries
+     * before index. The committed commands up to index are no longer available after this call.
+     * The caller must not apply any further commands until this method returns.
+     *
+     * @param index the index of the last command applied to the application state. Must be committed.
+     */
+    public void saveSnapshot(int index) throws GondolaException {
+        cmember.getSnapshotManager().save(index);
+    }
+
+    /**
+     * Restores the application state from the latest snapshot, if any, using the snapshot handler.
+     *
+     * @return the index of the last command covered by the snapshot; 0 if there is no snapshot.
+     */
+    public int restoreSnapshot() throws GondolaException {
+        return cmember.getSnapshotManager().restore();
+    }
+
+    /**
+     * Returns the index of the last command covered by the latest snapshot.
+     *
+     * @return 0 if there is no snapshot.
+     */
+    public int getSnapshotIndex() {
+        return cmember.getSnapshotManager().getIndex();
+    }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Implemented by the application to save and restore its state, so that the log entries covered by a snapshot
+ * can be deleted. See Shard.setSnapshotHandler().
+ */
+public interface SnapshotHandler {
+
+    /**
+     * Writes the application's state to out. The state must reflect all the committed commands up to and including
+     * the index passed to Shard.saveSnapshot(), and no others. The stream is closed by the caller.
+     *
+     * @param out non-null stream into which the snapshot is written.
+     */
+    public void save(OutputStream out) throws Exception;
+
+    /**
+     * Replaces the application's state with the snapshot in in. After this call, the application should continue
+     * with the committed command at index + 1. This method is called by Shard.restoreSnapshot() and also
+     * by Gondola when a snapshot is received from the leader, in which case it is called on a Gondola thread.
+     *
+     * @param index the index of the last command covered by the snapshot.
+     * @param in    non-null stream containing the snapshot. The stream is closed by the caller.
+     */
+    public void restore(int index, InputStream in) throws Exception;
+}
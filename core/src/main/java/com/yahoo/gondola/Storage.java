@@ -6,10 +6,10 @@
 
 package com.yahoo.gondola;
 
+import java.util.List;
+
 /**
  * The implementation of this interface must be thread-safe.
- * TODO: add a batch method to get log entries, to improve performance
- * TODO: add a batch method to append a set of entries, to improve performance
  */
 public interface Storage extends Stoppable {
     /**
@@ -114,6 +114,21 @@ public interface Storage extends Stoppable {
      */
     public LogEntry getLogEntry(int memberId, int index) throws GondolaException;
 
+    /**
+     * Returns the log entries starting at fromIndex, in index order. Used by readers that walk the log sequentially,
+     * so that a range of entries costs about the same as a single call to getLogEntry().
+     * Reading stops at the first missing index, after maxCount entries, or before the entry that would make the
+     * total size of the commands exceed maxBytes. The entry at fromIndex is always returned if it exists,
+     * regardless of maxBytes.
+     * The caller should call LogEntry.release() on each of the returned entries when it no longer needs them.
+     *
+     * @param fromIndex must be >= 1
+     * @param maxCount  must be >= 1
+     * @return a non-null list, which is empty if fromIndex does not exist.
+     */
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException;
+
     /**
      * Returns true if a log entry with the specified term and index exist for the specified member.
      *
@@ -149,6 +164,21 @@ public interface Storage extends Stoppable {
                                byte[] buffer, int bufferOffset, int bufferLen)
             throws GondolaException, InterruptedException;
 
+    /**
+     * Appends a batch of entries with contiguous indices, typically all the commands carried by one message.
+     * The entry at startIndex + i is lengths[i] bytes from the buffer starting at offsets[i].
+     * All the entries have the same term. The batch should be written in a single operation, so that
+     * the whole batch costs about the same as a single call to appendLogEntry().
+     * <p>
+     * The same rules as appendLogEntry() apply to each entry in the batch.
+     *
+     * @param startIndex the index of the first entry; must be >= 1
+     * @param count      the number of entries to append
+     */
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths)
+            throws GondolaException, InterruptedException;
+
     /**
      * Deletes the entry at the specified index.
      * An exception should be thrown if the index does not exist.
@@ -158,6 +188,16 @@ public interface Storage extends Stoppable {
      */
     public void delete(int memberId, int index) throws GondolaException;
 
+    /**
+     * Deletes all the entries with an index less than the specified index. Used to compact the log after
+     * a snapshot has been taken. Unlike delete(), no exception is thrown for indices that do not exist.
+     * Entries below the index should not be appended afterwards, unless all the entries have since been deleted.
+     *
+     * @param memberId The identity of the member callling this method.
+     * @param index    The index of the first entry to keep.
+     */
+    public void deleteBefore(int memberId, int index) throws GondolaException;
+
     /**
      * Reclaims the entry object for reuse.
      *
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola;
+
+import com.yahoo.gondola.core.CoreCmd;
+import com.yahoo.gondola.core.CoreMember;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the committed commands of a shard in index order. Unlike Shard.getCommittedCommand(), which waits for and
+ * reads one index at a time, a subscription waits for the commit index to advance and then reads all the newly
+ * committed entries with a single range read. The entries are then returned from memory.
+ * <p>
+ * A subscriber that keeps up reads the entries that were just written. When the storage is wrapped in
+ * storage.cache, these range reads are served from the cache's in-memory tail of the log, and a subscriber that
+ * has fallen behind the tail reads from the underlying storage.
+ * Usage:
+ * <pre>
+ *   Subscription subscription = shard.subscribe(1);
+ *   while (running) {
+ *       Command command = subscription.next(-1);
+ *       apply(command);
+ *   }
+ *   subscription.close();
+ * </pre>
+ * This object is not thread-safe.
+ */
+public class Subscription implements AutoCloseable {
+    final static Logger logger = LoggerFactory.getLogger(Subscription.class);
+
+    final Gondola gondola;
+    final CoreMember cmember;
+    final Storage storage;
+
+    // Returned by next() and reused for every command
+    final Command command;
+
+    // The committed entries that have been read but not yet returned, in index order
+    final ArrayDeque<LogEntry> entries = new ArrayDeque<>();
+
+    // The index of the command returned by the next call to next()
+    int nextIndex;
+
+    // Config variables
+    final int batchSize;
+    final boolean storageTracing;
+
+    Subscription(Gondola gondola, Shard shard, CoreMember cmember, int fromIndex) throws InterruptedException {
+        if (fromIndex <= 0) {
+            throw new IllegalStateException(String.format("Index %d must be > 0", fromIndex));
+        }
+        this.gondola = gondola;
+        this.cmember = cmember;
+        this.storage = gondola.getStorage();
+        this.nextIndex = fromIndex;
+        command = shard.checkoutCommand();
+
+        Config config = gondola.getConfig();
+        batchSize = Math.max(config.getInt("storage.read_ahead"), 1);
+        storageTracing = config.getBoolean("gondola.tracing.storage");
+    }
+
+    /**
+     * Returns the index of the command that will be returned by the next call to next().
+     */
+    public int getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Repositions this subscription so that the next call to next() returns the command at index. Used after
+     * the application state has been replaced, for example by restoring a snapshot.
+     *
+     * @param index must be > 0.
+     */
+    public void seek(int index) {
+        if (index <= 0) {
+            throw new IllegalStateException(String.format("Index %d must be > 0", index));
+        }
+        if (index != nextIndex) {
+            clear();
+            nextIndex = index;
+        }
+    }
+
+    /**
+     * Returns the command at getNextIndex() and advances to the next index. Blocks until the command has been
+     * committed. The returned command belongs to this subscription and is only valid until the next call to next();
+     * it must not be released.
+     *
+     * @param timeout Returns after timeout milliseconds, even if the command is not yet available. -1 means there is
+     *                no timeout.
+     * @return non-null Command
+     */
+    public Command next(int timeout) throws InterruptedException, GondolaException, TimeoutException {
+        return next(timeout, this.command);
+    }
+
+    /**
+     * Same as next(timeout) but the command is copied into the specified command object, which is returned. Used
+     * when the command needs to outlive the next call, such as when it is handed over to another thread.
+     *
+     * @param command non-null command checked out by the caller, who remains responsible for releasing it.
+     */
+    public Command next(int timeout, Command command) throws InterruptedException, GondolaException, TimeoutException {
+        if (entries.isEmpty()) {
+            fill(timeout);
+        }
+        LogEntry le = entries.poll();
+        CoreCmd ccmd = command.ccmd;
+        le.copyTo(ccmd.buffer, 0);
+        ccmd.size = le.size;
+        ccmd.term = le.term;
+        ccmd.index = le.index;
+        ccmd.commitIndex = cmember.getCommitIndex();
+        ccmd.status = Command.STATUS_OK;
+        le.release();
+        nextIndex++;
+        return command;
+    }
+
+    /**
+     * Releases the resources held by this subscription. It must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        clear();
+        command.release();
+    }
+
+    /**
+     * Waits for nextIndex to be committed and then reads it along with the entries committed after it.
+     */
+    void fill(int timeout) throws InterruptedException, GondolaException, TimeoutException {
+        int committedIndex = cmember.awaitCommitted(nextIndex, timeout);
+
+        // Entries covered by the latest snapshot have been deleted from the log
+        int snapshotIndex = cmember.getSnapshotManager().getIndex();
+        if (nextIndex <= snapshotIndex) {
+            throw new GondolaException(String.format(
+                    "index=%d has been compacted into the snapshot at index=%d", nextIndex, snapshotIndex));
+        }
+
+        int maxCount = Math.min(committedIndex - nextIndex + 1, batchSize);
+        entries.addAll(storage.getLogEntries(cmember.getMemberId(), nextIndex, maxCount, Integer.MAX_VALUE));
+        if (storageTracing) {
+            logger.info("[{}-{}] select(index={}, max={}) -> {} entries",
+                    gondola.getHostId(), cmember.getMemberId(), nextIndex, maxCount, entries.size());
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalStateException(String.format("index=%d should be saved but is not. ci=%d",
+                    nextIndex, committedIndex));
+        }
+    }
+
+    void clear() {
+        entries.forEach(LogEntry::release);
+        entries.clear();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Sends a follower's append entry replies as soon as the save queue advances the saved index. Without it, the reply
+ * is sent by the main loop when it gets around to the UPDATE_SAVED_INDEX action, after whatever incoming messages it
+ * is processing. Since the leader can only commit once a majority has replied, that delay adds directly to the commit
+ * latency.
+ * <p>
+ * Advances of the saved index that happen while a reply is being sent are coalesced into the next reply, which
+ * carries the latest saved index. Replies are only sent to the leader whose append entry request was last accepted
+ * by the main loop in the current term; see follow().
+ */
+public class Acknowledger {
+
+    final static Logger logger = LoggerFactory.getLogger(Acknowledger.class);
+
+    // The target value when there is no leader to acknowledge
+    static final long NONE = -1;
+
+    final Gondola gondola;
+    final CoreMember cmember;
+
+    // The term and leader id of the leader to acknowledge, as (term << 32 | leaderId), or NONE
+    final AtomicLong target = new AtomicLong(NONE);
+
+    // True if the saved index has advanced since the last reply
+    final AtomicBoolean pending = new AtomicBoolean();
+
+    // List of threads running in this class
+    List<Thread> threads = new ArrayList<>();
+
+    // The thread sending the replies; null if not running
+    volatile Thread sender;
+
+    // Config variables
+    boolean enabled;
+    boolean networkTracing;
+
+    Acknowledger(Gondola gondola, CoreMember cmember) {
+        this.gondola = gondola;
+        this.cmember = cmember;
+        gondola.getConfig().registerForUpdates(configListener);
+    }
+
+    /*
+     * Called at the time of registration and whenever the config file changes.
+     */
+    Consumer<Config> configListener = config -> {
+        enabled = config.getBoolean("gondola.acknowledger");
+        networkTracing = config.getBoolean("gondola.tracing.network");
+    };
+
+    public void start() {
+        if (enabled) {
+            Sender s = new Sender();
+            threads.add(s);
+            sender = s;
+            threads.forEach(t -> t.start());
+        }
+    }
+
+    public boolean stop() {
+        sender = null;
+        boolean status = Utils.stopThreads(threads);
+        threads.clear();
+        return status;
+    }
+
+    /**
+     * Returns true if the replies are sent by this class rather than by the main loop.
+     */
+    public boolean isEnabled() {
+        return sender != null;
+    }
+
+    /**
+     * Called by the main loop after accepting an append entry request from the leader.
+     */
+    void follow(int term, int leaderId) {
+        target.set(((long) term << 32) | (leaderId & 0xffffffffL));
+    }
+
+    /**
+     * Called by the main loop whenever the role changes. No replies are sent until follow() is called again.
+     */
+    void unfollow() {
+        target.set(NONE);
+    }
+
+    /**
+     * Called by the save queue workers after advancing the saved index.
+     */
+    void wake() {
+        Thread t = sender;
+        if (t != null && pending.compareAndSet(false, true)) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    class Sender extends Thread {
+        Rid savedRid = new Rid();
+
+        // The target and saved index of the last reply
+        long lastTarget = NONE;
+        int lastIndex;
+
+        Sender() {
+            setName("Acknowledger-" + cmember.memberId);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                while (!pending.getAndSet(false)) {
+                    LockSupport.park(this);
+                    if (isInterrupted()) {
+                        return;
+                    }
+                }
+                try {
+                    send();
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * Sends the latest saved index to the leader, unless it has already been sent.
+         */
+        void send() {
+            long t = target.get();
+            if (t == NONE) {
+                return;
+            }
+            int term = (int) (t >>> 32);
+            int leaderId = (int) t;
+            cmember.saveQueue.getLatest(savedRid);
+            if (t == lastTarget && savedRid.index <= lastIndex) {
+                return;
+            }
+
+            Peer leader = cmember.peers.get(leaderId);
+            if (leader != null) {
+                Message message = cmember.pool.checkout();
+                try {
+                    message.appendEntryReply(cmember.memberId, term, savedRid.index, true, false);
+                    if (networkTracing) {
+                        logger.info("[{}-{}] send({}): ack index={}", gondola.getHostId(), cmember.memberId,
+                                leaderId, savedRid.index);
+                    }
+                    leader.send(message);
+                    cmember.latency.tail(savedRid.index);
+                } finally {
+                    message.release();
+                }
+            }
+            lastTarget = t;
+            lastIndex = savedRid.index;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how long the leader's command handler waits for more commands before sending a batch.
+ * <p>
+ * Lingering only pays off when more commands are likely to arrive while a batch is being committed. The policy
+ * measures the command arrival rate and the commit latency, which covers the storage writes and the network round
+ * trip, and aims for a batch of as many commands as arrive during one commit. At low load the target is one command
+ * and commands are sent immediately. At higher load the handler waits for the target to be reached, but never longer
+ * than max_linger and never beyond max_bytes of commands.
+ * <p>
+ * batchSent() and lingerNanos() are called by the command handler; committed() by the thread that advances the
+ * commit index.
+ */
+class BatchPolicy {
+    // The weight of a new sample in the moving averages
+    static final double ALPHA = 0.2;
+
+    // Moving average of the number of commands arriving per ns
+    double arrivalRate;
+    long lastBatchTs;
+
+    // Moving average of the time from sending a batch to committing it (ns); 0 if not yet measured
+    volatile double commitLatency;
+
+    // The last index of the batch being timed, or Integer.MAX_VALUE if none. Only one batch is timed at a time.
+    final AtomicInteger sampleIndex = new AtomicInteger(Integer.MAX_VALUE);
+    volatile long sampleTs;
+
+    // Config variables
+    int maxLinger;
+    int maxBytes;
+
+    BatchPolicy(Config config) {
+        config.registerForUpdates(config1 -> {
+            maxLinger = config1.getInt("gondola.batch_max_linger");
+            maxBytes = config1.getInt("gondola.batch_max_bytes");
+        });
+        lastBatchTs = System.nanoTime();
+    }
+
+    /**
+     * Returns the number of commands that are expected to arrive while a batch is being committed; at least 1.
+     */
+    int targetCommands() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, arrivalRate * commitLatency));
+    }
+
+    /**
+     * Returns how much longer to wait for more commands, given the commands already in the batch.
+     *
+     * @param startTs the time the batch was started, as returned by System.nanoTime().
+     * @return 0 if the batch should be sent now.
+     */
+    long lingerNanos(long startTs, int commands, int bytes) {
+        if (maxLinger <= 0 || commands >= targetCommands() || bytes >= maxBytes) {
+            return 0;
+        }
+        return Math.max(0, startTs + maxLinger * 1000L - System.nanoTime());
+    }
+
+    /**
+     * Returns true if a command of the given size still fits in the batch.
+     */
+    boolean fits(int commands, int bytes, int size) {
+        return commands == 0 || bytes + size <= maxBytes;
+    }
+
+    /**
+     * Called after a batch has been sent.
+     *
+     * @param lastIndex the index of the last command in the batch.
+     */
+    void batchSent(int commands, int lastIndex) {
+        long now = System.nanoTime();
+        double rate = (double) commands / Math.max(1, now - lastBatchTs);
+        arrivalRate = arrivalRate == 0 ? rate : (1 - ALPHA) * arrivalRate + ALPHA * rate;
+        lastBatchTs = now;
+
+        // Time this batch unless one is already being timed
+        if (sampleIndex.get() == Integer.MAX_VALUE) {
+            sampleTs = now;
+            sampleIndex.set(lastIndex);
+        }
+    }
+
+    /**
+     * Called whenever the commit index advances on the leader.
+     */
+    void committed(int commitIndex) {
+        int index = sampleIndex.get();
+        long ts = sampleTs;
+        if (commitIndex >= index && sampleIndex.compareAndSet(index, Integer.MAX_VALUE)) {
+            double latency = System.nanoTime() - ts;
+            commitLatency = commitLatency == 0 ? latency : (1 - ALPHA) * commitLatency + ALPHA * latency;
+        }
+    }
+
+    /**
+     * Forgets the batch being timed. Called when the member stops being the leader, since the batch may never be
+     * committed.
+     */
+    void reset() {
+        sampleIndex.set(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds the commands from clients that are waiting to be assigned an index. This is a bounded ring buffer that any
+ * number of threads can add to, but only the command handler thread can remove from. Adding a command costs a single
+ * CAS on the tail and removing one costs none, so committers do not contend on a lock.
+ * <p>
+ * Each slot has a sequence number which tells whether the slot is free for the producer that claimed position p
+ * (sequence == p) or holds the command added at position p (sequence == p + 1).
+ */
+public class CommandQueue {
+
+    // Time to wait before retrying to add a command to a full queue (ns)
+    static final long FULL_RETRY_NANOS = 100000;
+
+    final int capacity;
+    final int mask;
+    final AtomicReferenceArray<CoreCmd> slots;
+    final AtomicLongArray sequences;
+
+    // The next position to be claimed by a producer
+    final AtomicLong tail = new AtomicLong();
+
+    // The next position to be removed. Only written by the consumer.
+    volatile long head;
+
+    // Set by the consumer before it parks in take(), so that producers know to unpark it
+    volatile Thread consumer;
+    volatile boolean consumerWaiting;
+
+    /**
+     * @param size the minimum number of commands the queue can hold. Rounded up to a power of two.
+     */
+    public CommandQueue(int size) {
+        capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1);
+        mask = capacity - 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the command to the queue, if there is room. Can be called by any thread.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean offer(CoreCmd ccmd) {
+        while (true) {
+            long t = tail.get();
+            int i = (int) t & mask;
+            long seq = sequences.get(i);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots.set(i, ccmd);
+                    sequences.set(i, t + 1);
+                    if (consumerWaiting) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (seq < t) {
+                // The consumer has not removed the command added one lap ago
+                return false;
+            }
+            // Another producer claimed the position; retry with the new tail
+        }
+    }
+
+    /**
+     * Adds the command to the queue, waiting for the command handler to make room if the queue is full.
+     * Can be called by any thread.
+     */
+    public void add(CoreCmd ccmd) {
+        while (!offer(ccmd)) {
+            LockSupport.parkNanos(this, FULL_RETRY_NANOS);
+        }
+    }
+
+    /**
+     * Returns the oldest command without removing it. Must only be called by the consumer.
+     *
+     * @return null if the queue is empty.
+     */
+    public CoreCmd peek() {
+        long h = head;
+        int i = (int) h & mask;
+        return sequences.get(i) == h + 1 ? slots.get(i) : null;
+    }
+
+    /**
+     * Returns the oldest command without removing it, waiting up to timeoutNanos for one to be added. Must only be
+     * called by the consumer.
+     *
+     * @return null if the queue is still empty after the timeout.
+     */
+    public CoreCmd peek(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        consumer = Thread.currentThread();
+        while (true) {
+            CoreCmd ccmd = peek();
+            long remaining = deadline - System.nanoTime();
+            if (ccmd != null || remaining <= 0) {
+                return ccmd;
+            }
+
+            // Check again after announcing the wait, in case a producer added a command without unparking
+            consumerWaiting = true;
+            try {
+                ccmd = peek();
+                if (ccmd != null) {
+                    return ccmd;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } finally {
+                consumerWaiting = false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest command. Must only be called by the consumer.
+     *
+     * @return null if the queue is empty.
+     */
+    public CoreCmd poll() {
+        long h = head;
+        int i = (int) h & mask;
+        if (sequences.get(i) != h + 1) {
+            return null;
+        }
+        CoreCmd ccmd = slots.get(i);
+        slots.set(i, null);
+
+        // Frees the slot for the producer that claims it on the next lap
+        sequences.set(i, h + capacity);
+        head = h + 1;
+        return ccmd;
+    }
+
+    /**
+     * Removes the oldest command, blocking until one is available. Must only be called by the consumer.
+     */
+    public CoreCmd take() throws InterruptedException {
+        consumer = Thread.currentThread();
+        while (true) {
+            CoreCmd ccmd = poll();
+            if (ccmd != null) {
+                return ccmd;
+            }
+
+            // Check again after announcing the wait, in case a producer added a command without unparking
+            consumerWaiting = true;
+            try {
+                ccmd = poll();
+                if (ccmd != null) {
+                    return ccmd;
+                }
+                LockSupport.park(this);
+            } finally {
+                consumerWaiting = false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Returns the approximate number of commands in the queue. Can be called by any thread.
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+}
@@ -11,14 +11,14 @@ import com.yahoo.gondola.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
@@ -34,47 +34,41 @@ public class CommitQueue {
     final Storage storage;
     final MessagePool pool;
     final Stats stats;
-    final AtomicLong savedIndex;
-    final AtomicLong[] matchIndices;
 
-    // If non-null, the next add() will throw this exception
-    Exception exc;
-
-    // Lock to synchronize waiters and latestRid
+    // Lock to synchronize the waiters in awaitCommitted()
     final ReentrantLock lock = new ReentrantLock();
 
-    final Condition indexUpdated = lock.newCondition();
-
-    // Holds all commands waiting to be committed. Must be accessed with lock.
-    BlockingQueue<CoreCmd> commandQueue = new LinkedBlockingQueue<>();
-
-    int commitIndex;
+    // Signaled whenever the committed index advances while there are waiters, to wake up subscriptions
+    final Condition committed = lock.newCondition();
 
-    // The highest generated rid
-    Rid latestRid = new Rid();
+    // The number of threads waiting in awaitCommitted(). The lock is only taken to signal them if there are any.
+    final AtomicInteger committedWaiters = new AtomicInteger();
 
     // List of threads running in this class
     List<Thread> threads = new ArrayList<>();
 
-    // Holds all commands that have been assigned an index and are waiting to be committed.
-    Queue<CoreCmd> waitQueue = new PriorityBlockingQueue<>(100,
-            (o1, o2) -> o1.index - o2.index);
-
     // Holds all request for commands at an index that hasn't been committed yet.
     Queue<CoreCmd> getQueue = new PriorityBlockingQueue<>(100,
             (o1, o2) -> o1.index - o2.index);
 
+    // Committed entries that were read from storage ahead of sequential gets, in index order.
+    // Must be accessed while synchronized on the deque.
+    final ArrayDeque<LogEntry> readAheadEntries = new ArrayDeque<>();
+
+    // True while the application state is being restored from a snapshot. The committed entries follow the
+    // snapshot, so none are handed out until the restore is done.
+    volatile boolean paused;
+
     // Config variables
     boolean commandTracing;
     boolean storageTracing;
+    int readAhead;
 
     CommitQueue(Gondola gondola, CoreMember cmember) throws GondolaException {
         this.gondola = gondola;
         this.cmember = cmember;
         this.storage = gondola.getStorage();
         this.pool = gondola.getMessagePool();
-        this.savedIndex = null; //savedIndex;
-        this.matchIndices = null; //matchIndices;
         gondola.getConfig().registerForUpdates(configListener);
         stats = gondola.getStats();
     }
@@ -85,18 +79,15 @@ public class CommitQueue {
     Consumer<Config> configListener = config -> {
         commandTracing = config.getBoolean("gondola.tracing.command");
         storageTracing = config.getBoolean("gondola.tracing.storage");
+        readAhead = config.getInt("storage.read_ahead");
     };
 
     public void start() throws GondolaException {
-        //reset();
-
-        // Start local threads
-        //threads.add(new CommandHandler());
-        //threads.add(new IndexAdvancer());
         threads.forEach(t -> t.start());
     }
 
     public boolean stop() {
+        clearReadAhead();
         return Utils.stopThreads(threads);
     }
 
@@ -104,20 +95,6 @@ public class CommitQueue {
      * ***************** methods ********************
      */
 
-    /**
-     * Adds command to the command queue. Does not block. Called by the command object.
-     *
-     * @param ccmd non-null object containing the command to be committed.
-     */
-    public void add(CoreCmd ccmd) throws GondolaException {
-        // Commits are not allowed in slave mode
-        if (cmember.masterId >= 0) {
-            throw new GondolaException(GondolaException.Code.SLAVE_MODE, cmember.memberId);
-        }
-
-        commandQueue.add(ccmd);
-    }
-
     /**
      * Fetches the committed command at the specified index from storage. Blocks until the requested command is
      * committed.
@@ -129,7 +106,8 @@ public class CommitQueue {
         // Get latest saved index
         cmember.saveQueue.getLatestWait(cmember.savedRid);
 
-        if (index > cmember.commitIndex || index > cmember.savedRid.index) {
+        if (paused || index > cmember.commitIndex || index > cmember.savedRid.index) {
+            ccmd.prepareWait(index);
             getQueue.add(ccmd);
             ccmd.waitForLogEntry(index, timeout);
             if (ccmd.status == Command.STATUS_TIMEOUT) {
@@ -137,8 +115,15 @@ public class CommitQueue {
             }
         }
 
+        // Entries covered by the latest snapshot have been deleted from the log
+        int snapshotIndex = cmember.snapshotManager.getIndex();
+        if (index <= snapshotIndex) {
+            throw new GondolaException(String.format(
+                    "index=%d has been compacted into the snapshot at index=%d", index, snapshotIndex));
+        }
+
         // Get entry from storage
-        LogEntry le = storage.getLogEntry(cmember.memberId, index);
+        LogEntry le = getCommittedLogEntry(index);
         if (le == null) {
             throw new IllegalStateException(String.format("index=%d should be saved but is not. si=%d ci=%d",
                     index, cmember.savedRid.index, cmember.commitIndex));
@@ -160,10 +145,53 @@ public class CommitQueue {
         }
     }
 
+    /**
+     * Returns the committed entry at index. Sequential readers, such as the change log processor, typically get the
+     * entries one after the other, so the committed entries following index are read with the same range read and
+     * kept for the next calls. Committed entries never change, so they can be kept until the log is reset.
+     *
+     * @return null if the index does not exist.
+     */
+    LogEntry getCommittedLogEntry(int index) throws GondolaException {
+        if (readAhead <= 1) {
+            return storage.getLogEntry(cmember.memberId, index);
+        }
+        synchronized (readAheadEntries) {
+            // Discard the entries that have been passed
+            while (!readAheadEntries.isEmpty() && readAheadEntries.peek().index < index) {
+                readAheadEntries.poll().release();
+            }
+            if (readAheadEntries.isEmpty() || readAheadEntries.peek().index != index) {
+                clearReadAhead();
+                int lastIndex = Math.min(cmember.commitIndex, cmember.savedRid.index);
+                int maxCount = Math.max(Math.min(readAhead, lastIndex - index + 1), 1);
+                readAheadEntries.addAll(storage.getLogEntries(cmember.memberId, index, maxCount, Integer.MAX_VALUE));
+                if (storageTracing) {
+                    logger.info("[{}-{}] select(index={}, max={}) -> {} entries",
+                            gondola.getHostId(), cmember.memberId, index, maxCount, readAheadEntries.size());
+                }
+            }
+            return readAheadEntries.poll();
+        }
+    }
+
+    /**
+     * Releases the entries that were read ahead. Must be called whenever the contents of the log are replaced.
+     */
+    void clearReadAhead() {
+        synchronized (readAheadEntries) {
+            readAheadEntries.forEach(LogEntry::release);
+            readAheadEntries.clear();
+        }
+    }
+
     /**
      * Called by SaveQueue and Peer whenever savedIndex or matchIndex increases.
      */
     public void updateCommitIndex(int index) {
+        if (paused) {
+            return;
+        }
         /*
         int index = commitIndex;
         if (cmember.isFollower()) {
@@ -178,155 +206,80 @@ public class CommitQueue {
             getQueue.poll();
             ccmd = getQueue.peek();
         }
-    }
 
-    /**
-     * Throws an exception to any waiters for log entries.
-     */
-    public void enterSlaveMode() {
-        // Clear out get queue
-        CoreCmd ccmd = getQueue.peek();
-        while (ccmd != null) {
-            ccmd = getQueue.remove();
-            ccmd.update(Command.STATUS_SLAVE_MODE, cmember.leaderId);
-            ccmd = getQueue.peek();
+        // Wake up subscriptions. The indices are not volatile, so a read-modify-write is used instead of get() to
+        // order their updates with the increment done by a new waiter before it checks them.
+        if (committedWaiters.getAndAdd(0) > 0) {
+            lock.lock();
+            try {
+                committed.signalAll();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     /**
-     * This thread reads commands from the command queue and processes them. The command is assigned an index and then
-     * moved to the wait queue. The command is then sent to the save queue for persistance and to the peers for
-     * transmission to the remote members.
+     * Blocks until the entry at index has been committed and saved. Used by subscriptions, which then read all
+     * the available entries at once.
+     *
+     * @param timeout -1 means there is no timeout.
+     * @return the highest index that has been committed and saved, which is >= index.
      */
-    class CommandHandler extends Thread {
-
-        CommandHandler() {
-            setName("CommandHandler-" + cmember.memberId);
-            setDaemon(true);
-        }
-
-        public void run() {
-            while (true) {
-                Message message = pool.checkout();
-                try {
-                    CoreCmd ccmd = commandQueue.take();
-                    int prevLogIndex = latestRid.index;
-
-                    // TODO: need to properly handle case where storage fails
-                    // Prepare an append entry request for the command
-                    message.appendEntryRequest(cmember.memberId, cmember.currentTerm, latestRid, commitIndex,
-                            cmember.currentTerm, ccmd.buffer, 0, ccmd.size);
-                    lock.lock();
-                    try {
-                        ccmd.term = cmember.currentTerm;
-                        ccmd.index = latestRid.index + 1;
-                        latestRid.set(ccmd.term, ccmd.index);
-                        waitQueue.add(ccmd);
-
-                        // Batch more commands if possible
-                        ccmd = commandQueue.peek();
-                        while (ccmd != null && message.canBatch(ccmd.size)) {
-                            ccmd = commandQueue.remove();
-                            message.appendEntryBatch(ccmd.buffer, 0, ccmd.size);
-                            ccmd.term = cmember.currentTerm;
-                            ccmd.index = latestRid.index + 1;
-                            latestRid.set(ccmd.term, ccmd.index);
-                            waitQueue.add(ccmd);
-                            ccmd = commandQueue.peek();
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-
-                    // Message is full and ready to send
-                    cmember.sendAppendEntryRequest(message, prevLogIndex);
-                } catch (InterruptedException e) {
-                    return;
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                    try {
-                        // Pause to avoid a spin loop
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e2) {
-                        return;
-                    }
-                } finally {
-                    message.release();
+    public int awaitCommitted(int index, int timeout) throws InterruptedException, TimeoutException {
+        cmember.saveQueue.getLatestWait(cmember.savedRid);
+        long endTs = timeout < 0 ? Long.MAX_VALUE : gondola.getClock().now() + timeout;
+        committedWaiters.incrementAndGet();
+        lock.lock();
+        try {
+            int committedIndex = committedIndex();
+            while (committedIndex < index) {
+                long remaining = endTs - gondola.getClock().now();
+                if (remaining <= 0) {
+                    throw new TimeoutException(String.format("Timeout (%d ms) for index %d", timeout, index));
                 }
+                if (timeout < 0) {
+                    committed.await();
+                } else {
+                    committed.await(remaining, TimeUnit.MILLISECONDS);
+                }
+                committedIndex = committedIndex();
             }
+            return committedIndex;
+        } finally {
+            lock.unlock();
+            committedWaiters.decrementAndGet();
         }
     }
 
+    int committedIndex() {
+        return paused ? 0 : Math.min(cmember.commitIndex, cmember.savedRid.index);
+    }
+
     /**
-     *
+     * Holds back the committed entries while the application state is being restored from a snapshot.
      */
-    class IndexAdvancer extends Thread {
-
-        long[] arr = new long[matchIndices.length];
+    void pause() {
+        paused = true;
+    }
 
-        IndexAdvancer() {
-            setName("IndexAdvancer-" + cmember.memberId);
-            setDaemon(true);
-        }
+    /**
+     * Hands out the committed entries again. The caller must then call updateCommitIndex() to release the waiters.
+     */
+    void resume() {
+        paused = false;
+    }
 
-        public void run() {
-            while (true) {
-                try {
-                    lock.lock();
-                    try {
-                        indexUpdated.await();
-                    } finally {
-                        lock.unlock();
-                    }
-
-                    // Put all indices into an array for sorting
-                    for (int i = 0; i < matchIndices.length; i++) {
-                        arr[i] = matchIndices[i].get();
-                    }
-
-                    // Bubble sort in descending order
-                    for (int i = 0; i < arr.length; i++) {
-                        for (int j = 1; j < arr.length - i; j++) {
-                            if (arr[j - 1] < arr[j]) {
-                                // Swap
-                                long temp = arr[j - 1];
-                                arr[j - 1] = arr[j];
-                                arr[j] = temp;
-                            }
-                        }
-                    }
-
-                    // The first index is assumed to be the locally saved index.
-                    // Ensure the new commit index is not greater than the saved index.
-                    int newCommitIndex = (int) Math.min(savedIndex.get(),
-                            matchIndices[matchIndices.length - cmember.majority].get());
-
-                    // Don't update with smaller commit index. This can happen if an up-to-date peer dies
-                    // at the same time an out-of-date peer comes up. In this case, new writes will block until the
-                    // out-of-date peer is caught up.
-                    if (newCommitIndex > commitIndex) {
-                        lock.lock();
-                        try {
-                            if (newCommitIndex > commitIndex) {
-                                //cmember.sendAppendEntryRequest(message, prevLogIndex);
-                                commitIndex = newCommitIndex;
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    return;
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                    try {
-                        // Pause to avoid a spin loop
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e2) {
-                        return;
-                    }
-                }
-            }
+    /**
+     * Throws an exception to any waiters for log entries.
+     */
+    public void enterSlaveMode() {
+        // Clear out get queue
+        CoreCmd ccmd = getQueue.peek();
+        while (ccmd != null) {
+            ccmd = getQueue.remove();
+            ccmd.update(Command.STATUS_SLAVE_MODE, cmember.leaderId);
+            ccmd = getQueue.peek();
         }
     }
 }
@@ -12,11 +12,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Field;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  */
@@ -33,18 +35,16 @@ public class CoreCmd {
     int counter;
     final static CoreMember.Latency commitLatency = new CoreMember.Latency();
 
-    // Only status needs to be properly protected by this lock.
-    final ReentrantLock lock = new ReentrantLock();
-
-    // Clients waiting to commit or retrieve a command block on this condition variable.
-    // Blocking continues until the status is not NONE.
-    final Condition updateCond = lock.newCondition();
+    // The client thread waiting to commit or retrieve a command parks until the status is not NONE.
+    // update() sets the status before reading this field, and the waiter sets it before reading the status,
+    // so the waiter is always either unparked or sees the new status.
+    volatile Thread waiter;
 
     // These are assigned when the command is waiting to be committed and also when command is retrieved from the log
     public int term;
     public int index;
 
-    // Results to return to the waiter. Initialized in reset().
+    // Results to return to the waiter. Initialized in reset(). The other results are written before status.
     public volatile int status;
     public int leaderId;
     public int commitIndex;
@@ -52,6 +52,12 @@ public class CoreCmd {
     // Non-null when status is ERROR
     String errorMessage;
 
+    // Non-null while an asynchronous commit is waiting for its status. Whoever detaches the future, either
+    // update() or the timer, completes it.
+    final AtomicReference<CompletableFuture<Void>> future = new AtomicReference<>();
+    volatile ScheduledFuture<?> timer;
+    int timeout;
+
     // Holds the command
     public byte[] buffer;
 
@@ -109,6 +115,51 @@ public class CoreCmd {
      */
     public void commit(byte[] buf, int bufOffset, int bufLen, int timeout)
             throws GondolaException, InterruptedException, TimeoutException {
+        prepare(buf, bufOffset, bufLen);
+
+        // Add to the queue to be processed. Member will call update() when the commit index is advanced.
+        waiter = Thread.currentThread();
+        try {
+            cmember.addCommand(this);
+            awaitUpdate(timeout);
+        } finally {
+            waiter = null;
+        }
+
+        // A simple check in case the command was released prematurely
+        if (size != bufLen) {
+            logger.error("This command object is being used by another thread");
+        }
+        checkCommitStatus(timeout);
+    }
+
+    /**
+     * Same as commit() but does not block. The returned future is completed, on one of gondola's completion threads,
+     * when the command has been committed or has failed with one of the exceptions thrown by commit().
+     * This command object must not be used again until the future is completed.
+     *
+     * @param timeout if -1, the timeout is disabled.
+     * @return non-null future.
+     */
+    public CompletableFuture<Void> commitAsync(byte[] buf, int bufOffset, int bufLen, int timeout) {
+        prepare(buf, bufOffset, bufLen);
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        this.timeout = timeout;
+        timer = null;
+        future.set(f);
+        if (timeout >= 0) {
+            timer = gondola.schedule(() -> expire(f), timeout);
+        }
+
+        // Member will call update() when the commit index is advanced
+        cmember.addCommand(this);
+        return f;
+    }
+
+    /**
+     * Copies the command into this object before it is committed.
+     */
+    void prepare(byte[] buf, int bufOffset, int bufLen) {
         if (bufLen + bufOffset > buffer.length) {
             throw new IllegalStateException(
                     String.format("Command buffer is not large enough. bytes=%d + offset=%d > capacity=%d",
@@ -119,37 +170,18 @@ public class CoreCmd {
         commitLatency.head(counter);
         System.arraycopy(buf, bufOffset, buffer, 0, bufLen);
         size = bufLen;
+    }
 
-        // Add to the queue to be processed. Member will call update() when the commit index is advanced.
-        cmember.addCommand(this);
-
-        // Wait for updates
-        long endTs = timeout < 0 ? Long.MAX_VALUE : gondola.getClock().now() + timeout;
-        lock.lock();
-        try {
-            while (status == Command.STATUS_NONE && gondola.getClock().now() < endTs) {
-                if (timeout < 0) {
-                    updateCond.await();
-                } else {
-                    updateCond.await(timeout, TimeUnit.MILLISECONDS);
-                }
-            }
-
-            // A simple check in case the command was released prematurely
-            if (size != bufLen) {
-                logger.error("This command object is being used by another thread");
-            }
-            //commitLatency.tail(counter);
-        } finally {
-            lock.unlock();
-        }
-
+    /**
+     * Throws the exception that corresponds to the status of a finished commit.
+     */
+    void checkCommitStatus(int timeout) throws GondolaException, TimeoutException {
         switch (status) {
             case Command.STATUS_NONE:
                 // Timeout occurred
                 status = Command.STATUS_TIMEOUT;
                 throw new TimeoutException(String.format("Timeout (%d ms) for index %d size %d",
-                        timeout, index, bufLen));
+                        timeout, index, size));
             case Command.STATUS_NOT_LEADER:
                 throw new GondolaException(GondolaException.Code.NOT_LEADER, leaderId == -1 ? "unknown"
                         : gondola.getConfig().getAddressForMember(leaderId));
@@ -167,37 +199,96 @@ public class CoreCmd {
         commitLatency.tail(counter);
     }
 
+    /**
+     * Parks the calling thread, which must be the waiter, until the status is updated or the timeout expires.
+     */
+    void awaitUpdate(int timeout) throws InterruptedException {
+        long endTs = timeout < 0 ? Long.MAX_VALUE : gondola.getClock().now() + timeout;
+        while (status == Command.STATUS_NONE) {
+            long remaining = endTs - gondola.getClock().now();
+            if (remaining <= 0) {
+                break;
+            }
+            if (timeout < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remaining));
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Called by the timer of an asynchronous commit.
+     */
+    void expire(CompletableFuture<Void> f) {
+        // Does nothing if already completed
+        if (future.compareAndSet(f, null)) {
+            complete(f);
+        }
+    }
+
+    /**
+     * Completes the future of an asynchronous commit according to the current status.
+     * Must be called after the future has been detached from this object.
+     */
+    void complete(CompletableFuture<Void> f) {
+        ScheduledFuture<?> timer = this.timer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        Exception exception = null;
+        try {
+            checkCommitStatus(timeout);
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // The callbacks of the client run when the future is completed, so complete it on a completion thread
+        Exception e = exception;
+        Runnable task = () -> {
+            if (e == null) {
+                f.complete(null);
+            } else {
+                f.completeExceptionally(e);
+            }
+        };
+        if (gondola.schedule(task, 0) == null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Prepares this command to wait for the log entry at index. Must be called before the command is made visible to
+     * the thread that calls update().
+     */
+    void prepareWait(int index) {
+        reset();
+        this.index = index;
+        waiter = Thread.currentThread();
+    }
+
     /**
      * This should not be called by clients. This method is called indirectly via a client call to
-     * Shard.getCommittedCommand(), when the requested index has not been committed yet. After this call, this command
-     * object can be used again.
+     * Shard.getCommittedCommand(), when the requested index has not been committed yet, after prepareWait().
+     * After this call, this command object can be used again.
      *
      * @param index   the index of the log entry.
      * @param timeout return after timeout milliseconds, even if the log entry is not available.
      */
     void waitForLogEntry(int index, int timeout)
             throws GondolaException, InterruptedException, TimeoutException {
-        reset();
-        this.index = index;
-
-        // Wait for updates
-        long endTs = timeout < 0 ? Long.MAX_VALUE : gondola.getClock().now() + timeout;
-        lock.lock();
         try {
-            while (status == Command.STATUS_NONE && gondola.getClock().now() < endTs) {
-                if (timeout < 0) {
-                    updateCond.await();
-                } else {
-                    updateCond.await(timeout, TimeUnit.MILLISECONDS);
-                }
-            }
-
-            // A simple check in case the command is being used by another thread
-            if (this.index != index) {
-                logger.error("This command object is being used by another thread");
-            }
+            awaitUpdate(timeout);
         } finally {
-            lock.unlock();
+            waiter = null;
+        }
+
+        // A simple check in case the command is being used by another thread
+        if (this.index != index) {
+            logger.error("This command object is being used by another thread");
         }
 
         switch (status) {
@@ -227,13 +318,15 @@ public class CoreCmd {
      * @return true if the command should be removed from the wait queue.
      */
     void update(int status, int leaderId) {
-        lock.lock();
-        try {
-            this.status = status;
-            this.leaderId = leaderId;
-            updateCond.signal();
-        } finally {
-            lock.unlock();
+        this.leaderId = leaderId;
+        this.status = status;
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        CompletableFuture<Void> f = future.getAndSet(null);
+        if (f != null) {
+            complete(f);
         }
     }
 
@@ -40,8 +40,10 @@ public class CoreMember implements Stoppable {
     final int memberId;
     final List<Integer> peerIds;
     final boolean isPrimary;
+    final SnapshotManager snapshotManager;
     final SaveQueue saveQueue;
     final CommitQueue commitQueue;
+    final Acknowledger acknowledger;
 
     public Map<Integer, Peer> peers = new HashMap<>();
     public List<Peer> slaves = new ArrayList<>();
@@ -74,16 +76,33 @@ public class CoreMember implements Stoppable {
     final Condition workAvailable = lock.newCondition();
     final Condition roleChange = lock.newCondition();
 
-    // The wait queue holds all clients that have sent an AppendEntry and is awaiting a response
-    Queue<CoreCmd> waitQueue = new PriorityBlockingQueue<CoreCmd>(100,
-            (o1, o2) -> o1.index - o2.index);
+    // Signaled when a peer acknowledges the leader while readIndex() callers are waiting
+    final Condition acked = lock.newCondition();
+
+    // Numbers the requests of readIndex() to confirm leadership. Every heartbeat carries the latest round, which the
+    // peers echo in their replies, so that only the replies to heartbeats sent after a read started are counted.
+    // The counter wraps around; 0 is skipped since it means no round.
+    final AtomicInteger readRound = new AtomicInteger();
+
+    // The number of threads waiting in readIndex() for a peer to acknowledge the leader
+    final AtomicInteger readWaiters = new AtomicInteger();
+
+    // The index of the first entry of the leader's term. Reads are only served once it has been committed, since
+    // the commit index is not known to be up-to-date before then.
+    volatile int termStartIndex;
+
+    // The wait queue holds all clients that have sent an AppendEntry and is awaiting a response.
+    // The command handler assigns increasing indices to the commands, so the queue is in index order.
+    Queue<CoreCmd> waitQueue = new ConcurrentLinkedQueue<>();
 
     // Contains message sent from the peers. It is bounded.
     BlockingQueue<Message> incomingQueue;
 
     // Contains commands from clients
-    //Queue<CoreCmd> commandQueue = new ConcurrentLinkedQueue<>();
-    BlockingQueue<CoreCmd> commandQueue = new LinkedBlockingQueue<>();
+    final CommandQueue commandQueue;
+
+    // Decides how long the command handler waits to fill a batch
+    final BatchPolicy batchPolicy;
 
     // Contains action requests from other threads
     //Queue<CoreMemberActionQueue> actionQueue = new ConcurrentLinkedQueue<>();
@@ -104,6 +123,10 @@ public class CoreMember implements Stoppable {
     // List of threads running in this class
     List<Thread> threads = new ArrayList<>();
 
+    // Restores the application state from a snapshot received from the leader; null if no restore is running.
+    // Only set by the main loop.
+    volatile SnapshotRestorer restorer;
+
     // This is declared as an instance variable to avoid having to allocate for every iteration of the main loop.
     int[] matchIndices;
 
@@ -120,9 +143,11 @@ public class CoreMember implements Stoppable {
     int electionTimeout;
     int leaderTimeout;
     int heartbeatPeriod;
+    int readLeasePeriod;
     int prevotePeriod;
     int summaryTracingPeriod;
     int incomingQueueSize;
+    int commandQueueSize;
     int waitQueueThrottleSize;
     File fileLockDir;
     FileChannel fileLockChannel;
@@ -149,8 +174,12 @@ public class CoreMember implements Stoppable {
         pool = gondola.getMessagePool();
         storage = gondola.getStorage();
         incomingQueue = new ArrayBlockingQueue<>(incomingQueueSize);
+        commandQueue = new CommandQueue(commandQueueSize);
+        batchPolicy = new BatchPolicy(gondola.getConfig());
+        snapshotManager = new SnapshotManager(gondola, this);
         saveQueue = new SaveQueue(gondola, this);
         commitQueue = new CommitQueue(gondola, this);
+        acknowledger = new Acknowledger(gondola, this);
         gondola.getNetwork().register(memberId, channel -> acceptSlaveConnection(channel));
 
         peerIds.forEach(id -> peers.put(id, new Peer(gondola, this, id)));
@@ -169,12 +198,14 @@ public class CoreMember implements Stoppable {
         commandTracing = config.getBoolean("gondola.tracing.command");
 
         heartbeatPeriod = config.getInt("raft.heartbeat_period");
+        readLeasePeriod = config.getInt("raft.read_lease_period");
         prevotePeriod = config.getInt("raft.request_vote_period");
         summaryTracingPeriod = config.getInt("gondola.tracing.summary_period");
         electionTimeout = config.getInt("raft.election_timeout");
         leaderTimeout = config.getInt("raft.leader_timeout");
 
         incomingQueueSize = config.getInt("gondola.incoming_queue_size");
+        commandQueueSize = config.getInt("gondola.command_queue_size");
         waitQueueThrottleSize = config.getInt("gondola.wait_queue_throttle_size");
         fileLockDir = new File(config.get("gondola.file_lock_dir"));
         slaveInactivityTimeout = config.getInt("gondola.slave_inactivity_timeout");
@@ -184,6 +215,11 @@ public class CoreMember implements Stoppable {
             throw new IllegalStateException(String.format("heartbeat period (%d) must be < election timeout (%d)",
                     heartbeatPeriod, electionTimeout));
         }
+        if (readLeasePeriod >= electionTimeout - heartbeatPeriod) {
+            throw new IllegalStateException(String.format(
+                    "read lease period (%d) must be < election timeout (%d) - heartbeat period (%d)",
+                    readLeasePeriod, electionTimeout, heartbeatPeriod));
+        }
     };
 
     /**
@@ -204,6 +240,7 @@ public class CoreMember implements Stoppable {
         // Clear queues
         incomingQueue.clear();
         waitQueue.clear();
+        commitQueue.clearReadAhead();
 
         // Get the latest values from storage, which has been settled via becomeX().
         currentTerm = storage.getCurrentTerm(memberId);
@@ -243,6 +280,7 @@ public class CoreMember implements Stoppable {
         // Start local threads
         saveQueue.start();
         commitQueue.start();
+        acknowledger.start();
         threads.add(new MainLoop());
         threads.add(new CommandHandler());
         threads.forEach(t -> t.start());
@@ -259,7 +297,12 @@ public class CoreMember implements Stoppable {
         }
         status = saveQueue.stop() && status;
         status = commitQueue.stop() && status;
+        status = acknowledger.stop() && status;
         status = Utils.stopThreads(threads) && status;
+        SnapshotRestorer restorer = this.restorer;
+        if (restorer != null) {
+            status = Utils.stopThreads(Collections.singletonList(restorer)) && status;
+        }
         try {
             fileLock(false);
         } catch (IOException e) {
@@ -337,10 +380,22 @@ public class CoreMember implements Stoppable {
     }
 
     /**
-     * Adds command to the command queue. Does not block. Called by the command object.
+     * Adds command to the command queue. Only blocks if the queue is full. Called by the command object.
      */
     public void addCommand(CoreCmd ccmd) {
         commandQueue.add(ccmd);
+    }
+
+    /**
+     * Adds message to the incoming queue. Does not block. Called by connection objects after receiving a message.
+     */
+    public void addIncoming(Message message) throws InterruptedException {
+        message.acquire();
+        if (!incomingQueue.offer(message)) {
+            gondola.getStats().incomingQueueFull();
+            incomingQueue.put(message);
+        }
+
         lock.lock();
         try {
             workAvailable.signal();
@@ -350,13 +405,16 @@ public class CoreMember implements Stoppable {
     }
 
     /**
-     * Adds message to the incoming queue. Does not block. Called by connection objects after receiving a message.
+     * Adds message to the incoming queue, unless the queue is full. Never blocks, so it can be called by a thread
+     * that receives messages for other members as well.
+     *
+     * @return false if the queue is full and the message was not added.
      */
-    public void addIncoming(Message message) throws InterruptedException {
+    public boolean offerIncoming(Message message) {
         message.acquire();
         if (!incomingQueue.offer(message)) {
-            gondola.getStats().incomingQueueFull();
-            incomingQueue.put(message);
+            message.release();
+            return false;
         }
 
         lock.lock();
@@ -365,6 +423,7 @@ public class CoreMember implements Stoppable {
         } finally {
             lock.unlock();
         }
+        return true;
     }
 
     /**
@@ -378,6 +437,138 @@ public class CoreMember implements Stoppable {
         commitQueue.get(ccmd, index, timeout);
     }
 
+    /**
+     * Blocks until the requested index is committed.
+     *
+     * @param timeout -1 means there is no timeout.
+     * @return the highest committed index that can be read, which is >= index.
+     */
+    public int awaitCommitted(int index, int timeout) throws InterruptedException, TimeoutException {
+        return commitQueue.awaitCommitted(index, timeout);
+    }
+
+    /**
+     * Returns an index such that reading the state at or after this index is linearizable, without writing to the
+     * log. This is the ReadIndex protocol: the commit index at the time of the call is returned after a majority of
+     * the members have acknowledged that this member is still the leader. If raft.read_lease_period is set and a
+     * majority acknowledged the leader within the period, the acknowledgements are not awaited.
+     * Returns once the index has been committed locally.
+     * <p>
+     * Without the lease, only replies to heartbeats that were sent after the call are counted, which does not depend
+     * on timing. The lease assumes that messages are delivered within raft.election_timeout - raft.heartbeat_period,
+     * since a member does not grant a prevote for election_timeout after hearing from the leader.
+     *
+     * @param timeout -1 means there is no timeout.
+     * @throws GondolaException with code NOT_LEADER if this member is not or stops being the leader.
+     */
+    public int readIndex(int timeout) throws InterruptedException, GondolaException, TimeoutException {
+        long endTs = timeout < 0 ? Long.MAX_VALUE : clock.now() + timeout;
+        int term = currentTerm;
+        checkLeader(term);
+
+        // Wait for the first entry of the term so that the commit index includes every committed entry
+        while (commitIndex < termStartIndex) {
+            checkLeader(term);
+            try {
+                int waitMs = remaining(endTs);
+                awaitCommitted(termStartIndex, waitMs < 0 ? heartbeatPeriod : Math.min(waitMs, heartbeatPeriod));
+            } catch (TimeoutException e) {
+                if (clock.now() >= endTs) {
+                    throw e;
+                }
+            }
+        }
+        long readTs = clock.now();
+        int index = commitIndex;
+
+        if (readLeasePeriod <= 0 || !isAckedByMajority(readTs - readLeasePeriod)) {
+            int round = readRound.incrementAndGet();
+            if (round == 0) {
+                round = readRound.incrementAndGet();
+            }
+            readWaiters.incrementAndGet();
+            try {
+                actionQueue.confirmLeadership();
+                lock.lock();
+                try {
+                    workAvailable.signal();
+                    while (!isRoundAckedByMajority(round)) {
+                        checkLeader(term);
+                        long waitMs = endTs - clock.now();
+                        if (waitMs <= 0) {
+                            throw new TimeoutException(String.format(
+                                    "Timeout (%d ms) waiting for a majority to acknowledge the leader", timeout));
+                        }
+                        clock.awaitCondition(lock, acked, Math.min(waitMs, heartbeatPeriod));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                readWaiters.decrementAndGet();
+            }
+        }
+        checkLeader(term);
+
+        // Returns immediately since the leader only commits saved entries
+        awaitCommitted(index, remaining(endTs));
+        return index;
+    }
+
+    /**
+     * Called by a peer when it receives a reply in the current term.
+     */
+    void peerAcked() {
+        if (readWaiters.get() > 0) {
+            lock.lock();
+            try {
+                acked.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns true if a majority of the members, including this one, have acknowledged the leader at or after ts.
+     */
+    boolean isAckedByMajority(long ts) {
+        int count = 1;
+        for (Peer peer : peers.values()) {
+            if (peer.lastAckTs >= ts) {
+                count++;
+            }
+        }
+        return count >= majority;
+    }
+
+    /**
+     * Returns true if a majority of the members, including this one, have acknowledged a heartbeat of the read round
+     * or of a later one.
+     */
+    boolean isRoundAckedByMajority(int round) {
+        int count = 1;
+        for (Peer peer : peers.values()) {
+            int ackedRound = peer.ackedRound;
+            if (ackedRound != 0 && ackedRound - round >= 0) {
+                count++;
+            }
+        }
+        return count >= majority;
+    }
+
+    void checkLeader(int term) throws GondolaException {
+        if (!isLeader() || currentTerm != term) {
+            int leaderId = this.leaderId;
+            throw new GondolaException(GondolaException.Code.NOT_LEADER, leaderId == -1 || leaderId == memberId
+                    ? "unknown" : gondola.getConfig().getAddressForMember(leaderId));
+        }
+    }
+
+    int remaining(long endTs) {
+        return endTs == Long.MAX_VALUE ? -1 : (int) Math.max(0, endTs - clock.now());
+    }
+
     /**
      * Called by save queue after advancing savedIndex or when receiving updated matchIndex from peers.
      *
@@ -391,6 +582,7 @@ public class CoreMember implements Stoppable {
             assert role != Role.LEADER;
             actionQueue.updateStorageIndex();
         } else {
+            acknowledger.wake();
             actionQueue.updateSavedIndex();
         }
         lock.lock();
@@ -480,11 +672,20 @@ public class CoreMember implements Stoppable {
                             // The saved index has advanced
                             if (isLeader()) {
                                 advanceCommitIndex();
-                            } else if (isFollower()) {
+                            } else if (isFollower() && !acknowledger.isEnabled()) {
                                 sendAppendEntryReply();
                             }
                             updateWaitingCommands();
                             break;
+                        case CONFIRM_LEADERSHIP:
+                            // A reader is waiting for the peers to acknowledge this leader
+                            if (isLeader()) {
+                                sendHeartbeat(true);
+                            }
+                            break;
+                        case SNAPSHOT_RESTORED:
+                            snapshotRestored();
+                            break;
                         case EXECUTE:
                             action.futureTask.run();
                             break;
@@ -588,11 +789,12 @@ public class CoreMember implements Stoppable {
     }
 
     // TODO: this thread is not correctly synchronized. inserts might occur just after member becomes non-leader
-    void handleCommand(CoreCmd ccmd) {
+    void handleCommand(CoreCmd ccmd) throws InterruptedException {
         if (isLeader()) {
             Message message = pool.checkout();
             try {
                 int prevLogIndex = sentRid.index;
+                long startTs = System.nanoTime();
 
                 // Prepare an append entry request for the command
                 message.appendEntryRequest(memberId, currentTerm, sentRid, commitIndex,
@@ -602,22 +804,39 @@ public class CoreMember implements Stoppable {
                 latency.head(ccmd.index);
                 sentRid.set(ccmd.term, ccmd.index);
                 waitQueue.add(ccmd);
+                int commands = 1;
+                int bytes = ccmd.size;
 
-                // Batch more commands if possible
+                // Batch more commands if possible, waiting for them if the batch policy expects more soon
                 ccmd = commandQueue.peek();
-                while (ccmd != null && message.canBatch(ccmd.size)) {
-                    ccmd = commandQueue.remove();
+                while (true) {
+                    if (ccmd == null) {
+                        long linger = batchPolicy.lingerNanos(startTs, commands, bytes);
+                        if (linger == 0 || !isLeader()) {
+                            break;
+                        }
+                        ccmd = commandQueue.peek(linger);
+                        continue;
+                    }
+                    if (!message.canBatch(ccmd.size) || !batchPolicy.fits(commands, bytes, ccmd.size)) {
+                        break;
+                    }
+                    ccmd = commandQueue.poll();
                     message.appendEntryBatch(ccmd.buffer, 0, ccmd.size);
                     ccmd.term = currentTerm;
                     ccmd.index = sentRid.index + 1;
                     latency.head(ccmd.index);
                     sentRid.set(ccmd.term, ccmd.index);
                     waitQueue.add(ccmd);
+                    commands++;
+                    bytes += ccmd.size;
                     ccmd = commandQueue.peek();
                 }
 
                 // Message is full and ready to send
                 sendAppendEntryRequest(message, prevLogIndex);
+                batchPolicy.batchSent(commands, sentRid.index);
+                gondola.getStats().commandBatch(commands);
             } finally {
                 message.release();
             }
@@ -633,6 +852,7 @@ public class CoreMember implements Stoppable {
 
     void become(Role role, int leaderId) throws GondolaException {
         // Clear peers and reset storage state
+        acknowledger.unfollow();
         peers.forEach((id, p) -> p.reset());
         slaves.forEach(p -> p.reset());
         saveQueue.settle(savedRid);
@@ -644,6 +864,7 @@ public class CoreMember implements Stoppable {
 
         // Clear any waiting committers
         if (role != Role.LEADER) {
+            batchPolicy.reset();
             CoreCmd ccmd = waitQueue.peek();
             while (ccmd != null) {
                 ccmd.update(Command.STATUS_NOT_LEADER, leaderId);
@@ -664,6 +885,7 @@ public class CoreMember implements Stoppable {
         logger.info("[{}-{}] Becomes LEADER for term {} {}",
                 gondola.getHostId(), memberId, currentTerm, isPrimary ? "(primary)" : "");
         become(Role.LEADER, memberId);
+        termStartIndex = sentRid.index + 1;
 
         // Initialize raft variables
         for (Peer peer : peers.values()) {
@@ -678,8 +900,9 @@ public class CoreMember implements Stoppable {
         }
 
         // If command queue is empty, add a no-op command to commit entries from the previous term
+        // The queue can only be full if it is not empty, in which case the no-op is not needed
         if (commandQueue.size() == 0 && sentRid.term < currentTerm) {
-            commandQueue.add(new CoreCmd(gondola, shard, this));
+            commandQueue.offer(new CoreCmd(gondola, shard, this));
         }
     }
 
@@ -722,6 +945,7 @@ public class CoreMember implements Stoppable {
         int index = commitIndex;
         if (isLeader()) {
             // Commit
+            batchPolicy.committed(index);
             CoreCmd ccmd = waitQueue.peek();
             while (ccmd != null && ccmd.index <= index) {
                 latency.tail(ccmd.index);
@@ -739,7 +963,8 @@ public class CoreMember implements Stoppable {
     void sendHeartbeat(boolean force) {
         // Send heartbeat only if there were no sent messages within the period
         if (force || clock.now() >= lastSentTs + heartbeatPeriod) {
-            sendHeartbeatRequest(sentRid);
+            // Forced heartbeats are not coalesced, since they should not wait for the next coalescing period
+            sendHeartbeatRequest(sentRid, !force);
         }
     }
 
@@ -818,21 +1043,9 @@ public class CoreMember implements Stoppable {
         final int[] ix = {0};
         peers.forEach((id, p) -> matchIndices[ix[0]++] = p.matchIndex);
 
-        // Bubble sort in descending order
-        for (int i = 0; i < matchIndices.length; i++) {
-            for (int j = 1; j < matchIndices.length - i; j++) {
-                if (matchIndices[j - 1] < matchIndices[j]) {
-                    // Swap
-                    int temp = matchIndices[j - 1];
-                    matchIndices[j - 1] = matchIndices[j];
-                    matchIndices[j] = temp;
-                }
-            }
-        }
-
         // New commit index cannot be > locally saved index
         saveQueue.getLatest(savedRid);
-        int newCommitIndex = Math.min(savedRid.index, matchIndices[matchIndices.length - majority]);
+        int newCommitIndex = Math.min(savedRid.index, majorityMatchIndex());
 
         // Don't update with smaller commit index. This can happen if an up-to-date peer dies
         // at the same time an out-of-date peer comes up. In this case, new writes will block until the
@@ -842,6 +1055,30 @@ public class CoreMember implements Stoppable {
         }
     }
 
+    /**
+     * Returns the highest index that has been matched by a majority of the members, counting the leader, from the
+     * match indices of the peers. This is the (majority - 1)th largest value of matchIndices, which is found by
+     * counting the values that are >= each candidate instead of sorting, since there are only a few members.
+     */
+    int majorityMatchIndex() {
+        int needed = majority - 1;
+        int result = 0;
+        for (int candidate : matchIndices) {
+            if (candidate > result) {
+                int count = 0;
+                for (int index : matchIndices) {
+                    if (index >= candidate) {
+                        count++;
+                    }
+                }
+                if (count >= needed) {
+                    result = candidate;
+                }
+            }
+        }
+        return result;
+    }
+
     public boolean showSummary(long waitMs, boolean force) {
         // Show queue information
         long now = clock.now();
@@ -849,20 +1086,22 @@ public class CoreMember implements Stoppable {
             Stats stats = gondola.getStats();
             logger.info(
                     String.format("[%s-%d] %s%s %spid=%s wait=%dms cmdQ=%d waitQ=%d in=%d"
-                                    + "|%.1f/s out=%.1f/s lat=%.3fms/%.3fms",
+                                    + "|%.1f/s out=%.1f/s lat=%.3fms/%.3fms batch=%.1f",
                             gondola.getHostId(), memberId, role,
                             masterId >= 0 ? "-SLAVE" : "", enabled ? "" : " (disabled)",
                             gondola.getProcessId(), waitMs, commandQueue.size(), waitQueue.size(),
                             incomingQueue.size(), stats.incomingMessagesRps, stats.sentMessagesRps,
-                            CoreCmd.commitLatency.get(), latency.get()));
-            logger.info(String.format("[%s-%d] - leader=%d cterm=%d ci=%d latest=(%d,%d) votedFor=%d msgPool=%d/%d",
+                            CoreCmd.commitLatency.get(), latency.get(), stats.commandBatchSize));
+            logger.info(String.format("[%s-%d] - leader=%d cterm=%d ci=%d latest=(%d,%d) votedFor=%d "
+                    + "msgPool=%d/%d/%dKB",
                     gondola.getHostId(), memberId, leaderId, currentTerm, commitIndex,
                     sentRid.term, sentRid.index, votedFor,
-                    pool.size(), pool.createdCount));
-            logger.info(String.format("[%s-%d] - storage %.1f/s ti=(%d,%d) saveQ=%d gap=%d done=%d",
+                    pool.size(), pool.createdCount, pool.allocatedBytes() / 1024));
+            logger.info(String.format("[%s-%d] - storage %.1f/s ti=(%d,%d) saveQ=%d gap=%d done=%d snapshot=%d",
                     gondola.getHostId(), memberId,
                     stats.savedCommandsRps, saveQueue.lastTerm, saveQueue.savedIndex,
-                    saveQueue.workQueue.size(), saveQueue.maxGap, saveQueue.saved.size()));
+                    saveQueue.workQueue.size(), saveQueue.maxGap, saveQueue.saved.size(),
+                    snapshotManager.getIndex()));
             peers.forEach((id, peer) -> logger.info(peerInfo(peer, false)));
             slaves.forEach(slave -> logger.info(peerInfo(slave, true)));
 
@@ -885,15 +1124,16 @@ public class CoreMember implements Stoppable {
     private String peerInfo(Peer peer, boolean isSlave) {
         return String.format(
                 "[%s-%d] - %s=%d %s in=%.1f/s|%.1fB/s out=%d|"
-                        + "%.1f/s|%.1fB/s ni=%d mi=%d vf=(%d,%d)%s%s lat=%.3fms",
+                        + "%.1f/s|%.1fB/s ni=%d mi=%d vf=(%d,%d) win=%s%s%s%s lat=%.3fms",
                 gondola.getHostId(), memberId, isSlave ? "slave" : "peer",
                 peer.peerId, peer.isOperational() ? "U" : "D",
                 peer.inMessages.getRps(), peer.inBytes.getRps(),
                 peer.outQueue.size(), peer.outMessages.getRps(), peer.outBytes.getRps(),
-                peer.nextIndex, peer.matchIndex, peer.votedTerm, peer.votedFor,
+                peer.nextIndex, peer.matchIndex, peer.votedTerm, peer.votedFor, peer.window,
                 peer.prevoteGranted ? " prevote" : "",
-                peer.backfilling ? String.format(" bf=%d, bfa=%d", peer.backfillToIndex,
-                        peer.backfillAhead) : "",
+                peer.backfilling ? String.format(" bf=%d", peer.backfillToIndex) : "",
+                peer.snapshotOffset >= 0 ? String.format(" snapshot=%d@%d", peer.snapshotRid.index,
+                        peer.snapshotOffset) : "",
                 peer.latency.get());
     }
 
@@ -903,10 +1143,23 @@ public class CoreMember implements Stoppable {
      * @param rid non-null object containing the leader's latest term and index.
      */
     public void sendHeartbeatRequest(Rid rid) {
+        sendHeartbeatRequest(rid, false);
+    }
+
+    /**
+     * @param coalesce if true and heartbeat coalescing is enabled, the heartbeats to the peers are given to the
+     *                 coalescer, which sends them together with the heartbeats of other members.
+     */
+    public void sendHeartbeatRequest(Rid rid, boolean coalesce) {
+        HeartbeatCoalescer coalescer = gondola.getHeartbeatCoalescer();
         Message message = pool.checkout();
         try {
-            message.heartbeat(memberId, currentTerm, rid, commitIndex);
-            peers.forEach((id, p) -> p.send(message, rid.index - 1));
+            message.heartbeat(memberId, currentTerm, rid, commitIndex, readRound.get());
+            if (coalesce && coalescer.isEnabled()) {
+                peers.forEach((id, p) -> p.sendHeartbeat(coalescer, currentTerm, rid, commitIndex));
+            } else {
+                peers.forEach((id, p) -> p.send(message, rid.index - 1));
+            }
 
             // Send to peers but also check if peer has been inactive
             long now = clock.now();
@@ -945,7 +1198,7 @@ public class CoreMember implements Stoppable {
     }
 
     /**
-     * Sent after follower has advanced the savedIndex.
+     * Sent after follower has advanced the savedIndex, unless the acknowledger sends the replies.
      */
     public void sendAppendEntryReply() {
         Peer leader = peers.get(leaderId);
@@ -1011,6 +1264,10 @@ public class CoreMember implements Stoppable {
         return commitIndex;
     }
 
+    public SnapshotManager getSnapshotManager() {
+        return snapshotManager;
+    }
+
     /**
      * ***************************** incoming messages *********************************
      */
@@ -1076,10 +1333,17 @@ public class CoreMember implements Stoppable {
                     // If storage doesn't have this entry, reject the request and include the last saved index
                     if (!hasEntry) {
                         saveQueue.verifySavedIndex();
-                        // Reject the request and include the last saved index or the previous index,
-                        // whichever is smaller
-                        failedNextIndex = Math.min(failedNextIndex, Math.min(prevLogIndex, savedRid.index + 1));
-                        message.appendEntryReply(memberId, currentTerm, failedNextIndex, false, false);
+                        if (prevLogIndex < snapshotManager.getIndex()) {
+                            // The entry has been compacted into the snapshot, which only contains committed
+                            // entries, so the log matches the leader's up to the last saved index
+                            failedNextIndex = savedRid.index + 1;
+                        } else {
+                            // Reject the request and include the last saved index or the previous index,
+                            // whichever is smaller
+                            failedNextIndex = Math.min(failedNextIndex, Math.min(prevLogIndex, savedRid.index + 1));
+                        }
+                        message.appendEntryReply(memberId, currentTerm, failedNextIndex, false, false,
+                                message.round);
                         peer.send(message);
                         return false;
                     }
@@ -1091,18 +1355,12 @@ public class CoreMember implements Stoppable {
                 // Update member raft variables
                 int oldCommitIndex = CoreMember.this.commitIndex;
                 CoreMember.this.commitIndex = commitIndex;
-                if (leaderId != fromMemberId) {
-                    leaderId = fromMemberId;
-
-                    // Notify gondola listeners of leader change
-                    gondola.notifyRoleChange(
-                            new RoleChangeEvent(shard, shard.getMember(leaderId),
-                                    shard.getMember(leaderId), Role.CANDIDATE, Role.LEADER));
-                }
+                updateLeader(fromMemberId);
+                acknowledger.follow(currentTerm, fromMemberId);
 
                 if (message.isHeartbeat()) {
                     // Don't save heartbeats. Reuse this message for the heartbeat reply
-                    message.appendEntryReply(memberId, currentTerm, savedRid.index, true, true);
+                    message.appendEntryReply(memberId, currentTerm, savedRid.index, true, true, message.round);
                     peer.send(message);
                     if (commitIndex > oldCommitIndex) {
                         indexUpdated(false, false);
@@ -1186,6 +1444,56 @@ public class CoreMember implements Stoppable {
             }
         }
 
+        @Override
+        public void installSnapshotRequest(Message message, int fromMemberId, int term, Rid snapshotRid,
+                                           long offset, boolean done, byte[] buffer, int bufferOffset, int bufferLen)
+                throws InterruptedException, GondolaException {
+            electionTimeoutTs = clock.now() + electionTimeout;
+            if (message.tracingInfo != null) {
+                logger.info("[{}-{}] recv({}): {}", gondola.getHostId(), memberId, fromMemberId, message.tracingInfo);
+            }
+            Peer peer = peers.get(fromMemberId);
+            if (peer == null) {
+                logger.error("Received IS from unknown member {}", fromMemberId);
+                return;
+            }
+
+            // Reject the request
+            if (term < currentTerm) {
+                message.installSnapshotReply(memberId, currentTerm, snapshotRid.index, offset, false, false);
+                peer.send(message);
+                return;
+            }
+
+            // Only a leader sends snapshots so follow the sender
+            updateCurrentTerm(term, fromMemberId);
+            if (!isFollower()) {
+                becomeFollower(fromMemberId);
+            }
+            updateLeader(fromMemberId);
+
+            long received;
+            boolean success;
+            boolean installed = false;
+            if (snapshotRid.index <= snapshotManager.getIndex()) {
+                // Already have this snapshot or a later one
+                received = offset + bufferLen;
+                success = true;
+                installed = true;
+            } else {
+                received = snapshotManager.receive(snapshotRid, offset, buffer, bufferOffset, bufferLen, done);
+                success = received == offset + bufferLen;
+                if (success && done) {
+                    installSnapshot(snapshotRid);
+                    installed = true;
+                }
+            }
+
+            // Reuse this message for the reply
+            message.installSnapshotReply(memberId, currentTerm, snapshotRid.index, received, success, installed);
+            peer.send(message);
+        }
+
         /**
          * Note: prevotes are handled by the peer and are not handled here.
          */
@@ -1248,6 +1556,105 @@ public class CoreMember implements Stoppable {
 
     }
 
+    /**
+     * Sets the leader id and notifies the gondola listeners if it changed.
+     */
+    void updateLeader(int fromMemberId) {
+        if (leaderId != fromMemberId) {
+            leaderId = fromMemberId;
+
+            // Notify gondola listeners of leader change
+            gondola.notifyRoleChange(
+                    new RoleChangeEvent(shard, shard.getMember(leaderId),
+                            shard.getMember(leaderId), Role.CANDIDATE, Role.LEADER));
+        }
+    }
+
+    /**
+     * Replaces the log with the snapshot received from the leader and restores the application state from it.
+     */
+    void installSnapshot(Rid snapshotRid) throws GondolaException {
+        logger.info("[{}-{}] Installing snapshot at rid=({},{}) received from {}",
+                gondola.getHostId(), memberId, snapshotRid.term, snapshotRid.index, leaderId);
+
+        // Discard pending saves so that the log can be compacted, then pick up the new log state
+        saveQueue.settle(savedRid);
+        snapshotManager.installReceived();
+        saveQueue.settle(savedRid);
+        sentRid.set(savedRid);
+        failedNextIndex = Integer.MAX_VALUE;
+
+        // The snapshot only contains committed entries
+        commitIndex = Math.max(commitIndex, snapshotRid.index);
+        if (snapshotManager.hasHandler()) {
+            // Restoring can take long so it's done by another thread, while the committed entries are held back
+            commitQueue.pause();
+            if (restorer == null) {
+                restorer = new SnapshotRestorer();
+                restorer.start();
+            }
+        } else {
+            logger.warn("[{}-{}] No snapshot handler has been set so the application state was not restored",
+                    gondola.getHostId(), memberId);
+        }
+        updateWaitingCommands();
+    }
+
+    /**
+     * Called by the main loop after the restorer has finished. If another snapshot was installed while the restorer
+     * was running, it is restored as well; otherwise, the committed entries following the snapshot are handed out.
+     */
+    void snapshotRestored() {
+        int restoredIndex = restorer.restoredIndex;
+        restorer = null;
+        if (restoredIndex < snapshotManager.getIndex()) {
+            restorer = new SnapshotRestorer();
+            restorer.start();
+        } else {
+            commitQueue.resume();
+            updateWaitingCommands();
+        }
+    }
+
+    /**
+     * Restores the application state from the latest snapshot and then tells the main loop. Retries until it succeeds,
+     * since the committed entries cannot be applied to the state of the application without the snapshot.
+     */
+    class SnapshotRestorer extends Thread {
+        // The index of the restored snapshot
+        volatile int restoredIndex;
+
+        SnapshotRestorer() {
+            setName("SnapshotRestorer-" + memberId);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    restoredIndex = snapshotManager.restore();
+                    break;
+                } catch (Throwable e) {
+                    logger.error("[{}-{}] Could not restore snapshot", gondola.getHostId(), memberId, e);
+
+                    // Pause to avoid a spin loop
+                    try {
+                        clock.sleep(1000);
+                    } catch (InterruptedException e1) {
+                        return;
+                    }
+                }
+            }
+            actionQueue.snapshotRestored();
+            lock.lock();
+            try {
+                workAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     public int getMemberId() {
         return memberId;
     }
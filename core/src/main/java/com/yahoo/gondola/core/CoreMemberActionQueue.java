@@ -28,6 +28,8 @@ public class CoreMemberActionQueue {
         BECOME_FOLLOWER,
         UPDATE_SAVED_INDEX,
         UPDATE_STORAGE_INDEX,
+        CONFIRM_LEADERSHIP,
+        SNAPSHOT_RESTORED,
         EXECUTE,
     }
 
@@ -57,6 +59,14 @@ public class CoreMemberActionQueue {
         queue.add(new Action(Type.UPDATE_STORAGE_INDEX));
     }
 
+    public void confirmLeadership() {
+        queue.add(new Action(Type.CONFIRM_LEADERSHIP));
+    }
+
+    public void snapshotRestored() {
+        queue.add(new Action(Type.SNAPSHOT_RESTORED));
+    }
+
     public void execute(Runnable runnable) throws GondolaException, InterruptedException {
         FutureTask<Void> task = new FutureTask<>(runnable, null);
         queue.add(new Action(task));
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Clock;
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces the heartbeats sent by the leaders on this host. When two hosts share many shards, each leader sends its
+ * own heartbeat to each of its followers every heartbeat period, even though the heartbeats carry no entries.
+ * When enabled, the heartbeats to the members of a remote host are collected and sent once per period in a single
+ * heartbeat batch message, over the channel of any of the peers on that host. The peer that receives the batch
+ * hands each heartbeat to the local member it is for, as if it had been received on that member's own channel.
+ * <p>
+ * Only heartbeats are coalesced. Append entries carrying commands and all replies are still sent on the channel of
+ * each member pair.
+ */
+public class HeartbeatCoalescer {
+
+    final static Logger logger = LoggerFactory.getLogger(HeartbeatCoalescer.class);
+
+    final Gondola gondola;
+
+    // Remote host id -> heartbeats waiting to be sent to the members on that host
+    final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    // List of threads running in this class
+    List<Thread> threads = new ArrayList<>();
+
+    // True between start() and stop() if coalescing is enabled
+    volatile boolean running;
+
+    // Config variables
+    boolean enabled;
+    int period;
+    boolean networkTracing;
+
+    public HeartbeatCoalescer(Gondola gondola) {
+        this.gondola = gondola;
+        gondola.getConfig().registerForUpdates(configListener);
+    }
+
+    /*
+     * Called at the time of registration and whenever the config file changes.
+     */
+    Consumer<Config> configListener = config -> {
+        enabled = config.getBoolean("network.heartbeat_coalescing.enabled");
+        period = config.getInt("network.heartbeat_coalescing.period");
+        networkTracing = config.getBoolean("gondola.tracing.network");
+
+        // A heartbeat is delayed by up to a period, which must not use up the election timeout
+        int heartbeatPeriod = config.getInt("raft.heartbeat_period");
+        if (enabled && (period <= 0 || period >= heartbeatPeriod)) {
+            throw new IllegalStateException(String.format(
+                    "heartbeat coalescing period (%d) must be > 0 and < heartbeat period (%d)",
+                    period, heartbeatPeriod));
+        }
+    };
+
+    public void start() {
+        if (enabled) {
+            running = true;
+            threads.add(new Flusher());
+            threads.forEach(t -> t.start());
+        }
+    }
+
+    public boolean stop() {
+        running = false;
+        boolean status = Utils.stopThreads(threads);
+        threads.clear();
+        batches.clear();
+        return status;
+    }
+
+    /**
+     * Returns true if the heartbeats should be given to add() rather than sent on the peers' channels.
+     */
+    public boolean isEnabled() {
+        return running;
+    }
+
+    /**
+     * Queues a heartbeat from the local member of peer to the remote member of peer. Replaces the heartbeat from the
+     * same member that is still waiting to be sent, if any.
+     */
+    void add(Peer peer, int term, Rid prevRid, int commitIndex) {
+        String hostId = gondola.getConfig().getMember(peer.peerId).getHostId();
+        Batch batch = batches.computeIfAbsent(hostId, h -> new Batch());
+        synchronized (batch) {
+            batch.add(peer, term, prevRid, commitIndex);
+        }
+    }
+
+    /**
+     * Sends the waiting heartbeats, one message per remote host.
+     */
+    void flush() {
+        MessagePool pool = gondola.getMessagePool();
+        for (Map.Entry<String, Batch> e : batches.entrySet()) {
+            Batch batch = e.getValue();
+            Peer carrier = null;
+            Message message = null;
+            synchronized (batch) {
+                if (batch.count == 0) {
+                    continue;
+                }
+
+                // Any peer on the remote host can carry the batch
+                for (Peer peer : batch.peers) {
+                    if (peer.isOperational()) {
+                        carrier = peer;
+                        break;
+                    }
+                }
+                if (carrier != null) {
+                    message = pool.checkout();
+                    message.heartbeatBatch(carrier.cmember.memberId);
+                    int[] h = batch.heartbeats;
+                    for (int i = 0; i < batch.count * Batch.FIELDS; i += Batch.FIELDS) {
+                        message.heartbeatBatchAdd(h[i], h[i + 1], h[i + 2], h[i + 3], h[i + 4], h[i + 5]);
+                    }
+                }
+                batch.clear();
+            }
+            if (message != null) {
+                try {
+                    if (networkTracing) {
+                        logger.info("[{}-{}] send({}): {} heartbeats to host {}", gondola.getHostId(),
+                                carrier.cmember.memberId, carrier.peerId, message.numCommands(), e.getKey());
+                    }
+                    carrier.send(message);
+                } finally {
+                    message.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the peer that received a heartbeat batch, for each heartbeat in the batch. Adds the heartbeat to the
+     * incoming queue of the local member it is for. The heartbeat is dropped if that queue is full, rather than
+     * blocking the receiver of the carrier's channel, which would hold up the heartbeats of all the other members.
+     * The next heartbeat from the leader replaces it.
+     */
+    void deliver(int fromMemberId, int toMemberId, int term, int prevLogTerm, int prevLogIndex, int commitIndex) {
+        CoreMember cmember = gondola.getCoreMember(toMemberId);
+        Peer peer = cmember == null ? null : cmember.peers.get(fromMemberId);
+        if (peer == null) {
+            logger.warn("[{}] Dropping heartbeat from {} to {}, which is not a peer of a local member",
+                    gondola.getHostId(), fromMemberId, toMemberId);
+            return;
+        }
+
+        // The member's own channel may no longer carry anything from the remote member
+        peer.lastReceivedTs = gondola.getClock().now();
+
+        Message message = gondola.getMessagePool().checkout();
+        try {
+            message.heartbeat(fromMemberId, term, new Rid(prevLogTerm, prevLogIndex), commitIndex);
+            if (!cmember.offerIncoming(message)) {
+                gondola.getStats().droppedHeartbeat();
+                if (networkTracing) {
+                    logger.info("[{}-{}] Dropping heartbeat from {} because the incoming queue is full",
+                            gondola.getHostId(), toMemberId, fromMemberId);
+                }
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * The heartbeats waiting to be sent to the members of a remote host. Must be accessed while synchronized on the
+     * batch.
+     */
+    static class Batch {
+        // The number of ints per heartbeat: from, to, term, prevLogTerm, prevLogIndex, commitIndex
+        static final int FIELDS = 6;
+
+        // The peers that have a heartbeat in this batch. Any of them can carry the batch.
+        final List<Peer> peers = new ArrayList<>();
+
+        int[] heartbeats = new int[FIELDS * 16];
+        int count;
+
+        void add(Peer peer, int term, Rid prevRid, int commitIndex) {
+            int from = peer.cmember.memberId;
+            int i = 0;
+            while (i < count * FIELDS && (heartbeats[i] != from || heartbeats[i + 1] != peer.peerId)) {
+                i += FIELDS;
+            }
+            if (i == count * FIELDS) {
+                if (i == heartbeats.length) {
+                    heartbeats = Arrays.copyOf(heartbeats, heartbeats.length * 2);
+                }
+                count++;
+                peers.add(peer);
+            }
+            heartbeats[i] = from;
+            heartbeats[i + 1] = peer.peerId;
+            heartbeats[i + 2] = term;
+            heartbeats[i + 3] = prevRid.term;
+            heartbeats[i + 4] = prevRid.index;
+            heartbeats[i + 5] = commitIndex;
+        }
+
+        void clear() {
+            count = 0;
+            peers.clear();
+        }
+    }
+
+    /**
+     * Sends the waiting heartbeats once per period.
+     */
+    class Flusher extends Thread {
+        Flusher() {
+            setName("HeartbeatCoalescer-" + gondola.getHostId());
+            setDaemon(true);
+        }
+
+        public void run() {
+            Clock clock = gondola.getClock();
+            while (true) {
+                try {
+                    clock.sleep(period);
+                    flush();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
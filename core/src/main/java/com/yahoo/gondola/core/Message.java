@@ -46,7 +46,8 @@ public class Message {
     // The number of commands batched in this message
     int numCommands;
 
-    // Holds the bytes that are to be sent or have been received.
+    // Holds the bytes that are to be sent or have been received. The buffer belongs to the pool and is replaced by a
+    // larger one when needed; null while the message is in the pool.
     public byte[] buffer; // public for tests
 
     // Position of the command in buffer. Only relevant for append entry requests
@@ -68,19 +69,40 @@ public class Message {
     public final static int TYPE_APPEND_ENTRY_REP = 1;
     public final static int TYPE_REQUEST_VOTE_REQ = 2;
     public final static int TYPE_REQUEST_VOTE_REP = 3;
-    final static int NUM_TYPES = 4;
+    public final static int TYPE_INSTALL_SNAPSHOT_REQ = 4;
+    public final static int TYPE_INSTALL_SNAPSHOT_REP = 5;
+    public final static int TYPE_HEARTBEAT_BATCH = 6;
+    final static int NUM_TYPES = 7;
 
     // Contains the overhead for each message type. The overhead contains the header and non-optional fields.
     final static int[] overhead = new int[NUM_TYPES];
-    final static int HEADER_OVERHEAD = 1 * 4 + 2 * 2 + 1;
+    final static int HEADER_OVERHEAD = 2 * 4 + 1 * 2 + 1;
     static int maxOverhead = 0;
 
     // Layout of header
     final static int HEADER_OFFSET_SIZE = 0;
-    final static int HEADER_OFFSET_TYPE = 2;
-    final static int HEADER_OFFSET_FROM = 3;
-    final static int HEADER_OFFSET_TERM = 5;
-    final static int HEADER_OFFSET = 9;
+    final static int HEADER_OFFSET_TYPE = 4;
+    final static int HEADER_OFFSET_FROM = 5;
+    final static int HEADER_OFFSET_TERM = 7;
+    final static int HEADER_OFFSET = 11;
+
+    // Wire format versions. Version 1 uses 2-byte message sizes and command lengths and so limits a message to 32KB.
+    // Version 2 uses 4-byte sizes and lengths. Messages are always formatted in the latest version; messages to and
+    // from members that only speak version 1 are converted when written and read.
+    public final static int WIRE_VERSION_1 = 1;
+    public final static int WIRE_VERSION = 2;
+    final static int V1_HEADER_OVERHEAD = 1 * 4 + 2 * 2 + 1;
+    final static int V1_MAX_SIZE = Short.MAX_VALUE;
+
+    // The latest wire format version offered to remote members
+    public static volatile int maxWireVersion = WIRE_VERSION;
+
+    // The number of fixed bytes after the header and before the command length in ae and is requests
+    final static int APPEND_ENTRY_REQ_FIELDS = 4 * 4;
+    final static int INSTALL_SNAPSHOT_REQ_FIELDS = 2 * 4 + 1 * 8 + 1;
+
+    // The size of each heartbeat in a heartbeat batch: from and to member ids, term, prevRid and commit index
+    final static int HEARTBEAT_BATCH_ENTRY = 2 * 2 + 4 * 4;
 
     // Message variables
     int type;
@@ -92,27 +114,35 @@ public class Message {
     int commitIndex;
     boolean isHeartbeat;
     int entryTerm;
+    int round;
     boolean isPrevote;
     boolean voteGranted;
     long timestamp;
+    long snapshotOffset;
+    boolean done;
+    boolean installed;
     public Rid prevRid = new Rid(); // public because needed for test
 
     // Config
     static boolean messageTracing;
     static boolean batching;
     static volatile int maxCommandSize = -1;
+    static int maxMessageSize;
     static boolean heartbeatTracing;
 
     // Overhead constants
     static {
         // These numbers don't yet include the header overhead. Will be added in the next step.
-        overhead[TYPE_APPEND_ENTRY_REQ] = 4 * 4 + 2 * 1;
-        overhead[TYPE_APPEND_ENTRY_REP] = 1 * 4 + 2 * 1;
+        overhead[TYPE_APPEND_ENTRY_REQ] = 5 * 4;
+        overhead[TYPE_APPEND_ENTRY_REP] = 2 * 4 + 2 * 1;
         overhead[TYPE_REQUEST_VOTE_REQ] = 2 * 4 + 1;
         overhead[TYPE_REQUEST_VOTE_REP] = 0 * 4 + 2 * 1;
+        overhead[TYPE_INSTALL_SNAPSHOT_REQ] = 3 * 4 + 1 * 8 + 1 * 1;
+        overhead[TYPE_INSTALL_SNAPSHOT_REP] = 1 * 4 + 1 * 8 + 2 * 1;
+        overhead[TYPE_HEARTBEAT_BATCH] = 0;
 
         for (int i = 0; i < overhead.length; i++) {
-            // The overhead includes the first 9 bytes that contain the message length, type, and targe member id
+            // The overhead includes the first 11 bytes that contain the message length, type, and targe member id
             overhead[i] += HEADER_OVERHEAD;
             maxOverhead = Math.max(maxOverhead, overhead[i]);
         }
@@ -122,9 +152,13 @@ public class Message {
         this.pool = pool;
         this.stats = stats;
         this.id = idGenerator.incrementAndGet();
+    }
 
-        buffer = new byte[maxCommandSize + maxOverhead];
-        byteBuffer = ByteBuffer.wrap(buffer);
+    /**
+     * Returns the size of the largest possible message.
+     */
+    static int maxBufferSize() {
+        return Math.max(maxCommandSize + maxOverhead, maxMessageSize);
     }
 
     /**
@@ -133,6 +167,8 @@ public class Message {
     public static void initConfig(Config config) {
         config.registerForUpdates(config1 -> {
                 maxCommandSize = config1.getInt("raft.command_max_size");
+                maxMessageSize = config1.getInt("raft.message_max_size");
+                maxWireVersion = Math.min(config1.getInt("network.wire_version"), WIRE_VERSION);
                 messageTracing = config1.getBoolean("gondola.tracing.raft_messages");
                 heartbeatTracing = config1.getBoolean("gondola.tracing.raft_heartbeats");
                 batching = config1.getBoolean("gondola.batching");
@@ -157,25 +193,25 @@ public class Message {
      */
     public boolean canBatch(int cmdSize) {
         assert getType() == TYPE_APPEND_ENTRY_REQ;
-        return batching && size + cmdSize + 2 <= buffer.length && !isHeartbeat();
+        return batching && size + cmdSize + 4 <= pool.maxBufferSize() && !isHeartbeat();
     }
 
     /* *************************** header ***************************** */
 
     public int size() {
-        return byteBuffer.getShort(0);
+        return byteBuffer.getInt(HEADER_OFFSET_SIZE);
     }
 
     public int getType() {
-        return byteBuffer.get(2);
+        return byteBuffer.get(HEADER_OFFSET_TYPE);
     }
 
     public int getFromMemberId() {
-        return byteBuffer.getShort(3);
+        return byteBuffer.getShort(HEADER_OFFSET_FROM);
     }
 
     public int getTerm() {
-        return byteBuffer.get(5);
+        return byteBuffer.getInt(HEADER_OFFSET_TERM);
     }
 
     /****************************** ref counts ******************************/
@@ -196,8 +232,30 @@ public class Message {
             tracingInfo = null;
             pool.checkin(this);
         }
-        assert n >= 0 : String.format("Message is over-released: type=%d from=%d",
-                getType(), getFromMemberId());
+        assert n >= 0 : String.format("Message is over-released: type=%d from=%d", type, fromMemberId);
+    }
+
+    /****************************** buffer ******************************/
+
+    void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        byteBuffer = buffer == null ? null : ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Replaces the buffer with a larger one from the pool if it cannot hold size bytes.
+     *
+     * @param used the number of bytes at the start of the buffer to keep. The position of byteBuffer is set to this.
+     */
+    void ensureCapacity(int size, int used) {
+        if (size <= buffer.length) {
+            return;
+        }
+        byte[] old = buffer;
+        setBuffer(pool.allocate(size));
+        System.arraycopy(old, 0, buffer, 0, used);
+        byteBuffer.position(used);
+        pool.free(old);
     }
 
     /****************************** format message ******************************/
@@ -211,9 +269,9 @@ public class Message {
         this.term = term;
         this.commandSize = commandSize;
         size = overhead[type] + commandSize;
+        ensureCapacity(size, 0);
         byteBuffer.clear();
-        byteBuffer.limit(buffer.length);
-        byteBuffer.putShort((short) size);
+        byteBuffer.putInt(size);
         byteBuffer.put((byte) type);
         byteBuffer.putShort((short) memberId);
         byteBuffer.putInt(term);
@@ -222,12 +280,20 @@ public class Message {
     }
 
     public void heartbeat(int memberId, int term, Rid prevRid, int commitIndex) {
+        heartbeat(memberId, term, prevRid, commitIndex, 0);
+    }
+
+    /**
+     * @param round the read round that the reply should acknowledge; 0 if none. A heartbeat has no command, so the
+     *              round is carried in the command size field, which older members ignore in heartbeats.
+     */
+    public void heartbeat(int memberId, int term, Rid prevRid, int commitIndex, int round) {
         putHeader(TYPE_APPEND_ENTRY_REQ, memberId, term, 0);
         byteBuffer.putInt(prevRid.term);
         byteBuffer.putInt(prevRid.index);
         byteBuffer.putInt(commitIndex);
         byteBuffer.putInt(0); // entryTerm
-        byteBuffer.putShort((short) 0); // command size
+        byteBuffer.putInt(round); // command size
 
         stats.appendEntryRequest();
         if (messageTracing && heartbeatTracing) {
@@ -238,19 +304,39 @@ public class Message {
         this.commitIndex = commitIndex;
         this.isHeartbeat = true;
         this.entryTerm = 0;
+        this.round = round;
         this.numCommands = 0;
     }
 
     public void appendEntryRequest(int memberId, int term, Rid prevRid, int commitIndex,
                                    int entryTerm, byte[] buf, int offset, int len) {
+        putAppendEntryFields(memberId, term, prevRid, commitIndex, entryTerm, len);
+        byteBuffer.put(buf, offset, len);
+        appendEntryRequestDone(term, prevRid, commitIndex, entryTerm, len);
+    }
+
+    /**
+     * Same as the byte array version, but copies the remaining bytes of command, e.g. from a mapped storage buffer.
+     */
+    public void appendEntryRequest(int memberId, int term, Rid prevRid, int commitIndex,
+                                   int entryTerm, ByteBuffer command) {
+        int len = command.remaining();
+        putAppendEntryFields(memberId, term, prevRid, commitIndex, entryTerm, len);
+        byteBuffer.put(command);
+        appendEntryRequestDone(term, prevRid, commitIndex, entryTerm, len);
+    }
+
+    void putAppendEntryFields(int memberId, int term, Rid prevRid, int commitIndex, int entryTerm, int len) {
         putHeader(TYPE_APPEND_ENTRY_REQ, memberId, term, len);
         byteBuffer.putInt(prevRid.term);
         byteBuffer.putInt(prevRid.index);
         byteBuffer.putInt(commitIndex);
         byteBuffer.putInt(entryTerm);
-        byteBuffer.putShort((short) len);
+        byteBuffer.putInt(len);
         bufferOffset = byteBuffer.position();
-        byteBuffer.put(buf, offset, len);
+    }
+
+    void appendEntryRequestDone(int term, Rid prevRid, int commitIndex, int entryTerm, int len) {
         assert byteBuffer.position() == size;
 
         stats.appendEntryRequest();
@@ -269,14 +355,33 @@ public class Message {
      * Append another command to this message.
      */
     public void appendEntryBatch(byte[] buf, int offset, int len) {
-        if (size + len + 2 > buffer.length) {
+        putBatchLength(len);
+        byteBuffer.put(buf, offset, len);
+        appendEntryBatchDone(len);
+    }
+
+    /**
+     * Same as the byte array version, but copies the remaining bytes of command.
+     */
+    public void appendEntryBatch(ByteBuffer command) {
+        int len = command.remaining();
+        putBatchLength(len);
+        byteBuffer.put(command);
+        appendEntryBatchDone(len);
+    }
+
+    void putBatchLength(int len) {
+        if (size + len + 4 > pool.maxBufferSize()) {
             throw new IllegalStateException("There is not enough space for another command");
         }
         assert !isHeartbeat();
-        byteBuffer.putShort((short) len);
-        byteBuffer.put(buf, offset, len);
-        size += len + 2;
-        byteBuffer.putShort(0, (short) size);
+        ensureCapacity(size + len + 4, size);
+        byteBuffer.putInt(len);
+    }
+
+    void appendEntryBatchDone(int len) {
+        size += len + 4;
+        byteBuffer.putInt(HEADER_OFFSET_SIZE, size);
 
         stats.appendEntryBatch();
         if (messageTracing) {
@@ -288,10 +393,19 @@ public class Message {
     }
 
     public void appendEntryReply(int memberId, int term, int mnIndex, boolean success, boolean isHeartbeat) {
+        appendEntryReply(memberId, term, mnIndex, success, isHeartbeat, 0);
+    }
+
+    /**
+     * @param round the read round of the heartbeat being replied to; 0 if none.
+     */
+    public void appendEntryReply(int memberId, int term, int mnIndex, boolean success, boolean isHeartbeat,
+                                 int round) {
         putHeader(TYPE_APPEND_ENTRY_REP, memberId, term, 0);
         byteBuffer.putInt(mnIndex);
         byteBuffer.put(success ? (byte) 1 : (byte) 0);
         byteBuffer.put(isHeartbeat ? (byte) 1 : (byte) 0);
+        byteBuffer.putInt(round);
         assert byteBuffer.position() == size;
 
         stats.appendEntryReply();
@@ -301,6 +415,7 @@ public class Message {
         }
         this.mnIndex = mnIndex;
         this.success = success;
+        this.round = round;
     }
 
     public void requestVoteRequest(int memberId, int term, boolean isPrevote, Rid lastRid) {
@@ -332,6 +447,88 @@ public class Message {
         this.voteGranted = voteGranted;
     }
 
+    /**
+     * @param snapshotRid the rid of the last entry covered by the snapshot.
+     * @param offset      the position of this chunk in the snapshot.
+     * @param done        true if this is the last chunk of the snapshot.
+     */
+    public void installSnapshotRequest(int memberId, int term, Rid snapshotRid, long offset, boolean done,
+                                       byte[] buf, int bufOffset, int len) {
+        putHeader(TYPE_INSTALL_SNAPSHOT_REQ, memberId, term, len);
+        byteBuffer.putInt(snapshotRid.term);
+        byteBuffer.putInt(snapshotRid.index);
+        byteBuffer.putLong(offset);
+        byteBuffer.put(done ? (byte) 1 : (byte) 0);
+        byteBuffer.putInt(len);
+        bufferOffset = byteBuffer.position();
+        byteBuffer.put(buf, bufOffset, len);
+        assert byteBuffer.position() == size;
+
+        stats.installSnapshotRequest();
+        if (messageTracing) {
+            tracingInfo = String.format("IS(cterm=%d sterm=%d index=%d offset=%d size=%d)%s",
+                    term, snapshotRid.term, snapshotRid.index, offset, len, done ? " done" : "");
+        }
+        this.prevRid.set(snapshotRid);
+        this.snapshotOffset = offset;
+        this.done = done;
+        this.numCommands = 0;
+    }
+
+    /**
+     * @param offset the number of bytes of the snapshot received so far.
+     */
+    public void installSnapshotReply(int memberId, int term, int snapshotIndex, long offset,
+                                     boolean success, boolean installed) {
+        putHeader(TYPE_INSTALL_SNAPSHOT_REP, memberId, term, 0);
+        byteBuffer.putInt(snapshotIndex);
+        byteBuffer.putLong(offset);
+        byteBuffer.put(success ? (byte) 1 : (byte) 0);
+        byteBuffer.put(installed ? (byte) 1 : (byte) 0);
+        assert byteBuffer.position() == size;
+
+        stats.installSnapshotReply();
+        if (messageTracing) {
+            tracingInfo = String.format("is(cterm=%d index=%d offset=%d %s)%s",
+                    term, snapshotIndex, offset, success ? "ok" : "fail", installed ? " installed" : "");
+        }
+        this.mnIndex = snapshotIndex;
+        this.snapshotOffset = offset;
+        this.success = success;
+        this.installed = installed;
+    }
+
+    /**
+     * Starts a message carrying the heartbeats from several leaders on this host to members on the remote host.
+     * The heartbeats are added with heartbeatBatchAdd().
+     *
+     * @param memberId the id of the member whose channel carries the message.
+     */
+    public void heartbeatBatch(int memberId) {
+        putHeader(TYPE_HEARTBEAT_BATCH, memberId, 0, 0);
+        this.numCommands = 0;
+    }
+
+    public void heartbeatBatchAdd(int fromMemberId, int toMemberId, int term, int prevLogTerm, int prevLogIndex,
+                                  int commitIndex) {
+        ensureCapacity(size + HEARTBEAT_BATCH_ENTRY, size);
+        byteBuffer.clear();
+        byteBuffer.position(size);
+        byteBuffer.putShort((short) fromMemberId);
+        byteBuffer.putShort((short) toMemberId);
+        byteBuffer.putInt(term);
+        byteBuffer.putInt(prevLogTerm);
+        byteBuffer.putInt(prevLogIndex);
+        byteBuffer.putInt(commitIndex);
+        size += HEARTBEAT_BATCH_ENTRY;
+        byteBuffer.putInt(HEADER_OFFSET_SIZE, size);
+        numCommands++;
+
+        if (messageTracing && heartbeatTracing) {
+            tracingInfo = String.format("HB(count=%d)", numCommands);
+        }
+    }
+
     /****************************** handle ******************************/
 
     /**
@@ -358,26 +555,26 @@ public class Message {
                 int nc = commandSize > 0 ? 1 : 0;
                 while (s < size) {
                     bo += cs;
-                    cs = (0x0ff & buffer[bo]) << 8 | (0x0ff & buffer[bo + 1]);
-                    bo += 2;
+                    cs = byteBuffer.getInt(bo);
+                    bo += 4;
                     pli += 1;
                     if (messageTracing) {
                         tracingInfo = String.format("AE(cterm=%d pterm=%d eterm=%d index=%d ci=%d size=%d) batch(%d)",
                                 term, prevRid.term, entryTerm, pli + 1, commitIndex, cs, nc);
                     }
 
-                    boolean lastCommand = size == s + cs + 2;
+                    boolean lastCommand = size == s + cs + 4;
                     cont = handler.appendEntryRequest(this, fromMemberId, term, prevRid.term, pli, commitIndex,
                             isHeartbeat, entryTerm, buffer, bo, cs, lastCommand);
                     if (!cont) {
                         break;
                     }
                     nc++;
-                    s += cs + 2;
+                    s += cs + 4;
                 }
                 break;
             case TYPE_APPEND_ENTRY_REP:
-                handler.appendEntryReply(this, fromMemberId, term, mnIndex, success);
+                handler.appendEntryReply(this, fromMemberId, term, mnIndex, success, round);
                 break;
             case TYPE_REQUEST_VOTE_REQ:
                 handler.requestVoteRequest(this, fromMemberId, term, isPrevote, prevRid);
@@ -385,6 +582,20 @@ public class Message {
             case TYPE_REQUEST_VOTE_REP:
                 handler.requestVoteReply(this, fromMemberId, term, isPrevote, voteGranted);
                 break;
+            case TYPE_INSTALL_SNAPSHOT_REQ:
+                handler.installSnapshotRequest(this, fromMemberId, term, prevRid, snapshotOffset, done,
+                        buffer, bufferOffset, commandSize);
+                break;
+            case TYPE_INSTALL_SNAPSHOT_REP:
+                handler.installSnapshotReply(this, fromMemberId, term, mnIndex, snapshotOffset, success, installed);
+                break;
+            case TYPE_HEARTBEAT_BATCH:
+                for (int p = overhead[TYPE_HEARTBEAT_BATCH]; p < size; p += HEARTBEAT_BATCH_ENTRY) {
+                    handler.heartbeat(this, byteBuffer.getShort(p), byteBuffer.getShort(p + 2),
+                            byteBuffer.getInt(p + 4), byteBuffer.getInt(p + 8), byteBuffer.getInt(p + 12),
+                            byteBuffer.getInt(p + 16));
+                }
+                break;
         }
     }
 
@@ -395,8 +606,8 @@ public class Message {
     void parse()  {
         ByteBuffer bb = byteBuffer;
         bb.clear();
-        size = bb.getShort();
-        if (size > buffer.length) {
+        size = bb.getInt();
+        if (size < HEADER_OVERHEAD || size > buffer.length) {
             throw new IllegalStateException("Message size " + size + " is > buffer size " + buffer.length);
         }
         bb.limit(size);
@@ -406,6 +617,7 @@ public class Message {
         commandSize = 0;
         numCommands = 0;
         timestamp = 0;
+        round = 0;
 
         switch (type) {
             case TYPE_APPEND_ENTRY_REQ:
@@ -413,8 +625,12 @@ public class Message {
                 commitIndex = bb.getInt();
                 entryTerm = bb.getInt();
                 isHeartbeat = entryTerm == 0;
-                commandSize = bb.getShort();
+                commandSize = bb.getInt();
                 bufferOffset = bb.position();
+                if (isHeartbeat) {
+                    round = commandSize;
+                    commandSize = 0;
+                }
                 if (messageTracing) {
                     if (isHeartbeat) {
                         if (heartbeatTracing) {
@@ -436,15 +652,18 @@ public class Message {
                 while (s < size) {
                     numCommands++;
                     bo += cs;
-                    cs = (0x0ff & buffer[bo]) << 8 | (0x0ff & buffer[bo + 1]);
-                    bo += 2;
-                    s += cs + 2;
+                    cs = bb.getInt(bo);
+                    bo += 4;
+                    s += cs + 4;
                 }
                 break;
             case TYPE_APPEND_ENTRY_REP:
                 mnIndex = bb.getInt();
                 success = bb.get() == 1;
                 isHeartbeat = bb.get() == 1;
+
+                // Older members do not send the round
+                round = bb.remaining() >= 4 ? bb.getInt() : 0;
                 if (messageTracing && (heartbeatTracing || !isHeartbeat)) {
                     tracingInfo = String.format("%s(cterm=%d %s=%d %s)", isHeartbeat ? "h" : "ae", term,
                             success ? "matchIndex" : "nextIndex", mnIndex, success ? "ok" : "fail");
@@ -467,6 +686,36 @@ public class Message {
                             .format("rv(cterm=%d %s) %s", term, voteGranted ? "yes" : "no", isPrevote ? "prevote" : "");
                 }
                 break;
+            case TYPE_INSTALL_SNAPSHOT_REQ:
+                prevRid.set(bb.getInt(), bb.getInt());
+                snapshotOffset = bb.getLong();
+                done = bb.get() == 1;
+                commandSize = bb.getInt();
+                bufferOffset = bb.position();
+                if (messageTracing) {
+                    tracingInfo = String.format("IS(cterm=%d sterm=%d index=%d offset=%d size=%d)%s",
+                            term, prevRid.term, prevRid.index, snapshotOffset, commandSize, done ? " done" : "");
+                }
+                break;
+            case TYPE_INSTALL_SNAPSHOT_REP:
+                mnIndex = bb.getInt();
+                snapshotOffset = bb.getLong();
+                success = bb.get() == 1;
+                installed = bb.get() == 1;
+                if (messageTracing) {
+                    tracingInfo = String.format("is(cterm=%d index=%d offset=%d %s)%s", term, mnIndex,
+                            snapshotOffset, success ? "ok" : "fail", installed ? " installed" : "");
+                }
+                break;
+            case TYPE_HEARTBEAT_BATCH:
+                if ((size - overhead[TYPE_HEARTBEAT_BATCH]) % HEARTBEAT_BATCH_ENTRY != 0) {
+                    throw new IllegalStateException("Heartbeat batch size " + size + " is not a multiple of entries");
+                }
+                numCommands = (size - overhead[TYPE_HEARTBEAT_BATCH]) / HEARTBEAT_BATCH_ENTRY;
+                if (messageTracing && heartbeatTracing) {
+                    tracingInfo = String.format("HB(count=%d)", numCommands);
+                }
+                break;
             default:
                 throw new IllegalStateException("Unknown message type " + type);
         }
@@ -488,25 +737,25 @@ public class Message {
         }
 
         // The message size
-        int msgSize = offset < 2 ? 2 : byteBuffer.getShort(0);
+        int msgSize = offset < 4 ? 4 : readSize(offset);
 
         // Read at least message size
         while (offset < msgSize) {
-            int max = overflow == null ? Math.max(2, msgSize - offset) : buffer.length - offset;
+            int max = overflow == null ? msgSize - offset : buffer.length - offset;
             int n = in.read(buffer, offset, max);
             if (n < 0) {
                 return -1;
             }
             offset += n;
-            if (offset >= msgSize) {
-                // Get the message size
-                msgSize = byteBuffer.getShort(0);
+            if (offset >= 4) {
+                msgSize = readSize(offset);
             }
         }
 
         // Copy excess bytes into the overflow message
         int overflowSize = offset - msgSize;
         if (overflowSize > 0) {
+            overflow.ensureCapacity(overflowSize, 0);
             System.arraycopy(buffer, msgSize, overflow.buffer, 0, overflowSize);
         }
 
@@ -515,8 +764,153 @@ public class Message {
         return overflowSize;
     }
 
+    /**
+     * Returns the size in the header and makes sure the buffer can hold the whole message.
+     *
+     * @param offset the number of bytes that have been read so far.
+     */
+    int readSize(int offset) throws IOException {
+        int msgSize = byteBuffer.getInt(HEADER_OFFSET_SIZE);
+        if (msgSize < HEADER_OVERHEAD || msgSize > pool.maxBufferSize()) {
+            throw new IOException("Message size " + msgSize + " is not in [" + HEADER_OVERHEAD
+                    + ", " + pool.maxBufferSize() + "]");
+        }
+        ensureCapacity(msgSize, offset);
+        return msgSize;
+    }
+
     public void read(byte[] buf, int offset, int len)  {
+        ensureCapacity(len, 0);
         System.arraycopy(buf, offset, buffer, 0, len);
         parse();
     }
+
+    /****************************** wire format version 1 ******************************/
+
+    /**
+     * Reads exactly one message in wire format version 1 and converts it into the current format.
+     *
+     * @param frame a buffer of at least V1_MAX_SIZE bytes used to hold the version 1 message.
+     * @return false if the input stream returns -1
+     */
+    public boolean readV1(InputStream in, byte[] frame) throws IOException {
+        if (refCount.get() == 0) {
+            throw new IllegalStateException("Modifying a message while in the pool");
+        }
+        if (!readFully(in, frame, 0, 2)) {
+            return false;
+        }
+        int frameSize = (0x0ff & frame[0]) << 8 | (0x0ff & frame[1]);
+        if (frameSize < V1_HEADER_OVERHEAD) {
+            throw new IOException("Message size " + frameSize + " is < " + V1_HEADER_OVERHEAD);
+        }
+        if (!readFully(in, frame, 2, frameSize - 2)) {
+            return false;
+        }
+
+        // Header. Converting the lengths at most doubles the size.
+        ByteBuffer src = ByteBuffer.wrap(frame, 0, frameSize);
+        ensureCapacity(Math.min(2 * frameSize + 2, pool.maxBufferSize()), 0);
+        byteBuffer.clear();
+        byteBuffer.putInt(0);
+        byteBuffer.put(frame, 2, V1_HEADER_OVERHEAD - 2);
+        int frameType = frame[2];
+
+        // Fields and commands; only the command lengths differ
+        int p = convert(frameType, src, V1_HEADER_OVERHEAD, frameSize, byteBuffer, false);
+        if (p < 0) {
+            throw new IOException("Message of type " + frameType + " is larger than " + buffer.length + " bytes");
+        }
+        byteBuffer.putInt(HEADER_OFFSET_SIZE, byteBuffer.position());
+        parse();
+        return true;
+    }
+
+    /**
+     * Writes this message in wire format version 1 into dst.
+     *
+     * @return the number of bytes written or -1 if the message cannot be represented in version 1.
+     */
+    public int writeV1(byte[] dst, int offset) {
+        ByteBuffer out = ByteBuffer.wrap(dst, offset, dst.length - offset);
+        out.putShort((short) 0);
+        out.put(buffer, HEADER_OFFSET_TYPE, HEADER_OVERHEAD - HEADER_OFFSET_TYPE);
+        if (convert(buffer[HEADER_OFFSET_TYPE], ByteBuffer.wrap(buffer, 0, size), HEADER_OVERHEAD, size, out, true)
+                < 0) {
+            return -1;
+        }
+        int n = out.position() - offset;
+        if (n > V1_MAX_SIZE) {
+            return -1;
+        }
+        out.putShort(offset, (short) n);
+        return n;
+    }
+
+    /**
+     * Copies the body of a message between the two wire formats, converting the command lengths.
+     *
+     * @param toV1 true if src is in the current format and dst is in version 1.
+     * @return the position after the last byte read from src or -1 if a length or the message does not fit in dst.
+     */
+    static int convert(int type, ByteBuffer src, int p, int end, ByteBuffer dst, boolean toV1) {
+        int fields;
+        switch (type) {
+            case TYPE_APPEND_ENTRY_REQ:
+                fields = APPEND_ENTRY_REQ_FIELDS;
+                break;
+            case TYPE_INSTALL_SNAPSHOT_REQ:
+                fields = INSTALL_SNAPSHOT_REQ_FIELDS;
+                break;
+            default:
+                fields = end - p;
+                break;
+        }
+        if (dst.remaining() < fields) {
+            return -1;
+        }
+        dst.put(src.array(), p, fields);
+        p += fields;
+        if (toV1 && type == TYPE_APPEND_ENTRY_REQ && src.getInt(p - 4) == 0) {
+            // A heartbeat carries the read round in the command size field, which version 1 does not support
+            if (dst.remaining() < 2) {
+                return -1;
+            }
+            dst.putShort((short) 0);
+            return end;
+        }
+        while (p < end) {
+            int len;
+            if (toV1) {
+                len = src.getInt(p);
+                p += 4;
+                if (len > V1_MAX_SIZE || dst.remaining() < len + 2) {
+                    return -1;
+                }
+                dst.putShort((short) len);
+            } else {
+                len = (0x0ff & src.get(p)) << 8 | (0x0ff & src.get(p + 1));
+                p += 2;
+                if (dst.remaining() < len + 4) {
+                    return -1;
+                }
+                dst.putInt(len);
+            }
+            dst.put(src.array(), p, len);
+            p += len;
+        }
+        return p;
+    }
+
+    static boolean readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                return false;
+            }
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
 }
@@ -43,9 +43,11 @@ public abstract class MessageHandler {
     /**
      * If success is true, matchIndex should be set to mnIndex. If success is false, nextIndex should be set to
      * mnIndex.
+     *
+     * @param round the read round of the heartbeat being replied to; 0 if none.
      */
-    public void appendEntryReply(Message message, int fromMemberId, int term,
-                                 int mnIndex, boolean success) throws InterruptedException, GondolaException {
+    public void appendEntryReply(Message message, int fromMemberId, int term, int mnIndex, boolean success,
+                                 int round) throws InterruptedException, GondolaException {
         notImplemented(message, fromMemberId);
     }
 
@@ -58,4 +60,37 @@ public abstract class MessageHandler {
                                  boolean isPrevote, boolean voteGranted) throws InterruptedException, GondolaException {
         notImplemented(message, fromMemberId);
     }
+
+    /**
+     * Carries a chunk of the snapshot at snapshotRid, starting at offset bytes into the snapshot.
+     *
+     * @param done is true if this is the last chunk of the snapshot.
+     */
+    public void installSnapshotRequest(Message message, int fromMemberId, int term, Rid snapshotRid,
+                                       long offset, boolean done, byte[] buffer, int bufferOffset, int bufferLen)
+            throws InterruptedException, GondolaException {
+        notImplemented(message, fromMemberId);
+    }
+
+    /**
+     * If success is false, the leader should resend the snapshot starting at offset.
+     * If installed is true, the follower's log now starts at snapshotIndex.
+     */
+    public void installSnapshotReply(Message message, int fromMemberId, int term, int snapshotIndex,
+                                     long offset, boolean success, boolean installed)
+            throws InterruptedException, GondolaException {
+        notImplemented(message, fromMemberId);
+    }
+
+    /**
+     * Called for each of the heartbeats carried by a heartbeat batch. Unlike the other methods, the heartbeat is not
+     * necessarily from the member on the other end of the channel.
+     *
+     * @param toMemberId the id of the local member the heartbeat is for.
+     */
+    public void heartbeat(Message message, int fromMemberId, int toMemberId, int term,
+                          int prevLogTerm, int prevLogIndex, int commitIndex)
+            throws InterruptedException, GondolaException {
+        notImplemented(message, fromMemberId);
+    }
 }
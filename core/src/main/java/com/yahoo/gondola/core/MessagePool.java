@@ -13,13 +13,27 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 /**
  * The type Message pool.
+ * <p>
+ * The message buffers are pooled separately from the messages, in size classes. A checked out message starts with
+ * a buffer of the smallest class, which holds any message without commands, and trades it for a larger one as
+ * commands are added or a larger message is read. Buffers are returned to the pool when the message is checked in.
+ * <p>
+ * The total size of all buffers is limited to message_pool_max_bytes. When the limit is reached, idle buffers of
+ * other size classes are discarded to make room. If that's not enough, the caller waits for buffers to be checked in,
+ * for up to message_pool_max_wait ms, after which an IllegalStateException is thrown.
  */
 public class MessagePool {
     final static Logger logger = LoggerFactory.getLogger(MessagePool.class);
@@ -33,6 +47,21 @@ public class MessagePool {
     // Pool of message objects
     Queue<Message> pool = new ConcurrentLinkedQueue<>();
 
+    // Size of the buffers in each size class. Each class is 4 times larger than the previous one except for the last
+    // class, which is exactly the largest possible message.
+    final int[] classSizes;
+
+    // Pool of buffers for each size class
+    final List<Queue<byte[]>> buffers;
+
+    // The total size of the buffers that have been created and not discarded
+    final AtomicLong allocatedBytes = new AtomicLong();
+
+    // Used to wait for buffers to be checked in when the budget has been exhausted
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition bufferCheckedIn = lock.newCondition();
+    volatile int waiters;
+
     // All references in this queue represent gc'ed messages. Messages should never be gc'ed.
     ReferenceQueue<Message> leakQueue = new ReferenceQueue<>();
     Queue<PhantomRef<Message>> phantomRefs = new ConcurrentLinkedQueue<>();
@@ -40,12 +69,29 @@ public class MessagePool {
     // Config variables
     int warnThreshold;
     boolean leakTracing;
+    long maxBytes;
+    int maxWait;
+
+    final static int MIN_BUFFER_SIZE = 128;
 
     public MessagePool(Config config, Stats stats) {
         this.config = config;
         this.stats = stats;
 
         config.registerForUpdates(configListener);
+
+        // Create the size classes
+        int maxSize = Message.maxBufferSize();
+        int n = 1;
+        for (int size = MIN_BUFFER_SIZE; size < maxSize; size *= 4) {
+            n++;
+        }
+        classSizes = new int[n];
+        buffers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            classSizes[i] = i == n - 1 ? maxSize : MIN_BUFFER_SIZE << (2 * i);
+            buffers.add(new ConcurrentLinkedQueue<>());
+        }
     }
 
     /*
@@ -54,6 +100,8 @@ public class MessagePool {
     Consumer<Config> configListener = config1 -> {
         warnThreshold = config1.getInt("gondola.message_pool_warn_threshold");
         leakTracing = config1.getBoolean("gondola.tracing.message_leak");
+        maxBytes = config1.getLong("gondola.message_pool_max_bytes");
+        maxWait = config1.getInt("gondola.message_pool_max_wait");
     };
 
     public int size() {
@@ -102,7 +150,7 @@ public class MessagePool {
 
         // Set ref count to 1
         message.acquire();
-        message.byteBuffer.clear();
+        message.setBuffer(allocate(0));
         return message;
     }
 
@@ -112,9 +160,145 @@ public class MessagePool {
                                                           message.getType(), message.refCount.get()));
         }
 
+        free(message.buffer);
+        message.setBuffer(null);
         pool.add(message);
     }
 
+    /**
+     * Returns the size of the largest buffer.
+     */
+    public int maxBufferSize() {
+        return classSizes[classSizes.length - 1];
+    }
+
+    /**
+     * Returns the total size of all the created buffers.
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Returns a buffer of at least size bytes. Blocks if the memory budget has been exhausted.
+     *
+     * @throws IllegalStateException if size is larger than the largest size class or if no buffer became available
+     *                               within message_pool_max_wait ms.
+     */
+    byte[] allocate(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            throw new IllegalStateException(String.format("Message size %d is larger than the maximum of %d",
+                                                          size, maxBufferSize()));
+        }
+        byte[] buffer = tryAllocate(c);
+        if (buffer != null) {
+            return buffer;
+        }
+
+        // Wait for buffers to be checked in
+        stats.messageBufferWait();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        lock.lock();
+        try {
+            waiters++;
+            while ((buffer = tryAllocate(c)) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    stats.messageBufferExhausted();
+                    throw new IllegalStateException(String.format(
+                        "Could not allocate a message buffer of %d bytes within %dms; %d of %d bytes are in use",
+                        classSizes[c], maxWait, allocatedBytes.get(), maxBytes));
+                }
+                bufferCheckedIn.awaitNanos(remaining);
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a message buffer", e);
+        } finally {
+            waiters--;
+            lock.unlock();
+        }
+    }
+
+    void free(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        buffers.get(sizeClass(buffer.length)).add(buffer);
+        if (waiters > 0) {
+            lock.lock();
+            try {
+                bufferCheckedIn.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a pooled or new buffer of size class c, or null if the budget does not allow a new buffer.
+     */
+    byte[] tryAllocate(int c) {
+        byte[] buffer = buffers.get(c).poll();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        // Discard idle buffers of other classes until there is room for a new buffer
+        int size = classSizes[c];
+        while (!reserve(size)) {
+            if (!discardIdleBuffer(c)) {
+                // Another thread may have checked in a buffer of the needed class in the meantime
+                return buffers.get(c).poll();
+            }
+        }
+        stats.messageBufferAllocated(size);
+        return new byte[size];
+    }
+
+    boolean reserve(int size) {
+        while (true) {
+            long current = allocatedBytes.get();
+            if (current + size > maxBytes) {
+                return false;
+            }
+            if (allocatedBytes.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Discards an idle buffer of any size class other than c, largest first.
+     *
+     * @return false if there are no idle buffers to discard.
+     */
+    boolean discardIdleBuffer(int c) {
+        for (int i = classSizes.length - 1; i >= 0; i--) {
+            byte[] buffer = i == c ? null : buffers.get(i).poll();
+            if (buffer != null) {
+                allocatedBytes.addAndGet(-buffer.length);
+                stats.messageBufferAllocated(-buffer.length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the smallest size class that holds size bytes or -1 if there is none.
+     */
+    int sizeClass(int size) {
+        for (int i = 0; i < classSizes.length; i++) {
+            if (size <= classSizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Used for leak detection.
      */
@@ -128,7 +312,7 @@ public class MessagePool {
             super(message, queue);
             id = message.id;
             size = message.size;
-            type = message.getType();
+            type = message.type;
             refCount = message.refCount;
         }
     }
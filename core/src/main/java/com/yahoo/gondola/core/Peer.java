@@ -12,15 +12,20 @@ import com.yahoo.gondola.Config;
 import com.yahoo.gondola.Gondola;
 import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.LogEntry;
+import com.yahoo.gondola.MappedStorage;
 import com.yahoo.gondola.Storage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,9 +40,6 @@ public class Peer {
 
     final static Logger logger = LoggerFactory.getLogger(Peer.class);
 
-    // Number of outstanding backfilling messages after which the backfill thread stops
-    final static int BACKFILL_AHEAD_LIMIT = 10;
-
     final Gondola gondola;
     final Clock clock;
     final Storage storage;
@@ -69,22 +71,31 @@ public class Peer {
     // Backfill variables
     volatile boolean backfilling; // true iff nextIndex < backfillToIndex and member is the leader
 
-    // @lock This variable is reset to 0 after receiving an AppendEntry reply from the follower
-    int backfillAhead;
-
-    // @lock This variable is set to 1 when fullSpeed is false. Otherwise it is set to BACKFILL_AHEAD_LIMIT.
-    int backfillAheadLimit;
+    // @lock The messages sent to the peer that have not been acknowledged. Both the live and backfill paths stop
+    // sending entries while the window is closed.
+    final ReplicationWindow window;
 
     // @lock
     int backfillToIndex;
 
+    // @lock True if backfilling was started by the live path because the window was closed, rather than because
+    // the peer is behind. Used to avoid logging the start and end of every such backfill.
+    boolean throttled;
+
     // @lock
     int nextIndex = -1;
 
-    // @lock if false and backfilling, only send a single entry. Set to true when success is received.
+    // @lock if false and backfilling, only send a single entry at a time. Set to true when success is received.
     // Set to false when backfilling is enabled or when the nextIndex is reduced.
     boolean fullSpeed = false;
 
+    // @lock The snapshot being sent to this peer, when nextIndex has been compacted from the log.
+    // snapshotOffset is the offset of the next chunk to send and is -1 when no snapshot is being sent.
+    Rid snapshotRid = new Rid();
+    long snapshotOffset = -1;
+    boolean snapshotDone;
+    long snapshotSentTs;
+
     // Stats
     Stat outMessages = new Stat();
     Stat outBytes = new Stat();
@@ -95,6 +106,13 @@ public class Peer {
     long lastSentTs;
     long lastReceivedTs;
 
+    // The last time an append entry reply for the leader's current term was received. Used for the read lease.
+    volatile long lastAckTs;
+
+    // The latest read round acknowledged by the peer in the leader's current term; 0 if none. Used to confirm
+    // leadership for reads.
+    volatile int ackedRound;
+
     CoreMember.Latency latency = new CoreMember.Latency();
 
     // A fake log entry representing index 0
@@ -114,6 +132,8 @@ public class Peer {
     static boolean storageTracing;
     static int heartbeatPeriod;
     static int socketInactivityTimeout;
+    static int sendBatchMaxBytes;
+    static int sendBatchMaxDelay;
 
     /**
      * This contructor is called in response to an incoming request from a slave.
@@ -130,6 +150,7 @@ public class Peer {
         this.storage = gondola.getStorage();
         this.cmember = cmember;
         this.peerId = peerId;
+        window = new ReplicationWindow(clock);
 
         entry0 = new LogEntry(storage, 1) {
             @Override
@@ -151,8 +172,11 @@ public class Peer {
                     networkTracing = config1.getBoolean("gondola.tracing.network");
                     heartbeatPeriod = config1.getInt("raft.heartbeat_period");
                     socketInactivityTimeout = config1.getInt("network.channel_inactivity_timeout");
+                    sendBatchMaxBytes = config1.getInt("network.send_batch_max_bytes");
+                    sendBatchMaxDelay = config1.getInt("network.send_batch_max_delay");
                 }
         );
+        ReplicationWindow.initConfig(config);
     }
 
     public void reset() {
@@ -160,15 +184,20 @@ public class Peer {
         try {
             fullSpeed = false;
             backfilling = false;
-            backfillAhead = 0;
-            backfillAheadLimit = 1;
+            throttled = false;
+            window.clear();
             backfillToIndex = 0;
+            snapshotRid.set(0, 0);
+            snapshotOffset = -1;
+            snapshotDone = false;
             matchIndex = 0;
             nextIndex = -1;
             votedTerm = -1;
             votedFor = -1;
             outQueue.clear();
             lastReceivedTs = clock.now();
+            lastAckTs = 0;
+            ackedRound = 0;
             prevoteGranted = false;
             backfillCond.signal();
         } finally {
@@ -229,21 +258,56 @@ public class Peer {
      * Sends the message to the remote member. This version of send
      * increases nextIndex and backfillToIndex. Does not send if the
      * connection to remote member is not operational or being
-     * backfilled.
+     * backfilled. If the window is closed, the backfiller is started
+     * to send the entries once the window opens.
      */
     public void send(Message message, int prevLogIndex) {
         assert message.getType() == Message.TYPE_APPEND_ENTRY_REQ;
         lock.lock();
         try {
             if (backfilling) {
-                // Increase the backfill index to the new value
-                backfillToIndex = prevLogIndex + 2;
+                // Increase the backfill index to the new value. A heartbeat has no commands but covers the entry at
+                // prevLogIndex + 1, and must not lower the index raised by an earlier batch.
+                backfillToIndex = Math.max(backfillToIndex,
+                        prevLogIndex + Math.max(message.numCommands(), 1) + 1);
             } else if (channel.isOperational() && (message.isHeartbeat() || nextIndex == prevLogIndex + 1)) {
+                if (!message.isHeartbeat() && !canSend()) {
+                    backfilling = true;
+                    throttled = true;
+                    backfillToIndex = prevLogIndex + message.numCommands() + 1;
+                    backfillCond.signal();
+                    return;
+                }
                 latency.head(prevLogIndex + 1);
                 addOutQueue(message);
 
                 // Increment nextIndex for each command
                 nextIndex += message.numCommands();
+                if (!message.isHeartbeat()) {
+                    window.sent(nextIndex - 1, message.size);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if another message containing entries can be sent. Must be called with the lock.
+     */
+    boolean canSend() {
+        return window.isOpen() && (fullSpeed || window.isEmpty());
+    }
+
+    /**
+     * Gives the heartbeat to the coalescer instead of sending it on this peer's channel. Like send(), does nothing
+     * if the channel is not operational or if the peer is being backfilled.
+     */
+    public void sendHeartbeat(HeartbeatCoalescer coalescer, int term, Rid prevRid, int commitIndex) {
+        lock.lock();
+        try {
+            if (!backfilling && channel.isOperational()) {
+                coalescer.add(this, term, prevRid, commitIndex);
             }
         } finally {
             lock.unlock();
@@ -268,6 +332,11 @@ public class Peer {
      */
 
     class Backfiller extends Thread {
+        // The snapshot file currently being read
+        RandomAccessFile snapshotIn;
+        Rid snapshotInRid = new Rid();
+        byte[] chunk;
+
         public Backfiller() {
             setName("Backfiller-" + cmember.memberId + "-" + peerId);
             setDaemon(true);
@@ -278,6 +347,7 @@ public class Peer {
                 try {
                     backfill();
                 } catch (InterruptedException e) {
+                    closeSnapshot();
                     return;
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
@@ -309,19 +379,30 @@ public class Peer {
                 // The index of the first entry to send
                 int startIndex = -1;
 
+                // True if nothing can be sent until a reply arrives
+                boolean pause = false;
+
                 // Get latest savedIndex. Done outside the lock to avoid deadlock.
                 cmember.saveQueue.getLatestWait(savedRid);
 
                 // Determine where to start backfilling
                 lock.lock();
                 try {
-                    if (backfilling && backfillAhead < backfillAheadLimit) {
+                    if (window.isExpired(socketInactivityTimeout)) {
+                        // The replies have been lost, e.g. because of a reconnect
+                        logger.info("[{}-{}] No reply from {} in {}ms. Resetting the window {}",
+                                gondola.getHostId(), cmember.memberId, peerId, socketInactivityTimeout, window);
+                        window.clear();
+                    }
+                    if (backfilling && canSend()) {
                         // Make sure the storage has caught up to the next index
                         if (nextIndex > savedRid.index) {
-                            logger.info(
-                                "[{}-{}] Backfilling {} at index {} paused to allow storage (index={}) to catch up",
-                                gondola.getHostId(), cmember.memberId, peerId, nextIndex, savedRid.index);
-                            backfillAhead = backfillAheadLimit;
+                            if (!throttled || storageTracing) {
+                                logger.info(
+                                    "[{}-{}] Backfilling {} at index {} paused to allow storage (index={}) to catch up",
+                                    gondola.getHostId(), cmember.memberId, peerId, nextIndex, savedRid.index);
+                            }
+                            pause = true;
                         } else {
                             startIndex = nextIndex;
                         }
@@ -333,7 +414,11 @@ public class Peer {
                 // Create one backfill message with as many commands as can be batched
                 int count = 0;
                 Message message = null;
-                if (startIndex > 0) {
+                if (startIndex > 0 && startIndex <= cmember.snapshotManager.getIndex()) {
+                    // The entries have been compacted into the snapshot so send the snapshot instead
+                    message = nextSnapshotChunk(pool);
+                    pause = message == null;
+                } else if (startIndex > 0) {
                     // Get the rid for the previous entry
                     LogEntry le = getLogEntry(startIndex - 1);
                     if (le == null) {
@@ -345,46 +430,29 @@ public class Peer {
                     rid.set(le.term, le.index);
                     le.release();
 
-                    // Now get the info for the entry at desired index
-                    le = getLogEntry(startIndex);
-                    if (le == null) {
-                        throw new IllegalStateException(
-                                String.format("[%s-%d] Could not retrieve index=%d to backfill %d. savedIndex=%d",
-                                        gondola.getHostId(), cmember.memberId, startIndex, peerId, savedRid.index));
-                    }
-
                     message = pool.checkout();
                     try {
-                        message.appendEntryRequest(cmember.memberId, cmember.currentTerm, rid, cmember.commitIndex,
-                                le.term, le.buffer, 0, le.size);
-                        le.release();
-                        count++;
-
-                        // Batch until full
-                        while (fullSpeed && startIndex + count < backfillToIndex) {
-                            le = getLogEntry(startIndex + count);
-
-                            if (le == null) {
-                                // This can happen if the storage is behind
-                                break;
-                            } else if (le.term != rid.term || !message.canBatch(le.size)) {
-                                le.release();
-                                // Stop batching if the term is newer or if the message is full
-                                break;
-                            }
-
-                            message.appendEntryBatch(le.buffer, 0, le.size);
-                            le.release();
-                            count++;
+                        if (storage instanceof MappedStorage) {
+                            // Copy the commands straight out of the storage
+                            count = batchFromMappedStorage(message, rid, startIndex);
+                        } else {
+                            count = batchFromLogEntries(message, rid, startIndex);
                         }
                     } catch (Exception e) {
                         message.release();
                         throw e;
                     }
+                    if (count == 0) {
+                        message.release();
+                        throw new IllegalStateException(
+                                String.format("[%s-%d] Could not retrieve index=%d to backfill %d. savedIndex=%d",
+                                        gondola.getHostId(), cmember.memberId, startIndex, peerId, savedRid.index));
+                    }
                 } else if (clock.now() >= lastSentTs + heartbeatPeriod) {
                     // Send a heartbeat while waiting
                     message = pool.checkout();
-                    message.heartbeat(cmember.memberId, cmember.currentTerm, savedRid, cmember.commitIndex);
+                    message.heartbeat(cmember.memberId, cmember.currentTerm, savedRid, cmember.commitIndex,
+                            cmember.readRound.get());
                     lastSentTs = clock.now(); // To avoid a spin loop
                 }
 
@@ -395,6 +463,11 @@ public class Peer {
                         // Send the message if backfilling is still enabled
                         if (backfilling) {
                             addOutQueue(message);
+                            if (message.getType() == Message.TYPE_INSTALL_SNAPSHOT_REQ) {
+                                window.sent(-1, message.size);
+                            } else if (count > 0) {
+                                window.sent(startIndex + count - 1, message.size);
+                            }
                         }
                         message.release();
 
@@ -404,13 +477,15 @@ public class Peer {
                             nextIndex = startIndex + count;
                             if (nextIndex == backfillToIndex) {
                                 backfilling = false;
-                                logger.info("[{}-{}] Backfilling {} to {} is done",
-                                        gondola.getHostId(), cmember.memberId, peerId, backfillToIndex - 1);
+                                if (!throttled) {
+                                    logger.info("[{}-{}] Backfilling {} to {} is done",
+                                            gondola.getHostId(), cmember.memberId, peerId, backfillToIndex - 1);
+                                }
+                                throttled = false;
                             }
                         }
-                        backfillAhead++;
                     }
-                    if (!backfilling || backfillAhead >= backfillAheadLimit) {
+                    if (!backfilling || pause || !canSend()) {
                         backfillCond.await(heartbeatPeriod, TimeUnit.MILLISECONDS);
                     }
                 } finally {
@@ -418,6 +493,161 @@ public class Peer {
                 }
             }
         }
+
+        /**
+         * Returns a message containing the next chunk of the latest snapshot, starting a new transfer if necessary.
+         *
+         * @return null if the whole snapshot has been sent and the peer has not yet installed it.
+         */
+        Message nextSnapshotChunk(MessagePool pool) throws GondolaException {
+            Rid rid = new Rid();
+            cmember.snapshotManager.getRid(rid);
+            long offset;
+            lock.lock();
+            try {
+                if (snapshotOffset < 0 || !snapshotRid.equals(rid.term, rid.index)) {
+                    logger.info("[{}-{}] Sending snapshot at rid=({},{}) to {}",
+                            gondola.getHostId(), cmember.memberId, rid.term, rid.index, peerId);
+                    snapshotRid.set(rid);
+                    snapshotOffset = 0;
+                    snapshotDone = false;
+
+                    // Replies are not needed to make progress so pipeline the chunks
+                    fullSpeed = true;
+                } else if (snapshotDone) {
+                    if (clock.now() - snapshotSentTs < socketInactivityTimeout) {
+                        // Wait for the peer to install the snapshot
+                        return null;
+                    }
+                    logger.info("[{}-{}] Snapshot at index={} was not installed by {}. Resending",
+                            gondola.getHostId(), cmember.memberId, rid.index, peerId);
+                    snapshotOffset = 0;
+                    snapshotDone = false;
+                }
+                offset = snapshotOffset;
+            } finally {
+                lock.unlock();
+            }
+
+            // Read the chunk
+            boolean done;
+            int len;
+            try {
+                if (snapshotIn == null || !snapshotInRid.equals(rid.term, rid.index)) {
+                    closeSnapshot();
+                    File file = cmember.snapshotManager.file(rid, "");
+                    snapshotIn = new RandomAccessFile(file, "r");
+                    snapshotInRid.set(rid);
+                }
+                if (chunk == null || chunk.length != Message.maxCommandSize) {
+                    chunk = new byte[Message.maxCommandSize];
+                }
+                long length = snapshotIn.length();
+                len = (int) Math.min(chunk.length, length - offset);
+                snapshotIn.seek(offset);
+                snapshotIn.readFully(chunk, 0, len);
+                done = offset + len == length;
+            } catch (IOException e) {
+                closeSnapshot();
+                throw new GondolaException(e);
+            }
+
+            Message message = pool.checkout();
+            message.installSnapshotRequest(cmember.memberId, cmember.currentTerm, rid, offset, done, chunk, 0, len);
+            lock.lock();
+            try {
+                // Don't advance if a reply has rewound the offset in the meantime
+                if (snapshotRid.equals(rid.term, rid.index) && snapshotOffset == offset) {
+                    snapshotOffset = offset + len;
+                    snapshotDone = done;
+                    snapshotSentTs = clock.now();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return message;
+        }
+
+        void closeSnapshot() {
+            if (snapshotIn != null) {
+                try {
+                    snapshotIn.close();
+                } catch (IOException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+                snapshotIn = null;
+            }
+        }
+    }
+
+    /**
+     * Formats the message with the entry at startIndex followed by as many of the next entries as can be batched.
+     *
+     * @param rid the term and index of the entry before startIndex.
+     * @return the number of entries in the message; 0 if the entry at startIndex could not be retrieved.
+     */
+    int batchFromLogEntries(Message message, Rid rid, int startIndex) throws GondolaException {
+        // Read all the entries that could be batched with a single range read
+        int maxCount = fullSpeed ? Math.max(backfillToIndex - startIndex, 1) : 1;
+        List<LogEntry> entries = storage.getLogEntries(cmember.memberId, startIndex, maxCount,
+                gondola.getMessagePool().maxBufferSize());
+        if (cmember.storageTracing) {
+            logger.info("[{}-{}] select(index={}, max={}) -> {} entries",
+                        gondola.getHostId(), cmember.memberId, startIndex, maxCount, entries.size());
+        }
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        try {
+            LogEntry le = entries.get(0);
+            message.appendEntryRequest(cmember.memberId, cmember.currentTerm, rid, cmember.commitIndex,
+                    le.term, le.buffer, 0, le.size);
+            int count = 1;
+
+            // Batch until full. There can be fewer entries than requested if the storage is behind.
+            while (count < entries.size()) {
+                le = entries.get(count);
+                if (le.term != rid.term || !message.canBatch(le.size)) {
+                    // Stop batching if the term is newer or if the message is full
+                    break;
+                }
+                message.appendEntryBatch(le.buffer, 0, le.size);
+                count++;
+            }
+            return count;
+        } finally {
+            entries.forEach(LogEntry::release);
+        }
+    }
+
+    /**
+     * Same as batchFromLogEntries() but the commands are copied directly from the storage's buffers into the message,
+     * without first being copied into LogEntry objects.
+     * <p>
+     * The visitor runs while the storage holds the member's log lock, so the message buffer is grown to its largest
+     * size before visiting; growing it inside the visitor could wait for the message pool's budget with the lock held.
+     */
+    int batchFromMappedStorage(Message message, Rid rid, int startIndex) throws GondolaException {
+        int maxCount = fullSpeed ? Math.max(backfillToIndex - startIndex, 1) : 1;
+        message.ensureCapacity(gondola.getMessagePool().maxBufferSize(), 0);
+        int count = ((MappedStorage) storage).visitLogEntries(cmember.memberId, startIndex, maxCount,
+                (term, index, command) -> {
+                    if (index == startIndex) {
+                        message.appendEntryRequest(cmember.memberId, cmember.currentTerm, rid, cmember.commitIndex,
+                                term, command);
+                        return true;
+                    } else if (term != rid.term || !message.canBatch(command.remaining())) {
+                        // Stop batching if the term is newer or if the message is full
+                        return false;
+                    }
+                    message.appendEntryBatch(command);
+                    return true;
+                });
+        if (cmember.storageTracing) {
+            logger.info("[{}-{}] visit(index={}, max={}) -> {} entries",
+                    gondola.getHostId(), cmember.memberId, startIndex, maxCount, count);
+        }
+        return count;
     }
 
     LogEntry getLogEntry(int index) throws GondolaException {
@@ -468,6 +698,8 @@ public class Peer {
             int excess = 0;
             boolean errorOccurred = false;
             int generation = Peer.this.generation;
+            int wireVersion = Message.WIRE_VERSION;
+            byte[] v1Frame = null;
 
             while (true) {
                 try {
@@ -477,10 +709,19 @@ public class Peer {
                     if (oldIn != in) {
                         // New input stream was created
                         excess = 0;
+                        wireVersion = channel.getWireVersion();
                     }
 
-                    // Read in the rest of the message and place any excess bytes into nextMessage
-                    excess = message.read(in, excess, nextMessage);
+                    if (wireVersion == Message.WIRE_VERSION_1) {
+                        // Read exactly one message at a time and convert it
+                        if (v1Frame == null) {
+                            v1Frame = new byte[Message.V1_MAX_SIZE];
+                        }
+                        excess = message.readV1(in, v1Frame) ? 0 : -1;
+                    } else {
+                        // Read in the rest of the message and place any excess bytes into nextMessage
+                        excess = message.read(in, excess, nextMessage);
+                    }
                     if (excess < 0) {
                         logger.warn("[{}-{}] recv({}): end-of-file",
                                 gondola.getHostId(), cmember.memberId, peerId);
@@ -531,9 +772,16 @@ public class Peer {
             return false;
         }
 
+        @Override
+        public void heartbeat(Message message, int fromMemberId, int toMemberId, int term,
+                              int prevLogTerm, int prevLogIndex, int commitIndex) throws InterruptedException {
+            gondola.getHeartbeatCoalescer().deliver(fromMemberId, toMemberId, term, prevLogTerm, prevLogIndex,
+                    commitIndex);
+        }
+
         @Override
         public void appendEntryReply(Message message, int fromMemberId, int term, int mnIndex,
-                                     boolean success) throws GondolaException {
+                                     boolean success, int round) throws GondolaException {
             if (message.tracingInfo != null) {
                 logger.info("[{}-{}] recv({}): {}", gondola.getHostId(), cmember.memberId, fromMemberId,
                         message.tracingInfo);
@@ -546,6 +794,14 @@ public class Peer {
             cmember.updateCurrentTerm(term, fromMemberId);
 
             if (cmember.isLeader()) {
+                // Any reply in the current term, including a failure, means the peer still follows this leader
+                if (term == cmember.currentTerm) {
+                    lastAckTs = clock.now();
+                    if (round != 0 && round - ackedRound > 0) {
+                        ackedRound = round;
+                    }
+                    cmember.peerAcked();
+                }
                 if (success) {
                     // Update the match index
                     Peer.this.matchIndex = mnIndex;
@@ -555,19 +811,22 @@ public class Peer {
                     if (mnIndex > cmember.commitIndex) {
                         cmember.indexUpdated(false, false);
                     }
-
-                    fullSpeed = true;
-                    backfillAhead = BACKFILL_AHEAD_LIMIT;
                 } else {
                     // Update the next index
                     setNextIndex(mnIndex, cmember.sentRid.index + 1);
                 }
 
-                // Any reply, success or fail, resets the backfill ahead count so more entries can be sent
+                // Acknowledged messages are removed from the window so more entries can be sent.
+                // Messages sent before a failure are discarded by the peer.
                 lock.lock();
                 try {
+                    if (success) {
+                        fullSpeed = true;
+                        window.acked(mnIndex);
+                    } else {
+                        window.clear();
+                    }
                     if (backfilling) {
-                        backfillAhead = 0;
                         backfillCond.signal();
                     }
                 } finally {
@@ -579,6 +838,70 @@ public class Peer {
             }
         }
 
+        @Override
+        public void installSnapshotRequest(Message message, int fromMemberId, int term, Rid snapshotRid,
+                                           long offset, boolean done, byte[] buffer, int bufferOffset,
+                                           int bufferLen) throws InterruptedException {
+            cmember.addIncoming(message);
+        }
+
+        @Override
+        public void installSnapshotReply(Message message, int fromMemberId, int term, int snapshotIndex,
+                                         long offset, boolean success, boolean installed) throws GondolaException {
+            if (message.tracingInfo != null) {
+                logger.info("[{}-{}] recv({}): {}", gondola.getHostId(), cmember.memberId, fromMemberId,
+                        message.tracingInfo);
+            }
+
+            // Cancel any ongoing prevote
+            prevoteGranted = false;
+
+            // Update the current term if necessary
+            cmember.updateCurrentTerm(term, fromMemberId);
+
+            if (cmember.isLeader()) {
+                lock.lock();
+                try {
+                    if (installed && snapshotIndex == snapshotRid.index) {
+                        logger.info("[{}-{}] Snapshot at index={} has been installed by {}",
+                                gondola.getHostId(), cmember.memberId, snapshotIndex, peerId);
+                        snapshotOffset = -1;
+                        snapshotDone = false;
+                        fullSpeed = false;
+                        window.clear();
+
+                        // Continue backfilling from the entry after the snapshot
+                        matchIndex = Math.max(matchIndex, snapshotIndex);
+                        nextIndex = snapshotIndex + 1;
+                        if (nextIndex >= backfillToIndex) {
+                            backfillToIndex = nextIndex;
+                            backfilling = false;
+                        }
+                    } else if (!success && snapshotIndex == snapshotRid.index && offset < snapshotOffset) {
+                        // The peer missed a chunk so resend from the last one received
+                        snapshotOffset = offset;
+                        snapshotDone = false;
+                    }
+
+                    // Each reply acknowledges a chunk so more chunks can be sent
+                    window.ackedOne();
+                    if (backfilling) {
+                        backfillCond.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                // Advance the commit index
+                if (matchIndex > cmember.commitIndex) {
+                    cmember.indexUpdated(false, false);
+                }
+            } else {
+                logger.info("[{}-{}] Ignoring is from {} because not a leader",
+                        gondola.getHostId(), cmember.memberId, fromMemberId);
+            }
+        }
+
         @Override
         public void requestVoteRequest(Message message, int fromMemberId, int term,
                                        boolean isPrevote, Rid lastRid) throws InterruptedException {
@@ -610,10 +933,13 @@ public class Peer {
                 this.nextIndex = nextIndex;
                 this.backfillToIndex = backfillToIndex;
 
+                if (nextIndex < backfillToIndex) {
+                    throttled = false;
+                }
                 if (!backfilling && nextIndex < backfillToIndex) {
                     backfilling = true;
                     fullSpeed = false;
-                    backfillAhead = 1;
+                    window.clear();
                     logger.info("[{}-{}] Backfilling {}, from {} to {}",
                             gondola.getHostId(), cmember.memberId, peerId, nextIndex, backfillToIndex - 1);
                     backfillCond.signal();
@@ -652,6 +978,15 @@ public class Peer {
                 .setNoStackTracePattern("Socket closed|.*Read end dead.*|Broken pipe");
         }
 
+        // Messages are copied into this buffer so that all the queued messages can be sent with a single write
+        byte[] batch = new byte[0];
+
+        // A message taken from the queue that did not fit in the previous batch
+        Message pending;
+
+        // The wire format version of the current output stream
+        int wireVersion = Message.WIRE_VERSION;
+
         public void run() {
             OutputStream out = null;
             boolean errorOccurred = false;
@@ -673,19 +1008,19 @@ public class Peer {
                     }
 
                     out = channel.getOutputStream(out, errorOccurred);
+                    wireVersion = channel.getWireVersion();
                     errorOccurred = false;
-                    Message message = outQueue.take();
-                    if (message.tracingInfo != null) {
-                        logger.info("[{}-{}] send({}): {}", gondola.getHostId(),
-                                cmember.memberId, peerId, message.tracingInfo);
-                    }
-                    out.write(message.buffer, 0, message.size);
+                    int messages = fillBatch();
+                    out.write(batch, 0, batchSize);
                     if (networkTracing) {
-                        logger.info("[{}-{}] send({}): sent {} bytes",
-                                gondola.getHostId(), cmember.memberId, peerId, message.size);
+                        logger.info("[{}-{}] send({}): sent {} bytes in {} messages",
+                                gondola.getHostId(), cmember.memberId, peerId, batchSize, messages);
                     }
-                    message.release();
-                    gondola.getStats().sentMessage(message.size);
+                    Stats stats = gondola.getStats();
+                    for (int i = 0; i < messages; i++) {
+                        stats.sentMessage(batchSizes[i]);
+                    }
+                    stats.sentWrite();
                     lastSentTs = clock.now();
                 } catch (InterruptedException | EOFException e) {
                     return;
@@ -695,6 +1030,70 @@ public class Peer {
                 }
             }
         }
+
+        // The number of bytes in batch and the size of each message in it
+        int batchSize;
+        int[] batchSizes = new int[16];
+
+        /**
+         * Blocks until there is at least one message to send and then copies as many queued messages as will fit
+         * within sendBatchMaxBytes into the batch buffer. If sendBatchMaxDelay is positive, waits up to that long
+         * for more messages to fill the batch. The messages are released once copied.
+         *
+         * @return the number of messages in the batch.
+         */
+        int fillBatch() throws InterruptedException {
+            batchSize = 0;
+            int messages = 0;
+            long deadline = 0;
+            Message message = pending != null ? pending : outQueue.take();
+            pending = null;
+            while (message != null) {
+                if (batchSize > 0 && batchSize + message.size > sendBatchMaxBytes) {
+                    // Send it with the next batch
+                    pending = message;
+                    break;
+                }
+                if (message.tracingInfo != null) {
+                    logger.info("[{}-{}] send({}): {}", gondola.getHostId(),
+                            cmember.memberId, peerId, message.tracingInfo);
+                }
+                if (batchSize + message.size > batch.length) {
+                    batch = Arrays.copyOf(batch, Math.max(batchSize + message.size, sendBatchMaxBytes));
+                }
+                if (messages == batchSizes.length) {
+                    batchSizes = Arrays.copyOf(batchSizes, messages * 2);
+                }
+                if (wireVersion == Message.WIRE_VERSION) {
+                    System.arraycopy(message.buffer, 0, batch, batchSize, message.size);
+                    batchSize += message.size;
+                    batchSizes[messages++] = message.size;
+                } else {
+                    // A version 1 message is never larger than the current version
+                    int n = message.writeV1(batch, batchSize);
+                    if (n < 0) {
+                        logger.warn("[{}-{}] send({}): dropped {} byte message; too large for wire version 1",
+                                gondola.getHostId(), cmember.memberId, peerId, message.size);
+                    } else {
+                        batchSize += n;
+                        batchSizes[messages++] = n;
+                    }
+                }
+                message.release();
+
+                message = outQueue.poll();
+                if (message == null && sendBatchMaxDelay > 0 && batchSize < sendBatchMaxBytes) {
+                    if (deadline == 0) {
+                        deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(sendBatchMaxDelay);
+                    }
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0) {
+                        message = outQueue.poll(wait, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+            return messages;
+        }
     }
 
     public boolean matchesMessage(Throwable t, String regex) {
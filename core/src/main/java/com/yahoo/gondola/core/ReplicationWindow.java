@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Clock;
+import com.yahoo.gondola.Config;
+
+import java.util.ArrayDeque;
+
+/**
+ * The flow control window used by the leader when replicating to a peer. It tracks the append entry messages that
+ * have been sent but not yet acknowledged and limits them by count and by bytes.
+ * <p>
+ * The byte limit adapts to the measured round trip time. While the round trip time stays close to the lowest one
+ * seen, the limit grows by the number of bytes acknowledged, which doubles it every round trip. When the round trip
+ * time rises, the follower or the link is queueing so the limit is halved. The limit always stays within
+ * [min_bytes, max_bytes].
+ * <p>
+ * Time is read from the member's clock, so that the window follows the same time as the rest of the member.
+ * <p>
+ * This class is not thread-safe. It is protected by the peer's lock.
+ */
+class ReplicationWindow {
+    final Clock clock;
+
+    // The unacknowledged messages, oldest first
+    final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    int inFlightBytes;
+
+    // The current byte limit
+    int limitBytes;
+
+    // Smoothed and minimum round trip times (ms); -1 if not yet measured
+    double rtt = -1;
+    double minRtt = -1;
+
+    // Config variables
+    static int maxMessages;
+    static int minBytes;
+    static int maxBytes;
+
+    static class InFlight {
+        final int lastIndex;
+        final int bytes;
+        final long sentTs;
+
+        InFlight(int lastIndex, int bytes, long sentTs) {
+            this.lastIndex = lastIndex;
+            this.bytes = bytes;
+            this.sentTs = sentTs;
+        }
+    }
+
+    /**
+     * Must be called before window objects are created.
+     */
+    static void initConfig(Config config) {
+        config.registerForUpdates(config1 -> {
+                    maxMessages = config1.getInt("raft.window.max_messages");
+                    minBytes = config1.getInt("raft.window.min_bytes");
+                    maxBytes = config1.getInt("raft.window.max_bytes");
+                }
+        );
+    }
+
+    ReplicationWindow(Clock clock) {
+        this.clock = clock;
+        limitBytes = minBytes;
+    }
+
+    /**
+     * Returns true if another message can be sent.
+     */
+    boolean isOpen() {
+        return inFlight.size() < maxMessages && inFlightBytes < Math.min(Math.max(limitBytes, minBytes), maxBytes);
+    }
+
+    boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    /**
+     * Records a message that has been sent.
+     *
+     * @param lastIndex the index of the last entry in the message; -1 if the message has no entries.
+     */
+    void sent(int lastIndex, int bytes) {
+        inFlight.add(new InFlight(lastIndex, bytes, clock.now()));
+        inFlightBytes += bytes;
+    }
+
+    /**
+     * Removes the messages whose entries have all been persisted by the peer and adapts the limit to the round trip
+     * time of the latest one.
+     *
+     * @param matchIndex the peer's latest persisted index.
+     */
+    void acked(int matchIndex) {
+        InFlight last = null;
+        int acked = 0;
+        while (!inFlight.isEmpty() && inFlight.peek().lastIndex <= matchIndex) {
+            last = inFlight.poll();
+            acked += last.bytes;
+        }
+        if (last != null) {
+            inFlightBytes -= acked;
+            adapt(clock.now() - last.sentTs, acked);
+        }
+    }
+
+    /**
+     * Removes the oldest message. Used for replies that acknowledge a single message, such as snapshot chunks.
+     */
+    void ackedOne() {
+        InFlight f = inFlight.poll();
+        if (f != null) {
+            inFlightBytes -= f.bytes;
+            adapt(clock.now() - f.sentTs, f.bytes);
+        }
+    }
+
+    void adapt(long sample, int acked) {
+        rtt = rtt < 0 ? sample : (7 * rtt + sample) / 8;
+        if (minRtt < 0 || sample < minRtt) {
+            minRtt = sample;
+        } else {
+            // Let the minimum drift up slowly in case the path has changed
+            minRtt += (sample - minRtt) / 256;
+        }
+
+        // Allow 1ms of jitter so that very short round trips don't cause spurious shrinking
+        if (rtt <= 2 * minRtt + 1) {
+            limitBytes = (int) Math.min((long) limitBytes + acked, maxBytes);
+        } else {
+            limitBytes = Math.max(limitBytes / 2, minBytes);
+        }
+    }
+
+    /**
+     * Forgets all the unacknowledged messages, which are assumed to be lost. The learned limit is kept.
+     */
+    void clear() {
+        inFlight.clear();
+        inFlightBytes = 0;
+    }
+
+    /**
+     * Returns true if the oldest unacknowledged message was sent more than timeout ms ago.
+     */
+    boolean isExpired(int timeout) {
+        InFlight f = inFlight.peek();
+        return f != null && clock.now() - f.sentTs > timeout;
+    }
+
+    /**
+     * Returns the round trip time in milliseconds.
+     */
+    double getRtt() {
+        return Math.max(rtt, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%dB of %dB rtt=%.3fms", inFlight.size(), inFlightBytes, limitBytes, getRtt());
+    }
+}
@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -77,9 +78,6 @@ public class SaveQueue {
     // Contains log entries that need to be saved
     BlockingQueue<Message> workQueue = new LinkedBlockingQueue<>();
 
-    // Used to parse and process incoming messages
-    MessageHandler handler = new MyMessageHandler();
-
     // Holds the maximum gap that can occur between the last continguous record written and the last record written
     int maxGap;
 
@@ -105,6 +103,12 @@ public class SaveQueue {
         storage.setAddress(cmember.memberId, gondola.getNetwork().getAddress());
         storage.setPid(cmember.memberId, gondola.getProcessId());
 
+        // Make sure the log agrees with the latest snapshot, in case the process died while installing it
+        Rid snapshotRid = new Rid();
+        cmember.snapshotManager.getRid(snapshotRid);
+        if (snapshotRid.index > 0) {
+            compact(snapshotRid);
+        }
         initSavedIndex();
     }
 
@@ -223,6 +227,7 @@ public class SaveQueue {
      */
     public void truncate() throws GondolaException {
         logger.info("[{}-{}] Deleting all records in the log", gondola.getHostId(), cmember.memberId);
+        cmember.snapshotManager.discard();
         LogEntry entry = storage.getLastLogEntry(cmember.memberId);
         if (entry != null) {
             deleteFrom(1, entry.index);
@@ -268,9 +273,11 @@ public class SaveQueue {
             logger.info("[{}-{}] Initializing save index with latest=({},{}) maxGap={}",
                     gondola.getHostId(), cmember.memberId, newLastTerm, lastIndex, maxGap);
 
-            // Find latest contiguous index from index 1, by starting from last - maxGap
-            // Move back one earlier in case the entry at last - maxGap is missing; we need to get the lastTerm
-            int start = Math.max(1, lastIndex - maxGap - 1);
+            // Find latest contiguous index from the first index, by starting from last - maxGap.
+            // Move back one earlier in case the entry at last - maxGap is missing; we need to get the lastTerm.
+            // The entries before the latest snapshot have been deleted so the log starts at the snapshot index.
+            int firstIndex = Math.max(1, cmember.snapshotManager.getIndex());
+            int start = Math.max(firstIndex, lastIndex - maxGap - 1);
             for (int i = start; i <= lastIndex; i++) {
                 entry = storage.getLogEntry(cmember.memberId, i);
                 if (entry == null) {
@@ -291,9 +298,11 @@ public class SaveQueue {
 
             // Check that there are no more gaps or extra entries
             int count = storage.count(cmember.memberId);
-            if (count != newSavedIndex) {
-                throw new IllegalStateException(String.format("The last index is %d but found %d entries in the log",
-                        newSavedIndex, count));
+            int expected = newSavedIndex < firstIndex ? 0 : newSavedIndex - firstIndex + 1;
+            if (count != expected) {
+                throw new IllegalStateException(String.format(
+                        "The first index is %d and the last index is %d but found %d entries in the log",
+                        firstIndex, newSavedIndex, count));
             }
 
             // Finally update the saved rid
@@ -314,6 +323,26 @@ public class SaveQueue {
         }
     }
 
+    /**
+     * Deletes the entries covered by the snapshot at rid, except for the entry at rid, which is kept so that the
+     * next append entry request can be matched against it. If the log does not contain the entry at rid,
+     * the entries from rid on are deleted and an empty entry is written at rid in their place.
+     * The caller must hold the lock.
+     */
+    void compact(Rid rid) throws GondolaException {
+        storage.deleteBefore(cmember.memberId, rid.index);
+        if (!storage.hasLogEntry(cmember.memberId, rid.term, rid.index)) {
+            logger.info("[{}-{}] SaveQueue: log does not contain snapshot rid=({},{}). Replacing the log from index={}",
+                    gondola.getHostId(), cmember.memberId, rid.term, rid.index, rid.index);
+            deleteFrom(rid.index, -1);
+            try {
+                storage.appendLogEntry(cmember.memberId, rid.term, rid.index, new byte[0], 0, 0);
+            } catch (InterruptedException e) {
+                throw new GondolaException(e);
+            }
+        }
+    }
+
     // Temp for debugging
     public void verifySavedIndex() throws GondolaException {
         int si = savedIndex; // Capture since it might change while the last entry is being fetched
@@ -325,6 +354,9 @@ public class SaveQueue {
     }
 
     class Worker extends Thread {
+        // Used to parse and process incoming messages
+        MyMessageHandler handler = new MyMessageHandler();
+
         Worker(int i) {
             setName("SaveQueueWorker-" + i);
             setDaemon(true);
@@ -348,6 +380,7 @@ public class SaveQueue {
 
                 try {
                     // Save the message
+                    handler.reset();
                     message.handle(handler);
                 } catch (InterruptedException e) {
                     break;
@@ -363,8 +396,25 @@ public class SaveQueue {
 
     /**
      * The only message type that needs to be handled is AppendEntry requests.
+     * The contiguous entries of a message that need to be written are collected into a batch which is written
+     * with a single storage call. The savedIndex is then advanced once for the whole batch.
+     * Each worker has its own handler.
      */
     class MyMessageHandler extends MessageHandler {
+        // The entries of the current message waiting to be written
+        int batchTerm;
+        int batchIndex;
+        int batchCount;
+        int[] batchOffsets = new int[16];
+        int[] batchLengths = new int[16];
+
+        // Set if entries were deleted while building the batch
+        boolean deleted;
+
+        void reset() {
+            batchCount = 0;
+            deleted = false;
+        }
 
         @Override
         public boolean appendEntryRequest(Message message, int fromMemberId, int term,
@@ -372,9 +422,38 @@ public class SaveQueue {
                                           boolean isHeartbeat, int entryTerm, byte[] buffer, int bufferOffset,
                                           int bufferLen,
                                           boolean lastCommand) throws InterruptedException, GondolaException {
-            // Determine if the any entries need to be deleted
-            int deletedCount = 0;
             int index = prevLogIndex + 1;
+
+            // The batch must be contiguous
+            if (batchCount > 0 && index != batchIndex + batchCount) {
+                saveBatch(buffer);
+            }
+
+            if (prepare(index, buffer, bufferOffset, bufferLen)) {
+                if (batchCount == 0) {
+                    batchTerm = entryTerm;
+                    batchIndex = index;
+                } else if (batchCount == batchOffsets.length) {
+                    batchOffsets = Arrays.copyOf(batchOffsets, batchCount * 2);
+                    batchLengths = Arrays.copyOf(batchLengths, batchCount * 2);
+                }
+                batchOffsets[batchCount] = bufferOffset;
+                batchLengths[batchCount] = bufferLen;
+                batchCount++;
+            }
+
+            if (lastCommand && (batchCount > 0 || deleted)) {
+                saveBatch(buffer);
+            }
+            return true;
+        }
+
+        /**
+         * Determines if the entry needs to be saved and if so, marks it as being saved.
+         *
+         * @return false if the entry should not be saved.
+         */
+        boolean prepare(int index, byte[] buffer, int bufferOffset, int bufferLen) throws GondolaException {
             lock.lock();
             try {
                 if (saving.contains(index)) {
@@ -382,10 +461,13 @@ public class SaveQueue {
                         logger.info("[{}-{}] SaveQueue: index={} is currently being saved. Ignoring this request.",
                                 gondola.getHostId(), cmember.memberId, index);
                     }
-                    return true;
+                    return false;
                 }
 
-                if (index <= savedIndex) {
+                if (index <= cmember.snapshotManager.getIndex()) {
+                    // The entry is covered by the snapshot, which contains only committed entries
+                    return false;
+                } else if (index <= savedIndex) {
                     // Possibly overwrite an old entry
                     LogEntry le = storage.getLogEntry(cmember.memberId, index);
                     if (le == null) {
@@ -400,7 +482,7 @@ public class SaveQueue {
                             isContentsEqual ? "identical" : "different");
                     if (isContentsEqual) {
                         // The contents haven't changed so ignore this message
-                        return true;
+                        return false;
                     } else {
                         savedIndex = index - 1;
                         logger.info("[{}-{}] SaveQueue: Setting savedIndex={} and deleting subsequent entries",
@@ -412,9 +494,10 @@ public class SaveQueue {
                             lastIndex = saving.stream().max(Integer::compare).get();
                         }
 
-                        deletedCount = deleteFrom(index, lastIndex);
+                        int deletedCount = deleteFrom(index, lastIndex);
                         if (deletedCount > 0) {
-                            cmember.indexUpdated(false, deletedCount > 0);
+                            deleted = true;
+                            cmember.indexUpdated(false, true);
                         }
                     }
                 } else if (saved.containsKey(index)) {
@@ -423,7 +506,7 @@ public class SaveQueue {
                         logger.info("[{}-{}] SaveQueue: index={} has already been saved. Ignoring this request.",
                                 gondola.getHostId(), cmember.memberId, index);
                     }
-                    return true;
+                    return false;
                 } else {
                     // Increase maxGap if necessary.
                     int g = Math.max(maxGap, index - savedIndex);
@@ -438,60 +521,78 @@ public class SaveQueue {
                     }
                 }
                 saving.add(index);
+                return true;
             } finally {
                 lock.unlock();
             }
+        }
 
-            // Append entry outside the lock
-            storage.appendLogEntry(cmember.memberId, entryTerm, index, buffer, bufferOffset, bufferLen);
-            if (storageTracing) {
-                logger.info("[{}-{}] insert(term={} index={} size={}) waiters={} saved={} contents={}",
-                        gondola.getHostId(), cmember.memberId, entryTerm, index,
-                        bufferLen, numWaiters, saved.size(), new String(buffer, bufferOffset, bufferLen));
+        /**
+         * Writes the current batch and advances the savedIndex.
+         */
+        void saveBatch(byte[] buffer) throws InterruptedException, GondolaException {
+            int count = batchCount;
+            batchCount = 0;
+
+            // Append entries outside the lock
+            if (count == 1) {
+                storage.appendLogEntry(cmember.memberId, batchTerm, batchIndex,
+                        buffer, batchOffsets[0], batchLengths[0]);
+            } else if (count > 1) {
+                storage.appendLogEntries(cmember.memberId, batchTerm, batchIndex, count,
+                        buffer, batchOffsets, batchLengths);
+            }
+            for (int i = 0; i < count; i++) {
+                if (storageTracing) {
+                    logger.info("[{}-{}] insert(term={} index={} size={}) waiters={} saved={} contents={}",
+                            gondola.getHostId(), cmember.memberId, batchTerm, batchIndex + i,
+                            batchLengths[i], numWaiters, saved.size(),
+                            new String(buffer, batchOffsets[i], batchLengths[i]));
+                }
+                stats.savedCommand(batchLengths[i]);
             }
-            stats.savedCommand(bufferLen);
 
             // Update state
             int oldSavedIndex = savedIndex;
             lock.lock();
             try {
-                if (!saving.remove(index)) {
-                    logger.warn("[{}-{}] SaveQueue: index={} has already been removed",
-                            gondola.getHostId(), cmember.memberId, index);
-                }
-                if (index == savedIndex + 1) {
-                    // The savedIndex can be advanced immediately
-                    savedIndex++;
-                    index++;
-                    lastTerm = entryTerm;
-
-                    // Continue to advance savedIndex if possible
-                    int start = index;
-                    while (saved.containsKey(index)) {
-                        lastTerm = saved.get(index);
-                        saved.remove(index);
-                        savedIndex++;
-                        index++;
+                for (int i = 0; i < count; i++) {
+                    int index = batchIndex + i;
+                    if (!saving.remove(index)) {
+                        logger.warn("[{}-{}] SaveQueue: index={} has already been removed",
+                                gondola.getHostId(), cmember.memberId, index);
                     }
-                    if (index > start && storageTracing) {
-                        logger.info("[{}-{}] SaveQueue: pulled index={} to {} from saved. Remaining={}",
-                                gondola.getHostId(), cmember.memberId, start, index - 1, saved.size());
+                    if (index == savedIndex + 1) {
+                        // The savedIndex can be advanced immediately
+                        savedIndex++;
+                        lastTerm = batchTerm;
+                    } else if (index > savedIndex) {
+                        saved.put(index, batchTerm);
+                    } else {
+                        logger.warn("[{}-{}] SaveQueue: savedIndex={} is > index={}",
+                                gondola.getHostId(), cmember.memberId, savedIndex, index);
                     }
-                } else if (index > savedIndex) {
-                    saved.put(index, entryTerm);
-                } else {
-                    logger.warn("[{}-{}] SaveQueue: savedIndex={} is > index={}",
-                            gondola.getHostId(), cmember.memberId, savedIndex, index);
+                }
+
+                // Continue to advance savedIndex if possible
+                int start = savedIndex + 1;
+                while (saved.containsKey(savedIndex + 1)) {
+                    lastTerm = saved.remove(savedIndex + 1);
+                    savedIndex++;
+                }
+                if (savedIndex >= start && storageTracing) {
+                    logger.info("[{}-{}] SaveQueue: pulled index={} to {} from saved. Remaining={}",
+                            gondola.getHostId(), cmember.memberId, start, savedIndex, saved.size());
                 }
             } finally {
                 lock.unlock();
             }
 
             // Update commit index
-            if (deletedCount > 0 || savedIndex > oldSavedIndex) {
-                cmember.indexUpdated(false, deletedCount > 0);
+            if (deleted || savedIndex > oldSavedIndex) {
+                cmember.indexUpdated(false, deleted);
             }
-            return true;
+            deleted = false;
         }
     }
 
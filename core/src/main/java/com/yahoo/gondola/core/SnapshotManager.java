@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.GondolaException;
+import com.yahoo.gondola.LogEntry;
+import com.yahoo.gondola.SnapshotHandler;
+import com.yahoo.gondola.Storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Manages the snapshots of the application state for a member. A snapshot covers all the log entries up to and
+ * including its rid. After a snapshot is saved, the entries before the snapshot's index are deleted from storage.
+ * The entry at the snapshot's index is kept so that its rid can be matched by the next append entry request.
+ * <p>
+ * Snapshots are stored as files named memberId-term-index.snapshot in the snapshot directory. Only the latest one is
+ * kept. A snapshot is written to a temporary file first, which is renamed once it is complete.
+ */
+public class SnapshotManager {
+
+    final static Logger logger = LoggerFactory.getLogger(SnapshotManager.class);
+
+    final Gondola gondola;
+    final Storage storage;
+    final CoreMember cmember;
+    final File dir;
+
+    // Set by the application
+    volatile SnapshotHandler handler;
+
+    // @this The rid of the latest snapshot; (0, 0) if there is none
+    final Rid rid = new Rid();
+
+    // State of a snapshot being received from the leader. Only accessed by the main loop.
+    Rid receiveRid = new Rid();
+    File receiveFile;
+    FileOutputStream receiveOut;
+    long received;
+
+    SnapshotManager(Gondola gondola, CoreMember cmember) throws GondolaException {
+        this.gondola = gondola;
+        this.cmember = cmember;
+        storage = gondola.getStorage();
+        dir = new File(gondola.getConfig().get("gondola.snapshot.dir").replace("$hostId", gondola.getHostId()));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new GondolaException("Could not create snapshot directory " + dir);
+        }
+
+        // Find the latest snapshot and remove everything else, such as partially written snapshots
+        String prefix = cmember.memberId + "-";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                String[] parts = file.getName().split("[-.]");
+                if (parts.length == 4 && parts[3].equals("snapshot")) {
+                    int index = Integer.parseInt(parts[2]);
+                    if (index > rid.index) {
+                        rid.set(Integer.parseInt(parts[1]), index);
+                        latest = file;
+                    }
+                }
+            }
+            for (File file : files) {
+                if (!file.equals(latest) && !file.delete()) {
+                    logger.warn("[{}-{}] Could not delete {}", gondola.getHostId(), cmember.memberId, file);
+                }
+            }
+        }
+        if (latest != null) {
+            logger.info("[{}-{}] Found snapshot {} at rid=({},{})",
+                    gondola.getHostId(), cmember.memberId, latest, rid.term, rid.index);
+        }
+    }
+
+    /**
+     * Sets the handler used to save and restore the application state.
+     *
+     * @param handler null to disable snapshots.
+     */
+    public void setHandler(SnapshotHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Returns true if a snapshot handler has been set.
+     */
+    public boolean hasHandler() {
+        return handler != null;
+    }
+
+    /**
+     * Atomically copies the rid of the latest snapshot into rid.
+     */
+    public synchronized void getRid(Rid rid) {
+        rid.set(this.rid);
+    }
+
+    /**
+     * Returns the index of the latest snapshot; 0 if there is none.
+     */
+    public synchronized int getIndex() {
+        return rid.index;
+    }
+
+    /**
+     * Returns the file of the latest snapshot.
+     *
+     * @return null if there is no snapshot.
+     */
+    public synchronized File getFile() {
+        return rid.index == 0 ? null : file(rid, "");
+    }
+
+    File file(Rid rid, String suffix) {
+        return new File(dir, String.format("%d-%d-%d.snapshot%s", cmember.memberId, rid.term, rid.index, suffix));
+    }
+
+    /**
+     * Saves a snapshot of the application state, which must reflect all the entries up to and including index.
+     * The entries before index are then deleted from storage.
+     *
+     * @param index must be committed and greater than the index of the latest snapshot.
+     */
+    public void save(int index) throws GondolaException {
+        SnapshotHandler handler = this.handler;
+        if (handler == null) {
+            throw new IllegalStateException("A snapshot handler has not been set");
+        }
+        if (index > cmember.commitIndex || index <= getIndex()) {
+            throw new GondolaException(String.format(
+                    "Cannot take snapshot at index=%d. commitIndex=%d snapshotIndex=%d",
+                    index, cmember.commitIndex, getIndex()));
+        }
+        LogEntry entry = storage.getLogEntry(cmember.memberId, index);
+        if (entry == null) {
+            throw new GondolaException(String.format(
+                    "Cannot take snapshot at index=%d because the entry is not in the log", index));
+        }
+        Rid newRid = new Rid(entry.term, index);
+        entry.release();
+
+        // Write the snapshot
+        long start = System.currentTimeMillis();
+        File tmpFile = file(newRid, ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmpFile);
+             BufferedOutputStream out = new BufferedOutputStream(fout)) {
+            handler.save(out);
+            out.flush();
+            fout.getFD().sync();
+        } catch (Exception e) {
+            tmpFile.delete();
+            throw new GondolaException(e);
+        }
+        install(newRid, tmpFile);
+        logger.info("[{}-{}] Saved snapshot at rid=({},{}), size={} in {}ms",
+                gondola.getHostId(), cmember.memberId, newRid.term, newRid.index, file(newRid, "").length(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Restores the application state from the latest snapshot, if any.
+     *
+     * @return the index of the snapshot; 0 if there is no snapshot.
+     */
+    public int restore() throws GondolaException {
+        Rid rid = new Rid();
+        getRid(rid);
+        if (rid.index == 0) {
+            return 0;
+        }
+        SnapshotHandler handler = this.handler;
+        if (handler == null) {
+            throw new IllegalStateException("A snapshot handler has not been set");
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file(rid, "")))) {
+            handler.restore(rid.index, in);
+        } catch (Exception e) {
+            throw new GondolaException(e);
+        }
+        logger.info("[{}-{}] Restored snapshot at rid=({},{})",
+                gondola.getHostId(), cmember.memberId, rid.term, rid.index);
+        return rid.index;
+    }
+
+    /**
+     * Makes the completed snapshot in tmpFile the latest snapshot and deletes the log entries that it covers.
+     * This is done while holding the save queue lock so that the save queue never sees the new snapshot index with
+     * the old log.
+     */
+    void install(Rid newRid, File tmpFile) throws GondolaException {
+        File oldFile;
+        SaveQueue saveQueue = cmember.saveQueue;
+        saveQueue.lock.lock();
+        try {
+            oldFile = getFile();
+            if (newRid.index <= getIndex()) {
+                // A newer snapshot was installed in the meantime
+                tmpFile.delete();
+                return;
+            }
+            Files.move(tmpFile.toPath(), file(newRid, "").toPath(), StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                rid.set(newRid);
+            }
+            saveQueue.compact(newRid);
+        } catch (IOException e) {
+            throw new GondolaException(e);
+        } finally {
+            saveQueue.lock.unlock();
+        }
+        if (oldFile != null && !oldFile.delete()) {
+            logger.warn("[{}-{}] Could not delete old snapshot {}", gondola.getHostId(), cmember.memberId, oldFile);
+        }
+    }
+
+    /**
+     * Deletes the latest snapshot. Used when all the entries in the log are deleted, such as when entering slave mode.
+     */
+    void discard() {
+        File file;
+        synchronized (this) {
+            file = getFile();
+            rid.set(0, 0);
+        }
+        if (file != null && !file.delete()) {
+            logger.warn("[{}-{}] Could not delete snapshot {}", gondola.getHostId(), cmember.memberId, file);
+        }
+    }
+
+    /**
+     * Writes a chunk of a snapshot sent by the leader. A chunk at offset 0 starts a new snapshot.
+     *
+     * @return the number of bytes of the snapshot received so far, which is the offset of the next expected chunk.
+     */
+    long receive(Rid rid, long offset, byte[] buffer, int bufferOffset, int bufferLen, boolean done)
+            throws GondolaException {
+        try {
+            if (offset == 0) {
+                closeReceive(true);
+                receiveRid.set(rid);
+                receiveFile = file(rid, ".recv");
+                receiveOut = new FileOutputStream(receiveFile);
+                received = 0;
+            }
+            if (receiveOut == null || !receiveRid.equals(rid.term, rid.index)) {
+                return 0;
+            }
+            if (offset != received) {
+                return received;
+            }
+            receiveOut.write(buffer, bufferOffset, bufferLen);
+            received += bufferLen;
+            if (done) {
+                receiveOut.getFD().sync();
+                closeReceive(false);
+            }
+            return received;
+        } catch (IOException e) {
+            closeReceive(true);
+            throw new GondolaException(e);
+        }
+    }
+
+    /**
+     * Makes the completely received snapshot the latest snapshot.
+     */
+    void installReceived() throws GondolaException {
+        install(receiveRid, receiveFile);
+        receiveFile = null;
+    }
+
+    void closeReceive(boolean discard) {
+        if (receiveOut != null) {
+            try {
+                receiveOut.close();
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
+            }
+            receiveOut = null;
+        }
+        if (discard && receiveFile != null) {
+            receiveFile.delete();
+            receiveFile = null;
+        }
+    }
+}
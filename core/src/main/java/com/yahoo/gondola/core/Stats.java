@@ -24,21 +24,33 @@ public class Stats implements StatsMBean {
     AtomicInteger appendEntryReply = new AtomicInteger();
     AtomicInteger requestVoteRequest = new AtomicInteger();
     AtomicInteger requestVoteReply = new AtomicInteger();
+    AtomicInteger installSnapshotRequest = new AtomicInteger();
+    AtomicInteger installSnapshotReply = new AtomicInteger();
     AtomicInteger emptyCommandPool = new AtomicInteger();
 
     AtomicInteger sentMessages = new AtomicInteger();
     AtomicLong sentBytes = new AtomicLong();
+    AtomicInteger sentWrites = new AtomicInteger();
     float sentMessagesRps;
 
     AtomicInteger incomingMessages = new AtomicInteger();
     AtomicLong incomingBytes = new AtomicLong();
     AtomicLong incomingQueueFull = new AtomicLong();
+    AtomicLong droppedHeartbeats = new AtomicLong();
     float incomingMessagesRps;
 
+    AtomicInteger commandBatches = new AtomicInteger();
+    AtomicLong batchedCommands = new AtomicLong();
+    float commandBatchSize;
+
     AtomicInteger savedCommands = new AtomicInteger();
     AtomicLong savedBytes = new AtomicLong();
     float savedCommandsRps;
 
+    AtomicLong messageBufferBytes = new AtomicLong();
+    AtomicInteger messageBufferWaits = new AtomicInteger();
+    AtomicInteger messageBufferExhausted = new AtomicInteger();
+
     public Stats() {
         new RpsCalculator().start();
     }
@@ -65,6 +77,14 @@ public class Stats implements StatsMBean {
         return requestVoteReply.get();
     }
 
+    public int getInstallSnapshotRequest() {
+        return installSnapshotRequest.get();
+    }
+
+    public int getInstallSnapshotReply() {
+        return installSnapshotReply.get();
+    }
+
     public int getEmptyCommandPool() {
         return emptyCommandPool.get();
     }
@@ -77,6 +97,10 @@ public class Stats implements StatsMBean {
         return sentBytes.get();
     }
 
+    public int getSentWrites() {
+        return sentWrites.get();
+    }
+
     public int getIncomingMessages() {
         return incomingMessages.get();
     }
@@ -89,6 +113,25 @@ public class Stats implements StatsMBean {
         return incomingQueueFull.get();
     }
 
+    public long getDroppedHeartbeats() {
+        return droppedHeartbeats.get();
+    }
+
+    @Override
+    public int getCommandBatches() {
+        return commandBatches.get();
+    }
+
+    @Override
+    public long getBatchedCommands() {
+        return batchedCommands.get();
+    }
+
+    @Override
+    public float getCommandBatchSize() {
+        return commandBatchSize;
+    }
+
     @Override
     public int getSavedCommands() {
         return savedCommands.get();
@@ -99,6 +142,21 @@ public class Stats implements StatsMBean {
         return savedBytes.get();
     }
 
+    @Override
+    public long getMessageBufferBytes() {
+        return messageBufferBytes.get();
+    }
+
+    @Override
+    public int getMessageBufferWaits() {
+        return messageBufferWaits.get();
+    }
+
+    @Override
+    public int getMessageBufferExhausted() {
+        return messageBufferExhausted.get();
+    }
+
     /* ******************* update ****************** */
 
     @Override
@@ -131,6 +189,16 @@ public class Stats implements StatsMBean {
         requestVoteReply.incrementAndGet();
     }
 
+    @Override
+    public void installSnapshotRequest() {
+        installSnapshotRequest.incrementAndGet();
+    }
+
+    @Override
+    public void installSnapshotReply() {
+        installSnapshotReply.incrementAndGet();
+    }
+
     @Override
     public void emptyCommandPool() {
         emptyCommandPool.incrementAndGet();
@@ -142,6 +210,11 @@ public class Stats implements StatsMBean {
         sentBytes.addAndGet(bytes);
     }
 
+    @Override
+    public void sentWrite() {
+        sentWrites.incrementAndGet();
+    }
+
     @Override
     public void incomingMessage(int bytes) {
         incomingMessages.incrementAndGet();
@@ -153,12 +226,38 @@ public class Stats implements StatsMBean {
         incomingQueueFull.incrementAndGet();
     }
 
+    @Override
+    public void droppedHeartbeat() {
+        droppedHeartbeats.incrementAndGet();
+    }
+
+    @Override
+    public void commandBatch(int commands) {
+        commandBatches.incrementAndGet();
+        batchedCommands.addAndGet(commands);
+    }
+
     @Override
     public void savedCommand(int bytes) {
         savedCommands.incrementAndGet();
         savedBytes.addAndGet(bytes);
     }
 
+    @Override
+    public void messageBufferAllocated(int bytes) {
+        messageBufferBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void messageBufferWait() {
+        messageBufferWaits.incrementAndGet();
+    }
+
+    @Override
+    public void messageBufferExhausted() {
+        messageBufferExhausted.incrementAndGet();
+    }
+
     class RpsCalculator extends Thread {
         int period = 10000;
 
@@ -170,6 +269,8 @@ public class Stats implements StatsMBean {
             int inm = incomingMessages.get();
             int outm = sentMessages.get();
             int sc = savedCommands.get();
+            int cb = commandBatches.get();
+            long bc = batchedCommands.get();
 
             while (true) {
                 try {
@@ -185,6 +286,12 @@ public class Stats implements StatsMBean {
                     savedCommandsRps = (sc2 - sc) * 1000.0f / period;
                     sc = sc2;
 
+                    int cb2 = commandBatches.get();
+                    long bc2 = batchedCommands.get();
+                    commandBatchSize = cb2 == cb ? 0 : (float) (bc2 - bc) / (cb2 - cb);
+                    cb = cb2;
+                    bc = bc2;
+
                     Thread.sleep(period);
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
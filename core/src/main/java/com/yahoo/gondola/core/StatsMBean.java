@@ -23,22 +23,46 @@ public interface StatsMBean {
 
     int getRequestVoteReply();
 
+    int getInstallSnapshotRequest();
+
+    int getInstallSnapshotReply();
+
     int getEmptyCommandPool();
 
     int getSentMessages();
 
     long getSentBytes();
 
+    int getSentWrites();
+
     int getIncomingMessages();
 
     long getIncomingBytes();
 
     long getIncomingQueueFull();
 
+    long getDroppedHeartbeats();
+
+    int getCommandBatches();
+
+    long getBatchedCommands();
+
+    /**
+     * Returns the average number of commands in the append entry messages built by the leaders during the last
+     * period, or 0 if there were none.
+     */
+    float getCommandBatchSize();
+
     int getSavedCommands();
 
     long getSavedBytes();
 
+    long getMessageBufferBytes();
+
+    int getMessageBufferWaits();
+
+    int getMessageBufferExhausted();
+
     /********************** update *******************/
 
     void hello();
@@ -53,13 +77,38 @@ public interface StatsMBean {
 
     void requestVoteReply();
 
+    void installSnapshotRequest();
+
+    void installSnapshotReply();
+
     void emptyCommandPool();
 
     void sentMessage(int bytes);
 
+    void sentWrite();
+
     void incomingMessage(int bytes);
 
     void incomingQueueFull();
 
+    /**
+     * A coalesced heartbeat was dropped because the incoming queue of the member it was for was full.
+     */
+    void droppedHeartbeat();
+
+    /**
+     * @param commands the number of commands in an append entry message built by a leader.
+     */
+    void commandBatch(int commands);
+
     void savedCommand(int bytes);
+
+    /**
+     * @param bytes the size of a new message buffer, or the negated size of a discarded one.
+     */
+    void messageBufferAllocated(int bytes);
+
+    void messageBufferWait();
+
+    void messageBufferExhausted();
 }
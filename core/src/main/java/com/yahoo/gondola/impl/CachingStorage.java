@@ -0,0 +1,396 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.GondolaException;
+import com.yahoo.gondola.LogEntry;
+import com.yahoo.gondola.Storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently appended log entries of each member in memory, in front of another storage.
+ * <p>
+ * Nearly all the reads of the log in steady state are of entries that were just written: backfilling a follower
+ * that fell slightly behind, fetching committed commands for the application, and checking for overwrites in
+ * the save queue. These reads are served from a ring of the last storage.cache.max_bytes of entries of each
+ * member, held in a direct buffer outside of the heap. All writes go through to the underlying storage, and an
+ * entry is only added to the ring once the underlying storage has written it, so the ring never serves an entry
+ * that is not in the log.
+ * <p>
+ * The entries are located in the ring by index, in a table of storage.cache.max_entries slots. An entry is
+ * dropped when its slot is taken by a later index or when its bytes are overwritten by later entries.
+ * Reads of entries that are not in the ring go to the underlying storage.
+ */
+public class CachingStorage implements Storage {
+
+    Logger logger = LoggerFactory.getLogger(CachingStorage.class);
+
+    final Storage storage;
+
+    // member id -> recent entries of the member
+    final Map<Integer, Ring> rings = new ConcurrentHashMap<>();
+
+    Queue<LogEntry> pool = new ConcurrentLinkedQueue<>();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    // Config variables
+    final int maxCommandSize;
+    final int maxBytes;
+    final int maxEntries;
+
+    public CachingStorage(Gondola gondola, String hostId) throws GondolaException {
+        this(gondola.getConfig(), createStorage(gondola, hostId));
+    }
+
+    CachingStorage(Config config, Storage storage) {
+        this.storage = storage;
+        maxCommandSize = config.getInt("raft.command_max_size");
+        maxBytes = config.getInt("storage.cache.max_bytes");
+        maxEntries = config.getInt("storage.cache.max_entries");
+        if (maxBytes < maxCommandSize) {
+            throw new IllegalStateException(String.format(
+                    "storage.cache.max_bytes (%d) must be >= raft.command_max_size (%d)", maxBytes, maxCommandSize));
+        }
+        logger.info("Caching the last {} bytes or {} entries of each member in front of {}",
+                maxBytes, maxEntries, storage.getClass().getSimpleName());
+    }
+
+    static Storage createStorage(Gondola gondola, String hostId) throws GondolaException {
+        String storageClassName = gondola.getConfig().get(gondola.getConfig().get("storage.cache.impl") + ".class");
+        try {
+            return (Storage) Class.forName(storageClassName).getConstructor(Gondola.class, String.class)
+                    .newInstance(gondola, hostId);
+        } catch (Exception e) {
+            throw new GondolaException(e);
+        }
+    }
+
+    @Override
+    public void start() {
+        storage.start();
+    }
+
+    @Override
+    public boolean stop() {
+        rings.clear();
+        return storage.stop();
+    }
+
+    @Override
+    public boolean isOperational() {
+        return storage.isOperational();
+    }
+
+    @Override
+    public String getAddress(int memberId) throws GondolaException {
+        return storage.getAddress(memberId);
+    }
+
+    @Override
+    public void setAddress(int memberId, String address) throws GondolaException {
+        storage.setAddress(memberId, address);
+    }
+
+    @Override
+    public int getCurrentTerm(int memberId) throws GondolaException {
+        return storage.getCurrentTerm(memberId);
+    }
+
+    @Override
+    public int getVotedFor(int memberId) throws GondolaException {
+        return storage.getVotedFor(memberId);
+    }
+
+    @Override
+    public void saveVote(int memberId, int currentTerm, int votedFor) throws GondolaException {
+        storage.saveVote(memberId, currentTerm, votedFor);
+    }
+
+    @Override
+    public int getMaxGap(int memberId) throws GondolaException {
+        return storage.getMaxGap(memberId);
+    }
+
+    @Override
+    public void setMaxGap(int memberId, int maxGap) throws GondolaException {
+        storage.setMaxGap(memberId, maxGap);
+    }
+
+    @Override
+    public String getPid(int memberId) throws GondolaException {
+        return storage.getPid(memberId);
+    }
+
+    @Override
+    public void setPid(int memberId, String pid) throws GondolaException {
+        storage.setPid(memberId, pid);
+    }
+
+    @Override
+    public int count(int memberId) throws GondolaException {
+        return storage.count(memberId);
+    }
+
+    @Override
+    public LogEntry getLogEntry(int memberId, int index) throws GondolaException {
+        LogEntry entry = checkout();
+        if (ring(memberId).get(index, entry)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        entry.release();
+        misses.incrementAndGet();
+        return storage.getLogEntry(memberId, index);
+    }
+
+    /**
+     * The entries at the start of the range that are in the ring are served from it. The rest of the range, if any,
+     * is read from the underlying storage.
+     */
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        Ring ring = ring(memberId);
+        List<LogEntry> entries = new ArrayList<>();
+        int bytes = 0;
+        while (entries.size() < maxCount) {
+            LogEntry entry = checkout();
+            if (!ring.get(fromIndex + entries.size(), entry)) {
+                entry.release();
+                break;
+            }
+            if (bytes + entry.size > maxBytes && !entries.isEmpty()) {
+                entry.release();
+                return entries;
+            }
+            bytes += entry.size;
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            misses.incrementAndGet();
+            return storage.getLogEntries(memberId, fromIndex, maxCount, maxBytes);
+        }
+        hits.incrementAndGet();
+
+        // Read the rest of the range from the underlying storage
+        if (entries.size() < maxCount && bytes < maxBytes) {
+            try {
+                List<LogEntry> rest = storage.getLogEntries(memberId, fromIndex + entries.size(),
+                        maxCount - entries.size(), maxBytes - bytes);
+                // The underlying storage always returns its first entry, which may not fit
+                boolean full = false;
+                for (LogEntry entry : rest) {
+                    full |= bytes + entry.size > maxBytes;
+                    if (full) {
+                        entry.release();
+                    } else {
+                        bytes += entry.size;
+                        entries.add(entry);
+                    }
+                }
+            } catch (GondolaException e) {
+                entries.forEach(LogEntry::release);
+                throw e;
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean hasLogEntry(int memberId, int term, int index) throws GondolaException {
+        int cachedTerm = ring(memberId).getTerm(index);
+        if (cachedTerm > 0) {
+            return cachedTerm == term;
+        }
+        return storage.hasLogEntry(memberId, term, index);
+    }
+
+    @Override
+    public LogEntry getLastLogEntry(int memberId) throws GondolaException {
+        return storage.getLastLogEntry(memberId);
+    }
+
+    @Override
+    public void appendLogEntry(int memberId, int term, int index, byte[] buffer, int bufferOffset, int bufferLen)
+            throws GondolaException, InterruptedException {
+        storage.appendLogEntry(memberId, term, index, buffer, bufferOffset, bufferLen);
+        ring(memberId).put(term, index, buffer, bufferOffset, bufferLen);
+    }
+
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths)
+            throws GondolaException, InterruptedException {
+        storage.appendLogEntries(memberId, term, startIndex, count, buffer, offsets, lengths);
+        Ring ring = ring(memberId);
+        for (int i = 0; i < count; i++) {
+            ring.put(term, startIndex + i, buffer, offsets[i], lengths[i]);
+        }
+    }
+
+    @Override
+    public void delete(int memberId, int index) throws GondolaException {
+        // Drop the entry first so that it is not served while it is being deleted
+        ring(memberId).remove(index);
+        storage.delete(memberId, index);
+    }
+
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        ring(memberId).removeBefore(index);
+        storage.deleteBefore(memberId, index);
+    }
+
+    @Override
+    public void checkin(LogEntry entry) {
+        if (entry.storage == this) {
+            pool.add(entry);
+        } else {
+            storage.checkin(entry);
+        }
+    }
+
+    LogEntry checkout() {
+        LogEntry le = pool.poll();
+        if (le == null) {
+            le = new LogEntry(this, maxCommandSize);
+        }
+        return le;
+    }
+
+    Ring ring(int memberId) {
+        return rings.computeIfAbsent(memberId, Ring::new);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The recent entries of one member. The bytes of the entries are appended to a circular buffer, at positions
+     * counted from the first byte ever appended, so that an entry whose bytes have since been overwritten can be
+     * recognized by its position. All access is synchronized on the ring.
+     */
+    class Ring {
+        final int memberId;
+        final ByteBuffer data = ByteBuffer.allocateDirect(maxBytes);
+
+        // The total number of bytes appended
+        long writePos;
+
+        // Slot i holds the entry whose index modulo maxEntries is i; an index of 0 means the slot is empty
+        final int[] slotIndex = new int[maxEntries];
+        final int[] slotTerm = new int[maxEntries];
+        final long[] slotPos = new long[maxEntries];
+        final int[] slotSize = new int[maxEntries];
+
+        Ring(int memberId) {
+            this.memberId = memberId;
+        }
+
+        synchronized void put(int term, int index, byte[] buffer, int offset, int size) {
+            int p = (int) (writePos % maxBytes);
+            int first = Math.min(size, maxBytes - p);
+            copy(p, buffer, offset, first, true);
+            copy(0, buffer, offset + first, size - first, true);
+
+            int slot = index % maxEntries;
+            slotIndex[slot] = index;
+            slotTerm[slot] = term;
+            slotPos[slot] = writePos;
+            slotSize[slot] = size;
+            writePos += size;
+        }
+
+        /**
+         * Copies the entry at index into entry.
+         *
+         * @return false if the entry is not in the ring.
+         */
+        synchronized boolean get(int index, LogEntry entry) {
+            int slot = find(index);
+            if (slot < 0) {
+                return false;
+            }
+            int size = slotSize[slot];
+            int p = (int) (slotPos[slot] % maxBytes);
+            int first = Math.min(size, maxBytes - p);
+            copy(p, entry.buffer, 0, first, false);
+            copy(0, entry.buffer, first, size - first, false);
+            entry.memberId = memberId;
+            entry.term = slotTerm[slot];
+            entry.index = index;
+            entry.size = size;
+            return true;
+        }
+
+        /**
+         * Returns the term of the entry at index, or 0 if the entry is not in the ring.
+         */
+        synchronized int getTerm(int index) {
+            int slot = find(index);
+            return slot < 0 ? 0 : slotTerm[slot];
+        }
+
+        synchronized void remove(int index) {
+            int slot = find(index);
+            if (slot >= 0) {
+                slotIndex[slot] = 0;
+            }
+        }
+
+        synchronized void removeBefore(int index) {
+            for (int i = 0; i < maxEntries; i++) {
+                if (slotIndex[i] < index) {
+                    slotIndex[i] = 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the slot of the entry at index, or -1 if the entry is not in the ring or has been overwritten.
+         */
+        int find(int index) {
+            int slot = index % maxEntries;
+            if (index <= 0 || slotIndex[slot] != index || writePos - slotPos[slot] > maxBytes) {
+                return -1;
+            }
+            return slot;
+        }
+
+        void copy(int position, byte[] buffer, int offset, int length, boolean toRing) {
+            if (length > 0) {
+                ByteBuffer bb = data.duplicate();
+                bb.position(position);
+                if (toRing) {
+                    bb.put(buffer, offset, length);
+                } else {
+                    bb.get(buffer, offset, length);
+                }
+            }
+        }
+    }
+}
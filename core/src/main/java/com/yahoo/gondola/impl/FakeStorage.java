@@ -18,6 +18,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -138,7 +140,8 @@ public class FakeStorage implements Storage {
 
     @Override
     public int count(int memberId) throws GondolaException {
-        return getMember(memberId).lastIndex;
+        Member m = getMember(memberId);
+        return Math.max(0, m.lastIndex - m.firstIndex + 1);
     }
 
     @Override
@@ -154,22 +157,36 @@ public class FakeStorage implements Storage {
         m.lastIndex = Math.max(m.lastIndex, index);
     }
 
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths) throws GondolaException {
+        for (int i = 0; i < count; i++) {
+            appendLogEntry(memberId, term, startIndex + i, buffer, offsets[i], lengths[i]);
+        }
+    }
+
     @Override
     public void delete(int memberId, int index) throws GondolaException {
         Member m = getMember(memberId);
         m.lastIndex = Math.min(m.lastIndex, index - 1);
     }
 
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        Member m = getMember(memberId);
+        m.firstIndex = Math.max(m.firstIndex, index);
+    }
+
     @Override
     public boolean hasLogEntry(int memberId, int term, int index) throws GondolaException {
         Member member = getMember(memberId);
-        return index <= member.lastIndex;
+        return index >= member.firstIndex && index <= member.lastIndex;
     }
 
     @Override
     public LogEntry getLogEntry(int memberId, int index) throws GondolaException {
         Member m = getMember(memberId);
-        if (index > m.lastIndex) {
+        if (index < m.firstIndex || index > m.lastIndex) {
             return null;
         }
         LogEntry le = checkout();
@@ -179,6 +196,26 @@ public class FakeStorage implements Storage {
         return le;
     }
 
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        List<LogEntry> entries = new ArrayList<>();
+        int bytes = 0;
+        for (int index = fromIndex; entries.size() < maxCount; index++) {
+            LogEntry le = getLogEntry(memberId, index);
+            if (le == null) {
+                break;
+            }
+            bytes += le.size;
+            if (bytes > maxBytes && !entries.isEmpty()) {
+                le.release();
+                break;
+            }
+            entries.add(le);
+        }
+        return entries;
+    }
+
     @Override
     public LogEntry getLastLogEntry(int memberId) throws GondolaException {
         Member m = getMember(memberId);
@@ -219,6 +256,7 @@ public class FakeStorage implements Storage {
         int maxGap = 0;
         int lastTerm = 0;
         int lastIndex = 0;
+        int firstIndex = 1;
         String address = null;
         String pid = null;
 
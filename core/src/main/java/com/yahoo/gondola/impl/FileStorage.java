@@ -0,0 +1,784 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.GondolaException;
+import com.yahoo.gondola.LogEntry;
+import com.yahoo.gondola.MappedStorage;
+import com.yahoo.gondola.Storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * A storage implementation that keeps the raft log in append-only segment files, without a database.
+ * <p>
+ * Each member has its own directory containing a small metadata file (term, votedFor, maxGap, address, pid)
+ * and a sequence of preallocated segment files that are accessed through a MappedByteBuffer.
+ * Every record is framed as: type (1), term (4), index (4), length (4), crc32 (4), followed by the command bytes.
+ * The crc covers the first four header fields and the command bytes.
+ * <p>
+ * Since entries can be appended out of order and deleted, records are written in arrival order and an
+ * in-memory table maps each index to the location of its latest record. A delete is recorded as a tombstone
+ * record so that replaying all the segments in order on start up reproduces the table.
+ * A record with a bad crc marks the end of the log; the rest of that segment is cleared and reused.
+ * <p>
+ * When the log is compacted, the first index is saved in the metadata and the records below it are ignored.
+ * Segments that only contain records below the first index are deleted.
+ * <p>
+ * The commands can also be read in place from the mapped segments; see MappedStorage.
+ */
+public class FileStorage implements Storage, MappedStorage {
+    Logger logger = LoggerFactory.getLogger(FileStorage.class);
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_ENTRY = 1;
+    static final byte RECORD_DELETE = 2;
+    static final int HEADER_SIZE = 17;
+    static final String META_FILE = "member.meta";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    String hostId;
+    File dir;
+    Queue<LogEntry> pool = new ConcurrentLinkedQueue<>();
+    Map<Integer, MemberLog> members = new ConcurrentHashMap<>();
+    volatile boolean operational = true;
+
+    // Config variables
+    int maxCommandSize;
+    int segmentSize;
+    volatile boolean sync;
+
+    public FileStorage(Gondola gondola, String hostId) throws GondolaException {
+        this(gondola.getConfig(), hostId);
+    }
+
+    FileStorage(Config config, String hostId) throws GondolaException {
+        this.hostId = hostId;
+
+        // Get configs
+        maxCommandSize = config.getInt("raft.command_max_size");
+        segmentSize = config.getInt("storage.file.segment_size");
+        config.registerForUpdates(config1 -> sync = config1.getBoolean("storage.file.sync"));
+
+        // If there's a store-specific setting, use it; otherwise use default
+        String dirName = config.get("storage.file.dir");
+        String storeId = config.getAttributesForHost(hostId).get("storeId");
+        if (storeId != null) {
+            String dirKey = "storage." + storeId + ".file.dir";
+            if (config.has(dirKey)) {
+                dirName = config.get(dirKey);
+            }
+        }
+        dir = new File(dirName.replace("$hostId", hostId));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new GondolaException("Could not create storage directory " + dir);
+        }
+        if (segmentSize < HEADER_SIZE + maxCommandSize) {
+            throw new GondolaException(String.format(
+                    "storage.file.segment_size=%d is too small for raft.command_max_size=%d",
+                    segmentSize, maxCommandSize));
+        }
+        logger.info("Initializing file storage. maxCommandSize={} dir={} segmentSize={} sync={}",
+                maxCommandSize, dir, segmentSize, sync);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public boolean stop() {
+        boolean status = true;
+        for (MemberLog m : members.values()) {
+            status = m.close() && status;
+        }
+        members.clear();
+        return status;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return operational;
+    }
+
+    @Override
+    public String getAddress(int memberId) throws GondolaException {
+        return getMember(memberId).address;
+    }
+
+    @Override
+    public void setAddress(int memberId, String address) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            m.address = address;
+            m.saveMeta();
+        }
+    }
+
+    @Override
+    public int getCurrentTerm(int memberId) throws GondolaException {
+        return getMember(memberId).currentTerm;
+    }
+
+    @Override
+    public int getVotedFor(int memberId) throws GondolaException {
+        return getMember(memberId).votedFor;
+    }
+
+    @Override
+    public void saveVote(int memberId, int currentTerm, int votedFor) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            m.currentTerm = currentTerm;
+            m.votedFor = votedFor;
+            m.saveMeta();
+        }
+    }
+
+    @Override
+    public int getMaxGap(int memberId) throws GondolaException {
+        return getMember(memberId).maxGap;
+    }
+
+    @Override
+    public void setMaxGap(int memberId, int maxGap) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            m.maxGap = maxGap;
+            m.saveMeta();
+        }
+    }
+
+    @Override
+    public String getPid(int memberId) throws GondolaException {
+        return getMember(memberId).pid;
+    }
+
+    @Override
+    public void setPid(int memberId, String pid) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            m.pid = pid;
+            m.saveMeta();
+        }
+    }
+
+    @Override
+    public int count(int memberId) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            return m.count;
+        }
+    }
+
+    @Override
+    public LogEntry getLogEntry(int memberId, int index) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            return m.read(index);
+        }
+    }
+
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        MemberLog m = getMember(memberId);
+        List<LogEntry> entries = new ArrayList<>();
+        synchronized (m) {
+            m.read(fromIndex, maxCount, maxBytes, entries);
+        }
+        return entries;
+    }
+
+    @Override
+    public int visitLogEntries(int memberId, int fromIndex, int maxCount, Visitor visitor) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            return m.visit(fromIndex, maxCount, visitor);
+        }
+    }
+
+    @Override
+    public boolean hasLogEntry(int memberId, int term, int index) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            return m.location(index) != 0 && m.term(index) == term;
+        }
+    }
+
+    @Override
+    public LogEntry getLastLogEntry(int memberId) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            return m.read(m.lastIndex);
+        }
+    }
+
+    @Override
+    public void appendLogEntry(int memberId, int term, int index, byte[] buffer, int bufferOffset, int bufferLen)
+            throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            m.checkAppend(index);
+            long location = m.write(RECORD_ENTRY, term, index, buffer, bufferOffset, bufferLen);
+            m.put(index, term, location);
+            m.force();
+        }
+    }
+
+    /**
+     * All the records are written before the segment is forced, so the batch costs a single sync.
+     */
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            for (int i = 0; i < count; i++) {
+                m.checkAppend(startIndex + i);
+            }
+            for (int i = 0; i < count; i++) {
+                long location = m.write(RECORD_ENTRY, term, startIndex + i, buffer, offsets[i], lengths[i]);
+                m.put(startIndex + i, term, location);
+            }
+            m.force();
+        }
+    }
+
+    @Override
+    public void delete(int memberId, int index) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            if (m.location(index) == 0) {
+                throw new GondolaException(String.format(
+                        "Entry does not exist: memberId=%d, index=%d", memberId, index));
+            }
+            m.write(RECORD_DELETE, 0, index, null, 0, 0);
+            m.remove(index);
+            m.force();
+        }
+    }
+
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        MemberLog m = getMember(memberId);
+        synchronized (m) {
+            if (index > m.firstIndex) {
+                m.compact(index);
+            }
+        }
+    }
+
+    @Override
+    public void checkin(LogEntry entry) {
+        pool.add(entry);
+    }
+
+    LogEntry checkout() {
+        LogEntry le = pool.poll();
+        if (le == null) {
+            le = new LogEntry(this, maxCommandSize);
+        }
+        return le;
+    }
+
+    MemberLog getMember(int memberId) throws GondolaException {
+        MemberLog member = members.get(memberId);
+        if (member == null) {
+            synchronized (members) {
+                member = members.get(memberId);
+                if (member == null) {
+                    member = new MemberLog(memberId);
+                    members.put(memberId, member);
+                }
+            }
+        }
+        return member;
+    }
+
+    GondolaException error(Exception e) {
+        operational = false;
+        return new GondolaException(e);
+    }
+
+    /**
+     * A preallocated, memory-mapped segment file.
+     */
+    class Segment {
+        int id;
+        File file;
+        FileChannel channel;
+        MappedByteBuffer buffer;
+
+        // The offset at which the next record will be written
+        int position;
+
+        // The highest index of any record in this segment
+        int maxIndex;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            boolean exists = file.exists();
+            RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+            channel = raFile.getChannel();
+            if (!exists || raFile.length() < segmentSize) {
+                // Preallocate the blocks so that writes into the mapping never hit a hole
+                ByteBuffer zeros = ByteBuffer.allocate(Math.min(segmentSize, 1024 * 1024));
+                long offset = raFile.length();
+                while (offset < segmentSize) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), segmentSize - offset));
+                    offset += channel.write(zeros, offset);
+                }
+                channel.force(true);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, raFile.length()));
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * The log and metadata of a single member. All access must be synchronized on this object.
+     */
+    class MemberLog {
+        int memberId;
+        File memberDir;
+        File metaFile;
+        CRC32 crc = new CRC32();
+
+        // Metadata
+        int currentTerm = 1;
+        int votedFor = -1;
+        int maxGap = 0;
+        String address;
+        String pid;
+
+        // Entries below this index have been compacted away
+        int firstIndex = 1;
+
+        // Segments, ordered by id. New records are always written into the last segment.
+        TreeMap<Integer, Segment> segments = new TreeMap<>();
+        Segment current;
+        boolean dirty;
+
+        // Location of each index (segment id in the upper 32 bits, offset in the lower) and its term,
+        // stored at index - firstIndex. A location of 0 means the index does not exist; segment ids start at 1.
+        long[] locations = new long[1024];
+        int[] terms = new int[1024];
+        int count;
+        int lastIndex;
+
+        MemberLog(int memberId) throws GondolaException {
+            this.memberId = memberId;
+            memberDir = new File(dir, "member-" + memberId);
+            metaFile = new File(memberDir, META_FILE);
+            try {
+                if (!memberDir.isDirectory() && !memberDir.mkdirs()) {
+                    throw new IOException("Could not create directory " + memberDir);
+                }
+                loadMeta();
+                recover();
+            } catch (IOException e) {
+                throw error(e);
+            }
+        }
+
+        void loadMeta() throws IOException {
+            if (!metaFile.exists()) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(metaFile))) {
+                currentTerm = in.readInt();
+                votedFor = in.readInt();
+                maxGap = in.readInt();
+                address = in.readBoolean() ? in.readUTF() : null;
+                pid = in.readBoolean() ? in.readUTF() : null;
+                if (in.available() > 0) {
+                    firstIndex = in.readInt();
+                }
+            }
+        }
+
+        /**
+         * Writes the metadata into a temporary file, which then atomically replaces the current metadata file.
+         */
+        void saveMeta() throws GondolaException {
+            File tmpFile = new File(memberDir, META_FILE + ".tmp");
+            try {
+                try (FileOutputStream fout = new FileOutputStream(tmpFile);
+                     DataOutputStream out = new DataOutputStream(fout)) {
+                    out.writeInt(currentTerm);
+                    out.writeInt(votedFor);
+                    out.writeInt(maxGap);
+                    out.writeBoolean(address != null);
+                    if (address != null) {
+                        out.writeUTF(address);
+                    }
+                    out.writeBoolean(pid != null);
+                    if (pid != null) {
+                        out.writeUTF(pid);
+                    }
+                    out.writeInt(firstIndex);
+                    out.flush();
+                    fout.getFD().sync();
+                }
+                Files.move(tmpFile.toPath(), metaFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw error(e);
+            }
+        }
+
+        /**
+         * Rebuilds the index table by replaying all the records in all the segments.
+         */
+        void recover() throws IOException {
+            File[] files = memberDir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    int id = Integer.parseInt(file.getName().substring(0, file.getName().indexOf('.')));
+                    Segment segment = new Segment(id, file);
+                    segments.put(id, segment);
+                    current = segment;
+                    scan(segment);
+                }
+            }
+            if (current == null) {
+                roll();
+            }
+            logger.info("[{}-{}] FileStorage: recovered {} entries from {} segments in {}. lastIndex={}",
+                    hostId, memberId, count, segments.size(), memberDir, lastIndex);
+        }
+
+        void scan(Segment segment) {
+            ByteBuffer bb = segment.buffer.duplicate();
+            int pos = 0;
+            while (pos + HEADER_SIZE <= bb.capacity()) {
+                byte type = bb.get(pos);
+                if (type == RECORD_END) {
+                    break;
+                }
+                int term = bb.getInt(pos + 1);
+                int index = bb.getInt(pos + 5);
+                int len = bb.getInt(pos + 9);
+                if ((type != RECORD_ENTRY && type != RECORD_DELETE) || index < 1 || len < 0
+                        || pos + HEADER_SIZE + len > bb.capacity() || bb.getInt(pos + 13) != checksum(bb, pos, len)) {
+                    // A torn write; clear the rest of the segment so that stale records are never replayed
+                    logger.warn("[{}-{}] FileStorage: invalid record in {} at offset {}. Truncating log.",
+                            hostId, memberId, segment.file, pos);
+                    for (int i = pos; i < bb.capacity(); i++) {
+                        bb.put(i, (byte) 0);
+                    }
+                    segment.buffer.force();
+                    break;
+                }
+                segment.maxIndex = Math.max(segment.maxIndex, index);
+                if (index < firstIndex) {
+                    // Compacted
+                } else if (type == RECORD_ENTRY) {
+                    put(index, term, ((long) segment.id << 32) | pos);
+                } else if (location(index) != 0) {
+                    remove(index);
+                }
+                pos += HEADER_SIZE + len;
+            }
+            segment.position = pos;
+        }
+
+        int checksum(ByteBuffer bb, int pos, int len) {
+            crc.reset();
+            for (int i = pos; i < pos + 13; i++) {
+                crc.update(bb.get(i));
+            }
+            ByteBuffer payload = bb.duplicate();
+            payload.limit(pos + HEADER_SIZE + len).position(pos + HEADER_SIZE);
+            crc.update(payload);
+            return (int) crc.getValue();
+        }
+
+        void roll() throws IOException {
+            if (current != null) {
+                current.buffer.force();
+            }
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            Segment segment = new Segment(id, new File(memberDir, String.format("%010d%s", id, SEGMENT_SUFFIX)));
+            segments.put(id, segment);
+            current = segment;
+        }
+
+        /**
+         * Appends a record to the current segment, starting a new segment if necessary.
+         *
+         * @return the location of the record.
+         */
+        long write(byte type, int term, int index, byte[] buffer, int bufferOffset, int bufferLen)
+                throws GondolaException {
+            if (HEADER_SIZE + bufferLen > segmentSize) {
+                throw new GondolaException(String.format(
+                        "Entry of size %d does not fit in a segment of size %d", bufferLen, segmentSize));
+            }
+            try {
+                if (current.position + HEADER_SIZE + bufferLen > current.buffer.capacity()) {
+                    roll();
+                }
+            } catch (IOException e) {
+                throw error(e);
+            }
+            ByteBuffer bb = current.buffer;
+            int pos = current.position;
+            bb.putInt(pos + 1, term);
+            bb.putInt(pos + 5, index);
+            bb.putInt(pos + 9, bufferLen);
+            if (bufferLen > 0) {
+                ByteBuffer dst = bb.duplicate();
+                dst.position(pos + HEADER_SIZE);
+                dst.put(buffer, bufferOffset, bufferLen);
+            }
+            bb.put(pos, type);
+            bb.putInt(pos + 13, checksum(bb, pos, bufferLen));
+            current.position = pos + HEADER_SIZE + bufferLen;
+            current.maxIndex = Math.max(current.maxIndex, index);
+            dirty = true;
+            return ((long) current.id << 32) | pos;
+        }
+
+        /**
+         * Makes the written records durable, if so configured.
+         */
+        void force() {
+            if (sync && dirty) {
+                current.buffer.force();
+                dirty = false;
+            }
+        }
+
+        LogEntry read(int index) {
+            long location = location(index);
+            if (location == 0) {
+                return null;
+            }
+            ByteBuffer bb = segments.get((int) (location >>> 32)).buffer.duplicate();
+            int pos = (int) location;
+            int len = bb.getInt(pos + 9);
+
+            LogEntry entry = checkout();
+            if (entry.buffer.length < len) {
+                entry.buffer = new byte[len];
+            }
+            entry.memberId = memberId;
+            entry.term = bb.getInt(pos + 1);
+            entry.index = index;
+            bb.position(pos + HEADER_SIZE);
+            bb.get(entry.buffer, 0, len);
+            entry.size = len;
+            return entry;
+        }
+
+        /**
+         * Adds the entries starting at fromIndex to entries. See Storage.getLogEntries().
+         */
+        void read(int fromIndex, int maxCount, int maxBytes, List<LogEntry> entries) {
+            int bytes = 0;
+            for (int index = fromIndex; entries.size() < maxCount; index++) {
+                long location = location(index);
+                if (location == 0) {
+                    break;
+                }
+                bytes += segments.get((int) (location >>> 32)).buffer.getInt((int) location + 9);
+                if (bytes > maxBytes && !entries.isEmpty()) {
+                    break;
+                }
+                entries.add(read(index));
+            }
+        }
+
+        int visit(int fromIndex, int maxCount, Visitor visitor) throws GondolaException {
+            int n = 0;
+            while (n < maxCount) {
+                int index = fromIndex + n;
+                long location = location(index);
+                if (location == 0) {
+                    break;
+                }
+                ByteBuffer bb = segments.get((int) (location >>> 32)).buffer.asReadOnlyBuffer();
+                int pos = (int) location;
+                bb.limit(pos + HEADER_SIZE + bb.getInt(pos + 9)).position(pos + HEADER_SIZE);
+                if (!visitor.visit(bb.getInt(pos + 1), index, bb)) {
+                    break;
+                }
+                n++;
+            }
+            return n;
+        }
+
+        long location(int index) {
+            int slot = index - firstIndex;
+            return slot >= 0 && slot < locations.length ? locations[slot] : 0;
+        }
+
+        int term(int index) {
+            return terms[index - firstIndex];
+        }
+
+        void checkAppend(int index) throws GondolaException {
+            if (index < firstIndex) {
+                if (count > 0) {
+                    throw new GondolaException(String.format(
+                            "Entry is below the first index %d: memberId=%d, index=%d", firstIndex, memberId, index));
+                }
+                // An empty log can start over at a lower index, such as after being truncated for slave mode
+                clear();
+                firstIndex = index;
+                saveMeta();
+            }
+            if (location(index) != 0) {
+                throw new GondolaException(String.format(
+                        "Entry already exists: memberId=%d, index=%d", memberId, index));
+            }
+        }
+
+        void put(int index, int term, long location) {
+            int slot = index - firstIndex;
+            if (slot >= locations.length) {
+                int capacity = Math.max(locations.length * 2, slot + 1);
+                locations = Arrays.copyOf(locations, capacity);
+                terms = Arrays.copyOf(terms, capacity);
+            }
+            if (locations[slot] == 0) {
+                count++;
+            }
+            locations[slot] = location;
+            terms[slot] = term;
+            lastIndex = Math.max(lastIndex, index);
+        }
+
+        void remove(int index) {
+            int slot = index - firstIndex;
+            locations[slot] = 0;
+            terms[slot] = 0;
+            count--;
+            while (lastIndex >= firstIndex && location(lastIndex) == 0) {
+                lastIndex--;
+            }
+            if (lastIndex < firstIndex) {
+                lastIndex = 0;
+            }
+        }
+
+        /**
+         * Discards all the entries below index. The new first index is saved before anything else so that
+         * a recovery ignores the discarded records, even those in segments that have not been deleted yet.
+         */
+        void compact(int index) throws GondolaException {
+            int shift = index - firstIndex;
+            firstIndex = index;
+            saveMeta();
+
+            // Shift the table down so that it starts at the new first index
+            for (int i = 0; i < Math.min(shift, locations.length); i++) {
+                if (locations[i] != 0) {
+                    count--;
+                }
+            }
+            if (shift < locations.length) {
+                System.arraycopy(locations, shift, locations, 0, locations.length - shift);
+                System.arraycopy(terms, shift, terms, 0, terms.length - shift);
+                Arrays.fill(locations, locations.length - shift, locations.length, 0);
+                Arrays.fill(terms, terms.length - shift, terms.length, 0);
+            } else {
+                Arrays.fill(locations, 0);
+                Arrays.fill(terms, 0);
+            }
+            if (lastIndex < firstIndex) {
+                lastIndex = 0;
+            }
+
+            // Delete the segments that no longer hold any live records
+            for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+                Segment segment = it.next();
+                if (segment != current && segment.maxIndex < firstIndex) {
+                    try {
+                        segment.close();
+                        Files.delete(segment.file.toPath());
+                    } catch (IOException e) {
+                        throw error(e);
+                    }
+                    it.remove();
+                }
+            }
+            logger.info("[{}-{}] FileStorage: compacted log before index={}. count={} segments={}",
+                    hostId, memberId, firstIndex, count, segments.size());
+        }
+
+        /**
+         * Deletes all the segments of an empty log and starts a new one. This must be done before the first index is
+         * lowered; otherwise, a recovery would replay the old records between the new and the old first index.
+         * The segments are deleted oldest first so that a crash part way never leaves an entry record whose delete
+         * record is gone.
+         */
+        void clear() throws GondolaException {
+            try {
+                for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+                    Segment segment = it.next();
+                    segment.close();
+                    Files.delete(segment.file.toPath());
+                    it.remove();
+                }
+                current = null;
+                roll();
+            } catch (IOException e) {
+                throw error(e);
+            }
+            logger.info("[{}-{}] FileStorage: cleared empty log", hostId, memberId);
+        }
+
+        boolean close() {
+            boolean status = true;
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                    status = false;
+                }
+            }
+            return status;
+        }
+    }
+}
@@ -15,19 +15,30 @@ import com.yahoo.gondola.GondolaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Arrays;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * The type H 2 db storage.
- * TODO: Cache prepared statements for performance.
+ * Stores the log and the member info in an H2 database.
+ * <p>
+ * The save queue workers write concurrently, so the storage holds a pool of sessions, each with its own connection
+ * and its own cache of prepared statements. A caller checks out a session for the duration of a call. The commands
+ * are stored as binary values so that any bytes can be stored.
  * TODO: Once noticed that db was missing many tail entries after start up. Should add some kind of check for this.
  */
 public class H2dbStorage implements Storage {
@@ -36,7 +47,34 @@ public class H2dbStorage implements Storage {
     Gondola gondola;
     String hostId;
     Queue<LogEntry> pool = new ConcurrentLinkedQueue<>();
-    Connection c;
+
+    // Contains the sessions that are not in use
+    BlockingQueue<Session> sessions;
+
+    // All the sessions, used to close them
+    List<Session> allSessions = new ArrayList<>();
+
+    // The number of rows fetched at a time by getLogEntries()
+    static final int FETCH_SIZE = 100;
+
+    static final String SELECT_ADDRESS = "SELECT address FROM MemberInfo WHERE memberId=?";
+    static final String SELECT_TERM = "SELECT term FROM MemberInfo WHERE memberId=?";
+    static final String SELECT_VOTED_FOR = "SELECT votedFor FROM MemberInfo WHERE memberId=?";
+    static final String SELECT_MAX_GAP = "SELECT maxGap FROM MemberInfo WHERE memberId=?";
+    static final String SELECT_PID = "SELECT pid FROM MemberInfo WHERE memberId=?";
+    static final String MERGE_ADDRESS = "MERGE INTO MemberInfo(memberId,address) KEY(memberId) VALUES(?,?)";
+    static final String MERGE_VOTE = "MERGE INTO MemberInfo(memberId,term,votedFor) KEY(memberId) VALUES(?,?,?)";
+    static final String MERGE_MAX_GAP = "MERGE INTO MemberInfo(memberId,maxGap) KEY(memberId) VALUES(?,?)";
+    static final String MERGE_PID = "MERGE INTO MemberInfo(memberId,pid) KEY(memberId) VALUES(?,?)";
+    static final String COUNT = "SELECT count(*) FROM logs WHERE memberId=?";
+    static final String HAS_ENTRY = "SELECT 1 FROM logs WHERE memberId=? AND term=? AND index=?";
+    static final String SELECT_ENTRY = "SELECT term, command FROM logs WHERE memberId=? AND index=?";
+    static final String SELECT_ENTRIES =
+            "SELECT index, term, command FROM logs WHERE memberId=? AND index BETWEEN ? AND ? ORDER BY index";
+    static final String SELECT_LAST_INDEX = "SELECT max(index) FROM logs WHERE memberId=?";
+    static final String INSERT_ENTRY = "INSERT INTO logs (memberId, term, index, command) VALUES(?, ?, ?, ?)";
+    static final String DELETE_ENTRY = "DELETE FROM logs WHERE memberId=? AND index=?";
+    static final String DELETE_BEFORE = "DELETE FROM logs WHERE memberId=? AND index<?";
 
     // Config variables
     int maxCommandSize;
@@ -47,41 +85,61 @@ public class H2dbStorage implements Storage {
             this.hostId = hostId;
 
             // Get configs
-            maxCommandSize = gondola.getConfig().getInt("raft.command_max_size");
+            Config cfg = gondola.getConfig();
+            maxCommandSize = cfg.getInt("raft.command_max_size");
+            int numSessions = cfg.getInt("storage.h2.connections");
+            if (numSessions <= 0) {
+                // One for each save queue worker and one for the other callers
+                numSessions = cfg.getInt("storage.save_queue_workers") + 1;
+            }
 
             Class.forName("org.h2.Driver");
-            createConnection();
-            logger.info("H2DB autoCommit={}", c.getAutoCommit());
-
-            Statement statement = c.createStatement();
-            //statement.execute("SET DATABASE SQL SYNTAX MYS TRUE");
-
-            // TODO: change varchar to binary.
-            statement.execute("CREATE TABLE IF NOT EXISTS logs ("
-                    + "memberId INTEGER NOT NULL,"
-                    + "term INTEGER NOT NULL,"
-                    + "index INTEGER NOT NULL,"
-                    //+ "command BINARY(1500),"
-                    + "command VARCHAR(5000),"
-                    + "PRIMARY KEY (memberId,index)"
-                    + ")");
-
-            statement.execute("CREATE TABLE IF NOT EXISTS MemberInfo ("
-                    + "memberId INTEGER NOT NULL,"
-                    + "term INTEGER DEFAULT 1,"
-                    + "votedFor INTEGER DEFAULT -1,"
-                    + "maxGap INTEGER DEFAULT 0,"
-                    + "address VARCHAR(256) DEFAULT NULL,"
-                    + "pid VARCHAR(256) DEFAULT NULL,"
-                    + "PRIMARY KEY (memberId)"
-                    + ")");
-            statement.close();
+            sessions = new ArrayBlockingQueue<>(numSessions);
+            for (int i = 0; i < numSessions; i++) {
+                Session session = new Session(createConnection(i == 0));
+                allSessions.add(session);
+                sessions.add(session);
+            }
+
+            Connection c = allSessions.get(0).c;
+            logger.info("H2DB autoCommit={} connections={}", c.getAutoCommit(), numSessions);
+            try (Statement statement = c.createStatement()) {
+                // Apply the optional tuning of the database
+                int writeDelay = cfg.getInt("storage.h2.write_delay");
+                if (writeDelay >= 0) {
+                    statement.execute("SET WRITE_DELAY " + writeDelay);
+                }
+                int cacheSize = cfg.getInt("storage.h2.cache_size");
+                if (cacheSize >= 0) {
+                    statement.execute("SET CACHE_SIZE " + cacheSize);
+                }
+
+                statement.execute("CREATE TABLE IF NOT EXISTS logs ("
+                        + "memberId INTEGER NOT NULL,"
+                        + "term INTEGER NOT NULL,"
+                        + "index INTEGER NOT NULL,"
+                        + "command VARBINARY,"
+                        + "PRIMARY KEY (memberId,index)"
+                        + ")");
+                convertCommandColumn(c, statement);
+
+                statement.execute("CREATE TABLE IF NOT EXISTS MemberInfo ("
+                        + "memberId INTEGER NOT NULL,"
+                        + "term INTEGER DEFAULT 1,"
+                        + "votedFor INTEGER DEFAULT -1,"
+                        + "maxGap INTEGER DEFAULT 0,"
+                        + "address VARCHAR(256) DEFAULT NULL,"
+                        + "pid VARCHAR(256) DEFAULT NULL,"
+                        + "PRIMARY KEY (memberId)"
+                        + ")");
+            }
         } catch (ClassNotFoundException | SQLException e) {
+            stop();
             throw new GondolaException(e);
         }
     }
 
-    void createConnection() throws GondolaException {
+    Connection createConnection(boolean log) throws GondolaException {
         Config cfg = gondola.getConfig();
         String user = cfg.get("storage.h2.user");
         String password = cfg.get("storage.h2.password");
@@ -97,76 +155,101 @@ public class H2dbStorage implements Storage {
         }
         url = url.replace("$hostId", hostId);
 
-        logger.info("Initializing H2DB storage. maxCommandSize={} url={} user={}", maxCommandSize, url, user);
+        if (log) {
+            logger.info("Initializing H2DB storage. maxCommandSize={} url={} user={}", maxCommandSize, url, user);
+        }
 
         try {
-            c = DriverManager.getConnection(url, user, password);
+            Connection c = DriverManager.getConnection(url, user, password);
             c.setAutoCommit(true);
+            return c;
         } catch (SQLException e) {
             throw new GondolaException(e);
         }
     }
 
+    /**
+     * Logs created by earlier versions store the commands as strings. Converts the command column to binary,
+     * keeping the bytes of the commands, which were stored with the default charset, assumed to be UTF-8.
+     * H2 commits each ALTER TABLE on its own, so the steps cannot share a transaction; instead, each step is skipped
+     * if the columns show that it has already been done, so that a conversion interrupted by a crash is resumed on
+     * the next start.
+     */
+    void convertCommandColumn(Connection c, Statement statement) throws SQLException {
+        DatabaseMetaData metaData = c.getMetaData();
+        Integer commandType = columnType(metaData, "COMMAND");
+        Integer binaryCommandType = columnType(metaData, "BINARYCOMMAND");
+        if (binaryCommandType == null && (commandType == null || commandType != Types.VARCHAR)) {
+            return;
+        }
+        logger.info("Converting the command column of the logs table to binary");
+        if (commandType != null) {
+            if (binaryCommandType == null) {
+                statement.execute("ALTER TABLE logs ADD COLUMN binaryCommand VARBINARY");
+            }
+            statement.execute("UPDATE logs SET binaryCommand=STRINGTOUTF8(command)");
+            statement.execute("ALTER TABLE logs DROP COLUMN command");
+        }
+        statement.execute("ALTER TABLE logs ALTER COLUMN binaryCommand RENAME TO command");
+    }
+
+    /**
+     * Returns the SQL type of the column of the logs table, or null if there is no such column.
+     */
+    Integer columnType(DatabaseMetaData metaData, String column) throws SQLException {
+        try (ResultSet resultSet = metaData.getColumns(null, null, "LOGS", column)) {
+            return resultSet.next() ? resultSet.getInt("DATA_TYPE") : null;
+        }
+    }
+
     @Override
     public void start() {
     }
 
     @Override
     public boolean stop() {
-        try {
-            c.close();
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        boolean status = true;
+        for (Session session : allSessions) {
+            try {
+                session.c.close();
+            } catch (SQLException e) {
+                logger.error("Could not close connection", e);
+                status = false;
+            }
         }
-        return true;
+        allSessions.clear();
+        return status;
     }
 
     // TODO: this is slow
     @Override
     public boolean isOperational() {
+        Session session = null;
         try {
-            return c.isValid(1);
-        } catch (SQLException e) {
+            session = checkoutSession();
+            return session.c.isValid(1);
+        } catch (GondolaException | SQLException e) {
             return false;
+        } finally {
+            checkinSession(session);
         }
     }
 
     @Override
     public String getAddress(int memberId) throws GondolaException {
-        String sql = "SELECT address FROM MemberInfo WHERE memberId=" + memberId;
-        try {
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getString("address");
-            }
-        } catch (SQLException e) {
-            throw new GondolaException(e);
-        }
-        return null;
+        return getMemberInfo(SELECT_ADDRESS, memberId);
     }
 
     @Override
     public void setAddress(int memberId, String address) throws GondolaException {
-        try {
-            String sql = "MERGE INTO MemberInfo(memberId,address) KEY(memberId) VALUES(?,?)";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
-            preparedStatement.setInt(1, memberId);
-            preparedStatement.setString(2, address);
-            int i = preparedStatement.executeUpdate();
-            if (i != 1) {
-                throw new SQLException("setAddress() failed");
-            }
-        } catch (SQLException e) {
-            throw new GondolaException(e);
-        }
+        setMemberInfo(MERGE_ADDRESS, memberId, address, "setAddress() failed");
     }
 
     @Override
     public void saveVote(int memberId, int currentTerm, int votedFor) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "MERGE INTO MemberInfo(memberId,term,votedFor) KEY(memberId) VALUES(?,?,?)";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(MERGE_VOTE);
             preparedStatement.setInt(1, memberId);
             preparedStatement.setInt(2, currentTerm);
             preparedStatement.setInt(3, votedFor);
@@ -177,74 +260,49 @@ public class H2dbStorage implements Storage {
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
     }
 
     @Override
     public boolean hasLogEntry(int memberId, int term, int index) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "SELECT 1 FROM logs WHERE memberId=? AND term=? AND index=?";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(HAS_ENTRY);
             preparedStatement.setInt(1, memberId);
             preparedStatement.setInt(2, term);
             preparedStatement.setInt(3, index);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            return resultSet.next();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
     }
 
     @Override
     public int getCurrentTerm(int memberId) throws GondolaException {
-        try {
-            String sql = "SELECT term FROM MemberInfo WHERE memberId=" + memberId;
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getInt("term");
-            }
-        } catch (SQLException e) {
-            throw new GondolaException(e);
-        }
-        return 1;
+        return getInt(SELECT_TERM, memberId, 1);
     }
 
     @Override
     public int getVotedFor(int memberId) throws GondolaException {
-        try {
-            String sql = "SELECT votedFor FROM MemberInfo WHERE memberId=" + memberId;
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getInt("votedFor");
-            }
-        } catch (SQLException e) {
-            throw new GondolaException(e);
-        }
-        return -1;
+        return getInt(SELECT_VOTED_FOR, memberId, -1);
     }
 
     @Override
     public int getMaxGap(int memberId) throws GondolaException {
-        try {
-            String sql = "SELECT maxGap FROM MemberInfo WHERE memberId=" + memberId;
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getInt("maxGap");
-            }
-        } catch (SQLException e) {
-            throw new GondolaException(e);
-        }
-        return 0;
+        return getInt(SELECT_MAX_GAP, memberId, 0);
     }
 
     @Override
     public void setMaxGap(int memberId, int maxGap) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "MERGE INTO MemberInfo(memberId,maxGap) KEY(memberId) VALUES(?,?)";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(MERGE_MAX_GAP);
             preparedStatement.setInt(1, memberId);
             preparedStatement.setInt(2, maxGap);
             int i = preparedStatement.executeUpdate();
@@ -253,156 +311,328 @@ public class H2dbStorage implements Storage {
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
     }
 
     @Override
     public String getPid(int memberId) throws GondolaException {
+        return getMemberInfo(SELECT_PID, memberId);
+    }
+
+    @Override
+    public void setPid(int memberId, String pid) throws GondolaException {
+        setMemberInfo(MERGE_PID, memberId, pid, "setPid() failed");
+    }
+
+    @Override
+    public int count(int memberId) throws GondolaException {
+        return getInt(COUNT, memberId, 0);
+    }
+
+    @Override
+    public LogEntry getLogEntry(int memberId, int index) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "SELECT pid FROM MemberInfo WHERE memberId=" + memberId;
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getString("pid");
+            PreparedStatement preparedStatement = session.prepare(SELECT_ENTRY);
+            preparedStatement.setInt(1, memberId);
+            preparedStatement.setInt(2, index);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    LogEntry logEntry = checkout();
+                    logEntry.memberId = memberId;
+                    logEntry.term = resultSet.getInt(1);
+                    logEntry.index = index;
+                    read(resultSet, 2, logEntry);
+                    return logEntry;
+                }
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
         return null;
     }
 
+    /**
+     * The range is read with a single query whose rows are fetched as they are consumed.
+     */
     @Override
-    public void setPid(int memberId, String pid) throws GondolaException {
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        List<LogEntry> entries = new ArrayList<>();
+        Session session = checkoutSession();
         try {
-            String sql = "MERGE INTO MemberInfo(memberId,pid) KEY(memberId) VALUES(?,?)";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(SELECT_ENTRIES);
             preparedStatement.setInt(1, memberId);
-            preparedStatement.setString(2, pid);
-            int i = preparedStatement.executeUpdate();
-            if (i != 1) {
-                throw new SQLException("setPid() failed");
+            preparedStatement.setInt(2, fromIndex);
+            preparedStatement.setInt(3, (int) Math.min((long) fromIndex + maxCount - 1, Integer.MAX_VALUE));
+            preparedStatement.setFetchSize(Math.min(maxCount, FETCH_SIZE));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                int bytes = 0;
+                while (resultSet.next()) {
+                    int index = resultSet.getInt(1);
+                    if (index != fromIndex + entries.size()) {
+                        // Stop at the first gap
+                        break;
+                    }
+                    LogEntry logEntry = checkout();
+                    logEntry.memberId = memberId;
+                    logEntry.term = resultSet.getInt(2);
+                    logEntry.index = index;
+                    read(resultSet, 3, logEntry);
+                    bytes += logEntry.size;
+                    if (bytes > maxBytes && !entries.isEmpty()) {
+                        logEntry.release();
+                        break;
+                    }
+                    entries.add(logEntry);
+                }
             }
         } catch (SQLException e) {
+            entries.forEach(LogEntry::release);
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
+        return entries;
     }
 
     @Override
-    public int count(int memberId) throws GondolaException {
+    public LogEntry getLastLogEntry(int memberId) throws GondolaException {
+        return getLogEntry(memberId, getInt(SELECT_LAST_INDEX, memberId, 0));
+    }
+
+    @Override
+    public void appendLogEntry(int memberId, int term, int index, byte[] buffer, int bufferOffset, int bufferLen)
+            throws GondolaException, InterruptedException {
+        Session session = checkoutSessionInterruptibly();
         try {
-            String sql = "SELECT count(*) FROM logs WHERE memberId=" + memberId;
-            Statement statement = c.createStatement();
-            ResultSet resultSet = statement.executeQuery(sql);
-            if (resultSet.next()) {
-                return resultSet.getInt(1);
+            PreparedStatement preparedStatement = session.prepare(INSERT_ENTRY);
+            preparedStatement.setInt(1, memberId);
+            preparedStatement.setInt(2, term);
+            preparedStatement.setInt(3, index);
+            preparedStatement.setBinaryStream(4, new ByteArrayInputStream(buffer, bufferOffset, bufferLen), bufferLen);
+            int i = preparedStatement.executeUpdate();
+            if (i != 1) {
+                throw new SQLException(String.format("Failed to insert memberId=%d, index=%d, size=%d. Return=%d",
+                        memberId, index, bufferLen, i));
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
-        return 0;
     }
 
+    /**
+     * The batch is inserted with the cached insert statement in a single transaction on the session's connection.
+     */
     @Override
-    public LogEntry getLogEntry(int memberId, int index) throws GondolaException {
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths)
+            throws GondolaException, InterruptedException {
+        Session session = checkoutSessionInterruptibly();
+        Connection c = session.c;
         try {
-            LogEntry logEntry = checkout();
-            ResultSet resultSet = getLogEntryResult(memberId, index);
-            if (resultSet.next()) {
-                logEntry.memberId = memberId;
-                logEntry.term = resultSet.getInt("term");
-                logEntry.index = index;
-
-                // Read the binary data
-                /*
-                byte[] bytes = resultSet.getBytes("command");
-                System.arraycopy(bytes, 0, logEntry.buffer, 0, bytes.length);
-                logEntry.size = bytes.length;
-                */
-                String command = resultSet.getString("command");
-                byte[] bytes = command.getBytes();
-                System.arraycopy(bytes, 0, logEntry.buffer, 0, bytes.length);
-                logEntry.size = bytes.length;
-                return logEntry;
+            PreparedStatement preparedStatement = session.prepare(INSERT_ENTRY);
+            c.setAutoCommit(false);
+            try {
+                for (int i = 0; i < count; i++) {
+                    preparedStatement.setInt(1, memberId);
+                    preparedStatement.setInt(2, term);
+                    preparedStatement.setInt(3, startIndex + i);
+                    preparedStatement.setBinaryStream(4,
+                            new ByteArrayInputStream(buffer, offsets[i], lengths[i]), lengths[i]);
+                    preparedStatement.addBatch();
+                }
+                int[] results = preparedStatement.executeBatch();
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != 1 && results[i] != Statement.SUCCESS_NO_INFO) {
+                        throw new SQLException(String.format(
+                                "Failed to insert memberId=%d, index=%d, count=%d. Return=%d",
+                                memberId, startIndex + i, count, results[i]));
+                    }
+                }
+                c.commit();
+            } catch (SQLException e) {
+                preparedStatement.clearBatch();
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
-        return null;
     }
 
-    private ResultSet getLogEntryResult(int memberId, int index) throws SQLException {
-        String sql = "SELECT term, command FROM logs WHERE memberId=? AND index=?";
-        PreparedStatement preparedStatement = c.prepareStatement(sql);
-        preparedStatement.setInt(1, memberId);
-        preparedStatement.setInt(2, index);
-        return preparedStatement.executeQuery();
+    @Override
+    public void delete(int memberId, int index) throws GondolaException {
+        execute(DELETE_ENTRY, memberId, index);
     }
 
     @Override
-    public LogEntry getLastLogEntry(int memberId) throws GondolaException {
-        int lastIndex = 0;
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        execute(DELETE_BEFORE, memberId, index);
+    }
+
+    @Override
+    public void checkin(LogEntry entry) {
+        pool.add(entry);
+    }
+
+    LogEntry checkout() {
+        LogEntry le = pool.poll();
+        if (le == null) {
+            le = new LogEntry(this, maxCommandSize);
+        }
+        return le;
+    }
+
+    /**
+     * Copies the command in the specified column into the entry's buffer.
+     */
+    void read(ResultSet resultSet, int column, LogEntry logEntry) throws SQLException {
+        byte[] bytes = resultSet.getBytes(column);
+        int size = bytes == null ? 0 : bytes.length;
+        if (size > 0) {
+            System.arraycopy(bytes, 0, logEntry.buffer, 0, size);
+        }
+        logEntry.size = size;
+    }
+
+    /**
+     * Returns the int in the first column of the first row of the query, which takes the member id as its only
+     * parameter.
+     *
+     * @param defaultValue the value returned if there are no rows.
+     */
+    int getInt(String sql, int memberId, int defaultValue) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "SELECT max(index) FROM logs where memberId=?";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(sql);
             preparedStatement.setInt(1, memberId);
-            ResultSet resultSet = preparedStatement.executeQuery();
-
-            lastIndex = 0;
-            if (resultSet.next()) {
-                lastIndex = resultSet.getInt(1);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getInt(1);
+                }
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
-        return getLogEntry(memberId, lastIndex);
+        return defaultValue;
     }
 
-    @Override
-    public void appendLogEntry(int memberId, int term, int index, byte[] buffer, int bufferOffset, int bufferLen)
-            throws GondolaException {
+    /**
+     * Returns the string in the first column of the first row of the query, which takes the member id as its only
+     * parameter; null if there are no rows.
+     */
+    String getMemberInfo(String sql, int memberId) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "INSERT INTO logs (memberId, term, index, command) VALUES(?, ?, ?, ?)";
+            PreparedStatement preparedStatement = session.prepare(sql);
+            preparedStatement.setInt(1, memberId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getString(1);
+                }
+            }
+        } catch (SQLException e) {
+            throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
+        }
+        return null;
+    }
 
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+    void setMemberInfo(String sql, int memberId, String value, String errorMessage) throws GondolaException {
+        Session session = checkoutSession();
+        try {
+            PreparedStatement preparedStatement = session.prepare(sql);
             preparedStatement.setInt(1, memberId);
-            preparedStatement.setInt(2, term);
-            preparedStatement.setInt(3, index);
-            preparedStatement.setString(4,
-                    new String(Arrays.copyOfRange(buffer, bufferOffset, bufferOffset + bufferLen)));
-            //preparedStatement.setBinaryStream(4, new ByteArrayInputStream(buffer, bufferOffset, bufferLen));
+            preparedStatement.setString(2, value);
             int i = preparedStatement.executeUpdate();
             if (i != 1) {
-                throw new SQLException(String.format("Failed to insert memberId=%d, index=%d, size=%d. Return=%d",
-                        memberId, index, bufferLen, i));
+                throw new SQLException(errorMessage);
             }
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
     }
 
-    @Override
-    public void delete(int memberId, int index) throws GondolaException {
+    /**
+     * Executes the update, which takes the member id and an index as parameters.
+     */
+    void execute(String sql, int memberId, int index) throws GondolaException {
+        Session session = checkoutSession();
         try {
-            String sql = "DELETE FROM logs WHERE memberId=? AND index=?";
-            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            PreparedStatement preparedStatement = session.prepare(sql);
             preparedStatement.setInt(1, memberId);
             preparedStatement.setInt(2, index);
             preparedStatement.execute();
         } catch (SQLException e) {
             throw new GondolaException(e);
+        } finally {
+            checkinSession(session);
         }
     }
 
-    @Override
-    public void checkin(LogEntry entry) {
-        pool.add(entry);
+    /**
+     * Blocks until a session is available.
+     */
+    Session checkoutSessionInterruptibly() throws InterruptedException {
+        return sessions.take();
     }
 
-    LogEntry checkout() {
-        LogEntry le = pool.poll();
-        if (le == null) {
-            le = new LogEntry(this, maxCommandSize);
+    /**
+     * Same as checkoutSessionInterruptibly(), for the methods that cannot throw InterruptedException.
+     * The interrupt is preserved.
+     */
+    Session checkoutSession() throws GondolaException {
+        try {
+            return sessions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GondolaException(e);
+        }
+    }
+
+    void checkinSession(Session session) {
+        if (session != null) {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * A connection and the statements prepared on it. Used by one thread at a time.
+     */
+    static class Session {
+        final Connection c;
+        final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Session(Connection c) {
+            this.c = c;
+        }
+
+        /**
+         * Returns the prepared statement for sql, preparing it the first time.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement preparedStatement = statements.get(sql);
+            if (preparedStatement == null) {
+                preparedStatement = c.prepareStatement(sql);
+                statements.put(sql, preparedStatement);
+            }
+            return preparedStatement;
         }
-        return le;
     }
 }
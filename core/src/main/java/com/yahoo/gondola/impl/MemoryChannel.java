@@ -10,6 +10,7 @@ import com.yahoo.gondola.Channel;
 import com.yahoo.gondola.Gondola;
 
 import com.yahoo.gondola.GondolaException;
+import com.yahoo.gondola.core.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -125,6 +126,14 @@ public class MemoryChannel implements Channel {
         return outputStreams.get(key);
     }
 
+    /**
+     * See Channel.getWireVersion().
+     */
+    @Override
+    public int getWireVersion() {
+        return Message.WIRE_VERSION;
+    }
+
     void awaitOperational(boolean errorOccurred) {
         while (inputStreams.get(key) == null) {
             try {
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Channel;
+import com.yahoo.gondola.Gondola;
+
+import com.yahoo.gondola.core.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The channel of MuxNetwork. This class has the same semantics as SocketChannel, but its streams are carried by the
+ * connection that MuxNetwork maintains to the remote member's host, and it does not own any threads. Each time the
+ * channel becomes operational, a new Stream is created with its own input and output streams. Discarding a stream
+ * after an error only resets this channel; the connection and the other channels on it are not affected.
+ * <p>
+ * Synchronization notes: all fields, including those of the stream, are protected by the lock. The lock is never
+ * held while writing to the connection, since the connection's reader must be able to deliver data to the channel.
+ */
+public class MuxChannel implements Channel {
+    final static Logger logger = LoggerFactory.getLogger(MuxChannel.class);
+
+    final Gondola gondola;
+    final MuxNetwork network;
+    final MuxNetwork.Link link;
+    final int memberId;
+    final int peerId;
+    boolean retry = true;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition socketValidCond = lock.newCondition();
+
+    // Signaled when the stream receives data or credits or is discarded
+    final Condition streamCond = lock.newCondition();
+
+    volatile boolean socketValid = false;
+    final InetSocketAddress inetSocketAddress;
+
+    // The connections on which this member and the remote member have sent OPEN. The channel is operational once
+    // both are the current connection.
+    MuxNetwork.Connection openConn;
+    MuxNetwork.Connection remoteOpenConn;
+
+    // The receive window the remote member sent with its OPEN
+    int remoteWindow;
+
+    // The time after which this member may send OPEN again, after the remote member has rejected the channel
+    long reopenTs;
+
+    // Non-null while the channel is operational
+    Stream stream;
+
+    volatile boolean started;
+
+    // This boolean is used to stop the channel from being opened again as it is being shut down
+    volatile boolean stopped;
+
+    // Config variables
+    boolean networkTracing;
+    int createSocketRetryPeriod;
+
+    public MuxChannel(Gondola gondola, MuxNetwork network, MuxNetwork.Link link, int memberId, int toMemberId) {
+        this.gondola = gondola;
+        this.network = network;
+        this.link = link;
+        this.memberId = memberId;
+        this.peerId = toMemberId;
+
+        gondola.getConfig().registerForUpdates(config -> {
+            networkTracing = config.getBoolean("gondola.tracing.network");
+            createSocketRetryPeriod = config.getInt("network.mux.create_socket_retry_period");
+        });
+
+        if (networkTracing) {
+            logger.info("[{}-{}] Creating channel to {} {}", gondola.getHostId(), memberId, toMemberId,
+                        this.toString());
+        }
+        inetSocketAddress = gondola.getConfig().getAddressForMember(peerId);
+    }
+
+    /**
+     * See Stoppable.start().
+     */
+    @Override
+    public void start() {
+        started = true;
+        link.wake();
+    }
+
+    /**
+     * See Stoppable.stop().
+     */
+    @Override
+    public boolean stop() {
+        lock.lock();
+        try {
+            // Stop the channel from being opened again and tell the remote member, if it knows of the channel
+            stopped = true;
+            MuxNetwork.Connection c = openConn != null ? openConn : remoteOpenConn;
+            if (c != null) {
+                c.control(MuxNetwork.FRAME_CLOSE, memberId, peerId, 0);
+            }
+            discardStream();
+            socketValidCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        network.removeChannel(this);
+        link.wake();
+        return true;
+    }
+
+    void disableRetry() {
+        retry = false;
+    }
+
+    /**
+     * See Channel.getMemberId().
+     */
+    @Override
+    public int getRemoteMemberId() {
+        return peerId;
+    }
+
+    /**
+     * See Channel.getRemoteAddress().
+     */
+    @Override
+    public String getRemoteAddress() {
+        return String.format("%s:%d",
+                             inetSocketAddress.getAddress().getCanonicalHostName(),
+                             inetSocketAddress.getPort());
+    }
+
+    /**
+     * See Channel.isOperational().
+     */
+    @Override
+    public boolean isOperational() {
+        return socketValid;
+    }
+
+    /**
+     * See Channel.awaitOperational().
+     */
+    @Override
+    public void awaitOperational() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!socketValid) {
+                awaitOperationalUnlocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getInputStream().
+     *
+     * @return a non-null input stream
+     */
+    @Override
+    public InputStream getInputStream(InputStream in, boolean errorOccurred) throws InterruptedException, EOFException {
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new EOFException("channel for member " + memberId + " has been stopped");
+            }
+            if (!socketValid || errorOccurred && in == stream.in) {
+                awaitOperationalUnlocked();
+            }
+            return stream.in;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getOutputStream().
+     *
+     * @return a non-null output stream
+     */
+    @Override
+    public OutputStream getOutputStream(OutputStream out, boolean errorOccurred)
+        throws InterruptedException, EOFException {
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new EOFException("channel for member " + memberId + " has been stopped");
+            }
+            if (!socketValid || errorOccurred && out == stream.out) {
+                awaitOperationalUnlocked();
+            }
+            return stream.out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getWireVersion().
+     */
+    @Override
+    public int getWireVersion() {
+        Stream s = stream;
+        return s == null ? Message.WIRE_VERSION_1 : s.conn.wireVersion;
+    }
+
+    /*********************** non-public methods ********************/
+
+    /**
+     * Blocks until the channel is operational. Must be called while lock is locked.
+     */
+    void awaitOperationalUnlocked() throws InterruptedException {
+        // If the stream was valid, discard it and tell the remote member, which opens the channel again
+        if (socketValid) {
+            logger.info("[{}-{}] Channel to {} is now non-operational. Closing.",
+                        gondola.getHostId(), memberId, peerId);
+            MuxNetwork.Connection c = stream.conn;
+            c.control(MuxNetwork.FRAME_CLOSE, memberId, peerId, 0);
+            discardStream();
+            link.wake();
+        }
+
+        // Wait for the stream to be available
+        while (!socketValid) {
+            if (networkTracing) {
+                logger.info("[{}-{}] Waiting for valid channel to {}", gondola.getHostId(), memberId, peerId);
+            }
+            socketValidCond.await();
+        }
+        if (networkTracing) {
+            logger.info("[{}-{}] {}: Valid channel now available to {}",
+                        gondola.getHostId(), memberId, Thread.currentThread().getName(), peerId);
+        }
+    }
+
+    /**
+     * Fails the current stream, if any, and forgets the OPENs. Must be called with the lock.
+     */
+    void discardStream() {
+        if (stream != null) {
+            stream.failed = true;
+            stream = null;
+            streamCond.signalAll();
+        }
+        socketValid = false;
+        openConn = null;
+        remoteOpenConn = null;
+    }
+
+    /**
+     * Makes the channel operational if both members have sent OPEN on the current connection. Must be called with
+     * the lock.
+     */
+    void establish() {
+        MuxNetwork.Connection c = openConn;
+        if (stream == null && c != null && c == remoteOpenConn && c == link.conn) {
+            stream = new Stream(c, remoteWindow);
+            socketValid = true;
+            socketValidCond.signalAll();
+            logger.info("[{}-{}] Channel to {} is now operational", gondola.getHostId(), memberId, peerId);
+        }
+    }
+
+    /**
+     * Called by the link's connector. Sends OPEN on the connection unless it has already been sent.
+     */
+    void openIfNeeded(MuxNetwork.Connection c) {
+        lock.lock();
+        try {
+            if (retry && started && !stopped && openConn != c && gondola.getClock().now() >= reopenTs) {
+                c.control(MuxNetwork.FRAME_OPEN, memberId, peerId, network.streamWindow);
+                openConn = c;
+                establish();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the connection's reader when the remote member has sent OPEN. Replies with OPEN unless it has
+     * already been sent.
+     */
+    void remoteOpened(MuxNetwork.Connection c, int window) {
+        lock.lock();
+        try {
+            if (stopped) {
+                return;
+            }
+            remoteOpenConn = c;
+            remoteWindow = window;
+            if (started && openConn != c) {
+                c.control(MuxNetwork.FRAME_OPEN, memberId, peerId, network.streamWindow);
+                openConn = c;
+            }
+            establish();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the connection's reader when the remote member has sent CLOSE.
+     */
+    void remoteClosed(MuxNetwork.Connection c) {
+        lock.lock();
+        try {
+            if (openConn == c || remoteOpenConn == c) {
+                if (socketValid) {
+                    logger.info("[{}-{}] Channel to {} was closed by the remote member",
+                                gondola.getHostId(), memberId, peerId);
+                } else {
+                    // The remote member rejected the channel, so wait before trying again
+                    reopenTs = gondola.getClock().now() + createSocketRetryPeriod;
+                }
+                discardStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the link when the connection is closed.
+     */
+    void linkDown(MuxNetwork.Connection c) {
+        lock.lock();
+        try {
+            if (openConn == c || remoteOpenConn == c) {
+                discardStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the connection's reader with the payload of a data frame.
+     */
+    void receive(MuxNetwork.Connection c, byte[] b, int len) throws IOException {
+        lock.lock();
+        try {
+            Stream s = stream;
+            if (s == null || s.conn != c) {
+                // Sent before the remote member received this member's CLOSE
+                return;
+            }
+            s.put(b, len);
+            streamCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the connection's reader when the remote member has consumed some of the data sent to it.
+     */
+    void credit(MuxNetwork.Connection c, int n) {
+        lock.lock();
+        try {
+            Stream s = stream;
+            if (s != null && s.conn == c) {
+                s.credit += n;
+                streamCond.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The two directions of the channel while it is operational on a connection. Received bytes are kept in a
+     * ring buffer of the size of the window this member sent in its OPEN.
+     */
+    class Stream {
+        final MuxNetwork.Connection conn;
+        final byte[] buffer = new byte[network.streamWindow];
+
+        // The position of the first received byte and the number of received bytes that have not been read
+        int head;
+        int count;
+
+        // The number of bytes read since the last CREDIT was sent
+        int consumed;
+
+        // The number of bytes that can be sent before the remote member returns credits
+        int credit;
+
+        // Set when the stream is discarded. Read without the lock by the connection.
+        volatile boolean failed;
+
+        final InputStream in = new In();
+        final OutputStream out = new Out();
+
+        Stream(MuxNetwork.Connection conn, int window) {
+            this.conn = conn;
+            this.credit = window;
+        }
+
+        /**
+         * Appends received bytes to the buffer. Must be called with the lock.
+         */
+        void put(byte[] b, int len) throws IOException {
+            if (len > buffer.length - count) {
+                throw new IOException(String.format("Channel %d-%d received %d bytes with room for %d",
+                        memberId, peerId, len, buffer.length - count));
+            }
+            int tail = (head + count) % buffer.length;
+            int n = Math.min(len, buffer.length - tail);
+            System.arraycopy(b, 0, buffer, tail, n);
+            System.arraycopy(b, n, buffer, 0, len - n);
+            count += len;
+        }
+
+        class In extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                boolean sendCredit = false;
+                lock.lock();
+                try {
+                    while (count == 0 || failed) {
+                        if (failed) {
+                            throw new SocketException("Socket closed");
+                        }
+                        streamCond.await();
+                    }
+                    n = Math.min(len, count);
+                    int first = Math.min(n, buffer.length - head);
+                    System.arraycopy(buffer, head, b, off, first);
+                    System.arraycopy(buffer, 0, b, off + first, n - first);
+                    head = (head + n) % buffer.length;
+                    count -= n;
+
+                    // Return the credits in batches of half the window
+                    consumed += n;
+                    if (consumed >= buffer.length / 2) {
+                        conn.control(MuxNetwork.FRAME_CREDIT, memberId, peerId, consumed);
+                        consumed = 0;
+                        sendCredit = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    lock.unlock();
+                }
+                if (sendCredit) {
+                    conn.flushControl();
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        class Out extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n;
+                    lock.lock();
+                    try {
+                        while (credit == 0 || failed) {
+                            if (failed) {
+                                throw new SocketException("Socket closed");
+                            }
+                            streamCond.await();
+                        }
+                        n = Math.min(Math.min(len, credit), MuxNetwork.MAX_FRAME_SIZE);
+                        credit -= n;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    } finally {
+                        lock.unlock();
+                    }
+                    conn.writeData(Stream.this, memberId, peerId, b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        }
+    }
+
+    public InetSocketAddress getInetSocketAddress() {
+        return inetSocketAddress;
+    }
+}
@@ -0,0 +1,857 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Channel;
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Network;
+
+import com.yahoo.gondola.core.ExceptionLogger;
+import com.yahoo.gondola.core.Message;
+import com.yahoo.gondola.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Network implementation that carries all the channels between two hosts over a single socket connection, rather
+ * than one connection per pair of members like SocketNetwork. A host running S shards of R members then holds one
+ * connection and two threads per remote host instead of S x (R - 1) sockets, and a network failure between two hosts
+ * causes one reconnect rather than one per channel.
+ * <p>
+ * The bytes written to a channel are sent in data frames that carry the ids of the two members, so the receiving
+ * host can hand them to the matching channel. Each channel has its own flow control: a member sends no more than
+ * the remote channel has room for, and the remote channel returns credits as its reader consumes the bytes.
+ * A slow reader therefore only stalls its own channel, never the connection.
+ * <p>
+ * Frame format: type(1) fromMemberId(4) toMemberId(4) value(4), followed by value bytes for data frames.
+ * <pre>
+ * OPEN    value is the number of bytes the sender can buffer for the channel
+ * DATA    value is the length of the payload
+ * CREDIT  value is the number of bytes the sender has consumed
+ * CLOSE   the sender has discarded its end of the channel
+ * PING    sent periodically so that dead connections are detected; the member ids are 0
+ * </pre>
+ * A channel is operational once both members have sent OPEN on the current connection. Either member can discard
+ * its end with CLOSE, after which OPEN is exchanged again. This resets one channel without affecting the others.
+ * <p>
+ * Either host can establish the connection. If both do so at the same time, both hosts keep the connection called by
+ * the greater host id and close the other. To make this rare, the host with the smaller id waits one retry period
+ * after the connection is lost before calling. The handshake is similar to SocketNetwork's:
+ * callee: hello from <host-id> wire <version>
+ * caller: mux from <host-id> wire <version>
+ * callee: ok
+ * <p>
+ * Channels between two members on the same host are not supported.
+ */
+public class MuxNetwork implements Network {
+    final static Logger logger = LoggerFactory.getLogger(MuxNetwork.class);
+
+    static final int FRAME_OPEN = 1;
+    static final int FRAME_DATA = 2;
+    static final int FRAME_CREDIT = 3;
+    static final int FRAME_CLOSE = 4;
+    static final int FRAME_PING = 5;
+
+    static final int FRAME_HEADER_SIZE = 13;
+
+    // The largest payload of a data frame. Larger writes are split into several frames.
+    static final int MAX_FRAME_SIZE = 65536;
+
+    final Gondola gondola;
+    final String hostId;
+    int listenerMemberId;
+
+    List<Channel> channels = new CopyOnWriteArrayList<>();
+    Function<Channel, Boolean> listener;
+
+    // Remote host id -> the link to that host
+    final Map<String, Link> links = new ConcurrentHashMap<>();
+
+    // Config variables
+    boolean networkTracing;
+    int connTimeout;
+    int createSocketRetryPeriod;
+    int inactivityTimeout;
+    final int streamWindow;
+
+    // Used to interrupt the acceptor thread. See SocketNetwork.
+    int generation = 0;
+
+    // True between start() and stop()
+    volatile boolean started;
+
+    // List of threads running in this class
+    List<Thread> threads = new ArrayList<>();
+
+    static Pattern muxPattern = Pattern.compile("mux from (\\S+) wire (\\d+)$");
+
+    public MuxNetwork(Gondola gondola, String hostId) throws SocketException {
+        this.gondola = gondola;
+        this.hostId = hostId;
+        Config config = gondola.getConfig();
+        config.registerForUpdates(c -> {
+            networkTracing = c.getBoolean("gondola.tracing.network");
+            connTimeout = c.getInt("network.mux.connect_timeout");
+            createSocketRetryPeriod = c.getInt("network.mux.create_socket_retry_period");
+            inactivityTimeout = c.getInt("network.channel_inactivity_timeout");
+        });
+        streamWindow = config.getInt("network.mux.stream_window");
+
+        InetSocketAddress address = config.getAddressForHost(hostId);
+        if (!SocketNetwork.isLocalAddress(address.getAddress())) {
+            throw new IllegalStateException(address.getHostName() + " is not a local address");
+        }
+
+        // Check whether another process is already using this address
+        if (isActive(getAddress())) {
+            throw new IllegalStateException(String.format("Another process is actively listening to %s",
+                    getAddress()));
+        }
+    }
+
+    @Override
+    public void start() {
+        started = true;
+        threads.add(new Acceptor());
+        threads.forEach(t -> t.start());
+        links.values().forEach(Link::start);
+    }
+
+    @Override
+    public boolean stop() {
+        started = false;
+        generation++;
+        boolean status = Utils.stopThreads(threads);
+        for (Link link : links.values()) {
+            status = link.stop() && status;
+        }
+        threads.clear();
+        links.clear();
+        return status;
+    }
+
+    /**
+     * ***************** methods ******************
+     */
+
+    @Override
+    public Channel createChannel(int fromMemberId, int toMemberId) {
+        Link link = getLink(gondola.getConfig().getMember(toMemberId).getHostId());
+        MuxChannel channel = new MuxChannel(gondola, this, link, fromMemberId, toMemberId);
+        link.channels.put(key(fromMemberId, toMemberId), channel);
+        channels.add(channel);
+
+        // The remote member may have opened the channel before it was created
+        Connection c = link.conn;
+        Integer window = c == null ? null : c.pendingOpens.remove(key(fromMemberId, toMemberId));
+        if (window != null) {
+            channel.remoteOpened(c, window);
+        }
+        return channel;
+    }
+
+    void removeChannel(MuxChannel channel) {
+        channel.link.channels.remove(key(channel.memberId, channel.peerId), channel);
+        if (!channels.remove(channel)) {
+            throw new IllegalStateException(String.format("Unable to remove channel %d-%d",
+                                                          channel.memberId, channel.peerId));
+        }
+    }
+
+    @Override
+    public void register(int memberId, Function<Channel, Boolean> listener) {
+        this.listenerMemberId = memberId;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getAddress() {
+        InetSocketAddress addr = gondola.getConfig().getAddressForHost(hostId);
+        return String.format("%s:%d", addr.getHostString(), addr.getPort());
+    }
+
+    @Override
+    public boolean isActive(String address) {
+        String[] parts = address.split(":");
+        InetSocketAddress addr = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+        try (Socket socket = new Socket()) {
+            socket.connect(addr, connTimeout);
+            // Process is alive enough to respond to a connect request
+            return true;
+        } catch (Exception e) {
+            // Can't connect to the process so probably not alive
+            logger.info("{} is not active: {}", address, e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public List<Channel> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns the link to the remote host, creating it if necessary.
+     */
+    Link getLink(String remoteHostId) {
+        Link link = links.computeIfAbsent(remoteHostId, Link::new);
+        if (started) {
+            link.start();
+        }
+        return link;
+    }
+
+    /**
+     * Returns true if the two members belong to the same shard, in which case the channel between them is not
+     * a slave's.
+     */
+    boolean isSameShard(int memberId1, int memberId2) {
+        Config config = gondola.getConfig();
+        try {
+            return config.getMember(memberId1).getShardId().equals(config.getMember(memberId2).getShardId());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the key of a channel in Link.channels.
+     */
+    static long key(int localMemberId, int remoteMemberId) {
+        return ((long) localMemberId << 32) | (remoteMemberId & 0xffffffffL);
+    }
+
+    /*
+     * Called when the remote member opens a channel that does not exist on this host. Such channels come from
+     * slaves. Runs on a separate thread since the listener can block.
+     */
+    void acceptSlave(Connection conn, int fromMemberId, int toMemberId, int window) {
+        try {
+            Function<Channel, Boolean> l = listener;
+            if (l == null) {
+                // The target member id is not known so reject the request
+                logger.info("[{}] Channel request from {} to {} rejected because the channel is not registered",
+                        gondola.getHostId(), fromMemberId, toMemberId);
+                conn.control(FRAME_CLOSE, toMemberId, fromMemberId, 0);
+                return;
+            }
+            MuxChannel channel = (MuxChannel) createChannel(toMemberId, fromMemberId);
+            channel.disableRetry();
+            if (l.apply(channel)) {
+                // Request accepted
+                channel.remoteOpened(conn, window);
+            } else {
+                // Request rejected
+                channel.stop();
+                conn.control(FRAME_CLOSE, toMemberId, fromMemberId, 0);
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        } finally {
+            conn.link.wake();
+        }
+    }
+
+    /*
+     * This thread waits for connections from other hosts.
+     */
+    class Acceptor extends Thread {
+        ServerSocket listener = null;
+
+        Acceptor() {
+            setName("MuxAcceptor-" + gondola.getHostId());
+            setDaemon(true);
+        }
+
+        @Override
+        public void interrupt() {
+            // The accept can't be interrupted so we have to close the server socket
+            ServerSocket ss = listener;
+            listener = null;
+            if (ss != null) {
+                try {
+                    ss.close();
+                } catch (IOException e) {
+                    logger.error("Unable to close acceptor thread " + getName(), e);
+                }
+            }
+        }
+
+        public void run() {
+            InetSocketAddress addr = gondola.getConfig().getAddressForHost(hostId);
+            int gen = generation;
+
+            while (true) {
+                try {
+                    listener = new ServerSocket(addr.getPort());
+                    while (true) {
+                        Socket socket = listener.accept();
+                        socket.setTcpNoDelay(true);
+                        logger.info("[{}] Socket accept from {}", gondola.getHostId(), socket.getInetAddress());
+
+                        // Creates a separate thread to handle the handshake, to avoid hangs, etc.
+                        new Thread(() -> initialize(socket)).start();
+                    }
+                } catch (Exception e) {
+                    if (gen < generation) {
+                        return;
+                    }
+                    logger.error(e.getMessage(), e);
+
+                    try {
+                        // Small delay to avoid a spin loop
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e2) {
+                        return;
+                    }
+                } finally {
+                    if (listener != null) {
+                        try {
+                            listener.close();
+                        } catch (Exception e) {
+                            logger.error(e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs the handshake on an accepted socket. If successful, the socket becomes the connection to the calling host.
+     */
+    void initialize(Socket socket) {
+        SocketNetwork.Hello hello = null;
+        try {
+            socket.setSoTimeout(connTimeout);
+            hello = new SocketNetwork.Hello(hostId, socket.getInputStream(), socket.getOutputStream());
+            hello.writeLine(String.format("hello from %s wire %d", hostId, Message.maxWireVersion));
+            String line = hello.readLine();
+            if (networkTracing) {
+                logger.info("[{}] {}", hostId, line);
+            }
+            Matcher matcher = muxPattern.matcher(line);
+            if (!matcher.find()) {
+                throw new IllegalStateException("Invalid message: " + line);
+            }
+            String remoteHostId = matcher.group(1);
+            int wireVersion = Integer.parseInt(matcher.group(2));
+            if (!getLink(remoteHostId).install(socket, hello, remoteHostId, wireVersion)) {
+                logger.info("[{}] Connection from {} rejected in favor of the existing connection",
+                        gondola.getHostId(), remoteHostId);
+                hello.close(socket);
+            }
+        } catch (Exception e) {
+            if (hello != null) {
+                hello.close(socket);
+            }
+            if (networkTracing) {
+                logger.warn(e.getMessage(), e);
+            } else {
+                logger.warn(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Maintains the connection to a remote host and dispatches the frames received on it to the channels.
+     */
+    class Link {
+        final String remoteHostId;
+        final InetSocketAddress inetSocketAddress;
+
+        // The channels to the members on the remote host, keyed by key()
+        final Map<Long, MuxChannel> channels = new ConcurrentHashMap<>();
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition wakeupCond = lock.newCondition();
+
+        // The current connection, or null if there is none. Protected by the lock.
+        volatile Connection conn;
+
+        // Protected by the lock
+        boolean wakeup;
+        boolean stopped;
+        long downTs;
+        Connector connector;
+
+        final ExceptionLogger excLogger;
+
+        // List of threads running in this class
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+
+        Link(String remoteHostId) {
+            this.remoteHostId = remoteHostId;
+            inetSocketAddress = gondola.getConfig().getAddressForHost(remoteHostId);
+            downTs = gondola.getClock().now();
+            excLogger = new ExceptionLogger(gondola)
+                .setMessage(eMsg -> String.format("[%s] Failed to create socket to %s (%s): %s",
+                        gondola.getHostId(), remoteHostId, inetSocketAddress, eMsg))
+                .setNoStackTracePattern("Connection reset|End-of-file|Socket closed")
+                .setNoStackTraceClasses(ConnectException.class, SocketTimeoutException.class)
+                .setAdditionalMessage(eMsg -> String.format("[%s] Will retry creating the socket to %s (%s) every %dms",
+                        gondola.getHostId(), remoteHostId, inetSocketAddress, createSocketRetryPeriod));
+        }
+
+        void start() {
+            lock.lock();
+            try {
+                if (connector == null && !stopped) {
+                    connector = new Connector();
+                    threads.add(connector);
+                    connector.start();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean stop() {
+            Connection c;
+            lock.lock();
+            try {
+                stopped = true;
+                c = conn;
+            } finally {
+                lock.unlock();
+            }
+            if (c != null) {
+                fail(c, new SocketException("Socket closed"));
+            }
+            return Utils.stopThreads(threads);
+        }
+
+        /**
+         * Wakes up the connector, which sends the pending control frames and opens the channels.
+         */
+        void wake() {
+            lock.lock();
+            try {
+                wakeup = true;
+                wakeupCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Makes the socket the connection to the remote host, replacing the current one, unless the current one was
+         * called by a greater host id.
+         *
+         * @param hello the handshake of an accepted socket, used to send the ok; null for a socket this host called.
+         *
+         * @return false if the socket was not used.
+         */
+        boolean install(Socket socket, SocketNetwork.Hello hello, String caller, int wireVersion) throws IOException {
+            Connection c;
+            Connection old;
+            lock.lock();
+            try {
+                old = conn;
+                if (stopped || old != null && old.caller.compareTo(caller) > 0) {
+                    return false;
+                }
+                if (hello != null) {
+                    hello.ok();
+                }
+                socket.setSoTimeout(0);
+                c = new Connection(this, socket, caller, wireVersion);
+                conn = c;
+                threads.add(c.reader);
+                c.reader.start();
+                wakeup = true;
+                wakeupCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            logger.info("[{}] Connection to {} is now operational", gondola.getHostId(), remoteHostId);
+            if (old != null) {
+                logger.info("[{}] Replacing the connection to {} called by {}",
+                        gondola.getHostId(), remoteHostId, old.caller);
+                fail(old, new SocketException("Socket closed"));
+            }
+            return true;
+        }
+
+        /**
+         * Closes the connection and discards the channels' streams on it.
+         */
+        void fail(Connection c, Exception e) {
+            lock.lock();
+            try {
+                if (conn == c) {
+                    conn = null;
+                    downTs = gondola.getClock().now();
+                    if (!stopped) {
+                        logger.info("[{}] Connection to {} is now non-operational: {}",
+                                gondola.getHostId(), remoteHostId, e.getMessage());
+                    }
+                }
+                wakeup = true;
+                wakeupCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            c.close();
+            channels.values().forEach(ch -> ch.linkDown(c));
+        }
+
+        /**
+         * Returns true if a local channel is waiting to be opened, in which case this host calls the remote host.
+         */
+        boolean isNeeded() {
+            for (MuxChannel channel : channels.values()) {
+                if (channel.retry && channel.started && !channel.stopped) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Establishes a connection to the remote host.
+         */
+        void call() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(inetSocketAddress, connTimeout);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(connTimeout);
+                SocketNetwork.Hello hello =
+                        new SocketNetwork.Hello(hostId, socket.getInputStream(), socket.getOutputStream());
+                String line = hello.readLine();
+                if (networkTracing) {
+                    logger.info("[{}] {}", hostId, line);
+                }
+                if (!line.startsWith("hello from " + remoteHostId + " ")) {
+                    throw new IllegalStateException("Invalid response: " + line);
+                }
+                int wireVersion = Math.min(hello.parseWireVersion(line), Message.maxWireVersion);
+                hello.writeLine(String.format("mux from %s wire %d", hostId, wireVersion));
+                line = hello.readLine();
+                if (networkTracing) {
+                    logger.info("[{}] {}", hostId, line);
+                }
+                if (!line.equals("ok")) {
+                    throw new IllegalStateException("Invalid response: " + line);
+                }
+                if (!install(socket, null, hostId, wireVersion)) {
+                    socket.close();
+                }
+            } catch (Exception e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * This thread establishes the connection when it is needed, sends the control frames queued by the reader
+         * and the channels, opens the channels, and closes the connection if nothing has been received for the
+         * inactivity timeout.
+         */
+        class Connector extends Thread {
+            Connector() {
+                setName(String.format("MuxConnector-%s-%s", gondola.getHostId(), remoteHostId));
+                setDaemon(true);
+            }
+
+            public void run() {
+                long lastCallTs = 0;
+                long lastPingTs = 0;
+                while (true) {
+                    try {
+                        long now = gondola.getClock().now();
+                        Connection c = conn;
+                        if (c == null) {
+                            // The host with the greater id calls right away
+                            boolean mayCall = hostId.compareTo(remoteHostId) > 0
+                                    || now >= downTs + createSocketRetryPeriod;
+                            if (mayCall && now >= lastCallTs + createSocketRetryPeriod && isNeeded()) {
+                                lastCallTs = now;
+                                try {
+                                    call();
+                                } catch (Exception e) {
+                                    excLogger.warn(e);
+                                }
+                            }
+                        } else if (now - c.lastReceivedTs > inactivityTimeout) {
+                            fail(c, new SocketTimeoutException(String.format(
+                                    "nothing received for %dms", now - c.lastReceivedTs)));
+                        } else {
+                            channels.values().forEach(ch -> ch.openIfNeeded(c));
+                            if (now >= lastPingTs + createSocketRetryPeriod) {
+                                lastPingTs = now;
+                                c.control(FRAME_PING, 0, 0, 0);
+                            }
+                            c.flushControl();
+                        }
+
+                        // Wait for something to do
+                        lock.lock();
+                        try {
+                            if (!wakeup) {
+                                gondola.getClock().awaitCondition(lock, wakeupCond, createSocketRetryPeriod);
+                            }
+                            wakeup = false;
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A socket connection to a remote host. Data frames are written directly by the channels' writers. Control
+     * frames are queued and written before the next data frame or by the link's connector, so that the threads that
+     * must not block, such as the reader, never write to the socket. The queue also keeps the control frames of a
+     * channel in the order in which the channel produced them.
+     */
+    class Connection {
+        final Link link;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        // The host that called. Used to choose between two connections between the same hosts.
+        final String caller;
+
+        // The wire format version agreed in the handshake
+        final int wireVersion;
+
+        // Protects out
+        final ReentrantLock writeLock = new ReentrantLock();
+
+        // Control frames waiting to be sent: type, from, to, value
+        final Queue<int[]> controlQueue = new ConcurrentLinkedQueue<>();
+
+        // Channel key -> the window of an OPEN received before the local member created the channel
+        final Map<Long, Integer> pendingOpens = new ConcurrentHashMap<>();
+
+        final Reader reader;
+        volatile boolean closed;
+        volatile long lastReceivedTs;
+
+        Connection(Link link, Socket socket, String caller, int wireVersion) throws IOException {
+            this.link = link;
+            this.socket = socket;
+            this.caller = caller;
+            this.wireVersion = wireVersion;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE));
+            out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), FRAME_HEADER_SIZE + MAX_FRAME_SIZE));
+            lastReceivedTs = gondola.getClock().now();
+            reader = new Reader(this);
+        }
+
+        /**
+         * Queues a control frame. Never blocks.
+         */
+        void control(int type, int fromMemberId, int toMemberId, int value) {
+            controlQueue.add(new int[] {type, fromMemberId, toMemberId, value});
+        }
+
+        /**
+         * Sends the queued control frames.
+         */
+        void flushControl() {
+            if (controlQueue.isEmpty()) {
+                return;
+            }
+            IOException error = null;
+            writeLock.lock();
+            try {
+                if (!closed) {
+                    writeControl();
+                    out.flush();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                writeLock.unlock();
+            }
+            if (error != null) {
+                link.fail(this, error);
+            }
+        }
+
+        /**
+         * Sends a data frame on behalf of the stream. Fails if the stream has been discarded, so that no data
+         * from a discarded stream is sent after the CLOSE that discarded it.
+         */
+        void writeData(MuxChannel.Stream stream, int fromMemberId, int toMemberId, byte[] b, int off, int len)
+                throws IOException {
+            IOException error = null;
+            writeLock.lock();
+            try {
+                if (closed || stream.failed) {
+                    throw new SocketException("Socket closed");
+                }
+                try {
+                    writeControl();
+                    writeHeader(FRAME_DATA, fromMemberId, toMemberId, len);
+                    out.write(b, off, len);
+                    out.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if (error != null) {
+                link.fail(this, error);
+                throw error;
+            }
+        }
+
+        /**
+         * Must be called with the write lock.
+         */
+        void writeControl() throws IOException {
+            int[] frame;
+            while ((frame = controlQueue.poll()) != null) {
+                writeHeader(frame[0], frame[1], frame[2], frame[3]);
+            }
+        }
+
+        void writeHeader(int type, int fromMemberId, int toMemberId, int value) throws IOException {
+            out.writeByte(type);
+            out.writeInt(fromMemberId);
+            out.writeInt(toMemberId);
+            out.writeInt(value);
+        }
+
+        void close() {
+            closed = true;
+            controlQueue.clear();
+            try {
+                socket.close();
+            } catch (Exception e) {
+                logger.info("Failed to close socket to host " + link.remoteHostId, e);
+            }
+        }
+    }
+
+    /**
+     * This thread reads the frames of a connection and hands them to the channels. It never blocks on a channel:
+     * the flow control guarantees that a channel has room for the data it is sent.
+     */
+    class Reader extends Thread {
+        final Connection conn;
+
+        Reader(Connection conn) {
+            this.conn = conn;
+            setName(String.format("MuxReader-%s-%s", gondola.getHostId(), conn.link.remoteHostId));
+            setDaemon(true);
+        }
+
+        public void run() {
+            Link link = conn.link;
+            byte[] payload = new byte[MAX_FRAME_SIZE];
+            try {
+                while (true) {
+                    int type = conn.in.readByte();
+                    int fromMemberId = conn.in.readInt();
+                    int toMemberId = conn.in.readInt();
+                    int value = conn.in.readInt();
+                    conn.lastReceivedTs = gondola.getClock().now();
+
+                    long key = key(toMemberId, fromMemberId);
+                    MuxChannel channel = link.channels.get(key);
+                    switch (type) {
+                        case FRAME_DATA:
+                            if (value < 0 || value > MAX_FRAME_SIZE) {
+                                throw new IOException("Invalid data frame size: " + value);
+                            }
+                            conn.in.readFully(payload, 0, value);
+                            if (channel != null) {
+                                channel.receive(conn, payload, value);
+                            }
+                            break;
+                        case FRAME_CREDIT:
+                            if (channel != null) {
+                                channel.credit(conn, value);
+                            }
+                            break;
+                        case FRAME_OPEN:
+                            if (networkTracing) {
+                                logger.info("[{}-{}] Channel opened by {}", hostId, toMemberId, fromMemberId);
+                            }
+                            if (channel == null && isSameShard(fromMemberId, toMemberId)) {
+                                // The local member has not created its channel yet; createChannel() takes the OPEN
+                                conn.pendingOpens.put(key, value);
+                                channel = link.channels.get(key);
+                                if (channel == null || conn.pendingOpens.remove(key) == null) {
+                                    break;
+                                }
+                            }
+                            if (channel != null) {
+                                channel.remoteOpened(conn, value);
+                                link.wake();
+                            } else {
+                                new Thread(() -> acceptSlave(conn, fromMemberId, toMemberId, value)).start();
+                            }
+                            break;
+                        case FRAME_CLOSE:
+                            if (networkTracing) {
+                                logger.info("[{}-{}] Channel closed by {}", hostId, toMemberId, fromMemberId);
+                            }
+                            if (channel != null) {
+                                channel.remoteClosed(conn);
+                                link.wake();
+                            }
+                            break;
+                        case FRAME_PING:
+                            break;
+                        default:
+                            throw new IOException("Invalid frame type: " + type);
+                    }
+                }
+            } catch (Exception e) {
+                if (!conn.closed) {
+                    if (networkTracing || !(e instanceof EOFException || e instanceof SocketException)) {
+                        logger.warn(e.getMessage(), e);
+                    }
+                }
+                link.fail(conn, e);
+            } finally {
+                link.threads.remove(this);
+            }
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -36,6 +38,9 @@ public class MySqlStorage implements Storage {
     Queue<LogEntry> logEntryPool = new ConcurrentLinkedQueue<>();
     HikariDataSource ds;
 
+    // The number of rows fetched at a time by getLogEntries()
+    static final int FETCH_SIZE = 100;
+
     // Config variables
     int maxCommandSize;
 
@@ -321,6 +326,47 @@ public class MySqlStorage implements Storage {
         }
     }
 
+    /**
+     * The range is read with a single query whose rows are fetched as they are consumed.
+     */
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        List<LogEntry> entries = new ArrayList<>();
+        String sql = "SELECT indx, term, command FROM logs WHERE member_id=? AND indx BETWEEN ? AND ? ORDER BY indx";
+        try (Connection c = ds.getConnection(); PreparedStatement preparedStatement = c.prepareStatement(sql)) {
+            preparedStatement.setInt(1, memberId);
+            preparedStatement.setInt(2, fromIndex);
+            preparedStatement.setInt(3, (int) Math.min((long) fromIndex + maxCount - 1, Integer.MAX_VALUE));
+            preparedStatement.setFetchSize(Math.min(maxCount, FETCH_SIZE));
+            ResultSet resultSet = preparedStatement.executeQuery();
+            int bytes = 0;
+            while (resultSet.next()) {
+                int index = resultSet.getInt("indx");
+                if (index != fromIndex + entries.size()) {
+                    // Stop at the first gap
+                    break;
+                }
+                byte[] command = resultSet.getBytes("command");
+                bytes += command.length;
+                if (bytes > maxBytes && !entries.isEmpty()) {
+                    break;
+                }
+                LogEntry logEntry = checkout();
+                logEntry.memberId = memberId;
+                logEntry.term = resultSet.getInt("term");
+                logEntry.index = index;
+                System.arraycopy(command, 0, logEntry.buffer, 0, command.length);
+                logEntry.size = command.length;
+                entries.add(logEntry);
+            }
+        } catch (SQLException e) {
+            entries.forEach(LogEntry::release);
+            throw new GondolaException(e);
+        }
+        return entries;
+    }
+
     private ResultSet getLogEntryResult(Connection c, int memberId, int index) throws SQLException {
         String sql = "SELECT term, command FROM logs WHERE member_id=? AND indx=?";
         PreparedStatement preparedStatement = c.prepareStatement(sql);
@@ -368,6 +414,44 @@ public class MySqlStorage implements Storage {
         }
     }
 
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths) throws GondolaException {
+        try (Connection c = ds.getConnection()) {
+            String sql = "INSERT INTO logs(member_id, term, indx, command) VALUES(?, ?, ?, ?)";
+
+            // The whole batch is written in one transaction
+            c.setAutoCommit(false);
+            try {
+                PreparedStatement preparedStatement = c.prepareStatement(sql);
+                for (int i = 0; i < count; i++) {
+                    preparedStatement.setInt(1, memberId);
+                    preparedStatement.setInt(2, term);
+                    preparedStatement.setInt(3, startIndex + i);
+                    preparedStatement.setBinaryStream(4,
+                            new ByteArrayInputStream(buffer, offsets[i], lengths[i]));
+                    preparedStatement.addBatch();
+                }
+                int[] results = preparedStatement.executeBatch();
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != 1 && results[i] != Statement.SUCCESS_NO_INFO) {
+                        throw new SQLException(String.format(
+                                "Failed to insert member_id=%d, index=%d, size=%d. Return=%d",
+                                memberId, startIndex + i, lengths[i], results[i]));
+                    }
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new GondolaException(e);
+        }
+    }
+
     @Override
     public void delete(int memberId, int index) throws GondolaException {
         try (Connection c = ds.getConnection()) {
@@ -381,6 +465,19 @@ public class MySqlStorage implements Storage {
         }
     }
 
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        try (Connection c = ds.getConnection()) {
+            String sql = "DELETE FROM logs WHERE member_id=? AND indx<?";
+            PreparedStatement preparedStatement = c.prepareStatement(sql);
+            preparedStatement.setInt(1, memberId);
+            preparedStatement.setInt(2, index);
+            preparedStatement.execute();
+        } catch (SQLException e) {
+            throw new GondolaException(e);
+        }
+    }
+
     @Override
     public void checkin(LogEntry entry) {
         logEntryPool.add(entry);
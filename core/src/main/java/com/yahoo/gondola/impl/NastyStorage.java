@@ -14,6 +14,8 @@ import com.yahoo.gondola.GondolaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 /**
  * The type Nasty storage.
  */
@@ -123,6 +125,13 @@ public class NastyStorage implements Storage {
         return storage.getLogEntry(memberId, index);
     }
 
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        random(fromIndex);
+        return storage.getLogEntries(memberId, fromIndex, maxCount, maxBytes);
+    }
+
     @Override
     public LogEntry getLastLogEntry(int memberId) throws GondolaException {
         random(-1);
@@ -147,12 +156,37 @@ public class NastyStorage implements Storage {
         storage.appendLogEntry(memberId, term, index, buffer, bufferOffset, bufferLen);
     }
 
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths)
+            throws GondolaException, InterruptedException {
+        double r = random(startIndex);
+        if (enabled && r < .2) {
+            int delay = (int) (r * 100);
+            if (tracing) {
+                logger.info("delaying {}-{} by {} ms", startIndex, startIndex + count - 1, delay);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new GondolaException(e);
+            }
+        }
+        storage.appendLogEntries(memberId, term, startIndex, count, buffer, offsets, lengths);
+    }
+
     @Override
     public void delete(int memberId, int index) throws GondolaException {
         random(index);
         storage.delete(memberId, index);
     }
 
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        random(index);
+        storage.deleteBefore(memberId, index);
+    }
+
     @Override
     public void checkin(LogEntry entry) {
         storage.checkin(entry);
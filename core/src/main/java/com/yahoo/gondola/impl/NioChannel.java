@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Channel;
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+
+import com.yahoo.gondola.core.ExceptionLogger;
+import com.yahoo.gondola.core.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The channel of NioNetwork. This class has the same semantics as SocketChannel but does not own any threads.
+ * Connection attempts are run on the network's worker threads and the connection's IO is done by the network's
+ * selector threads. <p> Synchronization notes: - when connecting is true, there is a pending or running connection
+ * attempt; at most one runs at any time. - when socketValid is false, conn, in, and out will all be null.
+ */
+public class NioChannel implements Channel {
+    final static Logger logger = LoggerFactory.getLogger(NioChannel.class);
+
+    final Gondola gondola;
+    final NioNetwork network;
+    final int memberId;
+    final int peerId;
+    boolean retry = true;
+
+    // Used to protect the connection and the streams. Ensures that only one reconnect occurs at a time.
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition socketValidCond = lock.newCondition();
+
+    volatile boolean socketValid = false;
+    final InetSocketAddress inetSocketAddress;
+
+    // Protected by the lock
+    volatile NioNetwork.Connection conn;
+    volatile OutputStream out;
+    volatile InputStream in;
+    volatile int wireVersion = Message.WIRE_VERSION_1;
+
+    // The current connection attempt. Protected by the lock.
+    boolean connecting;
+    ScheduledFuture<?> pendingAttempt;
+    NioNetwork.Connection attemptConn;
+
+    // Config variables
+    boolean networkTracing;
+    int createSocketRetryPeriod;
+
+    final ExceptionLogger excLogger;
+
+    // This boolean is used to stop new connection attempts from being made as the channel is being shut down
+    volatile boolean stopped;
+
+    public NioChannel(Gondola gondola, NioNetwork network, int memberId, int toMemberId) {
+        this.gondola = gondola;
+        this.network = network;
+        this.memberId = memberId;
+        this.peerId = toMemberId;
+
+        gondola.getConfig().registerForUpdates(config -> {
+            networkTracing = config.getBoolean("gondola.tracing.network");
+            createSocketRetryPeriod = config.getInt("network.nio.create_socket_retry_period");
+        });
+
+        if (networkTracing) {
+            logger.info("[{}-{}] Creating connection to {} {}", gondola.getHostId(), memberId, toMemberId,
+                        this.toString());
+        }
+        inetSocketAddress = gondola.getConfig().getAddressForMember(peerId);
+        excLogger = new ExceptionLogger(gondola)
+            .setMessage(eMsg -> String.format("[%s-%d] Failed to create socket to %d (%s): %s",
+                                              gondola.getHostId(), memberId, peerId, inetSocketAddress, eMsg))
+            .setNoStackTracePattern("Connection reset|End-of-file|Socket closed")
+            .setNoStackTraceClasses(ConnectException.class, SocketTimeoutException.class)
+            .setAdditionalMessage(eMsg -> String.format("[%s-%d] Will retry creating the socket to %d (%s) every %dms",
+                    gondola.getHostId(), memberId, peerId, inetSocketAddress, createSocketRetryPeriod));
+    }
+
+    /**
+     * See Stoppable.start().
+     */
+    @Override
+    public void start() {
+        reconnect();
+    }
+
+    /**
+     * See Stoppable.stop().
+     */
+    @Override
+    public boolean stop() {
+        lock.lock();
+        try {
+            // Stop new connection attempts and then close the current connection, if any
+            stopped = true;
+            if (pendingAttempt != null) {
+                pendingAttempt.cancel(false);
+            }
+            if (attemptConn != null) {
+                attemptConn.close();
+            }
+            close(conn);
+            socketValidCond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        network.removeChannel(this);
+        return true;
+    }
+
+    void disableRetry() {
+        retry = false;
+    }
+
+    /**
+     * See Channel.getMemberId().
+     */
+    @Override
+    public int getRemoteMemberId() {
+        return peerId;
+    }
+
+    /**
+     * See Channel.getRemoteAddress().
+     */
+    @Override
+    public String getRemoteAddress() {
+        return String.format("%s:%d",
+                             inetSocketAddress.getAddress().getCanonicalHostName(),
+                             inetSocketAddress.getPort());
+    }
+
+    /**
+     * See Channel.isOperational().
+     */
+    @Override
+    public boolean isOperational() {
+        return socketValid;
+    }
+
+    /**
+     * See Channel.awaitOperational().
+     */
+    @Override
+    public void awaitOperational() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!socketValid || this.in == null) {
+                awaitOperationalUnlocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getInputStream().
+     *
+     * @return a non-null input stream
+     */
+    @Override
+    public InputStream getInputStream(InputStream in, boolean errorOccurred) throws InterruptedException, EOFException {
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new EOFException("channel for member " + memberId + " has been stopped");
+            }
+            if (!socketValid || this.in == null || errorOccurred && in == this.in) {
+                awaitOperationalUnlocked();
+            }
+            return this.in;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getOutputStream().
+     *
+     * @return a non-null output stream
+     */
+    @Override
+    public OutputStream getOutputStream(OutputStream out, boolean errorOccurred)
+        throws InterruptedException, EOFException {
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new EOFException("channel for member " + memberId + " has been stopped");
+            }
+            if (!socketValid || this.out == null || errorOccurred && out == this.out) {
+                awaitOperationalUnlocked();
+            }
+            return this.out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * See Channel.getWireVersion().
+     */
+    @Override
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    /*********************** non-public methods ********************/
+
+    /**
+     * Blocks until the connection is operational. Must be called while lock is locked.
+     */
+    void awaitOperationalUnlocked() throws InterruptedException {
+        // If the connection was valid, start a reconnect
+        if (socketValid) {
+            logger.info("[{}-{}] Socket to {} is now non-operational. Closing.",
+                        gondola.getHostId(), memberId, peerId);
+            socketValid = false;
+
+            // Close the current connection
+            close(conn);
+            conn = null;
+            in = null;
+            out = null;
+
+            reconnect();
+        }
+
+        // Wait for the connection to be available
+        while (!socketValid) {
+            if (networkTracing) {
+                logger.info("[{}-{}] Waiting for valid socket to {}", gondola.getHostId(), memberId, peerId);
+            }
+            socketValidCond.await();
+        }
+        if (networkTracing) {
+            logger.info("[{}-{}] {}: Valid socket now available to {}",
+                        gondola.getHostId(), memberId, Thread.currentThread().getName(), peerId);
+        }
+    }
+
+    /**
+     * Called when a new connection to the remote member is ready for use.
+     */
+    void setConnection(NioNetwork.Connection conn) {
+        lock.lock();
+        try {
+            if (stopped) {
+                conn.close();
+                return;
+            }
+            logger.info("[{}-{}] {}valid socket to {} is being replaced ",
+                        gondola.getHostId(), memberId, socketValid ? "A " : "An in", peerId);
+            close(this.conn);
+
+            // Update new streams
+            this.conn = conn;
+            this.in = conn.in;
+            this.out = conn.out;
+            this.wireVersion = conn.wireVersion;
+
+            // Inform waiters
+            socketValid = true;
+            socketValidCond.signalAll();
+            logger.info("[{}-{}] Socket to {} is now operational", gondola.getHostId(), memberId, peerId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Used to cut short the delay before the next connection attempt.
+     */
+    void retry() {
+        lock.lock();
+        try {
+            if (pendingAttempt != null && pendingAttempt.cancel(false)) {
+                pendingAttempt = network.schedule(this::connect, 0);
+                connecting = pendingAttempt != null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close(NioNetwork.Connection conn) {
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * By calling this method, the channel's setConnection() method
+     * will eventually get called when a connection is established to peerId.
+     */
+    void reconnect() {
+        lock.lock();
+        try {
+            if (!retry || stopped || connecting) {
+                return;
+            }
+            logger.info("[{}-{}] Reconnecting socket {} to {}", gondola.getHostId(), memberId, conn, peerId);
+            pendingAttempt = network.schedule(this::connect, 0);
+            connecting = pendingAttempt != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes one connection attempt. Runs on a worker thread.
+     */
+    void connect() {
+        NioNetwork.Connection c;
+        lock.lock();
+        try {
+            pendingAttempt = null;
+            if (stopped) {
+                connecting = false;
+                return;
+            }
+            c = network.connect(inetSocketAddress);
+            attemptConn = c;
+        } catch (Exception e) {
+            excLogger.warn(e);
+            retryLater();
+            return;
+        } finally {
+            lock.unlock();
+        }
+        c.connectFuture.whenCompleteAsync((v, e) -> {
+            if (e == null) {
+                handshake(c);
+            } else {
+                c.close();
+                excLogger.warn(e);
+                retryLater();
+            }
+        }, network.workers);
+    }
+
+    /**
+     * Runs the handshake on a newly connected socket. Runs on a worker thread.
+     */
+    void handshake(NioNetwork.Connection c) {
+        // If the remote member is not part of this member's shard, this member is assumed to be a slave
+        Config config = gondola.getConfig();
+        boolean isSlave = config.getMember(memberId).getShardId() != config.getMember(peerId).getShardId();
+
+        // Initiate the connection only if this member id is
+        // larger than the remote member or if this member is a
+        // slave.  Otherwise, it's assumed that the remote member will initiate the connection.
+        boolean makeCall = memberId > peerId || isSlave;
+        try {
+            c.setReadTimeout(NioNetwork.connTimeout);
+            SocketNetwork.Hello hello = new SocketNetwork.Hello(gondola.getHostId(), c.in, c.out);
+            if (makeCall) {
+                // Wait for call from peer
+                hello.makeCall(memberId, peerId);
+                c.wireVersion = hello.wireVersion;
+
+                // Connection is now valid
+                c.setReadTimeout(0);
+                setConnection(c);
+            } else {
+                // Ask the peer to call back and initiate a connection
+                hello.requestCallBack(memberId, peerId);
+                c.close();
+            }
+
+            // No exceptions means success
+            logger.info("[{}-{}] Socket created to {} ({})",
+                        gondola.getHostId(), memberId, peerId, inetSocketAddress);
+            lock.lock();
+            try {
+                attemptConn = null;
+                connecting = false;
+            } finally {
+                lock.unlock();
+            }
+        } catch (Throwable e) {
+            c.close();
+            excLogger.warn(e);
+            retryLater();
+        }
+    }
+
+    /**
+     * Schedules the next connection attempt after the retry period.
+     */
+    void retryLater() {
+        lock.lock();
+        try {
+            attemptConn = null;
+            if (stopped) {
+                connecting = false;
+                return;
+            }
+            pendingAttempt = network.schedule(this::connect, createSocketRetryPeriod);
+            connecting = pendingAttempt != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public InetSocketAddress getInetSocketAddress() {
+        return inetSocketAddress;
+    }
+}
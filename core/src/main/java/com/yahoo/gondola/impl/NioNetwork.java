@@ -0,0 +1,749 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Channel;
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Network;
+
+import com.yahoo.gondola.core.Message;
+import com.yahoo.gondola.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A Network implementation that multiplexes all the connections of a host onto a small, fixed number of
+ * selector threads, rather than using one or more threads per socket like SocketNetwork. This allows a host
+ * running many shards to use a constant number of network threads.
+ * <p>
+ * Each connection has a direct read buffer and a direct write buffer. The selector threads fill the read buffer
+ * and drain the write buffer using non-blocking IO. The streams returned by the channels are adapters over these
+ * buffers: a read blocks until the selector thread has received some data and a write copies the data into the
+ * write buffer, sending as much as the socket will take immediately and leaving the rest to the selector thread.
+ * <p>
+ * The connection handshake and the reconnect policy are the same as SocketNetwork's; see SocketNetwork.Hello.
+ * Handshakes, connect timeouts, and reconnect delays are run on a small pool of worker threads.
+ */
+public class NioNetwork implements Network {
+    final static Logger logger = LoggerFactory.getLogger(NioNetwork.class);
+
+    final Gondola gondola;
+    final String hostId;
+    int listenerMemberId;
+
+    List<Channel> channels = new CopyOnWriteArrayList<>();
+    Function<Channel, Boolean> listener;
+
+    // Config variables
+    static boolean networkTracing;
+    static int connTimeout;
+    final int selectorThreads;
+    final int workerThreads;
+    final int bufferSize;
+
+    // Selector threads. Connections are assigned to them round-robin.
+    List<SelectorLoop> loops = new ArrayList<>();
+    final AtomicInteger nextLoop = new AtomicInteger();
+
+    // Runs handshakes, connect timeouts, and reconnects
+    ScheduledExecutorService workers;
+
+    volatile ServerSocketChannel server;
+
+    // Used to stop the bind retries once the network is stopped
+    volatile boolean stopped;
+
+    // List of threads running in this class
+    List<Thread> threads = new ArrayList<>();
+
+    public NioNetwork(Gondola gondola, String hostId) throws SocketException {
+        this.gondola = gondola;
+        this.hostId = hostId;
+        Config config = gondola.getConfig();
+        config.registerForUpdates(c -> {
+            networkTracing = c.getBoolean("gondola.tracing.network");
+            connTimeout = c.getInt("network.nio.connect_timeout");
+        });
+        selectorThreads = config.getInt("network.nio.selector_threads");
+        workerThreads = config.getInt("network.nio.worker_threads");
+        bufferSize = config.getInt("network.nio.buffer_size");
+
+        InetSocketAddress address = config.getAddressForHost(hostId);
+        if (!SocketNetwork.isLocalAddress(address.getAddress())) {
+            throw new IllegalStateException(address.getHostName() + " is not a local address");
+        }
+
+        // Check whether another process is already using this address
+        if (isActive(getAddress())) {
+            throw new IllegalStateException(String.format("Another process is actively listening to %s",
+                    getAddress()));
+        }
+    }
+
+    @Override
+    public void start() {
+        stopped = false;
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newScheduledThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, String.format("NioWorker-%s-%d", hostId, workerCount.getAndIncrement()));
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                SelectorLoop loop = new SelectorLoop(i);
+                loops.add(loop);
+                threads.add(loop);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open selector", e);
+        }
+        threads.forEach(t -> t.start());
+        workers.execute(this::bind);
+    }
+
+    @Override
+    public boolean stop() {
+        stopped = true;
+        close(server);
+        server = null;
+        workers.shutdownNow();
+        boolean status = Utils.stopThreads(threads);
+        try {
+            status = workers.awaitTermination(10, TimeUnit.SECONDS) && status;
+        } catch (InterruptedException e) {
+            status = false;
+        }
+        threads.clear();
+        loops.clear();
+        return status;
+    }
+
+    /**
+     * ***************** methods ******************
+     */
+
+    @Override
+    public Channel createChannel(int fromMemberId, int toMemberId) {
+        NioChannel channel = new NioChannel(gondola, this, fromMemberId, toMemberId);
+        channels.add(channel);
+        return channel;
+    }
+
+    void removeChannel(NioChannel channel) {
+        if (!channels.remove(channel)) {
+            throw new IllegalStateException(String.format("Unable to remove channel %d-%d",
+                                                          channel.memberId, channel.peerId));
+        }
+    }
+
+    @Override
+    public void register(int memberId, Function<Channel, Boolean> listener) {
+        this.listenerMemberId = memberId;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getAddress() {
+        InetSocketAddress addr = gondola.getConfig().getAddressForHost(hostId);
+        return String.format("%s:%d", addr.getHostString(), addr.getPort());
+    }
+
+    @Override
+    public boolean isActive(String address) {
+        String[] parts = address.split(":");
+        InetSocketAddress addr = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+        try (Socket socket = new Socket()) {
+            socket.connect(addr, connTimeout);
+            // Process is alive enough to respond to a connect request
+            return true;
+        } catch (Exception e) {
+            // Can't connect to the process so probably not alive
+            logger.info("{} is not active: {}", address, e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public List<Channel> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Runs task on a worker thread after delay ms.
+     *
+     * @return null if the network has been stopped.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay) {
+        try {
+            return workers.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a non-blocking connect to address.
+     *
+     * @return the new connection. Its connectFuture completes once the socket is connected or the connect fails.
+     */
+    Connection connect(InetSocketAddress address) throws IOException {
+        java.nio.channels.SocketChannel sc = java.nio.channels.SocketChannel.open();
+        try {
+            sc.configureBlocking(false);
+            sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = sc.connect(address);
+            Connection conn = new Connection(sc, nextLoop());
+            if (connected) {
+                conn.register(SelectionKey.OP_READ);
+                conn.connectFuture.complete(null);
+            } else {
+                conn.register(SelectionKey.OP_CONNECT);
+                schedule(() -> {
+                    if (!conn.connectFuture.isDone()) {
+                        conn.fail(new SocketTimeoutException("connect timed out"));
+                    }
+                }, connTimeout);
+            }
+            return conn;
+        } catch (IOException e) {
+            close(sc);
+            throw e;
+        }
+    }
+
+    SelectorLoop nextLoop() {
+        return loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+    }
+
+    /*
+     * Binds the server socket. Retried every second until it succeeds or the network is stopped.
+     */
+    void bind() {
+        InetSocketAddress addr = gondola.getConfig().getAddressForHost(hostId);
+        ServerSocketChannel ss = null;
+        try {
+            ss = ServerSocketChannel.open();
+            ss.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            ss.bind(new InetSocketAddress(addr.getPort()));
+            ss.configureBlocking(false);
+            server = ss;
+            ServerSocketChannel registered = ss;
+            loops.get(0).execute(() -> {
+                try {
+                    registered.register(loops.get(0).selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            });
+        } catch (Exception e) {
+            close(ss);
+            if (stopped) {
+                return;
+            }
+            logger.error(e.getMessage(), e);
+
+            // Small delay to avoid a spin loop
+            schedule(this::bind, 1000);
+        }
+    }
+
+    /*
+     * Called by the selector thread when a connection is ready to be accepted.
+     */
+    void accept(ServerSocketChannel ss) {
+        try {
+            java.nio.channels.SocketChannel sc;
+            while ((sc = ss.accept()) != null) {
+                sc.configureBlocking(false);
+                sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                logger.info("[{}] Socket accept from {}", gondola.getHostId(), sc.getRemoteAddress());
+                Connection conn = new Connection(sc, nextLoop());
+                conn.register(SelectionKey.OP_READ);
+                workers.execute(() -> initialize(conn));
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Runs the handshake with the remote member on an accepted connection.
+     * If successful, offers the connection to the channel, making it operational.
+     */
+    void initialize(Connection conn) {
+        try {
+            conn.setReadTimeout(connTimeout);
+            SocketNetwork.Hello hello = new SocketNetwork.Hello(gondola.getHostId(), conn.in, conn.out);
+            hello.incoming();
+
+            // Find the conn that matches the communicating members
+            NioChannel channel = null;
+            for (Channel c : channels) {
+                NioChannel ch = (NioChannel) c;
+                if (ch.memberId == hello.toMemberId && ch.peerId == hello.fromMemberId) {
+                    channel = ch;
+                    break;
+                }
+            }
+
+            if (channel == null && listener == null) {
+                // The target member id is not known so reject the connection request
+                logger.info("[{}] Connection request from {} to {} rejected because the channel is not registered",
+                        gondola.getHostId(), hello.fromMemberId, hello.toMemberId);
+                conn.close();
+            } else if (channel == null) {
+                // The channel is a slave
+                channel = (NioChannel) createChannel(hello.toMemberId, hello.fromMemberId);
+                channel.disableRetry();
+                if (listener.apply(channel)) {
+                    // Request accepted
+                    hello.ok();
+                    conn.setReadTimeout(0);
+                    conn.wireVersion = hello.wireVersion;
+                    channel.setConnection(conn);
+                } else {
+                    // Request rejected
+                    conn.close();
+                    channel.stop();
+                }
+            } else {
+                hello.ok();
+
+                if (hello.makeCall) {
+                    // Make the connection available to the channel
+                    conn.setReadTimeout(0);
+                    conn.wireVersion = hello.wireVersion;
+                    channel.setConnection(conn);
+                } else {
+                    conn.close();
+                    channel.retry();
+                }
+            }
+        } catch (Exception e) {
+            conn.close();
+            if (networkTracing) {
+                logger.warn(e.getMessage(), e);
+            } else {
+                logger.warn(e.getMessage());
+            }
+        }
+    }
+
+    static void close(java.nio.channels.Channel ch) {
+        try {
+            if (ch != null) {
+                ch.close();
+            }
+        } catch (IOException e) {
+            logger.info("Failed to close " + ch, e);
+        }
+    }
+
+    /**
+     * A thread that runs a selector for a subset of the connections. Other threads hand work to it via execute(),
+     * which includes all changes to the selector's registrations.
+     */
+    class SelectorLoop extends Thread {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        SelectorLoop(int i) throws IOException {
+            setName(String.format("NioSelector-%s-%d", gondola.getHostId(), i));
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                        } else {
+                            ((Connection) key.attachment()).ready(key);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                logger.error(e.getMessage(), e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                closeSelector();
+            }
+        }
+
+        void closeSelector() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.info("Failed to close selector " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * A socket connection to a remote member along with its buffers and the streams over them.
+     * Both buffers are kept in fill mode: position() is the number of bytes that have been received and not read,
+     * or written and not sent. All fields except key are protected by lock.
+     */
+    class Connection {
+        final java.nio.channels.SocketChannel sc;
+        final SelectorLoop loop;
+
+        // Only accessed by the selector thread
+        SelectionKey key;
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition readableCond = lock.newCondition();
+        final Condition writableCond = lock.newCondition();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(bufferSize);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+
+        // True if the selector is waiting for the socket to become writable
+        boolean writePending;
+
+        // True if the selector has stopped reading because the read buffer is full
+        boolean readPaused;
+
+        boolean eof;
+        boolean closed;
+
+        // The wire format version agreed in the handshake
+        volatile int wireVersion = Message.WIRE_VERSION_1;
+        IOException error;
+
+        // Maximum time a read will block (ms); 0 for no limit
+        int readTimeout;
+
+        final CompletableFuture<Void> connectFuture = new CompletableFuture<>();
+        final InputStream in = new In();
+        final OutputStream out = new Out();
+
+        Connection(java.nio.channels.SocketChannel sc, SelectorLoop loop) {
+            this.sc = sc;
+            this.loop = loop;
+        }
+
+        void register(int ops) {
+            loop.execute(() -> {
+                try {
+                    key = sc.register(loop.selector, ops, this);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        void setReadTimeout(int readTimeout) {
+            lock.lock();
+            try {
+                this.readTimeout = readTimeout;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds or removes op from the key's interest set. Must be called on the selector thread.
+         */
+        void setInterest(int op, boolean on) {
+            if (key != null && key.isValid()) {
+                key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+            }
+        }
+
+        /**
+         * Called by the selector thread when the socket is ready for one of the operations in the interest set.
+         */
+        void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    sc.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connectFuture.complete(null);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void read() throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                int n = sc.read(readBuffer);
+                if (n < 0) {
+                    eof = true;
+                    setInterest(SelectionKey.OP_READ, false);
+                } else if (!readBuffer.hasRemaining()) {
+                    // Stop reading until the reader has made room in the buffer
+                    readPaused = true;
+                    setInterest(SelectionKey.OP_READ, false);
+                }
+                readableCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void write() throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                send();
+                if (writeBuffer.position() == 0) {
+                    writePending = false;
+                    setInterest(SelectionKey.OP_WRITE, false);
+                }
+                writableCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sends as much of the write buffer as the socket will accept without blocking. Must be called with the lock.
+         */
+        void send() throws IOException {
+            writeBuffer.flip();
+            try {
+                sc.write(writeBuffer);
+            } finally {
+                writeBuffer.compact();
+            }
+        }
+
+        /**
+         * Closes the connection because of an error. Any blocked or subsequent reads and writes throw e.
+         */
+        void fail(IOException e) {
+            lock.lock();
+            try {
+                // Errors caused by a local close are not reported
+                if (error == null && !closed) {
+                    error = e;
+                }
+            } finally {
+                lock.unlock();
+            }
+            connectFuture.completeExceptionally(e);
+            close();
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                readableCond.signalAll();
+                writableCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            connectFuture.completeExceptionally(new SocketException("Socket closed"));
+            NioNetwork.close(sc);
+        }
+
+        /**
+         * Must be called with the lock.
+         */
+        void checkOpen() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            if (closed) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return sc.toString();
+        }
+
+        class In extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                lock.lock();
+                try {
+                    long deadline = System.currentTimeMillis() + readTimeout;
+                    while (readBuffer.position() == 0) {
+                        checkOpen();
+                        if (eof) {
+                            return -1;
+                        }
+                        if (readTimeout == 0) {
+                            readableCond.await();
+                        } else {
+                            long wait = deadline - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                throw new SocketTimeoutException("Read timed out");
+                            }
+                            readableCond.await(wait, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    readBuffer.flip();
+                    int n = Math.min(len, readBuffer.remaining());
+                    readBuffer.get(b, off, n);
+                    readBuffer.compact();
+                    if (readPaused) {
+                        readPaused = false;
+                        loop.execute(() -> setInterest(SelectionKey.OP_READ, true));
+                    }
+                    return n;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public int available() throws IOException {
+                lock.lock();
+                try {
+                    return readBuffer.position();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+        }
+
+        class Out extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                lock.lock();
+                try {
+                    while (len > 0) {
+                        checkOpen();
+                        if (!writeBuffer.hasRemaining()) {
+                            // The selector thread is waiting for the socket to drain
+                            writableCond.await();
+                            continue;
+                        }
+                        int n = Math.min(len, writeBuffer.remaining());
+                        writeBuffer.put(b, off, n);
+                        off += n;
+                        len -= n;
+
+                        // Send directly unless the selector thread is already sending
+                        if (!writePending) {
+                            send();
+                            if (writeBuffer.position() > 0) {
+                                writePending = true;
+                                loop.execute(() -> setInterest(SelectionKey.OP_WRITE, true));
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (IOException e) {
+                    fail(e);
+                    throw e;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+        }
+    }
+}
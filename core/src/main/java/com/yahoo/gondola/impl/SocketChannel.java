@@ -12,6 +12,7 @@ import com.yahoo.gondola.Gondola;
 
 import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.core.ExceptionLogger;
+import com.yahoo.gondola.core.Message;
 import com.yahoo.gondola.core.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +63,7 @@ public class SocketChannel implements Channel {
     volatile Socket socket;
     volatile OutputStream out;
     volatile InputStream in;
+    volatile int wireVersion = Message.WIRE_VERSION_1;
 
     // Config variables
     boolean networkTracing;
@@ -215,6 +217,14 @@ public class SocketChannel implements Channel {
         }
     }
 
+    /**
+     * See Channel.getWireVersion().
+     */
+    @Override
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
     /*********************** non-public methods ********************/
 
     /**
@@ -252,7 +262,7 @@ public class SocketChannel implements Channel {
     /**
      * Called when a new socket to the remote member is ready for use.
      */
-    void setSocket(Socket socket, InputStream in, OutputStream out) throws IOException {
+    void setSocket(Socket socket, InputStream in, OutputStream out, int wireVersion) throws IOException {
         lock.lock();
         try {
             logger.info("[{}-{}] {}valid socket to {} is being replaced ",
@@ -263,6 +273,7 @@ public class SocketChannel implements Channel {
             this.socket = socket;
             this.in = in;
             this.out = out;
+            this.wireVersion = wireVersion;
 
             // Inform waiters
             socketValid = true;
@@ -384,7 +395,7 @@ public class SocketChannel implements Channel {
                         hello.makeCall(memberId, peerId);
 
                         // Socket is now valid
-                        setSocket(socket, in, out);
+                        setSocket(socket, in, out, hello.wireVersion);
                     } else {
                         // Ask the peer to call back and initiate a connection
                         hello.requestCallBack(memberId, peerId);
@@ -10,6 +10,7 @@ import com.yahoo.gondola.Channel;
 import com.yahoo.gondola.Gondola;
 import com.yahoo.gondola.Network;
 
+import com.yahoo.gondola.core.Message;
 import com.yahoo.gondola.core.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -271,7 +272,7 @@ public class SocketNetwork implements Network {
                     if (listener.apply(channel)) {
                         // Request accepted
                         hello.ok();
-                        channel.setSocket(socket, hello.in, hello.out);
+                        channel.setSocket(socket, hello.in, hello.out, hello.wireVersion);
                     } else {
                         // Request rejected
                         hello.close(socket);
@@ -282,7 +283,7 @@ public class SocketNetwork implements Network {
 
                     if (hello.makeCall) {
                         // Make the socket available to the channel
-                        channel.setSocket(socket, hello.in, hello.out);
+                        channel.setSocket(socket, hello.in, hello.out, hello.wireVersion);
                     } else {
                         ((SocketChannel) channel).retry();
                     }
@@ -297,7 +298,7 @@ public class SocketNetwork implements Network {
         }
     }
 
-    private boolean isLocalAddress(InetAddress addr) {
+    static boolean isLocalAddress(InetAddress addr) {
         // Check if the address is a valid special local or loop back
         if (addr.isAnyLocalAddress() || addr.isLoopbackAddress()) {
             return true;
@@ -314,12 +315,16 @@ public class SocketNetwork implements Network {
 
     static Pattern makeCallPattern = Pattern.compile("call from (\\d+) to (\\d+)");
     static Pattern requestCallBackPattern = Pattern.compile("call back (\\d+) from (\\d+)");
+    static Pattern wireVersionPattern = Pattern.compile(" wire (\\d+)$");
 
     /**
      * protocol:
-     * caller: hello from host1
-     * call from 81 to 82
+     * caller: hello from host1 wire 2
+     * call from 81 to 82 wire 2
      * ok
+     * <p>
+     * The callee advertises the latest wire format version it supports and the caller replies with the version that
+     * both will use. Members that predate versioning neither advertise nor reply with a version, which means version 1.
      */
     public static class Hello {
         String hostId;
@@ -328,6 +333,7 @@ public class SocketNetwork implements Network {
         int fromMemberId;
         int toMemberId;
         boolean makeCall;
+        int wireVersion = Message.WIRE_VERSION_1;
 
         Hello(String hostId, InputStream in, OutputStream out) {
             this.hostId = hostId;
@@ -340,13 +346,14 @@ public class SocketNetwork implements Network {
          */
         void incoming() throws IOException {
             // Greeting
-            writeLine(String.format("hello from %s", hostId));
+            writeLine(String.format("hello from %s wire %d", hostId, Message.maxWireVersion));
 
             // Get ids
             String line = readLine();
             if (networkTracing) {
                 logger.info("[{}] {}", hostId, line);
             }
+            wireVersion = parseWireVersion(line);
             Matcher matcher = makeCallPattern.matcher(line);
             if (matcher.find()) {
                 makeCall = true;
@@ -396,12 +403,14 @@ public class SocketNetwork implements Network {
             if (!line.startsWith("hello from ")) {
                 throw new IllegalStateException("Invalid response: " + line);
             }
+            wireVersion = Math.min(parseWireVersion(line), Message.maxWireVersion);
 
-            // Send target id to remote
+            // Send target id to remote. The version is only sent to members that advertised one.
+            String version = wireVersion > Message.WIRE_VERSION_1 ? " wire " + wireVersion : "";
             if (makeCall) {
-                writeLine(String.format("call from %d to %d", fromMemberId, toMemberId));
+                writeLine(String.format("call from %d to %d%s", fromMemberId, toMemberId, version));
             } else {
-                writeLine(String.format("call back %d from %d", fromMemberId, toMemberId));
+                writeLine(String.format("call back %d from %d%s", fromMemberId, toMemberId, version));
             }
 
             // Get success from remote
@@ -414,6 +423,14 @@ public class SocketNetwork implements Network {
             }
         }
 
+        /**
+         * Returns the wire version at the end of the line or version 1 if there is none.
+         */
+        int parseWireVersion(String line) {
+            Matcher matcher = wireVersionPattern.matcher(line);
+            return matcher.find() ? Integer.parseInt(matcher.group(1)) : Message.WIRE_VERSION_1;
+        }
+
         /**
          * Does not return the \n
          */
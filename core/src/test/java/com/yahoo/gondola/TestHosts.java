@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.fail;
+
+/**
+ * Runs the hosts A, B and C in this process, connected over the loopback interface, for tests that need a real
+ * network and storage. Every shard has a member on each host; the members of shardN are 71 + 10 * N, 72 + 10 * N and
+ * 73 + 10 * N. The config file, the logs and the snapshots are kept in a new temporary directory.
+ * <p>
+ * Each test class should use its own ports, since the test classes of all the modules may be run concurrently.
+ */
+public class TestHosts {
+    public static final String[] HOSTS = {"A", "B", "C"};
+
+    public final File dir;
+    public final List<Gondola> gondolas = new ArrayList<>();
+    public Config config;
+    final int firstPort;
+
+    /**
+     * @param firstPort host A listens on this port, B and C on the next two.
+     */
+    public TestHosts(String name, int firstPort) throws Exception {
+        dir = Files.createTempDirectory(name).toFile();
+        this.firstPort = firstPort;
+    }
+
+    /**
+     * Writes the config file and starts all the hosts.
+     *
+     * @param shards      the number of shards, named shard1, shard2, ...
+     * @param extraConfig additional config that is appended to the config file.
+     */
+    public void start(int shards, String extraConfig) throws Exception {
+        StringBuilder sb = new StringBuilder("gondola {\n  hosts = [\n");
+        for (int h = 0; h < HOSTS.length; h++) {
+            sb.append(String.format("    { hostId = %s, hostname = \"127.0.0.1\", port = \"%d\" }%n",
+                    HOSTS[h], firstPort + h));
+        }
+        sb.append("  ]\n  shards = [\n");
+        for (int s = 1; s <= shards; s++) {
+            sb.append(String.format("    { shardId = shard%d, hosts = [%n", s));
+            for (int h = 0; h < HOSTS.length; h++) {
+                sb.append(String.format("      { hostId = %s, memberId = %d }%n", HOSTS[h], 71 + 10 * s + h));
+            }
+            sb.append("    ] }\n");
+        }
+        sb.append("  ]\n")
+                .append("  snapshot.dir = \"").append(dir.getAbsolutePath()).append("/snapshot-$hostId\"\n")
+                .append("}\n")
+                .append("storage { impl = storage.file, file.dir = \"").append(dir.getAbsolutePath())
+                .append("/$hostId\" }\n")
+                .append(extraConfig);
+
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write(sb.toString());
+        }
+        config = new Config(confFile);
+        for (String hostId : HOSTS) {
+            Gondola gondola = new Gondola(config, hostId);
+            gondola.start();
+            gondolas.add(gondola);
+        }
+    }
+
+    /**
+     * Stops all the hosts. Can be called even if start() was not called or failed.
+     */
+    public void stop() {
+        for (Gondola gondola : gondolas) {
+            gondola.stop();
+        }
+        gondolas.clear();
+        if (config != null) {
+            config.stop();
+            config = null;
+        }
+    }
+
+    /**
+     * Returns the leader of the shard, waiting up to 30 seconds for one to be elected.
+     */
+    public Shard awaitLeader(String shardId) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            for (Gondola gondola : gondolas) {
+                Shard shard = gondola.getShard(shardId);
+                if (shard.getLocalRole() == Role.LEADER) {
+                    return shard;
+                }
+            }
+            Thread.sleep(100);
+        }
+        fail("No leader was elected");
+        return null;
+    }
+}
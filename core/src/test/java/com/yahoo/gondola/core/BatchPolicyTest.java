@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Config;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class BatchPolicyTest {
+
+    // (us)
+    static final int MAX_LINGER = 1000;
+    static final int MAX_BYTES = 1000;
+
+    Config config;
+    BatchPolicy policy;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("gondola-batch-policy").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("gondola { batch_max_linger = " + MAX_LINGER + ", batch_max_bytes = " + MAX_BYTES + " }\n");
+        }
+        config = new Config(confFile);
+        policy = new BatchPolicy(config);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        config.stop();
+    }
+
+    /**
+     * Makes the policy expect the given number of commands to arrive while a batch is being committed.
+     */
+    void load(int commands) {
+        policy.commitLatency = 1024;
+        policy.arrivalRate = commands / 1024.0;
+        assertEquals(policy.targetCommands(), commands);
+    }
+
+    @Test
+    public void testIdleSendsImmediately() throws Exception {
+        // Nothing has been measured, so the target is a single command
+        assertEquals(policy.targetCommands(), 1);
+        assertEquals(policy.lingerNanos(System.nanoTime(), 1, 10), 0);
+
+        // No lingering at all when it is disabled, whatever the load
+        load(10);
+        policy.maxLinger = 0;
+        assertEquals(policy.lingerNanos(System.nanoTime(), 1, 10), 0);
+    }
+
+    @Test
+    public void testLingerExpires() throws Exception {
+        load(10);
+        long now = System.nanoTime();
+        long linger = policy.lingerNanos(now, 1, 10);
+        assertTrue(linger > 0 && linger <= MAX_LINGER * 1000L, "linger=" + linger);
+
+        // A batch that was started max_linger ago is sent, even though the target has not been reached
+        assertEquals(policy.lingerNanos(now - MAX_LINGER * 1000L - 1, 1, 10), 0);
+
+        // As is a batch that has reached the target
+        assertEquals(policy.lingerNanos(now, 10, 100), 0);
+    }
+
+    @Test
+    public void testMaxBytesCutsOffBatch() throws Exception {
+        load(10);
+        assertTrue(policy.lingerNanos(System.nanoTime(), 2, MAX_BYTES - 1) > 0);
+        assertEquals(policy.lingerNanos(System.nanoTime(), 2, MAX_BYTES), 0);
+
+        // A command that would take the batch over max_bytes starts the next batch, unless the batch is empty
+        assertTrue(policy.fits(2, MAX_BYTES - 10, 10));
+        assertFalse(policy.fits(2, MAX_BYTES - 10, 11));
+        assertTrue(policy.fits(0, 0, MAX_BYTES * 2));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.Gondola;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class CommandQueueTest {
+
+    Config config;
+
+    // Only used to create the commands; never started
+    Gondola gondola;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("gondola-command-queue").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("gondola {\n"
+                         + "  hosts = [ { hostId = A, hostname = \"127.0.0.1\", port = \"2978\" } ]\n"
+                         + "  shards = [ { shardId = shard1, hosts = [ { hostId = A, memberId = 91 } ] } ]\n"
+                         + "  snapshot.dir = \"" + dir.getAbsolutePath() + "/snapshot\"\n"
+                         + "}\n"
+                         + "storage { impl = storage.file, file.dir = \"" + dir.getAbsolutePath() + "\" }\n");
+        }
+        config = new Config(confFile);
+        gondola = new Gondola(config, "A");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        gondola.stop();
+        config.stop();
+    }
+
+    /**
+     * Returns a command tagged with the producer that adds it and its sequence number within that producer.
+     */
+    CoreCmd command(int producer, int seq) {
+        CoreCmd ccmd = new CoreCmd(gondola, null, null);
+        ccmd.term = producer;
+        ccmd.index = seq;
+        return ccmd;
+    }
+
+    @Test
+    public void testProducersConsumer() throws Exception {
+        int producers = 4;
+        int ncmds = 10000;
+        List<List<CoreCmd>> commands = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            List<CoreCmd> list = new ArrayList<>();
+            for (int i = 0; i < ncmds; i++) {
+                list.add(command(p, i));
+            }
+            commands.add(list);
+        }
+
+        // A small queue, so that the producers are often held up by a full queue
+        CommandQueue queue = new CommandQueue(16);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<CoreCmd> list : commands) {
+            futures.add(CompletableFuture.runAsync(() -> list.forEach(queue::add)));
+        }
+
+        // Each producer's commands arrive once and in the order they were added
+        int[] next = new int[producers];
+        for (int i = 0; i < producers * ncmds; i++) {
+            CoreCmd ccmd = queue.take();
+            assertEquals(ccmd.index, next[ccmd.term]++);
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(next[p], ncmds);
+        }
+        assertNull(queue.poll());
+        assertEquals(queue.size(), 0);
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() throws Exception {
+        CommandQueue queue = new CommandQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(command(0, i)));
+        }
+        assertFalse(queue.offer(command(0, 4)));
+        assertEquals(queue.size(), 4);
+
+        // Removing one command makes room for one more
+        assertEquals(queue.poll().index, 0);
+        assertTrue(queue.offer(command(0, 4)));
+        assertFalse(queue.offer(command(0, 5)));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(queue.poll().index, i);
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testAddBlocksWhenFull() throws Exception {
+        CommandQueue queue = new CommandQueue(4);
+        for (int i = 0; i < 4; i++) {
+            queue.add(command(0, i));
+        }
+        CoreCmd last = command(0, 4);
+        CompletableFuture<Void> adding = CompletableFuture.runAsync(() -> queue.add(last));
+        Thread.sleep(100);
+        assertFalse(adding.isDone());
+
+        // The add completes once the consumer makes room
+        assertEquals(queue.poll().index, 0);
+        adding.get(10, TimeUnit.SECONDS);
+        for (int i = 1; i < 4; i++) {
+            assertEquals(queue.poll().index, i);
+        }
+        assertSame(queue.poll(), last);
+    }
+
+    @Test
+    public void testPeekTimeout() throws Exception {
+        CommandQueue queue = new CommandQueue(4);
+        long start = System.nanoTime();
+        assertNull(queue.peek(TimeUnit.MILLISECONDS.toNanos(100)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        // A waiting consumer is woken by an offer well before the timeout
+        CoreCmd ccmd = command(0, 0);
+        CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            queue.offer(ccmd);
+        });
+        start = System.nanoTime();
+        assertSame(queue.peek(TimeUnit.SECONDS.toNanos(10)), ccmd);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        // Peeking does not remove the command
+        assertSame(queue.poll(), ccmd);
+        assertNull(queue.peek());
+    }
+}
@@ -21,12 +21,18 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -727,6 +733,79 @@ public class GondolaTest {
         }
     }
 
+    /**
+     * The leader compacts its log with a snapshot and then has to send the snapshot to a follower
+     * that is missing the compacted entries.
+     */
+    @Test
+    public void installSnapshot() throws Exception {
+        // Init state
+        int term = 1;
+        for (int i = 1; i <= 10; i++) {
+            member1.insert(term, i, "command " + i);
+            member2.insert(term, i, "command " + i);
+        }
+        member1.saveVote(term, -1);
+        member3.pauseDelivery(true);
+        gondolaRc.resetMembers(); // Pick up new storage state
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+        assertCommand(member1, term, 10, "command 10");
+
+        // Save a snapshot on the leader, which deletes the entries before index 8
+        int[] restoredIndex = {0};
+        StringBuilder restored = new StringBuilder();
+        CountDownLatch restoreStarted = new CountDownLatch(1);
+        CountDownLatch restoreAllowed = new CountDownLatch(1);
+        member1.getShard().setSnapshotHandler(new SnapshotHandler() {
+            public void save(OutputStream out) throws IOException {
+                out.write("state at 8".getBytes("UTF-8"));
+            }
+
+            public void restore(int index, InputStream in) {
+            }
+        });
+        member3.getShard().setSnapshotHandler(new SnapshotHandler() {
+            public void save(OutputStream out) {
+            }
+
+            public void restore(int index, InputStream in) throws IOException {
+                restoreStarted.countDown();
+                try {
+                    restoreAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                restoredIndex[0] = index;
+                int c;
+                while ((c = in.read()) >= 0) {
+                    restored.append((char) c);
+                }
+            }
+        });
+        member1.getShard().saveSnapshot(8);
+        assertEquals(member1.getShard().getSnapshotIndex(), 8);
+
+        // Member 3 can only be caught up by installing the snapshot
+        member3.pauseDelivery(false);
+        assertTrue(restoreStarted.await(5, TimeUnit.SECONDS));
+
+        // The entries after the snapshot are held back while the state is being restored
+        try {
+            member3.getCommittedCommand(10, 500);
+            Assert.fail("Command 10 should not be available before the snapshot is restored");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        restoreAllowed.countDown();
+        assertCommand(member3, term, 10, "command 10");
+        assertEquals(member3.getShard().getSnapshotIndex(), 8);
+        assertEquals(restoredIndex[0], 8);
+        assertEquals(restored.toString(), "state at 8");
+    }
+
     /**
      * One leader backfilling one record to two followers.
      */
@@ -767,6 +846,67 @@ public class GondolaTest {
         assertEquals(member1.getShard().getLastSavedIndex(), 10);
     }
 
+    /**
+     * The window to member2 closes, so the leader leaves the new entries to the backfiller. A heartbeat with an
+     * older index then arrives. The backfiller must still send all the entries.
+     */
+    @Test
+    public void heartbeatWhileWindowClosed() throws Exception {
+        if (!gondolaRc.supportsPauseDelivery()) {
+            return;
+        }
+
+        // Init state
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+        commit(member1, "command 1");
+        Peer peer = member1.cmember.peers.get(member2.getMemberId());
+
+        // member2 stops acknowledging. Allow only one message in flight, as before a peer is known to have caught
+        // up, so that the window closes on the next entry.
+        member2.pauseDelivery(true);
+        Thread.sleep(200);
+        peer.lock.lock();
+        try {
+            peer.fullSpeed = false;
+        } finally {
+            peer.lock.unlock();
+        }
+        int ncmds = 1;
+        while (!peer.backfilling) {
+            commit(member1, "command " + ++ncmds);
+            assertTrue(ncmds < 5000, "The window did not close");
+        }
+        for (int i = 0; i < 10; i++) {
+            commit(member1, "command " + ++ncmds);
+        }
+        int lastIndex = member1.getCommitIndex();
+
+        peer.lock.lock();
+        try {
+            assertTrue(peer.throttled);
+            assertEquals(peer.backfillToIndex, lastIndex + 1);
+
+            Message message = member1.cmember.pool.checkout();
+            try {
+                Rid rid = new Rid(member1.cmember.currentTerm, lastIndex - 5);
+                message.heartbeat(member1.getMemberId(), member1.cmember.currentTerm, rid, lastIndex);
+                peer.send(message, rid.index - 1);
+            } finally {
+                message.release();
+            }
+            assertEquals(peer.backfillToIndex, lastIndex + 1);
+        } finally {
+            peer.lock.unlock();
+        }
+
+        member2.pauseDelivery(false);
+        runningTick = 50;
+        assertCommand(member2, -1, lastIndex, "command " + ncmds);
+    }
+
     /************************** command test cases ***********************/
 
     /**
@@ -915,6 +1055,162 @@ public class GondolaTest {
         command.release();
     }
 
+    /**
+     * Many asynchronous commits in flight from a single thread complete in index order.
+     */
+    @Test
+    public void commitAsync() throws Exception {
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+
+        List<CompletableFuture<Command>> futures = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            byte[] bytes = ("command " + i).getBytes("UTF-8");
+            futures.add(member1.checkoutCommand().commitAsync(bytes, 0, bytes.length, 10000));
+        }
+        int lastIndex = 0;
+        for (CompletableFuture<Command> future : futures) {
+            Command command = future.get(10, TimeUnit.SECONDS);
+            assertEquals(command.getStatus(), Command.STATUS_OK);
+            assertTrue(command.getIndex() > lastIndex);
+            lastIndex = command.getIndex();
+            command.release();
+        }
+        assertCommand(member3, -1, lastIndex, "command 100");
+    }
+
+    /**
+     * An asynchronous commit to a non-leader completes the future exceptionally.
+     */
+    @Test
+    public void commitAsyncNonLeader() throws Exception {
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+
+        Command command = member2.checkoutCommand();
+        try {
+            command.commitAsync(new byte[] {1}, 0, 1).get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GondolaException);
+            assertEquals(((GondolaException) e.getCause()).getCode(), GondolaException.Code.NOT_LEADER);
+        }
+        Assert.assertEquals(command.getStatus(), Command.STATUS_NOT_LEADER);
+        command.release();
+    }
+
+    /**
+     * When an asynchronous commit times out, the future completes with a TimeoutException.
+     */
+    @Test
+    public void commitAsyncTimeout() throws Exception {
+        if (!gondolaRc.supportsPauseDelivery()) {
+            return;
+        }
+
+        // Init state
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        member1.pauseDelivery(true); // prevent advance of commit index
+        runningTick = 50;
+
+        Command command = member1.checkoutCommand();
+        try {
+            command.commitAsync(new byte[] {1}, 0, 1, 100).get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertEquals(command.getStatus(), Command.STATUS_TIMEOUT);
+        command.release();
+    }
+
+    /************************** read index test cases ***********************/
+
+    /**
+     * The read index covers the latest commit and is served by the leader without writing to the log.
+     */
+    @Test
+    public void readIndex() throws Exception {
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+
+        commit(member1, "command 1");
+        int commitIndex = member1.getCommitIndex();
+        assertTrue(member1.getShard().readBarrier(5000) >= commitIndex);
+        assertEquals(member1.getCommitIndex(), commitIndex);
+        assertEquals(member1.getSavedIndex(), commitIndex);
+
+        // Only the leader can serve linearizable reads
+        try {
+            member2.getShard().readBarrier(5000);
+            Assert.fail();
+        } catch (GondolaException e) {
+            assertEquals(e.getCode(), GondolaException.Code.NOT_LEADER);
+        }
+    }
+
+    /**
+     * A leader that has been partitioned from its followers must not serve a read, even if replies to heartbeats
+     * sent before the read arrive after the read started.
+     */
+    @Test
+    public void readIndexPartitionedLeader() throws Exception {
+        if (!gondolaRc.supportsPauseDelivery()) {
+            return;
+        }
+
+        // Init state
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+        commit(member1, "command 1");
+
+        // Stop the clock and hold back the replies to the next heartbeat
+        runningTick = 0;
+        Thread.sleep(200);
+        member1.pauseDelivery(true);
+        gondolaRc.tick(100);
+
+        // Partition the leader from the followers and start the read
+        member2.pauseDelivery(true);
+        member3.pauseDelivery(true);
+        CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return member1.getShard().readBarrier(1000);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        while (member1.cmember.readWaiters.get() == 0) {
+            Thread.sleep(10);
+        }
+
+        // The stale replies arrive after the read started
+        gondolaRc.tick(10);
+        member1.pauseDelivery(false);
+        runningTick = 50;
+
+        // The leader either times out or steps down
+        try {
+            read.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException
+                    || e.getCause() instanceof GondolaException
+                    && ((GondolaException) e.getCause()).getCode() == GondolaException.Code.NOT_LEADER,
+                    e.getCause().toString());
+        }
+    }
+
     /**
      * There is code that expects to see a particular exception message generated.
      * This test ensures that the error message has not changed.
@@ -944,6 +1240,65 @@ public class GondolaTest {
         }
     }
 
+    /************************** subscription test cases ***********************/
+
+    /**
+     * Every member returns the same commands in index order, across several read-ahead batches.
+     */
+    @Test
+    public void subscribe() throws Exception {
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+
+        int ncmds = 150;
+        for (int i = 1; i <= ncmds; i++) {
+            commit(member1, "command " + i);
+        }
+        int commitIndex = member1.getCommitIndex();
+
+        for (MemberRc member : members) {
+            // Wait until the member has caught up
+            member.getCommittedCommand(commitIndex, 5000).release();
+
+            try (Subscription subscription = member.getShard().subscribe(1)) {
+                List<String> commands = new ArrayList<>();
+                while (subscription.getNextIndex() <= commitIndex) {
+                    Command command = subscription.next(5000);
+                    assertEquals(command.getIndex(), subscription.getNextIndex() - 1);
+                    if (command.getSize() > 0) {
+                        commands.add(command.getString());
+                    }
+                }
+                assertEquals(commands.size(), ncmds);
+                assertEquals(commands.get(ncmds - 1), "command " + ncmds);
+            }
+        }
+    }
+
+    /**
+     * A subscription positioned past the commit index times out.
+     */
+    @Test
+    public void subscribeTimeout() throws Exception {
+        member1.setLeader();
+        member2.setFollower();
+        member3.setFollower();
+        runningTick = 50;
+        commit(member1, "command 1");
+
+        try (Subscription subscription = member2.getShard().subscribe(1)) {
+            subscription.seek(member1.getCommitIndex() + 1);
+            try {
+                subscription.next(100);
+                Assert.fail();
+            } catch (TimeoutException e) {
+                // Expected
+            }
+        }
+    }
+
     /**************************
      * disabled mode
      ***********************/
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Command;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.TestHosts;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class HeartbeatCoalescerTest {
+
+    static final String[] SHARDS = {"shard1", "shard2"};
+
+    TestHosts hosts;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        hosts = new TestHosts("gondola-heartbeat-coalescer", 2968);
+        hosts.start(SHARDS.length, "network.heartbeat_coalescing.enabled = true\n");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        hosts.stop();
+    }
+
+    /**
+     * The followers of both shards only get heartbeats in the coalesced batches, so the leaders must keep their
+     * leadership across idle periods longer than the election timeout, and the commands must still commit.
+     */
+    @Test
+    public void testLeadershipHolds() throws Exception {
+        for (Gondola gondola : hosts.gondolas) {
+            assertTrue(gondola.getHeartbeatCoalescer().isEnabled());
+        }
+        Shard[] leaders = new Shard[SHARDS.length];
+        int[] leaderIds = new int[SHARDS.length];
+        for (int s = 0; s < SHARDS.length; s++) {
+            leaders[s] = hosts.awaitLeader(SHARDS[s]);
+            leaderIds[s] = leaders[s].getLocalMember().getMemberId();
+        }
+
+        int electionTimeout = hosts.config.getInt("raft.election_timeout");
+        int ncmds = 5;
+        for (int i = 1; i <= ncmds; i++) {
+            for (Shard leader : leaders) {
+                Command command = leader.checkoutCommand();
+                command.commit(new byte[] {(byte) i}, 0, 1);
+                command.release();
+            }
+            Thread.sleep(electionTimeout);
+        }
+
+        for (int s = 0; s < SHARDS.length; s++) {
+            for (Gondola gondola : hosts.gondolas) {
+                Shard shard = gondola.getShard(SHARDS[s]);
+                assertEquals(shard.getLeader().getMemberId(), leaderIds[s]);
+                Command command = shard.getCommittedCommand(leaders[s].getCommitIndex(), 10000);
+                assertEquals(command.getBuffer()[0], (byte) ncmds);
+                command.release();
+            }
+        }
+        for (Gondola gondola : hosts.gondolas) {
+            assertEquals(gondola.getStats().getDroppedHeartbeats(), 0);
+        }
+    }
+}
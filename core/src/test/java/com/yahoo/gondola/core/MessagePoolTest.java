@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Config;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class MessagePoolTest {
+
+    // (ms)
+    static final int MAX_WAIT = 200;
+
+    Config config;
+    Stats stats;
+    MessagePool pool;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("gondola-message-pool").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("gondola { message_pool_max_wait = " + MAX_WAIT + " }\n");
+        }
+        config = new Config(confFile);
+        stats = new Stats();
+        pool = new MessagePool(config, stats);
+
+        // The budget holds two of the smallest buffers
+        pool.maxBytes = 2L * pool.classSizes[0];
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        config.stop();
+    }
+
+    @Test
+    public void testWaitsForCheckin() throws Exception {
+        byte[] b1 = pool.allocate(0);
+        pool.allocate(0);
+        assertEquals(pool.allocatedBytes(), pool.maxBytes);
+
+        CompletableFuture<byte[]> waiting = CompletableFuture.supplyAsync(() -> pool.allocate(0));
+        while (pool.waiters == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(waiting.isDone());
+        assertEquals(stats.getMessageBufferWaits(), 1);
+
+        // The waiter gets the checked in buffer, and no new one is created
+        pool.free(b1);
+        assertSame(waiting.get(MAX_WAIT * 10, TimeUnit.MILLISECONDS), b1);
+        assertEquals(pool.allocatedBytes(), pool.maxBytes);
+        assertEquals(stats.getMessageBufferExhausted(), 0);
+    }
+
+    @Test
+    public void testTimesOut() throws Exception {
+        pool.allocate(0);
+        pool.allocate(0);
+
+        long start = System.nanoTime();
+        try {
+            pool.allocate(0);
+            fail("The allocation should have timed out");
+        } catch (IllegalStateException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(MAX_WAIT));
+        }
+        assertEquals(pool.waiters, 0);
+        assertEquals(stats.getMessageBufferExhausted(), 1);
+    }
+}
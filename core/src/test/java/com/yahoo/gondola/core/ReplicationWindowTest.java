@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.core;
+
+import com.yahoo.gondola.Clock;
+import com.yahoo.gondola.Config;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ReplicationWindowTest {
+
+    static final int MAX_MESSAGES = 8;
+    static final int MIN_BYTES = 1000;
+    static final int MAX_BYTES = 8000;
+
+    Config config;
+    TestClock clock;
+    ReplicationWindow window;
+
+    // The config values of the other tests in this JVM, restored after each test
+    int savedMaxMessages;
+    int savedMinBytes;
+    int savedMaxBytes;
+
+    /**
+     * A clock that only moves when the test advances it.
+     */
+    static class TestClock implements Clock {
+        long now = 1000;
+
+        public void start() {
+        }
+
+        public boolean stop() {
+            return true;
+        }
+
+        public long now() {
+            return now;
+        }
+
+        public void sleep(long delayMs) {
+            now += delayMs;
+        }
+
+        public void awaitCondition(Lock lock, Condition cond, long timeMs) {
+            now += timeMs;
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        savedMaxMessages = ReplicationWindow.maxMessages;
+        savedMinBytes = ReplicationWindow.minBytes;
+        savedMaxBytes = ReplicationWindow.maxBytes;
+
+        File dir = Files.createTempDirectory("gondola-replication-window").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("raft { window { max_messages = " + MAX_MESSAGES + ", min_bytes = " + MIN_BYTES
+                         + ", max_bytes = " + MAX_BYTES + " } }\n");
+        }
+        config = new Config(confFile);
+        ReplicationWindow.initConfig(config);
+        clock = new TestClock();
+        window = new ReplicationWindow(clock);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        config.stop();
+        ReplicationWindow.maxMessages = savedMaxMessages;
+        ReplicationWindow.minBytes = savedMinBytes;
+        ReplicationWindow.maxBytes = savedMaxBytes;
+    }
+
+    /**
+     * Sends a message of the given size and has it acknowledged after rtt ms.
+     */
+    void roundTrip(int lastIndex, int bytes, long rtt) {
+        window.sent(lastIndex, bytes);
+        clock.now += rtt;
+        window.acked(lastIndex);
+    }
+
+    @Test
+    public void testClosesOnBytesAndMessages() throws Exception {
+        assertTrue(window.isOpen());
+        assertTrue(window.isEmpty());
+
+        // The limit starts at min_bytes
+        window.sent(1, MIN_BYTES - 1);
+        assertTrue(window.isOpen());
+        window.sent(2, 1);
+        assertFalse(window.isOpen());
+
+        // Acknowledging the first message opens it again, and the rest is still in flight
+        window.acked(1);
+        assertTrue(window.isOpen());
+        assertFalse(window.isEmpty());
+        window.acked(2);
+        assertTrue(window.isEmpty());
+
+        // Small messages are limited by max_messages
+        for (int i = 1; i <= MAX_MESSAGES; i++) {
+            assertTrue(window.isOpen());
+            window.sent(10 + i, 1);
+        }
+        assertFalse(window.isOpen());
+    }
+
+    @Test
+    public void testGrowsWhileRttIsSteady() throws Exception {
+        roundTrip(1, MIN_BYTES, 10);
+        assertEquals(window.limitBytes, 2 * MIN_BYTES);
+        roundTrip(2, 2 * MIN_BYTES, 10);
+        assertEquals(window.limitBytes, 4 * MIN_BYTES);
+
+        // Never beyond max_bytes
+        for (int i = 3; i < 10; i++) {
+            roundTrip(i, MAX_BYTES, 10);
+        }
+        assertEquals(window.limitBytes, MAX_BYTES);
+        assertEquals(window.getRtt(), 10.0, 0.001);
+    }
+
+    @Test
+    public void testHalvesWhenRttRises() throws Exception {
+        for (int i = 1; i < 10; i++) {
+            roundTrip(i, MAX_BYTES, 10);
+        }
+        assertEquals(window.limitBytes, MAX_BYTES);
+
+        // The smoothed rtt needs a few slow samples before it exceeds twice the minimum
+        int index = 10;
+        while (window.limitBytes == MAX_BYTES) {
+            roundTrip(index++, 1, 100);
+            assertTrue(index < 20, "The limit was not reduced");
+        }
+        assertEquals(window.limitBytes, MAX_BYTES / 2);
+
+        // Never below min_bytes
+        for (int i = 0; i < 10; i++) {
+            roundTrip(index++, 1, 100);
+        }
+        assertEquals(window.limitBytes, MIN_BYTES);
+    }
+
+    @Test
+    public void testLimitClampedToConfig() throws Exception {
+        for (int i = 1; i < 10; i++) {
+            roundTrip(i, MAX_BYTES, 10);
+        }
+        assertEquals(window.limitBytes, MAX_BYTES);
+
+        // A lower max_bytes takes effect without waiting for the limit to adapt
+        ReplicationWindow.maxBytes = MAX_BYTES / 4;
+        window.sent(10, MAX_BYTES / 4 - 1);
+        assertTrue(window.isOpen());
+        window.sent(11, 1);
+        assertFalse(window.isOpen());
+        window.clear();
+
+        // As does a higher min_bytes
+        ReplicationWindow.maxBytes = MAX_BYTES;
+        window.limitBytes = MIN_BYTES;
+        ReplicationWindow.minBytes = 2 * MIN_BYTES;
+        window.sent(12, MIN_BYTES);
+        assertTrue(window.isOpen());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        assertFalse(window.isExpired(100));
+
+        window.sent(1, 1);
+        clock.now += 50;
+        window.sent(2, 1);
+        clock.now += 51;
+        assertTrue(window.isExpired(100));
+
+        // Only the oldest message counts
+        window.acked(1);
+        assertFalse(window.isExpired(100));
+
+        // Cleared messages are assumed lost and no longer expire, but the learned limit is kept
+        int limit = window.limitBytes;
+        clock.now += 200;
+        window.clear();
+        assertFalse(window.isExpired(100));
+        assertTrue(window.isEmpty());
+        assertEquals(window.limitBytes, limit);
+    }
+}
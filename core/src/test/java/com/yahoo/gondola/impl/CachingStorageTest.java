@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.LogEntry;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class CachingStorageTest {
+
+    static final int MEMBER_ID = 81;
+    Config config;
+    FileStorage fileStorage;
+    CachingStorage storage;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("gondola-caching-storage").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("raft.command_max_size = 16\n");
+            writer.write("storage.file { dir = \"" + dir.getAbsolutePath() + "/$hostId\", segment_size = 4096 }\n");
+            writer.write("storage.cache { max_bytes = 32, max_entries = 4 }\n");
+        }
+        config = new Config(confFile);
+        fileStorage = new FileStorage(config, "H1");
+        storage = new CachingStorage(config, fileStorage);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        storage.stop();
+        config.stop();
+    }
+
+    @Test
+    public void testReadsAreServedFromTheCache() throws Exception {
+        append(2, 1, "one");
+        append(3, 2, "two");
+
+        assertEquals(read(1), "one");
+        assertEquals(read(2), "two");
+        assertEquals(storage.getHits(), 2);
+        assertTrue(storage.hasLogEntry(MEMBER_ID, 3, 2));
+        assertFalse(storage.hasLogEntry(MEMBER_ID, 2, 2));
+        assertNull(storage.getLogEntry(MEMBER_ID, 3));
+        assertEquals(storage.getMisses(), 1);
+
+        LogEntry entry = storage.getLogEntry(MEMBER_ID, 2);
+        assertEquals(entry.memberId, MEMBER_ID);
+        assertEquals(entry.term, 3);
+        entry.release();
+        assertEquals(storage.pool.size(), 1);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // The slot of index 1 is taken by index 5
+        for (int i = 1; i <= 5; i++) {
+            append(1, i, "ab");
+        }
+        assertEquals(read(1), "ab");
+        assertEquals(storage.getMisses(), 1);
+        assertEquals(read(5), "ab");
+        assertEquals(storage.getHits(), 1);
+
+        // Index 7 wraps around the end of the buffer and overwrites the bytes of index 4 and 5
+        append(1, 6, "0123456789abcdef");
+        append(1, 7, "fedcba9876543210");
+        assertEquals(read(7), "fedcba9876543210");
+        assertEquals(read(6), "0123456789abcdef");
+        assertEquals(storage.getHits(), 3);
+        assertEquals(read(4), "ab");
+        assertEquals(read(5), "ab");
+        assertEquals(storage.getMisses(), 3);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        append(1, 1, "one");
+        append(1, 2, "two");
+        append(1, 3, "three");
+
+        storage.delete(MEMBER_ID, 3);
+        assertNull(storage.getLogEntry(MEMBER_ID, 3));
+        append(2, 3, "new");
+        assertEquals(read(3), "new");
+
+        storage.deleteBefore(MEMBER_ID, 3);
+        assertEquals(fileStorage.count(MEMBER_ID), 1);
+        assertNull(storage.getLogEntry(MEMBER_ID, 1));
+        assertNull(storage.getLogEntry(MEMBER_ID, 2));
+        assertEquals(read(3), "new");
+    }
+
+    @Test
+    public void testGetLogEntries() throws Exception {
+        storage.appendLogEntries(MEMBER_ID, 1, 1, 4, "aabbccdd".getBytes(),
+                                 new int[]{0, 2, 4, 6}, new int[]{2, 2, 2, 2});
+        append(1, 5, "0123456789abcdef");
+        append(1, 6, "ee");
+        byte[] bytes = "gg".getBytes();
+        fileStorage.appendLogEntry(MEMBER_ID, 1, 7, bytes, 0, bytes.length);
+
+        // Index 1 has been evicted by index 5, so the range comes from the file storage
+        List<LogEntry> entries = storage.getLogEntries(MEMBER_ID, 1, 10, 100);
+        assertEquals(entries.size(), 7);
+        entries.forEach(LogEntry::release);
+        assertEquals(storage.getMisses(), 1);
+
+        // Index 3 to 6 come from the cache and index 7 from the file storage
+        entries = storage.getLogEntries(MEMBER_ID, 3, 10, 100);
+        assertEquals(entries.size(), 5);
+        assertEquals(new String(entries.get(0).buffer, 0, entries.get(0).size), "cc");
+        assertEquals(new String(entries.get(4).buffer, 0, entries.get(4).size), "gg");
+        entries.forEach(LogEntry::release);
+        assertEquals(storage.getHits(), 1);
+
+        // Index 7 is returned by the file storage but does not fit
+        assertEquals(readCount(3, 10, 23), 4);
+        assertEquals(readCount(3, 2, 100), 2);
+        assertEquals(readCount(3, 10, 3), 1);
+    }
+
+    void append(int term, int index, String command) throws Exception {
+        byte[] bytes = command.getBytes();
+        storage.appendLogEntry(MEMBER_ID, term, index, bytes, 0, bytes.length);
+    }
+
+    String read(int index) throws Exception {
+        LogEntry entry = storage.getLogEntry(MEMBER_ID, index);
+        String command = new String(entry.buffer, 0, entry.size);
+        entry.release();
+        return command;
+    }
+
+    int readCount(int fromIndex, int maxCount, int maxBytes) throws Exception {
+        List<LogEntry> entries = storage.getLogEntries(MEMBER_ID, fromIndex, maxCount, maxBytes);
+        entries.forEach(LogEntry::release);
+        return entries.size();
+    }
+}
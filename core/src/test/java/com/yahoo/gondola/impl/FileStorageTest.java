@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Config;
+import com.yahoo.gondola.LogEntry;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FileStorageTest {
+
+    static final int MEMBER_ID = 81;
+    File dir;
+    Config config;
+    FileStorage storage;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("gondola-file-storage").toFile();
+        File confFile = new File(dir, "gondola.conf");
+        try (FileWriter writer = new FileWriter(confFile)) {
+            writer.write("storage.file { dir = \"" + dir.getAbsolutePath() + "/$hostId\", segment_size = 4096 }\n");
+        }
+        config = new Config(confFile);
+        storage = new FileStorage(config, "H1");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        storage.stop();
+        config.stop();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        append(2, 1, "one");
+        append(2, 3, "three");
+        append(3, 2, "two");
+
+        assertEquals(storage.count(MEMBER_ID), 3);
+        assertEquals(read(2), "two");
+        assertTrue(storage.hasLogEntry(MEMBER_ID, 3, 2));
+        assertFalse(storage.hasLogEntry(MEMBER_ID, 2, 2));
+        assertNull(storage.getLogEntry(MEMBER_ID, 4));
+
+        LogEntry last = storage.getLastLogEntry(MEMBER_ID);
+        assertEquals(last.index, 3);
+        assertEquals(last.term, 2);
+        last.release();
+    }
+
+    @Test
+    public void testAppendBatch() throws Exception {
+        byte[] buffer = "aabbbc".getBytes();
+        storage.appendLogEntries(MEMBER_ID, 4, 1, 3, buffer, new int[]{0, 2, 5}, new int[]{2, 3, 1});
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 3);
+        assertEquals(read(1), "aa");
+        assertEquals(read(2), "bbb");
+        assertEquals(read(3), "c");
+        assertTrue(storage.hasLogEntry(MEMBER_ID, 4, 3));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        // Enough entries to span several segments
+        for (int i = 1; i <= 200; i++) {
+            append(1, i, "command-" + i);
+        }
+        storage.delete(MEMBER_ID, 200);
+        storage.delete(MEMBER_ID, 199);
+        append(2, 199, "replaced");
+        storage.saveVote(MEMBER_ID, 5, 82);
+        storage.setMaxGap(MEMBER_ID, 10);
+        storage.setPid(MEMBER_ID, "1234");
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 199);
+        assertEquals(read(1), "command-1");
+        assertEquals(read(150), "command-150");
+        assertEquals(read(199), "replaced");
+        assertNull(storage.getLogEntry(MEMBER_ID, 200));
+        assertEquals(storage.getLastLogEntry(MEMBER_ID).index, 199);
+        assertEquals(storage.getCurrentTerm(MEMBER_ID), 5);
+        assertEquals(storage.getVotedFor(MEMBER_ID), 82);
+        assertEquals(storage.getMaxGap(MEMBER_ID), 10);
+        assertEquals(storage.getPid(MEMBER_ID), "1234");
+        assertNull(storage.getAddress(MEMBER_ID));
+    }
+
+    @Test
+    public void testDeleteBefore() throws Exception {
+        for (int i = 1; i <= 200; i++) {
+            append(1, i, "command-" + i);
+        }
+        File memberDir = new File(dir, "H1/member-" + MEMBER_ID);
+        int segments = memberDir.list((d, name) -> name.endsWith(".seg")).length;
+
+        storage.deleteBefore(MEMBER_ID, 160);
+        assertEquals(storage.count(MEMBER_ID), 41);
+        assertNull(storage.getLogEntry(MEMBER_ID, 159));
+        assertEquals(read(160), "command-160");
+        assertTrue(memberDir.list((d, name) -> name.endsWith(".seg")).length < segments);
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 41);
+        assertNull(storage.getLogEntry(MEMBER_ID, 1));
+        assertEquals(read(160), "command-160");
+        assertEquals(storage.getLastLogEntry(MEMBER_ID).index, 200);
+        append(1, 201, "command-201");
+
+        // Discarding everything leaves an empty log that can be appended at the first index
+        storage.deleteBefore(MEMBER_ID, 202);
+        assertEquals(storage.count(MEMBER_ID), 0);
+        assertNull(storage.getLastLogEntry(MEMBER_ID));
+        append(2, 202, "command-202");
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 1);
+        assertEquals(read(202), "command-202");
+    }
+
+    @Test
+    public void testRestartBelowFirstIndex() throws Exception {
+        for (int i = 1; i <= 200; i++) {
+            append(1, i, "command-" + i);
+        }
+        storage.deleteBefore(MEMBER_ID, 201);
+
+        // The records of the discarded entries must not come back when the first index is lowered
+        append(2, 5, "again");
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 1);
+        assertEquals(read(5), "again");
+        assertNull(storage.getLogEntry(MEMBER_ID, 6));
+        assertEquals(storage.getLastLogEntry(MEMBER_ID).index, 5);
+    }
+
+    @Test
+    public void testVisitLogEntries() throws Exception {
+        // Enough entries to span several segments, with a gap at 150
+        for (int i = 1; i <= 200; i++) {
+            if (i != 150) {
+                append(1 + i / 100, i, "command-" + i);
+            }
+        }
+
+        List<String> visited = new ArrayList<>();
+        int n = storage.visitLogEntries(MEMBER_ID, 90, 1000, (term, index, command) -> {
+            byte[] bytes = new byte[command.remaining()];
+            command.get(bytes);
+            visited.add(term + ":" + index + ":" + new String(bytes));
+            return true;
+        });
+        assertEquals(n, 60);
+        assertEquals(visited.get(0), "1:90:command-90");
+        assertEquals(visited.get(59), "2:149:command-149");
+
+        // Stops at maxCount or when the visitor declines
+        assertEquals(storage.visitLogEntries(MEMBER_ID, 1, 5, (term, index, command) -> true), 5);
+        assertEquals(storage.visitLogEntries(MEMBER_ID, 1, 100, (term, index, command) -> index < 3), 2);
+        assertEquals(storage.visitLogEntries(MEMBER_ID, 201, 100, (term, index, command) -> true), 0);
+    }
+
+    @Test
+    public void testGetLogEntries() throws Exception {
+        // Entries 1-9 of 10 bytes each, with a gap at 6
+        for (int i = 1; i <= 9; i++) {
+            if (i != 6) {
+                append(1, i, "command-0" + i);
+            }
+        }
+
+        List<LogEntry> entries = storage.getLogEntries(MEMBER_ID, 2, 100, Integer.MAX_VALUE);
+        assertEquals(entries.size(), 4);
+        assertEquals(entries.get(0).index, 2);
+        assertEquals(new String(entries.get(3).buffer, 0, entries.get(3).size), "command-05");
+        entries.forEach(LogEntry::release);
+
+        // Stops at maxCount and maxBytes, but always returns the first entry
+        assertEquals(getLogEntries(1, 2, 100), 2);
+        assertEquals(getLogEntries(1, 100, 35), 3);
+        assertEquals(getLogEntries(1, 100, 5), 1);
+        assertEquals(getLogEntries(6, 100, 100), 0);
+        assertEquals(getLogEntries(7, 100, 100), 3);
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        append(1, 1, "one");
+        append(1, 2, "two");
+        storage.stop();
+
+        // Corrupt the last byte of the second record
+        File segment = new File(dir, "H1/member-" + MEMBER_ID + "/0000000001.seg");
+        try (RandomAccessFile raFile = new RandomAccessFile(segment, "rw")) {
+            long pos = 2 * FileStorage.HEADER_SIZE + "one".length() + "two".length() - 1;
+            raFile.seek(pos);
+            raFile.write('x');
+        }
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 1);
+        assertNull(storage.getLogEntry(MEMBER_ID, 2));
+        append(1, 2, "again");
+
+        reopen();
+        assertEquals(storage.count(MEMBER_ID), 2);
+        assertEquals(read(2), "again");
+    }
+
+    void reopen() throws Exception {
+        storage.stop();
+        storage = new FileStorage(config, "H1");
+    }
+
+    void append(int term, int index, String command) throws Exception {
+        byte[] bytes = command.getBytes();
+        storage.appendLogEntry(MEMBER_ID, term, index, bytes, 0, bytes.length);
+    }
+
+    int getLogEntries(int fromIndex, int maxCount, int maxBytes) throws Exception {
+        List<LogEntry> entries = storage.getLogEntries(MEMBER_ID, fromIndex, maxCount, maxBytes);
+        entries.forEach(LogEntry::release);
+        return entries.size();
+    }
+
+    String read(int index) throws Exception {
+        LogEntry entry = storage.getLogEntry(MEMBER_ID, index);
+        String command = new String(entry.buffer, 0, entry.size);
+        entry.release();
+        return command;
+    }
+}
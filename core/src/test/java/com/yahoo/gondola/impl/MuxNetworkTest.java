@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Command;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.TestHosts;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.SocketException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+public class MuxNetworkTest {
+
+    static final String[] SHARDS = {"shard1", "shard2"};
+    TestHosts hosts;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        hosts = new TestHosts("gondola-mux-network", 2938);
+    }
+
+    /**
+     * Starts all the hosts, each with a member of both shards.
+     *
+     * @param extraConfig additional config that is appended to the test's config file.
+     */
+    void start(String extraConfig) throws Exception {
+        hosts.start(2, "network { impl = network.mux, mux.stream_window = 1024 }\n" + extraConfig);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        hosts.stop();
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        start("");
+
+        // Commands larger than the stream window exercise the flow control
+        byte[] bytes = new byte[900];
+        for (String shardId : SHARDS) {
+            Shard leader = hosts.awaitLeader(shardId);
+            for (int i = 1; i <= 20; i++) {
+                bytes[0] = (byte) i;
+                Command command = leader.checkoutCommand();
+                command.commit(bytes, 0, bytes.length);
+                command.release();
+            }
+
+            for (Gondola gondola : hosts.gondolas) {
+                Command command = gondola.getShard(shardId).getCommittedCommand(leader.getCommitIndex(), 10000);
+                assertEquals(command.getSize(), bytes.length);
+                assertEquals(command.getBuffer()[0], (byte) 20);
+                command.release();
+            }
+        }
+
+        // The channels of both shards share one link per remote host
+        MuxNetwork network = (MuxNetwork) hosts.gondolas.get(0).getNetwork();
+        assertEquals(network.getChannels().size(), 4);
+        assertEquals(network.links.size(), 2);
+        long connectors = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("MuxConnector-A-")).count();
+        assertEquals(connectors, 2);
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        start("");
+        Shard leader = hosts.awaitLeader("shard1");
+        Gondola follower = hosts.gondolas.stream()
+                .filter(g -> g.getShard("shard1") != leader).findFirst().get();
+
+        // Drop all the connections of the follower; they should be re-established by the links
+        ((MuxNetwork) follower.getNetwork()).links.values().forEach(link -> {
+            MuxNetwork.Connection c = link.conn;
+            if (c != null) {
+                link.fail(c, new SocketException("Socket closed"));
+            }
+        });
+        Command command = leader.checkoutCommand();
+        command.commit(new byte[] {1}, 0, 1);
+        command.release();
+
+        command = follower.getShard("shard1").getCommittedCommand(leader.getCommitIndex(), 10000);
+        assertNotNull(command);
+        command.release();
+    }
+
+    @Test
+    public void testLargeCommands() throws Exception {
+        // Messages that span many data frames and window updates
+        start("raft { command_max_size = 200000, message_max_size = 1048576 }\n");
+        Shard leader = hosts.awaitLeader("shard1");
+        byte[] bytes = new byte[150000];
+        for (int i = 1; i <= 5; i++) {
+            bytes[bytes.length - 1] = (byte) i;
+            Command command = leader.checkoutCommand();
+            command.commit(bytes, 0, bytes.length);
+            command.release();
+        }
+
+        for (Gondola gondola : hosts.gondolas) {
+            Command command = gondola.getShard("shard1").getCommittedCommand(leader.getCommitIndex(), 10000);
+            assertEquals(command.getSize(), bytes.length);
+            assertEquals(command.getBuffer()[bytes.length - 1], (byte) 5);
+            command.release();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.gondola.impl;
+
+import com.yahoo.gondola.Command;
+import com.yahoo.gondola.Gondola;
+import com.yahoo.gondola.Shard;
+import com.yahoo.gondola.TestHosts;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+public class NioNetworkTest {
+
+    TestHosts hosts;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        hosts = new TestHosts("gondola-nio-network", 2928);
+    }
+
+    /**
+     * Starts all the hosts.
+     *
+     * @param extraConfig additional config that is appended to the test's config file.
+     */
+    void start(String extraConfig) throws Exception {
+        hosts.start(1, "network { impl = network.nio, nio.buffer_size = 1024 }\n" + extraConfig);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        hosts.stop();
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        start("");
+        Shard leader = hosts.awaitLeader("shard1");
+
+        // Commands larger than the connection buffers exercise the partial reads and writes
+        byte[] bytes = new byte[900];
+        for (int i = 1; i <= 20; i++) {
+            bytes[0] = (byte) i;
+            Command command = leader.checkoutCommand();
+            command.commit(bytes, 0, bytes.length);
+            command.release();
+        }
+
+        for (Gondola gondola : hosts.gondolas) {
+            Shard shard = gondola.getShard("shard1");
+            Command command = shard.getCommittedCommand(leader.getCommitIndex(), 10000);
+            assertEquals(command.getSize(), bytes.length);
+            assertEquals(command.getBuffer()[0], (byte) 20);
+            command.release();
+        }
+
+        // The network threads do not depend on the number of connections
+        long selectors = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("NioSelector-A-")).count();
+        assertEquals(selectors, hosts.config.getInt("network.nio.selector_threads"));
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        start("");
+        Shard leader = hosts.awaitLeader("shard1");
+        Gondola follower = hosts.gondolas.stream()
+                .filter(g -> g.getShard("shard1") != leader).findFirst().get();
+
+        // Drop all the connections of the follower; they should be re-established by the channels
+        follower.getNetwork().getChannels()
+                .forEach(c -> ((NioChannel) c).close(((NioChannel) c).conn));
+        Command command = leader.checkoutCommand();
+        command.commit(new byte[] {1}, 0, 1);
+        command.release();
+
+        command = follower.getShard("shard1").getCommittedCommand(leader.getCommitIndex(), 10000);
+        assertNotNull(command);
+        command.release();
+    }
+
+    @Test
+    public void testLargeCommands() throws Exception {
+        // Commands and batches that are larger than the 32KB limit of wire format version 1
+        start("raft { command_max_size = 200000, message_max_size = 1048576 }\n");
+        Shard leader = hosts.awaitLeader("shard1");
+        byte[] bytes = new byte[150000];
+        for (int i = 1; i <= 5; i++) {
+            bytes[bytes.length - 1] = (byte) i;
+            Command command = leader.checkoutCommand();
+            command.commit(bytes, 0, bytes.length);
+            command.release();
+        }
+
+        for (Gondola gondola : hosts.gondolas) {
+            Command command = gondola.getShard("shard1").getCommittedCommand(leader.getCommitIndex(), 10000);
+            assertEquals(command.getSize(), bytes.length);
+            assertEquals(command.getBuffer()[bytes.length - 1], (byte) 5);
+            command.release();
+        }
+    }
+
+    @Test
+    public void testWireVersion1() throws Exception {
+        // Messages are converted to and from the old format
+        start("network.wire_version = 1\n");
+        Shard leader = hosts.awaitLeader("shard1");
+        byte[] bytes = new byte[900];
+        for (int i = 1; i <= 20; i++) {
+            bytes[0] = (byte) i;
+            Command command = leader.checkoutCommand();
+            command.commit(bytes, 0, bytes.length);
+            command.release();
+        }
+
+        for (Gondola gondola : hosts.gondolas) {
+            Command command = gondola.getShard("shard1").getCommittedCommand(leader.getCommitIndex(), 10000);
+            assertEquals(command.getSize(), bytes.length);
+            assertEquals(command.getBuffer()[0], (byte) 20);
+            command.release();
+            gondola.getNetwork().getChannels().forEach(c -> assertEquals(c.getWireVersion(), 1));
+        }
+    }
+}
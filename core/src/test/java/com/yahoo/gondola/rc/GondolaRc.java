@@ -63,6 +63,13 @@ public class GondolaRc {
 
     public void start() throws Exception {
         for (Gondola g : gondolas) {
+            // The rc storage is empty when started so remove any snapshots left by the previous test case
+            File[] files = new File(config.get("gondola.snapshot.dir").replace("$hostId", g.getHostId())).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
             g.start();
             MemberRc member = new MemberRc(this, g);
             members.put(member.getMemberId(), member);
@@ -167,6 +167,11 @@ public class RcChannel implements Channel {
         return this.out;
     }
 
+    @Override
+    public int getWireVersion() {
+        return Message.WIRE_VERSION;
+    }
+
     void awaitOperational(boolean errorOccurred) throws InterruptedException {
         while (inputStreams.get(key) == null) {
             Thread.sleep(1000);
@@ -196,8 +201,22 @@ public class RcChannel implements Channel {
             throw new IllegalStateException("not implemented");
         }
 
+        /**
+         * The sender can coalesce several messages into a single write, so the messages are split out and
+         * handled individually.
+         */
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                int size = (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8
+                        | (b[off + 3] & 0xff);
+                writeMessage(b, off, size);
+                off += size;
+            }
+        }
+
+        void writeMessage(byte[] b, int off, int len) throws IOException {
             Message message = gondola.getMessagePool().checkout();
             try {
                 message.read(b, off, len);
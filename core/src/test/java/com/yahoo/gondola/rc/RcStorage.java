@@ -11,6 +11,8 @@ import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.LogEntry;
 import com.yahoo.gondola.Storage;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -89,6 +91,26 @@ public class RcStorage implements Storage {
         return getMember(memberId).getLogEntry(index);
     }
 
+    @Override
+    public List<LogEntry> getLogEntries(int memberId, int fromIndex, int maxCount, int maxBytes)
+            throws GondolaException {
+        List<LogEntry> entries = new ArrayList<>();
+        int bytes = 0;
+        for (int index = fromIndex; entries.size() < maxCount; index++) {
+            LogEntry le = getLogEntry(memberId, index);
+            if (le == null) {
+                break;
+            }
+            bytes += le.size;
+            if (bytes > maxBytes && !entries.isEmpty()) {
+                le.release();
+                break;
+            }
+            entries.add(le);
+        }
+        return entries;
+    }
+
     @Override
     public LogEntry getLastLogEntry(int memberId) throws GondolaException {
         return getMember(memberId).getLastLogEntry();
@@ -101,11 +123,25 @@ public class RcStorage implements Storage {
         getMember(memberId).appendLogEntry(term, index, buffer, bufferOffset, bufferLen);
     }
 
+    @Override
+    public void appendLogEntries(int memberId, int term, int startIndex, int count,
+                                 byte[] buffer, int[] offsets, int[] lengths)
+            throws GondolaException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            appendLogEntry(memberId, term, startIndex + i, buffer, offsets[i], lengths[i]);
+        }
+    }
+
     @Override
     public void delete(int memberId, int index) throws GondolaException {
         getMember(memberId).delete(index);
     }
 
+    @Override
+    public void deleteBefore(int memberId, int index) throws GondolaException {
+        getMember(memberId).deleteBefore(index);
+    }
+
     @Override
     public void checkin(LogEntry entry) {
     }
@@ -92,6 +92,13 @@ public class RcStorageMember {
         entries.forEach((k, v) -> maxIndex = Math.max(maxIndex, k));
     }
 
+    public void deleteBefore(int index) {
+        entries.keySet().removeIf(i -> i < index);
+        if (maxIndex < index) {
+            maxIndex = 0;
+        }
+    }
+
     public int count() {
         return entries.size();
     }
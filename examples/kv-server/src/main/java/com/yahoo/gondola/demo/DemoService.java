@@ -6,7 +6,6 @@
 
 package com.yahoo.gondola.demo;
 
-import com.google.common.collect.Sets;
 import com.yahoo.gondola.Gondola;
 import com.yahoo.gondola.GondolaException;
 import com.yahoo.gondola.RoleChangeEvent;
@@ -17,11 +16,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 /**
@@ -31,10 +27,9 @@ public class DemoService extends RoutingService {
 
     private static Logger logger = LoggerFactory.getLogger(DemoService.class);
     private Map<String, String> entries = new ConcurrentHashMap<>();
-    private Set<String> recordLock = Sets.newConcurrentHashSet();
 
-    Lock lock = new ReentrantLock();
-    Condition unlockCondition = lock.newCondition();
+    // The maximum time a read waits for the entries to include all the committed writes (ms)
+    static final int READ_TIMEOUT = 5000;
 
     /**
      * Instantiates a new Routing service.
@@ -69,17 +64,15 @@ public class DemoService extends RoutingService {
      */
     public String getValue(String key)
         throws NotLeaderException, NotFoundException, InterruptedException {
-        if (!isLeader()) {
-            throw new NotLeaderException();
-        }
-
-        lock.lock();
-        try {
-            while (recordLock.contains(key)) {
-                unlockCondition.await();
+        // Followers only receive reads when gondola.follower_read_max_lag allows them to serve stale entries
+        if (isLeader()) {
+            try {
+                // Wait until the entries include every write committed before this read
+                readBarrier(READ_TIMEOUT);
+            } catch (GondolaException | TimeoutException e) {
+                logger.info("[{}] Failed to get {} reason={}", hostId, key, e.getMessage());
+                throw new NotLeaderException();
             }
-        } finally {
-            lock.unlock();
         }
 
         if (!entries.containsKey(key)) {
@@ -103,7 +96,6 @@ public class DemoService extends RoutingService {
             throw new IllegalArgumentException("The key must not contain spaces");
         }
         try {
-            recordLock.add(key);
             byte[] bytes = (key + " " + value).getBytes();
             writeLog(bytes);
             logger.info("[{}] Put key {}={}", hostId, key, value);
@@ -121,13 +113,6 @@ public class DemoService extends RoutingService {
             String[] pair = command.getString().split(" ", 2);
             if (pair.length == 2) {
                 entries.put(pair[0], pair[1]);
-                recordLock.remove(pair[0]);
-                lock.lock();
-                try {
-                    unlockCondition.signalAll();
-                } finally {
-                    lock.unlock();
-                }
             }
         };
     }